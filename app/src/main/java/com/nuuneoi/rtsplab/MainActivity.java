@@ -39,6 +39,7 @@ public class MainActivity extends AppCompatActivity {
 
     RtspRecorder rtspRecorder;
     RtmpStreamer rtmpStreamer;
+    RetentionManager retentionManager;
 
     Button btnStartRecording;
     Button btnStopRecording;
@@ -104,7 +105,11 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
+        retentionManager = new RetentionManager();
+        retentionManager.setMinFreeSpace(512L * 1024 * 1024);
+
         rtspRecorder = new RtspRecorder();
+        rtspRecorder.setRetentionManager(retentionManager);
         rtmpStreamer = new RtmpStreamer();
         rtmpStreamer.setConnectCheckerRtmpListener(rtmpConnectionListner);
         rtmpStreamer.setInputSource(rtspRecorder);
@@ -114,6 +119,7 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
 
+        retentionManager.start(RetentionManager.DEFAULT_CHECK_INTERVAL_MSEC);
         rtspRecorder.startStreaming(rtspSourceUrl);
     }
 
@@ -122,6 +128,7 @@ public class MainActivity extends AppCompatActivity {
         super.onPause();
 
         rtspRecorder.stopStreaming();
+        retentionManager.stop();
     }
 
     ConnectCheckerRtmp rtmpConnectionListner = new ConnectCheckerRtmp() {
@@ -0,0 +1,164 @@
+package com.nuuneoi.rtsplab;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.alexvas.rtsp.muxer.FragmentedMp4Writer;
+import com.alexvas.utils.PooledBuffer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * One output file of a recording. Track 0 is video, track 1 is audio.
+ * Opened and finalized on the muxer worker thread, written on the writer thread.
+ */
+abstract class RecordingFile {
+
+    private static final String TAG = "RecordingFile";
+
+    @NonNull
+    private volatile File file;
+
+    RecordingFile(@NonNull File file) {
+        this.file = file;
+    }
+
+    @NonNull
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Open file descriptor stays valid, so the file can be renamed at any time.
+     */
+    boolean renameTo(@NonNull File dest) {
+        if (!file.renameTo(dest))
+            return false;
+        file = dest;
+        return true;
+    }
+
+    abstract void writeSample(int track, @NonNull PooledBuffer sample, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException;
+
+    /**
+     * Finalize the file. Can be slow, MediaMuxer writes the whole moov box here.
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Close and remove the file, e.g. pre-opened file which was not used.
+     */
+    void discard() {
+        try {
+            close();
+        } catch (IOException | RuntimeException e) {
+            // Nothing was written, MediaMuxer fails to stop in this case
+        }
+        if (file.exists() && !file.delete())
+            Log.w(TAG, "Failed to delete " + file);
+    }
+
+    static class MediaMuxerFile extends RecordingFile {
+
+        private final MediaMuxer mediaMuxer;
+        private final int videoTrackIndex;
+        // -1 if the stream has no audio
+        private final int audioTrackIndex;
+
+        /**
+         * @param audioFormat null if the stream has no audio
+         */
+        MediaMuxerFile(@NonNull File file, @NonNull MediaFormat videoFormat, @Nullable MediaFormat audioFormat) throws IOException {
+            super(file);
+            mediaMuxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            try {
+                videoTrackIndex = mediaMuxer.addTrack(videoFormat);
+                audioTrackIndex = (audioFormat != null ? mediaMuxer.addTrack(audioFormat) : -1);
+                mediaMuxer.start();
+            } catch (RuntimeException e) {
+                mediaMuxer.release();
+                throw e;
+            }
+        }
+
+        @Override
+        void writeSample(int track, @NonNull PooledBuffer sample, @NonNull MediaCodec.BufferInfo bufferInfo) {
+            int index = (track == 0 ? videoTrackIndex : audioTrackIndex);
+            if (index < 0)
+                return;
+            // MediaMuxer expects start codes and converts them to length prefixes itself
+            mediaMuxer.writeSampleData(index, sample.asReadOnlyBuffer(), bufferInfo);
+        }
+
+        @Override
+        void close() {
+            try {
+                mediaMuxer.stop();
+            } finally {
+                mediaMuxer.release();
+            }
+        }
+    }
+
+    /**
+     * File stays playable if the app crashes or the device loses power, only the last fragment is lost.
+     */
+    static class FragmentedMp4File extends RecordingFile {
+
+        private final FragmentedMp4Writer writer;
+        private final int videoTrackIndex;
+        // -1 if the stream has no audio
+        private final int audioTrackIndex;
+
+        FragmentedMp4File(
+                @NonNull File file,
+                boolean h265,
+                int width,
+                int height,
+                @Nullable byte[] vps,
+                @NonNull byte[] sps,
+                @NonNull byte[] pps,
+                int audioSampleRateHz, // 0 if no audio
+                int audioChannels,
+                @Nullable byte[] audioConfig) throws IOException {
+            super(file);
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                writer = new FragmentedMp4Writer(output.getChannel());
+                videoTrackIndex = writer.addVideoTrack(h265, width, height, vps, sps, pps, FragmentedMp4Writer.FORMAT_ANNEX_B);
+                audioTrackIndex = (audioSampleRateHz > 0 ?
+                        writer.addAudioTrack(audioSampleRateHz, audioChannels, audioConfig) :
+                        -1);
+                writer.start();
+            } catch (IOException | RuntimeException e) {
+                output.close();
+                throw e;
+            }
+        }
+
+        @Override
+        void writeSample(int track, @NonNull PooledBuffer sample, @NonNull MediaCodec.BufferInfo bufferInfo) throws IOException {
+            int index = (track == 0 ? videoTrackIndex : audioTrackIndex);
+            if (index < 0)
+                return;
+            writer.writeSampleData(
+                    index,
+                    sample,
+                    bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        }
+
+        @Override
+        void close() throws IOException {
+            writer.close();
+        }
+    }
+
+}
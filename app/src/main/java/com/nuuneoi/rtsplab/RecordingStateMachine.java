@@ -0,0 +1,127 @@
+package com.nuuneoi.rtsplab;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recording state shared by the control side (UI, writer thread) and the frame thread.
+ *
+ *   IDLE --- start() ---> WAITING_FOR_IDR --- key frame ---+
+ *    | \                                                     v
+ *    |  +-- start(true) --> ARMED ----- next frame -----> RECORDING <--- key frame --- ROTATING
+ *    |                                                       |  \-- requestNewFile() ---^
+ *    +-- next frame -- STOPPING <------- stop() -------------+  (from any recording state)
+ *
+ * Control methods only move the state with CAS and can be called from any thread.
+ * Everything which touches the file (start, switch, close) is done by the single frame thread
+ * in response to {@link #onFrame(boolean)}, so the per-frame path takes no locks.
+ */
+class RecordingStateMachine {
+
+    static final int IDLE = 0;
+    // Start with the next frame, pre-roll starts with a key frame
+    static final int ARMED = 1;
+    static final int WAITING_FOR_IDR = 2;
+    static final int RECORDING = 3;
+    // Switch to a new file at the next key frame
+    static final int ROTATING = 4;
+    // Close the file at the next frame
+    static final int STOPPING = 5;
+
+    // Returned by onFrame()
+    // Not recording. Close the file if it is open.
+    static final int FRAME_IDLE = 0;
+    // Recording, but the frame cannot start a file
+    static final int FRAME_SKIP = 1;
+    // Start a new file with this frame. If a file is open, switch from it.
+    static final int FRAME_START = 2;
+    // Switch to a new file at this key frame
+    static final int FRAME_SWITCH = 3;
+    // Write to the current file
+    static final int FRAME_WRITE = 4;
+
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+
+    int getState() {
+        return state.get();
+    }
+
+    boolean isRecording() {
+        int s = state.get();
+        return s != IDLE && s != STOPPING;
+    }
+
+    /**
+     * @param fromNextFrame true if pre-roll starts with a key frame, so any next frame can start a file
+     * @return false if already recording
+     */
+    boolean start(boolean fromNextFrame) {
+        int next = fromNextFrame ? ARMED : WAITING_FOR_IDR;
+        while (true) {
+            int s = state.get();
+            // Stop not yet seen by the frame thread is cancelled, it switches to a new file instead
+            if (s != IDLE && s != STOPPING)
+                return false;
+            if (state.compareAndSet(s, next))
+                return true;
+        }
+    }
+
+    /**
+     * @return false if not recording
+     */
+    boolean stop() {
+        while (true) {
+            int s = state.get();
+            if (s == IDLE || s == STOPPING)
+                return false;
+            if (state.compareAndSet(s, STOPPING))
+                return true;
+        }
+    }
+
+    /**
+     * @return false if not recording to a file yet or a new file is already requested
+     */
+    boolean requestNewFile() {
+        return state.compareAndSet(RECORDING, ROTATING);
+    }
+
+    /**
+     * Frame thread only.
+     * @param keyFrame frame can start a file, i.e. a video key frame or any frame of audio only stream
+     * @return FRAME_* action
+     */
+    int onFrame(boolean keyFrame) {
+        while (true) {
+            int s = state.get();
+            switch (s) {
+                case IDLE:
+                    return FRAME_IDLE;
+                case STOPPING:
+                    if (state.compareAndSet(STOPPING, IDLE))
+                        return FRAME_IDLE;
+                    break;
+                case ARMED:
+                    if (state.compareAndSet(ARMED, RECORDING))
+                        return FRAME_START;
+                    break;
+                case WAITING_FOR_IDR:
+                    if (!keyFrame)
+                        return FRAME_SKIP;
+                    if (state.compareAndSet(WAITING_FOR_IDR, RECORDING))
+                        return FRAME_START;
+                    break;
+                case ROTATING:
+                    if (!keyFrame)
+                        return FRAME_WRITE;
+                    if (state.compareAndSet(ROTATING, RECORDING))
+                        return FRAME_SWITCH;
+                    break;
+                default:
+                    return FRAME_WRITE;
+            }
+            // Control side changed the state meanwhile, retry
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.nuuneoi.rtsplab;
+
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes the oldest completed recordings when a camera or all cameras together exceed
+ * their byte quota, when recordings get older than max age, or when free space drops
+ * below the floor.
+ *
+ * Directories are listed once when a camera is added. After that the index is updated
+ * only by {@link #onFileCompleted(String, File)}. Everything runs on one low priority
+ * thread and deletes are spaced out, so live recording writes are not slowed down.
+ * Can be shared by several recorders.
+ */
+public class RetentionManager {
+
+    private static final String TAG = "RetentionManager";
+    private static final boolean DEBUG = false;
+
+    public static final long DEFAULT_CHECK_INTERVAL_MSEC = 30000;
+    public static final long DEFAULT_DELETE_INTERVAL_MSEC = 200;
+    // Recordings written by RtspRecorder, other files in the directory are left alone
+    private static final String RECORDING_EXTENSION = ".mp4";
+
+    private static final class Segment {
+        final File file;
+        final long bytes;
+        final long lastModified;
+
+        Segment(@NonNull File file, long bytes, long lastModified) {
+            this.file = file;
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final class Camera {
+        final File dir;
+        // Oldest first
+        final ArrayDeque<Segment> segments = new ArrayDeque<>();
+        long bytes = 0;
+
+        Camera(@NonNull File dir) {
+            this.dir = dir;
+        }
+    }
+
+    // 0 disables a limit
+    private volatile long globalQuotaBytes = 0;
+    private volatile long cameraQuotaBytes = 0;
+    private volatile long maxAgeMsec = 0;
+    private volatile long minFreeBytes = 0;
+    private volatile long deleteIntervalMsec = DEFAULT_DELETE_INTERVAL_MSEC;
+
+    // Accessed on the retention thread only
+    private final Map<String, Camera> cameras = new HashMap<>();
+    private final Set<String> indexedPaths = new HashSet<>();
+    private long totalBytes = 0;
+
+    private ScheduledExecutorService executor;
+
+    public void setGlobalQuota(long bytes) {
+        globalQuotaBytes = bytes;
+    }
+
+    /**
+     * Quota of each camera directory.
+     */
+    public void setCameraQuota(long bytes) {
+        cameraQuotaBytes = bytes;
+    }
+
+    public void setMaxAge(long msec) {
+        maxAgeMsec = msec;
+    }
+
+    /**
+     * Oldest recordings are deleted until the storage has this much free space.
+     */
+    public void setMinFreeSpace(long bytes) {
+        minFreeBytes = bytes;
+    }
+
+    /**
+     * Pause between two deletes. Deleting big files causes I/O bursts on some file systems.
+     */
+    public void setDeleteInterval(long msec) {
+        deleteIntervalMsec = msec;
+    }
+
+    public synchronized void start(long checkIntervalMsec) {
+        if (executor != null)
+            return;
+        ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, TAG);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        e.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        e.scheduleWithFixedDelay(this::enforce, checkIntervalMsec, checkIntervalMsec, TimeUnit.MILLISECONDS);
+        executor = e;
+    }
+
+    public synchronized void stop() {
+        if (executor == null)
+            return;
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /**
+     * Start tracking recordings of a camera. Existing files are indexed in background.
+     * Can be called again for the same camera, the directory is listed only once.
+     */
+    public void addCamera(@NonNull final String camera, @NonNull final File dir) {
+        // Recordings started after this call are indexed by onFileCompleted(), the older ones by scan()
+        final long addedAt = System.currentTimeMillis();
+        execute(() -> {
+            if (cameras.containsKey(camera))
+                return;
+            Camera c = new Camera(dir);
+            cameras.put(camera, c);
+            scan(c, addedAt);
+            enforce();
+        });
+    }
+
+    /**
+     * Called when a recording file is finalized, so it can be deleted later.
+     */
+    public void onFileCompleted(@NonNull final String camera, @NonNull final File file) {
+        execute(() -> {
+            Camera c = cameras.get(camera);
+            if (c == null) {
+                c = new Camera(file.getParentFile());
+                cameras.put(camera, c);
+            }
+            add(c, new Segment(file, file.length(), file.lastModified()));
+            enforce();
+        });
+    }
+
+    private synchronized void execute(@NonNull Runnable task) {
+        if (executor != null)
+            executor.execute(task);
+    }
+
+    // Files modified after addedAt can still be written by a recording started since then
+    private void scan(@NonNull Camera camera, long addedAt) {
+        File[] files = camera.dir.listFiles();
+        if (files == null)
+            return;
+        ArrayList<Segment> found = new ArrayList<>(files.length);
+        for (File file : files) {
+            // Hidden files are prepared next recordings
+            String name = file.getName();
+            if (name.startsWith(".") || !name.endsWith(RECORDING_EXTENSION) || !file.isFile())
+                continue;
+            long lastModified = file.lastModified();
+            if (lastModified > addedAt)
+                continue;
+            found.add(new Segment(file, file.length(), lastModified));
+        }
+        Segment[] sorted = found.toArray(new Segment[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.lastModified, b.lastModified));
+        for (Segment segment : sorted)
+            add(camera, segment);
+        if (DEBUG) Log.d(TAG, "Indexed " + sorted.length + " files in " + camera.dir);
+    }
+
+    private void add(@NonNull Camera camera, @NonNull Segment segment) {
+        if (!indexedPaths.add(segment.file.getPath()))
+            return;
+        camera.segments.addLast(segment);
+        camera.bytes += segment.bytes;
+        totalBytes += segment.bytes;
+    }
+
+    private void enforce() {
+        try {
+            Camera camera;
+            while ((camera = findCameraToDelete()) != null) {
+                Segment segment = camera.segments.removeFirst();
+                camera.bytes -= segment.bytes;
+                totalBytes -= segment.bytes;
+                indexedPaths.remove(segment.file.getPath());
+                if (segment.file.delete()) {
+                    if (DEBUG) Log.d(TAG, "Deleted " + segment.file);
+                } else if (segment.file.exists()) {
+                    Log.w(TAG, "Failed to delete " + segment.file);
+                }
+                Thread.sleep(deleteIntervalMsec);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to enforce retention", e);
+        }
+    }
+
+    // Camera whose oldest recording should be deleted next, or null if all limits are met
+    @Nullable
+    private Camera findCameraToDelete() {
+        long cameraQuota = cameraQuotaBytes;
+        if (cameraQuota > 0) {
+            for (Camera camera : cameras.values()) {
+                if (camera.bytes > cameraQuota && !camera.segments.isEmpty())
+                    return camera;
+            }
+        }
+        Camera oldest = null;
+        for (Camera camera : cameras.values()) {
+            if (!camera.segments.isEmpty() && (oldest == null ||
+                    camera.segments.getFirst().lastModified < oldest.segments.getFirst().lastModified))
+                oldest = camera;
+        }
+        if (oldest == null)
+            return null;
+        long globalQuota = globalQuotaBytes;
+        if (globalQuota > 0 && totalBytes > globalQuota)
+            return oldest;
+        long maxAge = maxAgeMsec;
+        if (maxAge > 0 && System.currentTimeMillis() - oldest.segments.getFirst().lastModified > maxAge)
+            return oldest;
+        long minFree = minFreeBytes;
+        if (minFree > 0 && oldest.dir.getUsableSpace() < minFree)
+            return oldest;
+        return null;
+    }
+
+}
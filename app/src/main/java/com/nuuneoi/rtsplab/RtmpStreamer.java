@@ -7,6 +7,8 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 
 import com.alexvas.rtsp.RtspClient;
+import com.alexvas.rtsp.muxer.AsyncSampleWriter;
+import com.alexvas.rtsp.muxer.FrameDispatcher;
 import com.pedro.rtmp.rtmp.RtmpClient;
 import com.pedro.rtmp.rtmp.VideoCodec;
 import com.pedro.rtmp.utils.ConnectCheckerRtmp;
@@ -17,27 +19,36 @@ import java.nio.ByteBuffer;
 public class RtmpStreamer implements RtspRecorder.RtspListener {
     private static final String TAG = "RtmpStreamer";
 
+    // About 2 sec of 30 fps video with audio. Uplink stalls skip to the next key frame.
+    private static final int QUEUE_CAPACITY = 128;
+
     ConnectCheckerRtmp mConnectCheckerRtmpListener;
 
     RtspRecorder mInputSourceRtspRecorder;
+    FrameDispatcher.Subscription mInputSourceSubscription;
 
-    RtmpClient rtmpClient;
-
-    Boolean isStreaming = false;
-    Boolean isVideoInfoSet = false;
-    Boolean isAudioInfoSet = false;
+    // Frames arrive on the listener thread, start/stop are called from UI.
+    // Frames read the client without locks, null when not streaming.
+    volatile RtmpClient rtmpClient;
+    private final Object streamingLock = new Object();
+    volatile boolean isStreaming = false;
+    // Client which got codec info, accessed on the listener thread only.
+    // New client after restart gets it again.
+    private RtmpClient videoInfoClient;
+    private RtmpClient audioInfoClient;
 
-    boolean isOnlyVideo = false;
+    volatile boolean isOnlyVideo = false;
 
     public void setInputSource(RtspRecorder rtspRecorder) {
         if (isStreaming)
             throw new RuntimeException("Cannot set input source once started");
 
         if (mInputSourceRtspRecorder != null)
-            mInputSourceRtspRecorder.setRtspListener(null);
+            mInputSourceRtspRecorder.removeRtspListener(mInputSourceSubscription);
 
         mInputSourceRtspRecorder = rtspRecorder;
-        mInputSourceRtspRecorder.setRtspListener(this);
+        mInputSourceSubscription = mInputSourceRtspRecorder.addRtspListener(
+                this, QUEUE_CAPACITY, AsyncSampleWriter.OVERFLOW_DROP_UNTIL_KEY_FRAME);
     }
 
     public void setConnectCheckerRtmpListener(ConnectCheckerRtmp listener) {
@@ -45,34 +56,36 @@ public class RtmpStreamer implements RtspRecorder.RtspListener {
     }
 
     public void startStreaming(String rtmpUrl, boolean onlyVideo) {
-        if (isStreaming)
-            return;
+        synchronized (streamingLock) {
+            if (isStreaming)
+                return;
 
-        isVideoInfoSet = false;
-        isAudioInfoSet = false;
+            isOnlyVideo = onlyVideo;
 
-        isOnlyVideo = onlyVideo;
+            RtmpClient client = new RtmpClient(connectCheckerRtp);
+            client.setVideoCodec(mInputSourceRtspRecorder.isHevc() ? VideoCodec.H265 : VideoCodec.H264);
+            client.setVideoResolution(mInputSourceRtspRecorder.getVideoWidth(), mInputSourceRtspRecorder.getVideoHeight());
+            client.setFps(30);
+            client.setOnlyVideo(isOnlyVideo);
+            client.connect(rtmpUrl);
 
-        rtmpClient = new RtmpClient(connectCheckerRtp);
-        rtmpClient.setVideoCodec(VideoCodec.H264);
-        rtmpClient.setVideoResolution(mInputSourceRtspRecorder.getVideoWidth(), mInputSourceRtspRecorder.getVideoHeight());
-        rtmpClient.setFps(30);
-        rtmpClient.setOnlyVideo(isOnlyVideo);
-        rtmpClient.connect(rtmpUrl);
-
-        isStreaming = true;
+            rtmpClient = client;
+            isStreaming = true;
+        }
+        // Stream starts from a key frame. Do not wait for the natural one.
+        mInputSourceRtspRecorder.requestKeyFrame();
     }
 
     public void stopStreaming() {
-        if (!isStreaming)
-            return;
-
-        rtmpClient.disconnect();
-        rtmpClient = null;
-
-        isVideoInfoSet = false;
-        isAudioInfoSet = false;
-        isStreaming = false;
+        synchronized (streamingLock) {
+            if (!isStreaming)
+                return;
+
+            RtmpClient client = rtmpClient;
+            rtmpClient = null;
+            isStreaming = false;
+            client.disconnect();
+        }
     }
 
     public boolean isStreaming() {
@@ -85,22 +98,22 @@ public class RtmpStreamer implements RtspRecorder.RtspListener {
     public void onRtspVideoDataReceived(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo) {
         Log.d(TAG, "onRtspVideoNalUnitReceived");
 
-        synchronized (isStreaming) {
-            if (isStreaming) {
-                synchronized (isVideoInfoSet) {
-                    if (!isVideoInfoSet && mInputSourceRtspRecorder.getSps() != null) {
-                        rtmpClient.setVideoInfo(
-                                ByteBuffer.wrap(mInputSourceRtspRecorder.getSps(), 0, mInputSourceRtspRecorder.getSps().length),
-                                ByteBuffer.wrap(mInputSourceRtspRecorder.getPps(), 0, mInputSourceRtspRecorder.getPps().length),
-                                null
-                        );
-                        isVideoInfoSet = true;
-                    }
-                }
-
-                rtmpClient.sendVideo(byteBuf, bufferInfo);
-            }
+        RtmpClient client = rtmpClient;
+        if (client == null)
+            return;
+
+        if (videoInfoClient != client && mInputSourceRtspRecorder.getSps() != null) {
+            client.setVideoInfo(
+                    ByteBuffer.wrap(mInputSourceRtspRecorder.getSps(), 0, mInputSourceRtspRecorder.getSps().length),
+                    ByteBuffer.wrap(mInputSourceRtspRecorder.getPps(), 0, mInputSourceRtspRecorder.getPps().length),
+                    mInputSourceRtspRecorder.getVps() != null ?
+                            ByteBuffer.wrap(mInputSourceRtspRecorder.getVps(), 0, mInputSourceRtspRecorder.getVps().length) :
+                            null
+            );
+            videoInfoClient = client;
         }
+
+        client.sendVideo(byteBuf, bufferInfo);
     }
 
     @Override
@@ -110,21 +123,19 @@ public class RtmpStreamer implements RtspRecorder.RtspListener {
         if (isOnlyVideo)
             return;
 
-        synchronized (isStreaming) {
-            if (isStreaming) {
-                synchronized (isAudioInfoSet) {
-                    if (!isAudioInfoSet && mInputSourceRtspRecorder.getAudioSampleRateHz() > 0) {
-                        rtmpClient.setAudioInfo(
-                            mInputSourceRtspRecorder.getAudioSampleRateHz(),
-                            mInputSourceRtspRecorder.getAudioChannels() == 2
-                        );
-                        isAudioInfoSet = true;
-                    }
-                }
-
-                rtmpClient.sendAudio(byteBuf, bufferInfo);
-            }
+        RtmpClient client = rtmpClient;
+        if (client == null)
+            return;
+
+        if (audioInfoClient != client && mInputSourceRtspRecorder.getAudioSampleRateHz() > 0) {
+            client.setAudioInfo(
+                mInputSourceRtspRecorder.getAudioSampleRateHz(),
+                mInputSourceRtspRecorder.getAudioChannels() == 2
+            );
+            audioInfoClient = client;
         }
+
+        client.sendAudio(byteBuf, bufferInfo);
     }
 
     // Connect Checker
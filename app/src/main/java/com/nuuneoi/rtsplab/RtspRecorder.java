@@ -2,7 +2,6 @@ package com.nuuneoi.rtsplab;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.net.Uri;
 import android.os.Environment;
 import android.util.Log;
@@ -11,7 +10,16 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.alexvas.rtsp.RtspClient;
+import com.alexvas.rtsp.muxer.AsyncSampleWriter;
+import com.alexvas.rtsp.muxer.FrameDispatcher;
+import com.alexvas.rtsp.muxer.HlsWriter;
+import com.alexvas.rtsp.muxer.PreRollBuffer;
+import com.alexvas.rtsp.muxer.RotationPolicy;
+import com.alexvas.rtsp.parser.AccessUnitAssembler;
+import com.alexvas.utils.BufferPool;
 import com.alexvas.utils.NetUtils;
+import com.alexvas.utils.PooledBuffer;
+import com.alexvas.utils.VideoCodecUtils;
 
 import java.io.File;
 import java.io.IOException;
@@ -20,10 +28,19 @@ import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.GregorianCalendar;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RtspRecorder {
 
+    /**
+     * Called on the listener's own thread. Buffers are valid only during the call.
+     * Copy the data if it needs to be kept.
+     */
     interface RtspListener {
         void onRtspVideoDataReceived(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo);
         void onRtspAudioDataReceived(@NonNull ByteBuffer byteBuf, @NonNull MediaCodec.BufferInfo bufferInfo);
@@ -32,18 +49,64 @@ public class RtspRecorder {
     private static boolean DEBUG = false;
     private static String TAG = "RtspRecorder";
 
-    MediaMuxer mediaMuxer;
+    // Accessed on writer thread only
+    private RecordingFile recordingFile;
+    // Write failed, queued samples are dropped till the RTSP thread switches or closes the file
+    private boolean isWriterFailed = false;
+    // Opened in advance, so switching to the next file at a key frame does not delay any frame
+    private Future<RecordingFile> nextRecordingFile;
+    private volatile boolean useFragmentedMp4 = false;
+    private final MediaCodec.BufferInfo writerBufferInfo = new MediaCodec.BufferInfo();
+    // Opens and finalizes recording files. MediaMuxer.stop() writes the whole moov box
+    // and can take hundreds of msec on big files.
+    private ExecutorService muxerWorker;
     RtspThread rtspThread;
 
+    // Muxer and HLS files are written on their own threads, so storage stalls never block network reads
+    private int writerQueueCapacity = AsyncSampleWriter.DEFAULT_CAPACITY;
+    private int writerOverflowPolicy = AsyncSampleWriter.OVERFLOW_DROP_NON_REFERENCE;
+    private volatile AsyncSampleWriter sampleWriter;
+    private volatile AsyncSampleWriter hlsSampleWriter;
+    private static final long WRITER_STOP_TIMEOUT_MSEC = 5000;
+    // Socket read timeout is 5 sec, RTSP thread checks the stop flag at least that often
+    private static final long RTSP_STOP_TIMEOUT_MSEC = 6000;
+
+    // TS packets of all recorders. Packet buffers are returned here when HLS stops.
+    private static final BufferPool tsBufferPool = new BufferPool(
+            256 * 1024, 2 * AccessUnitAssembler.DEFAULT_MAX_ACCESS_UNIT_SIZE, 16, false);
+    private final Object hlsLock = new Object();
+    private HlsWriter hlsWriter;
+    private volatile boolean isHlsStarted = false;
+
+    // Frames copied out of pre-roll rings of all recorders
+    private static final BufferPool preRollBufferPool = new BufferPool(
+            64 * 1024, AccessUnitAssembler.DEFAULT_MAX_ACCESS_UNIT_SIZE, 32, true);
+    private final Object preRollLock = new Object();
+    private PreRollBuffer preRollBuffer;
+    private volatile RtspClient rtspClient;
+
     boolean isStreaming = false;
-    Boolean isRecording = false;
 
-    boolean isNewFileRequested = false;
+    // Depacketize on a second thread, see RtspClient.Builder.withPipelinedIngest().
+    // Frame callbacks below referring to the RTSP thread then run on that thread.
+    private volatile boolean pipelinedIngest = false;
+    // Connect in fewer round trips, see RtspClient.Builder.withFastHandshake()
+    private volatile boolean fastHandshake = false;
+
+    // Changed by start/stop/new file requests, acted on by the RTSP thread. Only the RTSP thread
+    // queues to sampleWriter, so the per-frame path takes no locks.
+    private final RecordingStateMachine recordingState = new RecordingStateMachine();
+    // Samples of the current file were queued to sampleWriter. Accessed on RTSP thread only.
+    private boolean isFileStarted = false;
+    private volatile RotationPolicy rotationPolicy;
 
     String rtspUrl;
 
-    private byte[] sps;
-    private byte[] pps;
+    private int videoCodec = RtspClient.VIDEO_CODEC_H264;
+    // From SDP, or from the stream if the camera sends them in-band only. Null till known.
+    private volatile byte[] vps;
+    private volatile byte[] sps;
+    private volatile byte[] pps;
 
     String videoMimeType;
     int videoWidth;
@@ -51,14 +114,129 @@ public class RtspRecorder {
 
     private int audioSampleRateHz;
     private int audioChannels;
+    private byte[] audioConfig;
 
-    private String recordingOutputFilePath;
+    private volatile String recordingOutputFilePath;
     private String recordingOutputDir;
+    private volatile RetentionManager retentionManager;
+
+    // Listeners get frames on their own threads, so a slow RTMP uplink never stalls recording
+    private final FrameDispatcher frameDispatcher = new FrameDispatcher();
+    private static final long LISTENER_STOP_TIMEOUT_MSEC = 2000;
+
+    /**
+     * @param capacity max number of frames queued for the listener
+     * @param overflowPolicy what to do when the listener does not keep up, e.g. {@link AsyncSampleWriter#OVERFLOW_DROP_UNTIL_KEY_FRAME}
+     */
+    @NonNull
+    public FrameDispatcher.Subscription addRtspListener(@NonNull RtspListener listener, int capacity, int overflowPolicy) {
+        return frameDispatcher.subscribe(new ListenerConsumer(listener), capacity, overflowPolicy);
+    }
+
+    public void removeRtspListener(@NonNull FrameDispatcher.Subscription subscription) {
+        frameDispatcher.unsubscribe(subscription, LISTENER_STOP_TIMEOUT_MSEC);
+    }
+
+    private static class ListenerConsumer implements FrameDispatcher.FrameConsumer {
+
+        private final RtspListener listener;
+        // Accessed on the listener thread only
+        private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+        ListenerConsumer(@NonNull RtspListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onFrame(int track, @NonNull PooledBuffer frame, long timeUs, boolean keyFrame) {
+            boolean video = (track == FrameDispatcher.TRACK_VIDEO);
+            bufferInfo.set(0, frame.length(), timeUs, video && keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            // Cached view is shared with other consumers, so it should not be modified
+            ByteBuffer byteBuf = frame.asReadOnlyBuffer().duplicate();
+            if (video)
+                listener.onRtspVideoDataReceived(byteBuf, bufferInfo);
+            else
+                listener.onRtspAudioDataReceived(byteBuf, bufferInfo);
+        }
+    }
+
+    /**
+     * Record to fragmented MP4 instead of MediaMuxer. File stays playable if the app crashes or
+     * the device loses power, only the last fragment (up to a GOP) is lost.
+     * Takes effect from the next file.
+     */
+    public void setUseFragmentedMp4(boolean useFragmentedMp4) {
+        this.useFragmentedMp4 = useFragmentedMp4;
+    }
+
+    /**
+     * Keep the last frames while not recording, so the next recording starts up to durationUs
+     * earlier than startRecording() was called. Memory for maxBytes is allocated once.
+     * @param durationUs 0 to disable pre-roll
+     */
+    public void setPreRoll(long durationUs, int maxBytes) {
+        synchronized (preRollLock) {
+            preRollBuffer = (durationUs > 0 ? new PreRollBuffer(durationUs, maxBytes, preRollBufferPool) : null);
+        }
+    }
 
-    private RtspListener mRtspListener;
+    /**
+     * Continue recording in a new file by time, size or GOP count. Checked on every frame,
+     * so files are cut without UI timers and always at a key frame.
+     * The policy should not be changed by the caller afterwards.
+     * @param policy null to rotate only on {@link #requestNewFile()}
+     */
+    public void setRotationPolicy(@Nullable RotationPolicy policy) {
+        if (policy != null && policy.isEnabled()) {
+            // Not used by RTSP thread till published
+            policy.reset(System.currentTimeMillis());
+            rotationPolicy = policy;
+        } else {
+            rotationPolicy = null;
+        }
+    }
+
+    /**
+     * Completed recordings are passed to the manager, which deletes the oldest ones over quota.
+     */
+    public void setRetentionManager(@Nullable RetentionManager retentionManager) {
+        this.retentionManager = retentionManager;
+    }
+
+    /**
+     * Read the socket and depacketize on separate threads. Worth it for high bitrate streams.
+     * Should be called before startStreaming().
+     */
+    public void setPipelinedIngest(boolean pipelinedIngest) {
+        this.pipelinedIngest = pipelinedIngest;
+    }
 
-    public void setRtspListener(RtspListener listener) {
-        mRtspListener = listener;
+    /**
+     * Skip OPTIONS, send credentials and pipeline requests once the camera is known.
+     * Cuts connection time on high latency links. Should be called before startStreaming().
+     */
+    public void setFastHandshake(boolean fastHandshake) {
+        this.fastHandshake = fastHandshake;
+    }
+
+    /**
+     * Should be called before startStreaming().
+     * @param capacity max number of frames queued to the writer thread. Should fit the pre-roll,
+     *                 otherwise RTSP thread waits for the writer while pre-roll is queued.
+     * @param overflowPolicy what to do when the writer does not keep up, e.g. {@link AsyncSampleWriter#OVERFLOW_DROP_NON_REFERENCE}
+     */
+    public void setWriterQueue(int capacity, int overflowPolicy) {
+        writerQueueCapacity = capacity;
+        writerOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Queue depth, drops and stalls of the recording writer thread.
+     */
+    @Nullable
+    public AsyncSampleWriter.Statistics getWriterStatistics() {
+        AsyncSampleWriter writer = sampleWriter;
+        return writer != null ? writer.getStatistics() : null;
     }
 
     public void startStreaming(String url) {
@@ -66,16 +244,31 @@ public class RtspRecorder {
 
         rtspUrl = url;
 
+        muxerWorker = Executors.newSingleThreadExecutor();
+        sampleWriter = new AsyncSampleWriter(recordingSink, writerQueueCapacity, writerOverflowPolicy);
+        sampleWriter.start();
+        hlsSampleWriter = new AsyncSampleWriter(hlsSink, writerQueueCapacity, writerOverflowPolicy);
+        hlsSampleWriter.start();
+
         rtspThread = new RtspThread();
         rtspThread.start();
     }
 
     public void stopStreaming() {
         stopRecording();
+        stopHls();
 
-        rtspThread.stopAsync();
+        // No frames are queued to the writers after that
+        rtspThread.stopAndWait(RTSP_STOP_TIMEOUT_MSEC);
         rtspThread = null;
 
+        // Write the rest of queued frames and close the file
+        sampleWriter.stop(WRITER_STOP_TIMEOUT_MSEC);
+        hlsSampleWriter.stop(WRITER_STOP_TIMEOUT_MSEC);
+        // Files being finalized are completed in background. If the writer did not stop in time,
+        // it finalizes its file itself.
+        muxerWorker.shutdown();
+
         isStreaming = false;
     }
 
@@ -85,66 +278,456 @@ public class RtspRecorder {
 
     public void startRecording(String outputDir, String mimeType, int width, int height) {
         recordingOutputDir = outputDir;
+        RetentionManager retention = retentionManager;
+        if (retention != null)
+            retention.addCamera(outputDir, getCaptureDir(Environment.DIRECTORY_MOVIES));
 
         videoMimeType = mimeType;
         videoWidth = width;
         videoHeight = height;
 
-        synchronized (isRecording) {
-            isRecording = true;
+        // Recording starts from a key frame. Do not wait for the natural one,
+        // unless pre-roll already starts from it.
+        boolean hasPreRoll;
+        synchronized (preRollLock) {
+            hasPreRoll = preRollBuffer != null && preRollBuffer.getFrameCount() > 0;
         }
+        if (recordingState.start(hasPreRoll) && !hasPreRoll)
+            requestKeyFrame();
     }
 
+    /**
+     * File is closed by the RTSP thread at the next frame, or by stopStreaming().
+     */
     public void stopRecording() {
-        synchronized (isRecording) {
-            isRecording = false;
-            isNewFileRequested = false;
-            releaseMuxer();
-        }
+        recordingState.stop();
     }
 
     public boolean isRecording() {
-        return isRecording;
+        return recordingState.isRecording();
     }
 
     public String getRecordingFilePath() {
         return recordingOutputFilePath;
     }
 
+    /**
+     * Write HLS segments and playlist to outputDir alongside the MP4 recording.
+     * Can be called once connected.
+     * @param playlistType {@link HlsWriter#PLAYLIST_TYPE_LIVE} or {@link HlsWriter#PLAYLIST_TYPE_EVENT}
+     * @return playlist file
+     */
+    public File startHls(File outputDir, int playlistType) {
+        File playlist;
+        synchronized (hlsLock) {
+            stopHls();
+            outputDir.mkdirs();
+            hlsWriter = new HlsWriter(outputDir, getDateTimeString(), playlistType, tsBufferPool);
+            hlsWriter.setVideoTrack(videoCodec == RtspClient.VIDEO_CODEC_H265, vps, sps, pps);
+            hlsWriter.setAudioTrack(audioSampleRateHz, audioChannels, audioConfig);
+            playlist = hlsWriter.getPlaylistFile();
+            isHlsStarted = true;
+        }
+        // Segments start from a key frame
+        requestKeyFrame();
+        return playlist;
+    }
+
+    public void stopHls() {
+        synchronized (hlsLock) {
+            isHlsStarted = false;
+            if (hlsWriter == null)
+                return;
+            try {
+                hlsWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close HLS playlist", e);
+            }
+            hlsWriter = null;
+        }
+    }
+
+    public boolean isHlsStarted() {
+        return isHlsStarted;
+    }
+
+    // Called on RTSP thread
+    private void writeHls(int track, @NonNull PooledBuffer sample, long timestamp, boolean isKeyFrame) {
+        if (isHlsStarted)
+            hlsSampleWriter.writeSample(track, sample, timestamp, isKeyFrame, true);
+    }
+
+    private final AsyncSampleWriter.SampleSink hlsSink = new AsyncSampleWriter.SampleSink() {
+        @Override
+        public void onSample(int track, @NonNull PooledBuffer sample, long timeUs, boolean keyFrame) {
+            synchronized (hlsLock) {
+                if (hlsWriter == null)
+                    return;
+                try {
+                    if (track == AsyncSampleWriter.TRACK_VIDEO)
+                        hlsWriter.writeVideo(sample, timeUs, keyFrame);
+                    else
+                        hlsWriter.writeAudio(sample, timeUs);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write HLS segment. HLS stopped.", e);
+                    stopHls();
+                }
+            }
+        }
+
+        @Override
+        public void onSwitchFile() {
+            // Segments are cut by HlsWriter
+        }
+
+        @Override
+        public void onCloseFile() {
+            // Playlist is completed by stopHls()
+        }
+    };
+
     public void requestNewFile() {
-        isNewFileRequested = true;
+        // New file starts from a key frame
+        if (recordingState.requestNewFile())
+            requestKeyFrame();
     }
 
-    private void initializeMuxer() {
-        if (mediaMuxer != null)
-            return;
+    /**
+     * Ask the camera for a key frame via RTCP. No-op if not connected or the camera does not support it.
+     */
+    public void requestKeyFrame() {
+        RtspClient client = rtspClient;
+        if (client != null)
+            client.requestKeyFrame();
+    }
 
-        MediaFormat videoTrackFormat = MediaFormat.createVideoFormat(videoMimeType, videoWidth, videoHeight);
-        videoTrackFormat.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
-        videoTrackFormat.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
+    @NonNull
+    private MediaFormat createVideoFormat() {
+        MediaFormat videoTrackFormat;
+        if (videoCodec == RtspClient.VIDEO_CODEC_H265) {
+            // HEVC keeps all parameter sets in csd-0
+            videoTrackFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_HEVC, videoWidth, videoHeight);
+            byte[] csd = new byte[vps.length + sps.length + pps.length];
+            System.arraycopy(vps, 0, csd, 0, vps.length);
+            System.arraycopy(sps, 0, csd, vps.length, sps.length);
+            System.arraycopy(pps, 0, csd, vps.length + sps.length, pps.length);
+            videoTrackFormat.setByteBuffer("csd-0", ByteBuffer.wrap(csd));
+        } else {
+            videoTrackFormat = MediaFormat.createVideoFormat(videoMimeType, videoWidth, videoHeight);
+            videoTrackFormat.setByteBuffer("csd-0", ByteBuffer.wrap(sps));
+            videoTrackFormat.setByteBuffer("csd-1", ByteBuffer.wrap(pps));
+        }
+        return videoTrackFormat;
+    }
+
+    // Called on writer thread or muxer worker
+    @NonNull
+    private RecordingFile createRecordingFile(@NonNull File file) throws IOException {
+        if (useFragmentedMp4) {
+            return new RecordingFile.FragmentedMp4File(
+                    file,
+                    videoCodec == RtspClient.VIDEO_CODEC_H265,
+                    videoWidth,
+                    videoHeight,
+                    vps,
+                    sps,
+                    pps,
+                    audioSampleRateHz,
+                    audioChannels,
+                    audioConfig);
+        }
+        MediaFormat audioTrackFormat = null;
+        if (audioSampleRateHz > 0) {
+            String audioMimeType = MediaFormat.MIMETYPE_AUDIO_AAC;
+            audioTrackFormat = MediaFormat.createAudioFormat(audioMimeType, audioSampleRateHz, audioChannels);
+        }
+        return new RecordingFile.MediaMuxerFile(file, createVideoFormat(), audioTrackFormat);
+    }
 
-        String audioMimeType = MediaFormat.MIMETYPE_AUDIO_AAC;
-        MediaFormat audioTrackFormat = MediaFormat.createAudioFormat(audioMimeType, audioSampleRateHz, audioChannels);
+    @NonNull
+    private File getRecordingFile() throws IOException {
+        File file = getCaptureFile(Environment.DIRECTORY_MOVIES, ".mp4");
+        if (file == null)
+            throw new IOException("Cannot write to " + recordingOutputDir);
+        return file;
+    }
+
+    // Called on writer thread. Next file gets its final name when recording to it starts.
+    private void prepareNextRecordingFile() {
+        final File file;
+        try {
+            File recording = getRecordingFile();
+            file = new File(recording.getParentFile(), "." + recording.getName() + ".tmp");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to prepare next recording file", e);
+            return;
+        }
+        try {
+            nextRecordingFile = muxerWorker.submit(() -> createRecordingFile(file));
+        } catch (RejectedExecutionException e) {
+            // Streaming stopped
+        }
+    }
 
+    // Called on writer thread. Returns null if the next file was not prepared or failed to open.
+    @Nullable
+    private RecordingFile takeNextRecordingFile() {
+        Future<RecordingFile> future = nextRecordingFile;
+        nextRecordingFile = null;
+        if (future == null)
+            return null;
+        RecordingFile file;
         try {
-            recordingOutputFilePath = getCaptureFile(Environment.DIRECTORY_MOVIES, ".mp4").toString();
-            mediaMuxer = new MediaMuxer(recordingOutputFilePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-            mediaMuxer.addTrack(videoTrackFormat);
-            mediaMuxer.addTrack(audioTrackFormat);
-            mediaMuxer.start();
+            // Normally it is ready long before the switch
+            file = future.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to open next recording file", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            File dest = getRecordingFile();
+            if (!file.renameTo(dest))
+                Log.w(TAG, "Failed to rename " + file.getFile() + " to " + dest);
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            Log.w(TAG, "Failed to rename " + file.getFile(), e);
         }
+        return file;
     }
 
-    private void releaseMuxer() {
-        if (mediaMuxer != null) {
-            mediaMuxer.stop();
-            mediaMuxer.release();
-            mediaMuxer = null;
+    // Called on writer thread. Runs the task inline if streaming is already stopped.
+    private void runOnMuxerWorker(@NonNull Runnable task) {
+        try {
+            muxerWorker.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
         }
     }
 
+    // Called on writer thread
+    private void discardNextRecordingFile() {
+        final Future<RecordingFile> future = nextRecordingFile;
+        nextRecordingFile = null;
+        if (future == null)
+            return;
+        runOnMuxerWorker(() -> {
+            try {
+                future.get().discard();
+            } catch (ExecutionException | InterruptedException ignored) {
+            }
+        });
+    }
+
+    // Called on writer thread
+    private void finalizeRecordingFile(@Nullable final RecordingFile file) {
+        if (file == null)
+            return;
+        final String camera = recordingOutputDir;
+        runOnMuxerWorker(() -> {
+            try {
+                file.close();
+                if (DEBUG) Log.d(TAG, "Recording " + file.getFile() + " completed");
+                RetentionManager retention = retentionManager;
+                if (retention != null)
+                    retention.onFileCompleted(camera, file.getFile());
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to close " + file.getFile(), e);
+            }
+        });
+    }
+
+    // Called on RTSP thread only
+    private void recordFrame(int track, @NonNull PooledBuffer frame, long timestamp, boolean keyFrame) {
+        boolean video = (track == AsyncSampleWriter.TRACK_VIDEO);
+        RotationPolicy policy = rotationPolicy;
+        switch (recordingState.onFrame(video && keyFrame)) {
+            case RecordingStateMachine.FRAME_IDLE:
+                // Recording stopped by user or on write error
+                closeFile();
+                addPreRoll(track, frame, timestamp, keyFrame);
+                return;
+            case RecordingStateMachine.FRAME_SKIP:
+                return;
+            case RecordingStateMachine.FRAME_START:
+                startFile(policy);
+                break;
+            case RecordingStateMachine.FRAME_SWITCH:
+                // Smooth record to the new file
+                switchFile(policy);
+                break;
+            default:
+                if (video && policy != null) {
+                    int action = policy.check(System.currentTimeMillis(), keyFrame);
+                    if (action == RotationPolicy.ACTION_SWITCH) {
+                        if (DEBUG) Log.d(TAG, "Rotating recording file, reason " + policy.getReason());
+                        switchFile(policy);
+                    } else if (action == RotationPolicy.ACTION_WAIT_FOR_KEY_FRAME) {
+                        requestKeyFrame();
+                    }
+                }
+                break;
+        }
+        if (policy != null) {
+            if (video)
+                policy.onVideoFrame(keyFrame, frame.length());
+            else
+                policy.onAudioFrame(frame.length());
+        }
+        sampleWriter.writeSample(track, frame, timestamp, keyFrame, true);
+    }
+
+    // Called on RTSP thread only. New file starts with pre-roll.
+    private void startFile(@Nullable RotationPolicy policy) {
+        if (isFileStarted)
+            // Restarted before the stop was seen
+            sampleWriter.switchFile();
+        isFileStarted = true;
+        if (policy != null)
+            policy.reset(System.currentTimeMillis());
+        synchronized (preRollLock) {
+            if (preRollBuffer != null)
+                preRollBuffer.drainTo(preRollListener);
+        }
+    }
+
+    // Called on RTSP thread only
+    private void switchFile(@Nullable RotationPolicy policy) {
+        if (!isFileStarted) {
+            startFile(policy);
+            return;
+        }
+        sampleWriter.switchFile();
+        if (policy != null)
+            policy.reset(System.currentTimeMillis());
+    }
+
+    // Called on RTSP thread only
+    private void closeFile() {
+        if (!isFileStarted)
+            return;
+        isFileStarted = false;
+        sampleWriter.closeFile();
+    }
+
+    private final PreRollBuffer.FrameListener preRollListener = new PreRollBuffer.FrameListener() {
+        @Override
+        public void onPreRollFrame(int track, @NonNull PooledBuffer frame, long timeUs, boolean keyFrame) {
+            // Track indexes match PreRollBuffer ones. Pre-roll is never dropped.
+            RotationPolicy policy = rotationPolicy;
+            if (policy != null) {
+                if (track == PreRollBuffer.TRACK_VIDEO)
+                    policy.onVideoFrame(keyFrame, frame.length());
+                else
+                    policy.onAudioFrame(frame.length());
+            }
+            sampleWriter.writeSample(track, frame, timeUs, keyFrame, false);
+        }
+    };
+
+    // Called on writer thread
+    private final AsyncSampleWriter.SampleSink recordingSink = new AsyncSampleWriter.SampleSink() {
+        @Override
+        public void onSample(int track, @NonNull PooledBuffer sample, long timeUs, boolean keyFrame) {
+            if (isWriterFailed)
+                return;
+            if (recordingFile == null) {
+                // File starts with a video key frame
+                if (track != AsyncSampleWriter.TRACK_VIDEO || !keyFrame)
+                    return;
+                // Muxers need parameter sets before the first sample
+                if (!hasParameterSets()) {
+                    updateParameterSets(sample);
+                    if (!hasParameterSets()) {
+                        if (DEBUG) Log.w(TAG, "No parameter sets in SDP and key frame. Waiting for the next one.");
+                        return;
+                    }
+                }
+                try {
+                    recordingFile = createRecordingFile(getRecordingFile());
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Failed to create recording file. Recording stopped.", e);
+                    recordingState.stop();
+                    isWriterFailed = true;
+                    return;
+                }
+                recordingOutputFilePath = recordingFile.getFile().getPath();
+                prepareNextRecordingFile();
+            }
+            writerBufferInfo.set(0, sample.length(), timeUs, keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+            try {
+                recordingFile.writeSample(track, sample, writerBufferInfo);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Failed to write " + recordingFile.getFile() + ". Recording stopped.", e);
+                recordingState.stop();
+                closeRecordingFile();
+                isWriterFailed = true;
+            }
+        }
+
+        @Override
+        public void onSwitchFile() {
+            isWriterFailed = false;
+            RecordingFile file = recordingFile;
+            if (file == null)
+                return;
+            // Next file is already open, old one is finalized in background
+            recordingFile = takeNextRecordingFile();
+            finalizeRecordingFile(file);
+            if (recordingFile != null) {
+                recordingOutputFilePath = recordingFile.getFile().getPath();
+                prepareNextRecordingFile();
+            }
+        }
+
+        @Override
+        public void onCloseFile() {
+            isWriterFailed = false;
+            closeRecordingFile();
+        }
+
+        private void closeRecordingFile() {
+            finalizeRecordingFile(recordingFile);
+            recordingFile = null;
+            discardNextRecordingFile();
+        }
+    };
+
+    private boolean hasParameterSets() {
+        return sps != null && pps != null && (videoCodec != RtspClient.VIDEO_CODEC_H265 || vps != null);
+    }
+
+    // Called on writer thread. Takes missing parameter sets from an in-band key frame.
+    private void updateParameterSets(@NonNull PooledBuffer keyFrame) {
+        boolean h265 = (videoCodec == RtspClient.VIDEO_CODEC_H265);
+        if (h265 && vps == null)
+            vps = VideoCodecUtils.getNalUnit(keyFrame, true, VideoCodecUtils.H265_NAL_VPS);
+        if (sps == null)
+            sps = VideoCodecUtils.getNalUnit(keyFrame, h265, h265 ? VideoCodecUtils.H265_NAL_SPS : VideoCodecUtils.NAL_SPS);
+        if (pps == null)
+            pps = VideoCodecUtils.getNalUnit(keyFrame, h265, h265 ? VideoCodecUtils.H265_NAL_PPS : VideoCodecUtils.NAL_PPS);
+    }
+
+    // Called on RTSP thread while not recording
+    private void addPreRoll(int track, @NonNull PooledBuffer frame, long timeUs, boolean keyFrame) {
+        synchronized (preRollLock) {
+            if (preRollBuffer != null)
+                preRollBuffer.add(track, frame, timeUs, keyFrame);
+        }
+    }
+
+    public boolean isHevc() {
+        return videoCodec == RtspClient.VIDEO_CODEC_H265;
+    }
+
+    /**
+     * H.265 only
+     */
+    public byte[] getVps() {
+        return vps;
+    }
+
     public byte[] getSps() {
         return sps;
     }
@@ -181,63 +764,33 @@ public class RtspRecorder {
         public void onRtspConnected(@NonNull RtspClient.SdpInfo sdpInfo) {
             if (DEBUG) Log.d(TAG, "onRtspConnected");
 
+            videoCodec = sdpInfo.videoTrack.videoCodec;
+            vps = sdpInfo.videoTrack.vps;
             sps = sdpInfo.videoTrack.sps;
             pps = sdpInfo.videoTrack.pps;
 
-            audioSampleRateHz = sdpInfo.audioTrack.sampleRateHz;
-            audioChannels = sdpInfo.audioTrack.channels;
+            // No audio track if the camera has no microphone or its codec is not supported
+            RtspClient.AudioTrack audioTrack = sdpInfo.audioTrack;
+            if (audioTrack != null && audioTrack.audioCodec != RtspClient.AUDIO_CODEC_AAC)
+                audioTrack = null;
+            audioSampleRateHz = (audioTrack != null ? audioTrack.sampleRateHz : 0);
+            audioChannels = (audioTrack != null ? audioTrack.channels : 0);
+            audioConfig = (audioTrack != null ? audioTrack.config : null);
+
+            boolean h265 = (videoCodec == RtspClient.VIDEO_CODEC_H265);
+            sampleWriter.setH265(h265);
+            hlsSampleWriter.setH265(h265);
+            frameDispatcher.setH265(h265);
         }
 
         @Override
         public void onRtspVideoNalUnitReceived(@NonNull byte[] data, int offset, int length, long timestamp) {
-            if (DEBUG) Log.d(TAG, "onRtspVideoNalUnitReceived");
-
-            boolean isKeyFrame = (data[4] & 0x1f) == 5;
-            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-            bufferInfo.presentationTimeUs = timestamp;
-            bufferInfo.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
-            bufferInfo.size = length;
-            ByteBuffer encodedData = ByteBuffer.wrap(data, offset, length);
-
-            synchronized (isRecording) {
-                if (isRecording) {
-                    // Smooth record to the new file
-                    if (isNewFileRequested && isKeyFrame) {
-                        releaseMuxer();
-                        isNewFileRequested = false;
-                    }
-
-                    if (mediaMuxer == null)
-                        initializeMuxer();
-
-                    mediaMuxer.writeSampleData(0, encodedData, bufferInfo);
-                }
-            }
-
-            if (mRtspListener != null)
-                mRtspListener.onRtspVideoDataReceived(encodedData, bufferInfo);
+            // Delivered via rtspClientBufferListener
         }
 
         @Override
         public void onRtspAudioSampleReceived(@NonNull byte[] data, int offset, int length, long timestamp) {
-            if (DEBUG) Log.d(TAG, "onRtspAudioSampleReceived");
-
-            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-            bufferInfo.presentationTimeUs = timestamp;
-            bufferInfo.size = length;
-            ByteBuffer encodedData = ByteBuffer.wrap(data, offset, length);
-
-            synchronized (isRecording) {
-                if (isRecording) {
-                    if (mediaMuxer == null)
-                        initializeMuxer();
-
-                    mediaMuxer.writeSampleData(1, encodedData, bufferInfo);
-                }
-            }
-
-            if (mRtspListener != null)
-                mRtspListener.onRtspAudioDataReceived(encodedData, bufferInfo);
+            // Delivered via rtspClientBufferListener
         }
 
         @Override
@@ -250,6 +803,15 @@ public class RtspRecorder {
             if (DEBUG) Log.d(TAG, "onRtspDisconnected");
 
             stopRecording();
+            // No more frames to act on the stop, close the file right away
+            if (recordingState.onFrame(false) == RecordingStateMachine.FRAME_IDLE)
+                closeFile();
+            stopHls();
+            // Next connection can have different codec parameters
+            synchronized (preRollLock) {
+                if (preRollBuffer != null)
+                    preRollBuffer.clear();
+            }
         }
 
         @Override
@@ -263,13 +825,60 @@ public class RtspRecorder {
         }
     };
 
+    // Called on RTSP thread only
+
+    private RtspClient.RtspClientBufferListener rtspClientBufferListener = new RtspClient.RtspClientBufferListener() {
+        private String TAG = "RtspClientBufferListener";
+
+        @Override
+        public void onRtspVideoNalUnitReceived(@NonNull PooledBuffer nalUnit, long timestamp) {
+            // Delivered via rtspClientAccessUnitListener
+            nalUnit.release();
+        }
+
+        @Override
+        public void onRtspAudioSampleReceived(@NonNull PooledBuffer sample, long timestamp) {
+            if (DEBUG) Log.d(TAG, "onRtspAudioSampleReceived");
+
+            try {
+                recordFrame(AsyncSampleWriter.TRACK_AUDIO, sample, timestamp, true);
+                writeHls(AsyncSampleWriter.TRACK_AUDIO, sample, timestamp, true);
+                frameDispatcher.dispatch(FrameDispatcher.TRACK_AUDIO, sample, timestamp, true);
+            } finally {
+                sample.release();
+            }
+        }
+    };
+
+    // One muxer sample per frame
+    private RtspClient.RtspClientAccessUnitListener rtspClientAccessUnitListener = new RtspClient.RtspClientAccessUnitListener() {
+        private String TAG = "RtspClientAccessUnitListener";
+
+        @Override
+        public void onRtspVideoAccessUnitReceived(@NonNull PooledBuffer accessUnit, long timestamp, boolean isKeyFrame) {
+            if (DEBUG) Log.d(TAG, "onRtspVideoAccessUnitReceived");
+
+            try {
+                recordFrame(AsyncSampleWriter.TRACK_VIDEO, accessUnit, timestamp, isKeyFrame);
+                writeHls(AsyncSampleWriter.TRACK_VIDEO, accessUnit, timestamp, isKeyFrame);
+                frameDispatcher.dispatch(FrameDispatcher.TRACK_VIDEO, accessUnit, timestamp, isKeyFrame);
+            } finally {
+                accessUnit.release();
+            }
+        }
+    };
+
     class RtspThread extends Thread {
         private String TAG = "RtspThread";
         private AtomicBoolean rtspStopped = new AtomicBoolean(false);
 
+        private volatile Socket socket;
+
         @Override
         public void run() {
             super.run();
+            // Previous file was closed by the stopped writer
+            isFileStarted = false;
             initializeRtsp();
         }
 
@@ -279,6 +888,26 @@ public class RtspRecorder {
             interrupt();
         }
 
+        /**
+         * Stop and wait till no more frames are delivered.
+         */
+        public void stopAndWait(long timeoutMsec) {
+            stopAsync();
+            try {
+                join(timeoutMsec);
+                if (isAlive()) {
+                    // Unblock socket I/O, TEARDOWN is not sent then
+                    Log.w(TAG, "RTSP thread did not stop in " + timeoutMsec + " msec, closing socket");
+                    NetUtils.closeSocket(socket);
+                    join(timeoutMsec);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close socket", e);
+            }
+        }
+
         private void initializeRtsp() {
             if (DEBUG) Log.d(TAG, "Starting");
             Uri uri = Uri.parse(rtspUrl);
@@ -286,16 +915,29 @@ public class RtspRecorder {
             try {
                 if (DEBUG) Log.d(TAG, "Creating Socket");
                 socket = NetUtils.createSocketAndConnect(uri.getHost(), uri.getPort(), 5000);
+                this.socket = socket;
 
                 if (DEBUG) Log.d(TAG, "Creating RTSP Client");
                 RtspClient rtspClient = new RtspClient.Builder(socket, uri.toString(), rtspStopped, rtspClientListener)
+                        .withBufferListener(rtspClientBufferListener)
+                        // MediaMuxer expects start codes and converts them to length prefixes itself
+                        .withAccessUnitListener(rtspClientAccessUnitListener, AccessUnitAssembler.FORMAT_ANNEX_B)
+                        // Corrupted frames waste disk space and break playback till the next key frame anyway
+                        .withDropUntilKeyFrame(true)
+                        .withPipelinedIngest(pipelinedIngest)
+                        .withFastHandshake(fastHandshake)
                         .requestVideo(true)
                         .requestAudio(true)
                         .withDebug(false)
                         .withUserAgent("RTSP Client")
                         .build();
                 if (DEBUG) Log.d(TAG, "Executing");
-                rtspClient.execute();
+                RtspRecorder.this.rtspClient = rtspClient;
+                try {
+                    rtspClient.execute();
+                } finally {
+                    RtspRecorder.this.rtspClient = null;
+                }
 
                 if (DEBUG) Log.d(TAG, "Closing Socket");
                 NetUtils.closeSocket(socket);
@@ -306,20 +948,36 @@ public class RtspRecorder {
         }
     };
 
-    private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
+    // SimpleDateFormat is not thread-safe. File names are made on writer, muxer and UI threads.
+    private static final ThreadLocal<SimpleDateFormat> mDateTimeFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
+        }
+    };
+
+    private final File getCaptureDir(final String type) {
+        return new File(Environment.getExternalStoragePublicDirectory(type), recordingOutputDir);
+    }
 
     private final File getCaptureFile(final String type, final String ext) {
-        final File dir = new File(Environment.getExternalStoragePublicDirectory(type), recordingOutputDir);
+        final File dir = getCaptureDir(type);
         if (DEBUG) Log.d(TAG, "path=" + dir.toString());
         dir.mkdirs();
         if (dir.canWrite()) {
-            return new File(dir, getDateTimeString() + ext);
+            // Files can be rotated within the same second. Never reuse the name of a file
+            // which is still being finalized, renaming to it would replace that recording.
+            final String name = getDateTimeString();
+            File file = new File(dir, name + ext);
+            for (int i = 1; file.exists(); i++)
+                file = new File(dir, name + "-" + i + ext);
+            return file;
         }
         return null;
     }
 
     private final String getDateTimeString() {
         final GregorianCalendar now = new GregorianCalendar();
-        return mDateTimeFormat.format(now.getTime());
+        return mDateTimeFormat.get().format(now.getTime());
     }
 }
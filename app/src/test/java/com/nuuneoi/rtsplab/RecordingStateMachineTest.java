@@ -0,0 +1,165 @@
+package com.nuuneoi.rtsplab;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RecordingStateMachineTest {
+
+    private static final int GOP_SIZE = 30;
+
+    @Test
+    public void recording_startsAtKeyFrame() {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        assertEquals(RecordingStateMachine.FRAME_IDLE, machine.onFrame(false));
+        assertTrue(machine.start(false));
+        assertFalse(machine.start(false));
+        assertTrue(machine.isRecording());
+        assertEquals(RecordingStateMachine.FRAME_SKIP, machine.onFrame(false));
+        assertEquals(RecordingStateMachine.FRAME_START, machine.onFrame(true));
+        assertEquals(RecordingStateMachine.FRAME_WRITE, machine.onFrame(false));
+    }
+
+    @Test
+    public void recording_startsFromPreRoll() {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        assertTrue(machine.start(true));
+        assertEquals(RecordingStateMachine.FRAME_START, machine.onFrame(false));
+        assertEquals(RecordingStateMachine.RECORDING, machine.getState());
+    }
+
+    @Test
+    public void newFile_switchesAtKeyFrame() {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        assertFalse(machine.requestNewFile());
+        machine.start(false);
+        machine.onFrame(true);
+        assertTrue(machine.requestNewFile());
+        assertFalse(machine.requestNewFile());
+        assertEquals(RecordingStateMachine.FRAME_WRITE, machine.onFrame(false));
+        assertEquals(RecordingStateMachine.FRAME_SWITCH, machine.onFrame(true));
+        assertEquals(RecordingStateMachine.FRAME_WRITE, machine.onFrame(true));
+    }
+
+    @Test
+    public void stop_closesAtNextFrame() {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        assertFalse(machine.stop());
+        machine.start(false);
+        machine.onFrame(true);
+        assertTrue(machine.stop());
+        assertFalse(machine.isRecording());
+        assertEquals(RecordingStateMachine.FRAME_IDLE, machine.onFrame(false));
+        assertEquals(RecordingStateMachine.IDLE, machine.getState());
+    }
+
+    @Test
+    public void restart_beforeStopIsSeen() {
+        RecordingStateMachine machine = new RecordingStateMachine();
+        machine.start(false);
+        machine.onFrame(true);
+        machine.stop();
+        assertTrue(machine.start(false));
+        // File stays open till the next key frame starts a new one
+        assertEquals(RecordingStateMachine.FRAME_SKIP, machine.onFrame(false));
+        assertEquals(RecordingStateMachine.FRAME_START, machine.onFrame(true));
+    }
+
+    // Frame thread acts on the machine like RtspRecorder does, while control threads
+    // hammer start, stop and new file requests.
+    @Test(timeout = 60000)
+    public void stress_controlWhileFramesFlow() throws Exception {
+        final RecordingStateMachine machine = new RecordingStateMachine();
+        final int frames = 2000000;
+        final int controlThreads = 3;
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final AtomicInteger starts = new AtomicInteger();
+        final AtomicInteger newFiles = new AtomicInteger();
+        final CountDownLatch ready = new CountDownLatch(controlThreads + 1);
+
+        final int[] fileStarts = new int[1];
+        final int[] fileSwitches = new int[1];
+        Thread frameThread = new Thread(() -> {
+            ready.countDown();
+            boolean fileOpen = false;
+            for (int i = 0; i < frames && failure.get() == null; i++) {
+                boolean keyFrame = (i % GOP_SIZE == 0);
+                switch (machine.onFrame(keyFrame)) {
+                    case RecordingStateMachine.FRAME_IDLE:
+                        fileOpen = false;
+                        break;
+                    case RecordingStateMachine.FRAME_SKIP:
+                        if (keyFrame)
+                            failure.compareAndSet(null, "Key frame skipped at " + i);
+                        break;
+                    case RecordingStateMachine.FRAME_START:
+                        // Control threads never arm from pre-roll
+                        if (!keyFrame)
+                            failure.compareAndSet(null, "File started without key frame at " + i);
+                        fileOpen = true;
+                        fileStarts[0]++;
+                        break;
+                    case RecordingStateMachine.FRAME_SWITCH:
+                        if (!keyFrame || !fileOpen)
+                            failure.compareAndSet(null, "Invalid switch at " + i);
+                        fileSwitches[0]++;
+                        break;
+                    case RecordingStateMachine.FRAME_WRITE:
+                        if (!fileOpen)
+                            failure.compareAndSet(null, "Write without file at " + i);
+                        break;
+                    default:
+                        failure.compareAndSet(null, "Unknown action at " + i);
+                }
+            }
+            running.set(false);
+        });
+
+        Thread[] threads = new Thread[controlThreads];
+        for (int t = 0; t < controlThreads; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread(() -> {
+                ready.countDown();
+                while (running.get()) {
+                    int op = random.nextInt(3);
+                    if (op == 0) {
+                        if (machine.start(false))
+                            starts.incrementAndGet();
+                    } else if (op == 1) {
+                        machine.stop();
+                    } else if (machine.requestNewFile()) {
+                        newFiles.incrementAndGet();
+                    }
+                    if (random.nextInt(8) == 0)
+                        Thread.yield();
+                }
+            });
+            threads[t].start();
+        }
+        frameThread.start();
+        frameThread.join();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertNull(failure.get(), failure.get());
+        // Every file start and switch consumed exactly one successful request
+        assertTrue(fileStarts[0] > 0);
+        assertTrue(fileStarts[0] <= starts.get());
+        assertTrue(fileSwitches[0] <= newFiles.get());
+        assertTrue(machine.getState() >= RecordingStateMachine.IDLE &&
+                machine.getState() <= RecordingStateMachine.STOPPING);
+
+        // Nothing left racing, the machine settles
+        machine.stop();
+        assertEquals(RecordingStateMachine.FRAME_IDLE, machine.onFrame(false));
+        assertEquals(RecordingStateMachine.IDLE, machine.getState());
+    }
+
+}
@@ -0,0 +1,266 @@
+package com.alexvas.rtsp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Digest authentication (RFC 2617, RFC 7616) for one server challenge.
+//
+// WWW-Authenticate: Digest realm="IP Camera", nonce="a8f1d3", qop="auth", algorithm=SHA-256, opaque="5ccc"
+//
+// Authorization: Digest username="admin", realm="IP Camera", nonce="a8f1d3", uri="rtsp://10.0.1.78/live",
+//     response="...", algorithm=SHA-256, opaque="5ccc", qop=auth, nc=00000001, cnonce="0a4f113b"
+//
+//   HA1      = H(username:realm:password)                        cached per realm
+//   HA2      = H(method:uri)
+//   response = H(HA1:nonce:nc:cnonce:qop:HA2)                    qop=auth
+//   response = H(HA1:nonce:HA2)                                  no qop (RFC 2069)
+//
+// Instance is kept while the nonce is accepted, also across reconnects, so only a stale
+// nonce costs an extra 401 round trip. Nonce count keeps growing, each request gets its own.
+class DigestAuth {
+
+    private static final String TAG = DigestAuth.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    static final String ALGORITHM_MD5 = "MD5";
+    static final String ALGORITHM_SHA_256 = "SHA-256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int MAX_CACHED_HA1 = 64;
+    private static final SecureRandom random = new SecureRandom();
+    private static final byte[] passwordSalt = new byte[16];
+    static {
+        random.nextBytes(passwordSalt);
+    }
+
+    // Key "algorithm:username:realm", value salted password hash and HA1. Password itself is not kept.
+    // Least recently used dropped first.
+    private static final Map<String, String[]> ha1Cache =
+            new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                    return size() > MAX_CACHED_HA1;
+                }
+            };
+
+    private final @NonNull String username;
+    private final @NonNull String realm;
+    private final @NonNull String nonce;
+    private final @Nullable String opaque;
+    // Null if not specified in the challenge, MD5 is used then
+    private final @Nullable String algorithm;
+    private final boolean qopAuth;
+    private final @NonNull String cnonce;
+
+    private final @NonNull MessageDigest md;
+    private final @NonNull String ha1;
+    private int nonceCount = 0;
+
+    private DigestAuth(
+            @NonNull String username,
+            @NonNull String password,
+            @NonNull String realm,
+            @NonNull String nonce,
+            @Nullable String opaque,
+            @Nullable String algorithm,
+            boolean qopAuth)
+    throws NoSuchAlgorithmException {
+        this.username = username;
+        this.realm = realm;
+        this.nonce = nonce;
+        this.opaque = opaque;
+        this.algorithm = algorithm;
+        this.qopAuth = qopAuth;
+        md = MessageDigest.getInstance(ALGORITHM_SHA_256.equals(algorithm) ? ALGORITHM_SHA_256 : ALGORITHM_MD5);
+        byte[] c = new byte[8];
+        random.nextBytes(c);
+        cnonce = toHex(c);
+        ha1 = getHa1(password);
+    }
+
+    /**
+     * Pick the strongest supported Digest challenge from WWW-Authenticate header values.
+     * @return null if there is no supported Digest challenge
+     */
+    @Nullable
+    static DigestAuth fromChallenges(
+            @NonNull Iterable<String> wwwAuthenticate,
+            @Nullable String username,
+            @Nullable String password) {
+        DigestAuth best = null;
+        for (String challenge : wwwAuthenticate) {
+            if (challenge.length() < 7 || !challenge.regionMatches(true, 0, "digest ", 0, 7))
+                continue;
+            Map<String, String> params = parseParams(challenge.substring(7));
+            String realm = params.get("realm");
+            String nonce = params.get("nonce");
+            String algorithm = params.get("algorithm");
+            if (realm == null || nonce == null)
+                continue;
+            if (algorithm != null) {
+                if (ALGORITHM_MD5.equalsIgnoreCase(algorithm))
+                    algorithm = ALGORITHM_MD5;
+                else if (ALGORITHM_SHA_256.equalsIgnoreCase(algorithm))
+                    algorithm = ALGORITHM_SHA_256;
+                else {
+                    // E.g. MD5-sess, SHA-512-256
+                    if (DEBUG) Log.d(TAG, "Unsupported digest algorithm " + algorithm);
+                    continue;
+                }
+            }
+            // qop="auth,auth-int"
+            boolean qopAuth = false;
+            String qop = params.get("qop");
+            if (qop != null) {
+                for (String q : qop.split(",")) {
+                    if ("auth".equalsIgnoreCase(q.trim()))
+                        qopAuth = true;
+                }
+                if (!qopAuth) {
+                    // auth-int only
+                    continue;
+                }
+            }
+            // Servers offering both list SHA-256 first (RFC 7616 3.7), but older ones may not
+            if (best != null && (ALGORITHM_SHA_256.equals(best.algorithm) || !ALGORITHM_SHA_256.equals(algorithm)))
+                continue;
+            try {
+                best = new DigestAuth(
+                        username == null ? "" : username,
+                        password == null ? "" : password,
+                        realm,
+                        nonce,
+                        params.get("opaque"),
+                        algorithm,
+                        qopAuth);
+            } catch (NoSuchAlgorithmException e) {
+                Log.e(TAG, "Digest algorithm " + algorithm + " not available", e);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Value of the Authorization header. Can be called from any thread.
+     */
+    @NonNull
+    synchronized String getAuthorization(@NonNull String method, @NonNull String uri) {
+        String ha2 = hash(method + ":" + uri);
+        StringBuilder sb = new StringBuilder(256)
+                .append("Digest username=\"").append(username)
+                .append("\", realm=\"").append(realm)
+                .append("\", nonce=\"").append(nonce)
+                .append("\", uri=\"").append(uri)
+                .append("\", response=\"");
+        if (qopAuth) {
+            String nc = toNonceCount(++nonceCount);
+            sb.append(hash(ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":auth:" + ha2)).append('"');
+            sb.append(", qop=auth, nc=").append(nc).append(", cnonce=\"").append(cnonce).append('"');
+        } else {
+            sb.append(hash(ha1 + ":" + nonce + ":" + ha2)).append('"');
+        }
+        if (algorithm != null)
+            sb.append(", algorithm=").append(algorithm);
+        if (opaque != null)
+            sb.append(", opaque=\"").append(opaque).append('"');
+        return sb.toString();
+    }
+
+    @NonNull
+    private String getHa1(@NonNull String password) throws NoSuchAlgorithmException {
+        String key = (algorithm == null ? ALGORITHM_MD5 : algorithm) + ":" + username + ":" + realm;
+        String passwordHash = getPasswordHash(password);
+        synchronized (ha1Cache) {
+            String[] cached = ha1Cache.get(key);
+            if (cached != null && cached[0].equals(passwordHash))
+                return cached[1];
+        }
+        String ha1 = hash(username + ":" + realm + ":" + password);
+        synchronized (ha1Cache) {
+            ha1Cache.put(key, new String[] { passwordHash, ha1 });
+        }
+        return ha1;
+    }
+
+    // Only tells whether the password changed. Salt is random per process.
+    @NonNull
+    private static String getPasswordHash(@NonNull String password) throws NoSuchAlgorithmException {
+        MessageDigest sha256 = MessageDigest.getInstance(ALGORITHM_SHA_256);
+        sha256.update(passwordSalt);
+        return toHex(sha256.digest(password.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @NonNull
+    private String hash(@NonNull String s) {
+        return toHex(md.digest(s.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @NonNull
+    static String toHex(@NonNull byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    // 8 hex digits, e.g. 0000001f
+    @NonNull
+    private static String toNonceCount(int count) {
+        char[] chars = new char[8];
+        for (int i = 7; i >= 0; i--) {
+            chars[i] = HEX[count & 0xF];
+            count >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    // realm="Login to 4K049EBPAG1D7E7", nonce="de4ccb15", stale=FALSE, qop="auth,auth-int"
+    @NonNull
+    static Map<String, String> parseParams(@NonNull String s) {
+        Map<String, String> params = new LinkedHashMap<>();
+        int i = 0;
+        int length = s.length();
+        while (i < length) {
+            while (i < length && (s.charAt(i) == ' ' || s.charAt(i) == ','))
+                i++;
+            int eq = s.indexOf('=', i);
+            if (eq < 0)
+                break;
+            String name = s.substring(i, eq).trim().toLowerCase();
+            i = eq + 1;
+            String value;
+            if (i < length && s.charAt(i) == '"') {
+                StringBuilder sb = new StringBuilder();
+                i++;
+                while (i < length && s.charAt(i) != '"') {
+                    // Quoted pair
+                    if (s.charAt(i) == '\\' && i + 1 < length)
+                        i++;
+                    sb.append(s.charAt(i++));
+                }
+                i++;
+                value = sb.toString();
+            } else {
+                int end = s.indexOf(',', i);
+                if (end < 0)
+                    end = length;
+                value = s.substring(i, end).trim();
+                i = end;
+            }
+            params.put(name, value);
+        }
+        return params;
+    }
+
+}
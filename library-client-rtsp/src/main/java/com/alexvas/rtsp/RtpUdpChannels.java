@@ -0,0 +1,187 @@
+package com.alexvas.rtsp;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Random;
+
+// RTP/AVP over UDP (RFC 3550). RTP port is even, RTCP uses the next (odd) port.
+//
+// SETUP rtsp://10.0.1.145:65534/videoSub/track1 RTSP/1.0
+// Transport: RTP/AVP;unicast;client_port=27452-27453
+//
+// RTSP/1.0 200 OK
+// Transport: RTP/AVP;unicast;destination=10.0.1.53;source=10.0.1.145;client_port=27452-27453;server_port=6972-6973
+class RtpUdpChannels {
+
+    private static final String TAG = RtpUdpChannels.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    static final int MAX_DATAGRAM_SIZE = 65536;
+
+    private static final int MIN_PORT = 50000;
+    private static final int MAX_PORT = 65000;
+    private static final int MAX_BIND_ATTEMPTS = 20;
+    private static final int RECEIVE_BUFFER_SIZE = 2 * 1024 * 1024;
+    private static final Random random = new Random();
+
+    // Same numbering as TCP interleaved channels, e.g. 0 - video RTP, 1 - video RTCP
+    private final int rtpChannel;
+    private final @NonNull DatagramChannel rtp;
+    private final @NonNull DatagramChannel rtcp;
+    private final int clientPort;
+    private @Nullable InetSocketAddress serverRtp;
+    private @Nullable InetSocketAddress serverRtcp;
+
+    private RtpUdpChannels(int rtpChannel, @NonNull DatagramChannel rtp, @NonNull DatagramChannel rtcp, int clientPort) {
+        this.rtpChannel = rtpChannel;
+        this.rtp = rtp;
+        this.rtcp = rtcp;
+        this.clientPort = clientPort;
+    }
+
+    /**
+     * Bind a pair of UDP sockets to consecutive ports, RTP one is even.
+     * @param rtpChannel channel number passed along with received RTP packets, RTCP gets rtpChannel + 1
+     */
+    @NonNull
+    static RtpUdpChannels open(int rtpChannel) throws IOException {
+        for (int attempt = 0; attempt < MAX_BIND_ATTEMPTS; attempt++) {
+            int port = MIN_PORT + 2 * random.nextInt((MAX_PORT - MIN_PORT) / 2);
+            DatagramChannel rtp = null;
+            DatagramChannel rtcp = null;
+            try {
+                rtp = DatagramChannel.open();
+                rtp.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+                rtp.socket().bind(new InetSocketAddress(port));
+                rtcp = DatagramChannel.open();
+                rtcp.socket().bind(new InetSocketAddress(port + 1));
+                rtp.configureBlocking(false);
+                rtcp.configureBlocking(false);
+                if (DEBUG)
+                    Log.d(TAG, "Bound UDP ports " + port + "-" + (port + 1));
+                return new RtpUdpChannels(rtpChannel, rtp, rtcp, port);
+            } catch (IOException e) {
+                // Port is busy. Try another one.
+                closeQuietly(rtp);
+                closeQuietly(rtcp);
+            }
+        }
+        throw new IOException("Failed to bind UDP ports for RTP");
+    }
+
+    /**
+     * Client ports for SETUP request, e.g. "27452-27453"
+     */
+    @NonNull
+    String getClientPortRange() {
+        return clientPort + "-" + (clientPort + 1);
+    }
+
+    /**
+     * Parse SETUP response Transport header.
+     * @param defaultServerAddress address used if "source" parameter is missing
+     * @return false if server did not agree to UDP transport, e.g. replied with interleaved TCP one
+     */
+    boolean setServerFromTransport(@Nullable String transport, @NonNull InetAddress defaultServerAddress) {
+        if (TextUtils.isEmpty(transport) || transport.toLowerCase().contains("interleaved"))
+            return false;
+        InetAddress address = defaultServerAddress;
+        int rtpPort = -1;
+        int rtcpPort = -1;
+        String[] params = TextUtils.split(transport, ";");
+        for (String param : params) {
+            int i = param.indexOf('=');
+            if (i == -1)
+                continue;
+            String name = param.substring(0, i).trim().toLowerCase();
+            String value = param.substring(i + 1).trim();
+            switch (name) {
+                case "server_port":
+                    // server_port=6972-6973
+                    String[] ports = TextUtils.split(value, "-");
+                    try {
+                        rtpPort = Integer.parseInt(ports[0]);
+                        rtcpPort = ports.length > 1 ? Integer.parseInt(ports[1]) : rtpPort + 1;
+                    } catch (NumberFormatException e) {
+                        Log.e(TAG, "Failed to parse server_port \"" + value + "\"");
+                    }
+                    break;
+                case "source":
+                    try {
+                        address = InetAddress.getByName(value);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to resolve source \"" + value + "\"");
+                    }
+                    break;
+            }
+        }
+        if (rtpPort <= 0)
+            return false;
+        serverRtp = new InetSocketAddress(address, rtpPort);
+        serverRtcp = new InetSocketAddress(address, rtcpPort);
+        return true;
+    }
+
+    /**
+     * Send dummy RTP and empty RTCP receiver report to the server to open NAT bindings.
+     */
+    void punchHoles(int payloadType) {
+        if (serverRtp == null || serverRtcp == null)
+            return;
+        try {
+            byte[] rtpPacket = new byte[] {
+                    (byte) 0x80, (byte) (payloadType & 0x7F), 0, 0,
+                    0, 0, 0, 0,
+                    0, 0, 0, 0 };
+            rtp.send(ByteBuffer.wrap(rtpPacket), serverRtp);
+            // RTCP RR with no report blocks
+            byte[] rtcpPacket = new byte[] {
+                    (byte) 0x80, (byte) 201, 0, 1,
+                    0, 0, 0, 0 };
+            rtcp.send(ByteBuffer.wrap(rtcpPacket), serverRtcp);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to send UDP punch packets", e);
+        }
+    }
+
+    void sendRtcp(@NonNull byte[] data, int offset, int length) {
+        if (serverRtcp == null)
+            return;
+        try {
+            rtcp.send(ByteBuffer.wrap(data, offset, length), serverRtcp);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to send RTCP packet", e);
+        }
+    }
+
+    void register(@NonNull Selector selector) throws IOException {
+        rtp.register(selector, SelectionKey.OP_READ, rtpChannel);
+        rtcp.register(selector, SelectionKey.OP_READ, rtpChannel + 1);
+    }
+
+    void close() {
+        closeQuietly(rtp);
+        closeQuietly(rtcp);
+    }
+
+    private static void closeQuietly(@Nullable DatagramChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.alexvas.rtsp;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
@@ -9,9 +10,19 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.alexvas.rtsp.parser.AacParser;
+import com.alexvas.rtsp.parser.AccessUnitAssembler;
+import com.alexvas.rtsp.parser.H265RtpParser;
+import com.alexvas.rtsp.parser.InterleavedFrameReader;
+import com.alexvas.rtsp.parser.RtcpParser;
+import com.alexvas.rtsp.parser.RtcpReceiver;
+import com.alexvas.rtsp.parser.RtpClock;
+import com.alexvas.rtsp.parser.RtpPacketRing;
 import com.alexvas.rtsp.parser.RtpParser;
+import com.alexvas.rtsp.parser.RtpReorderBuffer;
 import com.alexvas.rtsp.parser.VideoRtpParser;
+import com.alexvas.utils.BufferPool;
 import com.alexvas.utils.NetUtils;
+import com.alexvas.utils.PooledBuffer;
 import com.alexvas.utils.VideoCodecUtils;
 
 import java.io.BufferedOutputStream;
@@ -20,10 +31,19 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -154,10 +174,80 @@ public class RtspClient {
         void onRtspFailed(@Nullable String message);
     }
 
+    /**
+     * Zero-copy alternative to {@link RtspClientListener} data callbacks.
+     * If set via {@link Builder#withBufferListener(RtspClientBufferListener)}, NAL units and audio samples
+     * are delivered here instead of {@link RtspClientListener#onRtspVideoNalUnitReceived} and
+     * {@link RtspClientListener#onRtspAudioSampleReceived}.
+     * <p>
+     * Ownership of the buffer is passed to the listener. Data is available via
+     * {@link PooledBuffer#asReadOnlyBuffer()} (direct buffer, can be passed to MediaMuxer or MediaCodec as is).
+     * Listener must call {@link PooledBuffer#release()} once the data is consumed, e.g. after
+     * MediaMuxer.writeSampleData() returns. Release can be done from any thread.
+     * Not released buffers are not recycled and are left to GC.
+     */
+    public interface RtspClientBufferListener {
+        void onRtspVideoNalUnitReceived(@NonNull PooledBuffer nalUnit, long timestamp);
+        void onRtspAudioSampleReceived(@NonNull PooledBuffer sample, long timestamp);
+    }
+
+    /**
+     * If set via {@link Builder#withAccessUnitListener(RtspClientAccessUnitListener, int)}, video is delivered
+     * here as complete access units, one per frame, instead of separate NAL units.
+     * Access unit of a key frame contains parameter sets as well.
+     * Buffer ownership rules are the same as for {@link RtspClientBufferListener}.
+     */
+    public interface RtspClientAccessUnitListener {
+        void onRtspVideoAccessUnitReceived(@NonNull PooledBuffer accessUnit, long timestamp, boolean keyFrame);
+    }
+
+    /**
+     * Receiving statistics, see {@link #getStatistics()}.
+     */
+    public static class Statistics {
+        /**
+         * RTP packets never received
+         */
+        public long lostPackets;
+        /**
+         * RTP packets received out of order and put back in order
+         */
+        public long reorderedPackets;
+        /**
+         * RTP packets received out of order too late, after being counted as lost
+         */
+        public long latePackets;
+        /**
+         * Video NAL units dropped since they were incomplete or belonged to damaged frames
+         */
+        public long droppedNalUnits;
+        /**
+         * FU-A fragments dropped since their NAL unit start was lost
+         */
+        public long droppedFragments;
+        public long droppedBytes;
+        /**
+         * RTCP interarrival jitter, usec
+         */
+        public long videoJitterUs;
+        public long audioJitterUs;
+        /**
+         * RTCP sender reports received. Tracks are aligned by sender wall clock once reports arrive.
+         */
+        public long senderReports;
+    }
+
     private interface RtspClientKeepAliveListener {
         void onRtspKeepAliveRequested();
     }
 
+    private interface RtcpSender {
+        /**
+         * @param channel 1 - video RTCP, 3 - audio RTCP
+         */
+        void sendRtcp(int channel, @NonNull byte[] data, int offset, int length) throws IOException;
+    }
+
     public static class SdpInfo {
         /**
          * Session name (RFC 2327). In most cases RTSP server name.
@@ -176,6 +266,7 @@ public class RtspClient {
     public abstract static class Track {
         public String request;
         public int payloadType;
+        public int clockRate; // RTP timestamp clock rate from "a=rtpmap", Hz
     }
 
     public static final int VIDEO_CODEC_H264 = 0;
@@ -185,8 +276,9 @@ public class RtspClient {
         public int videoCodec = VIDEO_CODEC_H264;
         public @Nullable byte[] sps; // Both H.264 and H.265
         public @Nullable byte[] pps; // Both H.264 and H.265
-//      public @Nullable byte[] vps; // H.265 only
+        public @Nullable byte[] vps; // H.265 only
 //      public @Nullable byte[] sei; // H.265 only
+        public boolean donlPresent; // H.265 only, sprop-max-don-diff > 0
     }
 
     public static final int AUDIO_CODEC_UNKNOWN = -1;
@@ -211,6 +303,16 @@ public class RtspClient {
         public int channels; // 1 - mono, 2 - stereo
         public String mode; // AAC-lbr, AAC-hbr
         public @Nullable byte[] config; // config=1210fff15081ffdffc
+        // RFC 3640 AU header fields sizes in bits. -1 if not set in SDP, derived from mode then.
+        public int sizeLength = -1; // sizelength=13
+        public int indexLength = -1; // indexlength=3
+        public int indexDeltaLength = -1; // indexdeltalength=3
+        public int ctsDeltaLength = 0;
+        public int dtsDeltaLength = 0;
+        public boolean randomAccessIndication = false;
+        public int streamStateIndication = 0;
+        public int auxiliaryDataSizeLength = 0;
+        public int constantDuration = -1; // constantduration=1024
     }
 
     private static final String CRLF = "\r\n";
@@ -218,6 +320,18 @@ public class RtspClient {
     // Size of buffer for reading from the connection
     private final static int MAX_LINE_SIZE = 4098;
 
+    // Buffers delivered to RtspClientBufferListener
+    private final static int VIDEO_BUFFER_INITIAL_SIZE = 64 * 1024;
+    private final static int AUDIO_BUFFER_INITIAL_SIZE = 2 * 1024;
+    private final static int AUDIO_BUFFER_MAX_SIZE = 64 * 1024;
+    private final static int MAX_POOLED_BUFFERS = 32;
+
+    private final static int UDP_POLL_TIMEOUT_MSEC = 500;
+    private final static int UDP_NO_DATA_TIMEOUT_MSEC = 10000;
+    private final static int DEFAULT_REORDER_LATENCY_MSEC = 100;
+    // Min RTCP report interval (RFC 3550 6.2)
+    private final static int RTCP_REPORT_INTERVAL_MSEC = 5000;
+
     private static class UnauthorizedException extends IOException {
         UnauthorizedException() {
             super("Unauthorized");
@@ -228,36 +342,118 @@ public class RtspClient {
         private static final long serialVersionUID = 1L;
     }
 
+    // What was learned about a stream in the previous session.
+    // Auth is reused only by a session with the same credentials.
+    private final static class HandshakeHint {
+        final @Nullable String username;
+        final @Nullable String password;
+        // Null if no auth or Basic auth. Nonce is reused till the server says it is stale.
+        final @Nullable DigestAuth digestAuth;
+        final boolean basicAuth;
+        final @Nullable String videoSetupUri;
+        // False if the server failed on pipelined requests
+        final boolean pipelining;
+
+        HandshakeHint(
+                @Nullable String username,
+                @Nullable String password,
+                @Nullable DigestAuth digestAuth,
+                boolean basicAuth,
+                @Nullable String videoSetupUri,
+                boolean pipelining) {
+            this.username = username;
+            this.password = password;
+            this.digestAuth = digestAuth;
+            this.basicAuth = basicAuth;
+            this.videoSetupUri = videoSetupUri;
+            this.pipelining = pipelining;
+        }
+    }
+
+    private final static int MAX_HANDSHAKE_HINTS = 32;
+
+    // Keyed by RTSP URI and username, least recently used one dropped first
+    private final static Map<String, HandshakeHint> handshakeHints =
+            new LinkedHashMap<String, HandshakeHint>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HandshakeHint> eldest) {
+                    return size() > MAX_HANDSHAKE_HINTS;
+                }
+            };
+
     private final @NonNull Socket rtspSocket;
     private final @NonNull String uriRtsp;
     private final @NonNull AtomicBoolean exitFlag;
     private final @NonNull RtspClientListener listener;
+    private final @Nullable RtspClientBufferListener bufferListener;
+    private final @Nullable RtspClientAccessUnitListener accessUnitListener;
+    private final int accessUnitFormat;
 
 //  private boolean sendOptionsCommand;
     private final boolean requestVideo;
     private final boolean requestAudio;
+    private final boolean udpTransport;
+    private final int reorderLatency;
+    private final boolean dropUntilKeyFrame;
+    private final boolean pipelinedIngest;
+    private final boolean fastHandshake;
     private final boolean debug;
     private final @Nullable String username;
     private final @Nullable String password;
     private final @Nullable String userAgent;
 
+    private volatile @Nullable RtpPacketHandler packetHandler;
+
     private RtspClient(@NonNull RtspClient.Builder builder) {
         rtspSocket = builder.rtspSocket;
         uriRtsp = builder.uriRtsp;
         exitFlag = builder.exitFlag;
         listener = builder.listener;
+        bufferListener = builder.bufferListener;
+        accessUnitListener = builder.accessUnitListener;
+        accessUnitFormat = builder.accessUnitFormat;
 //      sendOptionsCommand = builder.sendOptionsCommand;
         requestVideo = builder.requestVideo;
         requestAudio = builder.requestAudio;
+        udpTransport = builder.udpTransport;
+        reorderLatency = builder.reorderLatency;
+        dropUntilKeyFrame = builder.dropUntilKeyFrame;
+        pipelinedIngest = builder.pipelinedIngest;
+        fastHandshake = builder.fastHandshake;
         username = builder.username;
         password = builder.password;
         debug = builder.debug;
         userAgent = builder.userAgent;
     }
 
+    /**
+     * Ask the server for a video key frame with RTCP PLI and FIR (RFC 4585, RFC 5104),
+     * e.g. when recording starts, to get decodable video without waiting for the next natural key frame.
+     * Can be called from any thread. Servers not supporting feedback messages just ignore it.
+     */
+    public void requestKeyFrame() {
+        RtpPacketHandler handler = packetHandler;
+        if (handler != null)
+            handler.requestKeyFrame();
+    }
+
+    /**
+     * Statistics of the current session. Can be called from any thread.
+     */
+    @NonNull
+    public Statistics getStatistics() {
+        Statistics statistics = new Statistics();
+        RtpPacketHandler handler = packetHandler;
+        if (handler != null)
+            handler.fillStatistics(statistics);
+        return statistics;
+    }
+
     public void execute() {
         if (DEBUG) Log.v(TAG, "execute()");
         listener.onRtspConnecting();
+        // i=0 - video track, i=1 - audio track. Null if TCP interleaved transport used.
+        final RtpUdpChannels[] udpChannels = new RtpUdpChannels[2];
         try {
             final InputStream inputStream = rtspSocket.getInputStream();
             final OutputStream outputStream = debug ?
@@ -270,7 +466,19 @@ public class RtspClient {
             int status;
 
             String authToken = null;
-            Pair<String, String> digestRealmNonce = null;
+            DigestAuth digestAuth = null;
+
+            final HandshakeHint hint = getHandshakeHint(uriRtsp, username, password);
+            // Preemptive auth, saves 401 round trip. Stale nonce gets 401 and the usual retry.
+            if (hint != null && hint.digestAuth != null) {
+                digestAuth = hint.digestAuth;
+            } else if (hint != null && hint.basicAuth) {
+                authToken = getBasicAuthHeader(username, password);
+            }
+            // Pipelining over UDP is not done, SETUP can be rejected with fallback to TCP
+            boolean pipeliningSupported = (hint == null || hint.pipelining);
+            boolean pipelining = fastHandshake && !udpTransport && pipeliningSupported;
+            final int capabilities;
 
 // OPTIONS rtsp://10.0.1.78:8080/video/h264 RTSP/1.0
 // CSeq: 1
@@ -280,35 +488,42 @@ public class RtspClient {
 // CSeq: 1
 // Public: OPTIONS, DESCRIBE, SETUP, PLAY, GET_PARAMETER, SET_PARAMETER, TEARDOWN
 //          if (sendOptionsCommand) {
-            checkExitFlag(exitFlag);
-            sendOptionsCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, null);
-            status = readResponseStatusCode(inputStream);
-            headers = readResponseHeaders(inputStream);
-            dumpHeaders(headers);
-            // Try once again with credentials
-            if (status == 401) {
-                digestRealmNonce = getHeaderWwwAuthenticateDigestRealmAndNonce(headers);
-                if (digestRealmNonce == null) {
-                    String basicRealm = getHeaderWwwAuthenticateBasicRealm(headers);
-                    if (TextUtils.isEmpty(basicRealm)) {
-                        throw new IOException("Unknown authentication type");
-                    }
-                    // Basic auth
-                    authToken = getBasicAuthHeader(username, password);
-                } else {
-                    // Digest auth
-                    authToken = getDigestAuthHeader(username, password, "OPTIONS", uriRtsp, digestRealmNonce.first, digestRealmNonce.second);
-                }
+            if (fastHandshake) {
+                // OPTIONS skipped. Keep-alive falls back to OPTIONS, TEARDOWN is sent anyway.
+                capabilities = RTSP_CAPABILITY_OPTIONS | RTSP_CAPABILITY_DESCRIBE |
+                        RTSP_CAPABILITY_SETUP | RTSP_CAPABILITY_PLAY | RTSP_CAPABILITY_TEARDOWN;
+            } else {
                 checkExitFlag(exitFlag);
-                sendOptionsCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken);
+                sendOptionsCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent,
+                        getAuthToken(digestAuth, authToken, "OPTIONS", uriRtsp));
                 status = readResponseStatusCode(inputStream);
                 headers = readResponseHeaders(inputStream);
                 dumpHeaders(headers);
+                // Try once again with credentials
+                if (status == 401) {
+                    digestAuth = getHeaderWwwAuthenticateDigest(headers);
+                    if (digestAuth == null) {
+                        String basicRealm = getHeaderWwwAuthenticateBasicRealm(headers);
+                        if (TextUtils.isEmpty(basicRealm)) {
+                            throw new IOException("Unknown authentication type");
+                        }
+                        // Basic auth
+                        authToken = getBasicAuthHeader(username, password);
+                    } else {
+                        // Digest auth
+                        authToken = digestAuth.getAuthorization("OPTIONS", uriRtsp);
+                    }
+                    checkExitFlag(exitFlag);
+                    sendOptionsCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken);
+                    status = readResponseStatusCode(inputStream);
+                    headers = readResponseHeaders(inputStream);
+                    dumpHeaders(headers);
+                }
+                if (DEBUG)
+                    Log.i(TAG, "OPTIONS status: " + status);
+                checkStatusCode(status);
+                capabilities = getSupportedCapabilities(headers);
             }
-            if (DEBUG)
-                Log.i(TAG, "OPTIONS status: " + status);
-            checkStatusCode(status);
-            final int capabilities = getSupportedCapabilities(headers);
 
 
 // DESCRIBE rtsp://10.0.1.78:8080/video/h264 RTSP/1.0
@@ -334,14 +549,37 @@ public class RtspClient {
 // a=control:trackID=2
             checkExitFlag(exitFlag);
 
-            sendDescribeCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken);
+            // Video track URI known from the previous session, send its SETUP right after DESCRIBE
+            String pipelinedSetupUri = (pipelining && requestVideo && hint != null ? hint.videoSetupUri : null);
+            // Token of OPTIONS is not valid for DESCRIBE with Digest auth
+            authToken = getAuthToken(digestAuth, authToken, "DESCRIBE", uriRtsp);
+            sendDescribeCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken, pipelinedSetupUri == null);
+            if (pipelinedSetupUri != null) {
+                sendSetupCommand(
+                        outputStream,
+                        pipelinedSetupUri,
+                        cSeq.addAndGet(1),
+                        userAgent,
+                        (digestAuth != null ?
+                                digestAuth.getAuthorization("SETUP", pipelinedSetupUri) :
+                                authToken),
+                        null,
+                        getTcpTransport(0),
+                        true);
+            }
             status = readResponseStatusCode(inputStream);
             headers = readResponseHeaders(inputStream);
             dumpHeaders(headers);
+            if (status != 200 && pipelinedSetupUri != null) {
+                // SETUP response follows, most likely failed the same way
+                skipContent(inputStream, headers);
+                skipResponse(inputStream);
+                pipelinedSetupUri = null;
+            }
             // Try once again with credentials. OPTIONS command can be accepted without authentication.
             if (status == 401) {
-                digestRealmNonce = getHeaderWwwAuthenticateDigestRealmAndNonce(headers);
-                if (digestRealmNonce == null) {
+                digestAuth = getHeaderWwwAuthenticateDigest(headers);
+                if (digestAuth == null) {
                     String basicRealm = getHeaderWwwAuthenticateBasicRealm(headers);
                     if (TextUtils.isEmpty(basicRealm)) {
                         throw new IOException("Unknown authentication type");
@@ -350,10 +588,10 @@ public class RtspClient {
                     authToken = getBasicAuthHeader(username, password);
                 } else {
                     // Digest auth
-                    authToken = getDigestAuthHeader(username, password, "DESCRIBE", uriRtsp, digestRealmNonce.first, digestRealmNonce.second);
+                    authToken = digestAuth.getAuthorization("DESCRIBE", uriRtsp);
                 }
                 checkExitFlag(exitFlag);
-                sendDescribeCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken);
+                sendDescribeCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken, true);
                 status = readResponseStatusCode(inputStream);
                 headers = readResponseHeaders(inputStream);
                 dumpHeaders(headers);
@@ -382,6 +620,12 @@ public class RtspClient {
                     e.printStackTrace();
                 }
             }
+            if (pipelinedSetupUri != null && !pipelinedSetupUri.equals(getUriForSetup(uriRtsp, sdpInfo.videoTrack))) {
+                // Stream changed since the previous session
+                Log.w(TAG, "Video track URI changed, sending SETUP again");
+                skipResponse(inputStream);
+                pipelinedSetupUri = null;
+            }
 
 
 // SETUP rtsp://10.0.1.78:8080/video/h264/trackID=1 RTSP/1.0
@@ -395,6 +639,8 @@ public class RtspClient {
 // Session: Mzk5MzY2MzUwMTg3NTc2Mzc5NQ;timeout=30
             String session = null;
             int sessionTimeout = 0;
+            boolean useUdp = udpTransport;
+            boolean playPipelined = false;
             for (int i = 0; i < 2; i++) {
                 // i=0 - video track, i=1 - audio track
                 checkExitFlag(exitFlag);
@@ -407,28 +653,88 @@ public class RtspClient {
                         Log.e(TAG, "Failed to get RTSP URI for SETUP");
                         continue;
                     }
-                    if (digestRealmNonce != null)
-                        authToken = getDigestAuthHeader(
-                                username,
-                                password,
-                                "SETUP",
+                    authToken = getAuthToken(digestAuth, authToken, "SETUP", uriRtspSetup);
+                    RtpUdpChannels udp = (useUdp ? RtpUdpChannels.open(i * 2) : null);
+                    boolean setupSent = (i == 0 && pipelinedSetupUri != null);
+                    if (setupSent) {
+                        // Sent together with DESCRIBE
+                        status = readResponseStatusCode(inputStream);
+                        if (status != 200) {
+                            Log.w(TAG, "Pipelined SETUP failed with status " + status + ", sending it again");
+                            dumpHeaders(readResponseHeaders(inputStream));
+                            pipeliningSupported = false;
+                            pipelining = false;
+                            setupSent = false;
+                        }
+                    }
+                    if (!setupSent) {
+                        // PLAY needs the session returned by the first SETUP, so it can follow the second one only
+                        boolean pipelinePlay = (pipelining && i == 1 && session != null);
+                        sendSetupCommand(
+                                outputStream,
                                 uriRtspSetup,
-                                digestRealmNonce.first,
-                                digestRealmNonce.second);
-                    sendSetupCommand(
-                            outputStream,
-                            uriRtspSetup,
-                            cSeq.addAndGet(1),
-                            userAgent,
-                            authToken,
-                            session,
-                            (i == 0 ? "0-1" /*video*/ : "2-3" /*audio*/));
-                    status = readResponseStatusCode(inputStream);
+                                cSeq.addAndGet(1),
+                                userAgent,
+                                authToken,
+                                session,
+                                (udp != null ?
+                                        "RTP/AVP;unicast;client_port=" + udp.getClientPortRange() :
+                                        getTcpTransport(i)),
+                                !pipelinePlay);
+                        if (pipelinePlay) {
+                            sendPlayCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, getAuthToken(digestAuth, authToken, "PLAY", uriRtsp), session);
+                            playPipelined = true;
+                        }
+                        status = readResponseStatusCode(inputStream);
+                    }
                     if (DEBUG)
                         Log.i(TAG, "SETUP status: " + status);
+                    if (udp != null && status != 200 && status != 401) {
+                        // Usually 461 Unsupported Transport. Fallback to TCP interleaved.
+                        Log.w(TAG, "UDP transport rejected with status " + status + ", trying TCP");
+                        dumpHeaders(readResponseHeaders(inputStream));
+                        udp.close();
+                        udp = null;
+                        useUdp = false;
+                        if (udpChannels[0] != null) {
+                            // Mixing UDP video with TCP audio is not supported
+                            Log.w(TAG, "Audio track skipped since it cannot be received over UDP");
+                            sdpInfo.audioTrack = null;
+                            continue;
+                        }
+                        sendSetupCommand(
+                                outputStream,
+                                uriRtspSetup,
+                                cSeq.addAndGet(1),
+                                userAgent,
+                                authToken,
+                                session,
+                                getTcpTransport(i),
+                                true);
+                        status = readResponseStatusCode(inputStream);
+                        if (DEBUG)
+                            Log.i(TAG, "SETUP status: " + status);
+                    }
+                    if (status != 200 && udp != null)
+                        udp.close();
                     checkStatusCode(status);
                     headers = readResponseHeaders(inputStream);
                     dumpHeaders(headers);
+                    if (udp != null) {
+                        if (udp.setServerFromTransport(getHeader(headers, "Transport"), rtspSocket.getInetAddress())) {
+                            udp.punchHoles(track.payloadType);
+                            udpChannels[i] = udp;
+                        } else {
+                            // Server ignored client_port and replied with TCP interleaved transport
+                            Log.w(TAG, "Server did not accept UDP transport, using TCP");
+                            udp.close();
+                            useUdp = false;
+                            if (udpChannels[0] != null) {
+                                Log.w(TAG, "Audio track skipped since it cannot be received over UDP");
+                                sdpInfo.audioTrack = null;
+                            }
+                        }
+                    }
                     session = getHeader(headers, "Session");
                     if (!TextUtils.isEmpty(session)) {
                         // ODgyODg3MjQ1MDczODk3NDk4Nw;timeout=30
@@ -467,22 +773,41 @@ public class RtspClient {
 // RTP-Info: url=/video/h264;seq=56
 // Session: Mzk5MzY2MzUwMTg3NTc2Mzc5NQ;timeout=30
             checkExitFlag(exitFlag);
-            if (digestRealmNonce != null)
-                authToken = getDigestAuthHeader(username, password, "PLAY", uriRtsp /*?*/, digestRealmNonce.first, digestRealmNonce.second);
-            sendPlayCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken, session);
-            status = readResponseStatusCode(inputStream);
+            authToken = getAuthToken(digestAuth, authToken, "PLAY", uriRtsp);
+            boolean playSent = playPipelined;
+            if (playSent) {
+                // Sent together with the last SETUP
+                status = readResponseStatusCode(inputStream);
+                if (status != 200) {
+                    // E.g. 454 Session Not Found if the last SETUP changed the session
+                    Log.w(TAG, "Pipelined PLAY failed with status " + status + ", sending it again");
+                    dumpHeaders(readResponseHeaders(inputStream));
+                    pipeliningSupported = false;
+                    playSent = false;
+                }
+            }
+            if (!playSent) {
+                sendPlayCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken, session);
+                status = readResponseStatusCode(inputStream);
+            }
             if (DEBUG)
                 Log.i(TAG, "PLAY status: " + status);
             checkStatusCode(status);
             headers = readResponseHeaders(inputStream);
             dumpHeaders(headers);
+            putHandshakeHint(uriRtsp, new HandshakeHint(
+                    username,
+                    password,
+                    digestAuth,
+                    digestAuth == null && authToken != null,
+                    getUriForSetup(uriRtsp, sdpInfo.videoTrack),
+                    pipeliningSupported));
 
             listener.onRtspConnected(sdpInfo);
 
             if (sdpInfo.videoTrack != null ||  sdpInfo.audioTrack != null) {
-                if (digestRealmNonce != null)
-                    authToken = getDigestAuthHeader(username, password, hasCapability(RTSP_CAPABILITY_GET_PARAMETER, capabilities) ? "GET_PARAMETER" : "OPTIONS", uriRtsp, digestRealmNonce.first, digestRealmNonce.second);
                 final String authTokenFinal = authToken;
+                final DigestAuth digestAuthFinal = digestAuth;
                 final String sessionFinal = session;
                 RtspClientKeepAliveListener keepAliveListener = () -> {
                     try {
@@ -497,10 +822,17 @@ public class RtspClient {
                         //Session: 4066342621205
                         if (debug)
                             Log.d(TAG_DEBUG, "Sending keep-alive");
-                        if (hasCapability(RTSP_CAPABILITY_GET_PARAMETER, capabilities))
-                            sendGetParameterCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, sessionFinal, authTokenFinal);
-                        else
-                            sendOptionsCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authTokenFinal);
+                        RtpPacketHandler handler = packetHandler;
+                        // RTCP can be sent from the depacketizer thread in pipelined mode
+                        synchronized (outputStream) {
+                            if (hasCapability(RTSP_CAPABILITY_GET_PARAMETER, capabilities))
+                                sendGetParameterCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, sessionFinal,
+                                        getAuthToken(digestAuthFinal, authTokenFinal, "GET_PARAMETER", uriRtsp));
+                            // Server talks RTCP. Receiver reports keep the session alive (RFC 2326 A.2).
+                            else if (handler == null || !handler.isRtcpActive())
+                                sendOptionsCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent,
+                                        getAuthToken(digestAuthFinal, authTokenFinal, "OPTIONS", uriRtsp));
+                        }
 
                         // Do not read response right now, since it may contain unread RTP frames.
                         // RtpHeader.searchForNextRtpHeader will handle that.
@@ -510,19 +842,58 @@ public class RtspClient {
                 };
 
                 // Blocking call unless exitFlag set to true, thread.interrupt() called or connection closed.
+                PacketPipeline pipeline = null;
                 try {
-                    readRtpData(
-                            inputStream,
+                    boolean udp = (udpChannels[0] != null || udpChannels[1] != null);
+                    // TCP never reorders packets. Only detect gaps.
+                    RtpPacketHandler packetHandler = new RtpPacketHandler(
                             sdpInfo,
-                            exitFlag,
                             listener,
-                            sessionTimeout / 2 * 1000,
-                            keepAliveListener);
+                            bufferListener,
+                            accessUnitListener,
+                            accessUnitFormat,
+                            udp ? reorderLatency : 0,
+                            dropUntilKeyFrame);
+                    this.packetHandler = packetHandler;
+                    RtcpSender rtcpSender = udp ?
+                            (channel, data, offset, length) -> {
+                                RtpUdpChannels udpChannel = udpChannels[channel / 2];
+                                if (udpChannel != null)
+                                    udpChannel.sendRtcp(data, offset, length);
+                            } :
+                            (channel, data, offset, length) ->
+                                    sendInterleavedFrame(outputStream, channel, data, offset, length);
+                    if (pipelinedIngest) {
+                        pipeline = new PacketPipeline(packetHandler, rtcpSender, udp ? reorderLatency : 0);
+                        pipeline.start();
+                    }
+                    if (udp)
+                        readRtpDataUdp(
+                                inputStream,
+                                udpChannels,
+                                packetHandler,
+                                pipeline,
+                                rtcpSender,
+                                reorderLatency,
+                                exitFlag,
+                                sessionTimeout / 2 * 1000,
+                                keepAliveListener);
+                    else
+                        readRtpData(
+                                inputStream,
+                                packetHandler,
+                                pipeline,
+                                rtcpSender,
+                                exitFlag,
+                                sessionTimeout / 2 * 1000,
+                                keepAliveListener);
                 } finally {
+                    // Listeners are not called after this
+                    if (pipeline != null)
+                        pipeline.stop();
                     // Cleanup resources on server side
                     if (hasCapability(RTSP_CAPABILITY_TEARDOWN, capabilities)) {
-                        if (digestRealmNonce != null)
-                            authToken = getDigestAuthHeader(username, password, "TEARDOWN", uriRtsp, digestRealmNonce.first, digestRealmNonce.second);
+                        authToken = getAuthToken(digestAuth, authToken, "TEARDOWN", uriRtsp);
                         sendTeardownCommand(outputStream, uriRtsp, cSeq.addAndGet(1), userAgent, authToken, sessionFinal);
                     }
                 }
@@ -544,6 +915,10 @@ public class RtspClient {
             e.printStackTrace();
             listener.onRtspFailed(e.getMessage());
         }
+        for (RtpUdpChannels udp : udpChannels) {
+            if (udp != null)
+                udp.close();
+        }
         try {
             rtspSocket.close();
         } catch (IOException e) {
@@ -570,6 +945,44 @@ public class RtspClient {
         return uriRtspSetup;
     }
 
+    // Digest with qop needs a new nonce count for every request
+    @Nullable
+    private static String getAuthToken(
+            @Nullable DigestAuth digestAuth,
+            @Nullable String authToken,
+            @NonNull String method,
+            @NonNull String uri) {
+        if (digestAuth == null)
+            return authToken;
+        return digestAuth.getAuthorization(method, uri);
+    }
+
+    @Nullable
+    private static HandshakeHint getHandshakeHint(
+            @NonNull String uriRtsp,
+            @Nullable String username,
+            @Nullable String password) {
+        HandshakeHint hint;
+        synchronized (handshakeHints) {
+            hint = handshakeHints.get(getHandshakeHintKey(uriRtsp, username));
+        }
+        // Changed password is not sent preemptively with the old one's digest
+        if (hint == null || !Objects.equals(hint.password, password))
+            return null;
+        return hint;
+    }
+
+    private static void putHandshakeHint(@NonNull String uriRtsp, @NonNull HandshakeHint hint) {
+        synchronized (handshakeHints) {
+            handshakeHints.put(getHandshakeHintKey(uriRtsp, hint.username), hint);
+        }
+    }
+
+    @NonNull
+    private static String getHandshakeHintKey(@NonNull String uriRtsp, @Nullable String username) {
+        return (username == null ? "" : username) + "@" + uriRtsp;
+    }
+
     private static void checkExitFlag(@NonNull AtomicBoolean exitFlag) throws InterruptedException {
         if (exitFlag.get())
             throw new InterruptedException();
@@ -586,37 +999,30 @@ public class RtspClient {
         }
     }
 
+    @NonNull
+    private static String getTcpTransport(int trackIndex) {
+        return "RTP/AVP/TCP;unicast;interleaved=" + (trackIndex == 0 ? "0-1" /*video*/ : "2-3" /*audio*/);
+    }
+
+    /**
+     * @param pipeline if not null, packets are depacketized on the pipeline thread
+     */
     private static void readRtpData(
             @NonNull InputStream inputStream,
-            @NonNull SdpInfo sdpInfo,
+            @NonNull RtpPacketHandler packetHandler,
+            @Nullable PacketPipeline pipeline,
+            @NonNull RtcpSender rtcpSender,
             @NonNull AtomicBoolean exitFlag,
-            @NonNull RtspClientListener listener,
             int keepAliveTimeout,
             @NonNull RtspClientKeepAliveListener keepAliveListener)
     throws IOException {
-        byte[] data = new byte[0]; // Usually not bigger than MTU = 15KB
-
-        final VideoRtpParser videoParser = new VideoRtpParser();
-        final AacParser audioParser = (sdpInfo.audioTrack != null && sdpInfo.audioTrack.audioCodec == AUDIO_CODEC_AAC ?
-                new AacParser(sdpInfo.audioTrack.mode) :
-                null);
-
-        byte[] nalUnitSps = (sdpInfo.videoTrack != null ? sdpInfo.videoTrack.sps : null);
-        byte[] nalUnitPps = (sdpInfo.videoTrack != null ? sdpInfo.videoTrack.pps : null);
+        final InterleavedFrameReader frameReader = new InterleavedFrameReader(inputStream);
 
         long keepAliveSent = System.currentTimeMillis();
 
         while (!exitFlag.get()) {
-            RtpParser.RtpHeader header = RtpParser.readHeader(inputStream);
-            if (header == null) {
-                continue;
-//                throw new IOException("No RTP frames found");
-            }
-//          header.dumpHeader();
-            if (header.payloadSize > data.length)
-                data = new byte[header.payloadSize];
-
-            NetUtils.readData(inputStream, data, 0, header.payloadSize);
+            if (!frameReader.readFrame())
+                throw new IOException("RTSP connection closed");
 
             // Check if keep-alive should be sent
             long l = System.currentTimeMillis();
@@ -625,59 +1031,392 @@ public class RtspClient {
                 keepAliveListener.onRtspKeepAliveRequested();
             }
 
-            // Video
-            if (sdpInfo.videoTrack != null && header.payloadType == sdpInfo.videoTrack.payloadType) {
-                byte[] nalUnit = videoParser.processRtpPacketAndGetNalUnit(data, header.payloadSize);
-                if (nalUnit != null) {
-                    byte type = VideoCodecUtils.getH264NalUnitType(nalUnit, 0, nalUnit.length);
-//                  Log.i(TAG, "NAL u: " + VideoCodecUtils.getH264NalUnitTypeString(type));
-                    switch (type) {
-                        case VideoCodecUtils.NAL_SPS:
-                            nalUnitSps = nalUnit;
-                            // Looks like there is NAL_IDR_SLICE as well. Send it now.
-                            if (nalUnit.length > 100)
-                                listener.onRtspVideoNalUnitReceived(nalUnit, 0, nalUnit.length, (long)(header.timeStamp * 11.111111));
-                            break;
-                        case VideoCodecUtils.NAL_PPS:
-                            nalUnitPps = nalUnit;
-                            // Looks like there is NAL_IDR_SLICE as well. Send it now.
-                            if (nalUnit.length > 100)
-                                listener.onRtspVideoNalUnitReceived(nalUnit, 0, nalUnit.length, (long)(header.timeStamp * 11.111111));
+            if (pipeline != null) {
+                pipeline.push(
+                        frameReader.getChannel(),
+                        frameReader.getBuffer(),
+                        frameReader.getFrameOffset(),
+                        frameReader.getFrameLength());
+            } else {
+                packetHandler.onPacket(
+                        frameReader.getChannel(),
+                        frameReader.getBuffer(),
+                        frameReader.getFrameOffset(),
+                        frameReader.getFrameLength());
+                packetHandler.sendReceiverReports(rtcpSender);
+            }
+            if (pipeline != null ? pipeline.isByeReceived() : packetHandler.isByeReceived()) {
+                Log.i(TAG, "RTCP BYE received. Stream ended.");
+                break;
+            }
+        }
+    }
+
+    /**
+     * @param pipeline if not null, packets are depacketized on the pipeline thread
+     */
+    private static void readRtpDataUdp(
+            @NonNull InputStream inputStream,
+            @NonNull RtpUdpChannels[] udpChannels,
+            @NonNull RtpPacketHandler packetHandler,
+            @Nullable PacketPipeline pipeline,
+            @NonNull RtcpSender rtcpSender,
+            int reorderLatency,
+            @NonNull AtomicBoolean exitFlag,
+            int keepAliveTimeout,
+            @NonNull RtspClientKeepAliveListener keepAliveListener)
+    throws IOException {
+        final byte[] data = new byte[RtpUdpChannels.MAX_DATAGRAM_SIZE];
+        final ByteBuffer datagram = ByteBuffer.wrap(data);
+        final byte[] skipBuffer = new byte[MAX_LINE_SIZE];
+
+        long keepAliveSent = System.currentTimeMillis();
+        long packetReceived = keepAliveSent;
+
+        try (Selector selector = Selector.open()) {
+            for (RtpUdpChannels udp : udpChannels) {
+                if (udp != null)
+                    udp.register(selector);
+            }
+            while (!exitFlag.get()) {
+                // Check if keep-alive should be sent
+                long l = System.currentTimeMillis();
+                if (keepAliveTimeout > 0 && l - keepAliveSent > keepAliveTimeout) {
+                    keepAliveSent = l;
+                    keepAliveListener.onRtspKeepAliveRequested();
+                }
+
+                // RTSP connection is used for keep-alive only. Discard responses.
+                int available = inputStream.available();
+                while (available > 0) {
+                    int readBytes = inputStream.read(skipBuffer, 0, Math.min(available, skipBuffer.length));
+                    if (readBytes < 0)
+                        throw new IOException("RTSP connection closed");
+                    available -= readBytes;
+                }
+
+                int selected;
+                if (pipeline != null) {
+                    // Reordering timer and RTCP are on the pipeline thread
+                    pipeline.checkError();
+                    selected = selector.select(UDP_POLL_TIMEOUT_MSEC);
+                } else {
+                    int timeout = (packetHandler.hasPendingPackets() ?
+                            Math.max(1, Math.min(reorderLatency, UDP_POLL_TIMEOUT_MSEC)) :
+                            UDP_POLL_TIMEOUT_MSEC);
+                    selected = selector.select(timeout);
+                    packetHandler.onTimer();
+                    packetHandler.sendReceiverReports(rtcpSender);
+                }
+                if (pipeline != null ? pipeline.isByeReceived() : packetHandler.isByeReceived()) {
+                    Log.i(TAG, "RTCP BYE received. Stream ended.");
+                    break;
+                }
+                if (selected == 0) {
+                    if (l - packetReceived > UDP_NO_DATA_TIMEOUT_MSEC)
+                        throw new IOException("No RTP packets received over UDP. Blocked by firewall or NAT?");
+                    continue;
+                }
+                packetReceived = l;
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    int channelNum = (Integer) key.attachment();
+                    // Read all pending datagrams
+                    while (true) {
+                        datagram.clear();
+                        if (channel.receive(datagram) == null)
                             break;
-                        case VideoCodecUtils.NAL_IDR_SLICE:
-                            // Combine IDR with SPS/PPS
-                            if (nalUnitSps != null && nalUnitPps != null) {
-//                                byte[] nalUnitSppPpsIdr = new byte[nalUnitSps.length + nalUnitPps.length + nalUnit.length];
-//                                System.arraycopy(nalUnitSps, 0, nalUnitSppPpsIdr, 0, nalUnitSps.length);
-//                                System.arraycopy(nalUnitPps, 0, nalUnitSppPpsIdr, nalUnitSps.length, nalUnitPps.length);
-//                                System.arraycopy(nalUnit, 0, nalUnitSppPpsIdr, nalUnitSps.length + nalUnitPps.length, nalUnit.length);
-//                                listener.onRtspNalUnitReceived(nalUnitSppPpsIdr, 0, nalUnitSppPpsIdr.length, System.currentTimeMillis());
-                                byte[] nalUnitSppPps = new byte[nalUnitSps.length + nalUnitPps.length];
-                                System.arraycopy(nalUnitSps, 0, nalUnitSppPps, 0, nalUnitSps.length);
-                                System.arraycopy(nalUnitPps, 0, nalUnitSppPps, nalUnitSps.length, nalUnitPps.length);
-                                listener.onRtspVideoNalUnitReceived(nalUnitSppPps, 0, nalUnitSppPps.length, (long)(header.timeStamp * 11.111111));
-//                                listener.onRtspNalUnitReceived(nalUnitSppPps, 0, nalUnitSppPps.length, System.currentTimeMillis() / 10);
-                                // Send it only once
-                                nalUnitSps = null;
-                                nalUnitPps = null;
-                            }
-//                            listener.onRtspNalUnitReceived(nalUnitSps, 0, nalUnitSps.length, System.currentTimeMillis());
-//                            listener.onRtspNalUnitReceived(nalUnitPps, 0, nalUnitPps.length, System.currentTimeMillis());
-//                            listener.onRtspNalUnitReceived(nalUnit, 0, nalUnit.length, System.currentTimeMillis());
-//                            break;
-                        default:
-                            listener.onRtspVideoNalUnitReceived(nalUnit, 0, nalUnit.length, (long)(header.timeStamp * 11.111111));
-//                            listener.onRtspNalUnitReceived(nalUnit, 0, nalUnit.length, System.currentTimeMillis() / 10);
+                        if (pipeline != null)
+                            pipeline.push(channelNum, data, 0, datagram.position());
+                        else
+                            packetHandler.onPacket(channelNum, data, 0, datagram.position());
                     }
                 }
+            }
+        } catch (ClosedByInterruptException e) {
+            // Thread interrupted. Expected behavior.
+            if (!exitFlag.get())
+                throw e;
+        }
+    }
+
+    // Pipelined ingest, see Builder.withPipelinedIngest()
+    //
+    //   RTSP thread                          depacketizer thread                   sinks
+    //   socket read, framing --> [ ring ] --> RTP parsing, access units --> listeners --> own queues/threads
+    //
+    // RTCP receive/send and UDP reordering timer run on the depacketizer thread too,
+    // since they share state with the depacketizers.
+    private static final class PacketPipeline implements RtpPacketRing.PacketConsumer {
+
+        private final @NonNull RtpPacketRing ring = new RtpPacketRing(RtpPacketRing.DEFAULT_SLOTS, RtpPacketRing.DEFAULT_BYTES);
+        private final @NonNull RtpPacketHandler packetHandler;
+        private final @NonNull RtcpSender rtcpSender;
+        private final int reorderLatency;
+        private final @NonNull Thread thread;
+        private volatile boolean byeReceived = false;
+        private volatile @Nullable Exception error;
+
+        /**
+         * @param reorderLatency UDP reordering latency, msec. 0 for TCP.
+         */
+        PacketPipeline(@NonNull RtpPacketHandler packetHandler, @NonNull RtcpSender rtcpSender, int reorderLatency) {
+            this.packetHandler = packetHandler;
+            this.rtcpSender = rtcpSender;
+            this.reorderLatency = reorderLatency;
+            this.thread = new Thread(this::run, "RtspDepacketizer");
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Called on RTSP thread. Waits if the depacketizer falls behind.
+         * @throws IOException if the depacketizer thread failed
+         */
+        void push(int channel, @NonNull byte[] data, int offset, int length) throws IOException {
+            if (!ring.push(channel, data, offset, length))
+                checkError();
+        }
+
+        void checkError() throws IOException {
+            Exception e = error;
+            if (e == null)
+                return;
+            if (e instanceof IOException)
+                throw (IOException) e;
+            throw new IOException("Depacketizer failed", e);
+        }
+
+        boolean isByeReceived() {
+            return byeReceived;
+        }
+
+        /**
+         * Packets not depacketized yet are dropped.
+         */
+        void stop() {
+            ring.close();
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    // RTSP thread is interrupted on stop. Listeners should not be called after return.
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        private void run() {
+            try {
+                while (!ring.isClosed()) {
+                    long timeoutMsec = (reorderLatency > 0 && packetHandler.hasPendingPackets() ?
+                            Math.max(1, Math.min(reorderLatency, UDP_POLL_TIMEOUT_MSEC)) :
+                            UDP_POLL_TIMEOUT_MSEC);
+                    ring.await(timeoutMsec * 1000000L);
+                    ring.drain(this);
+                    if (reorderLatency > 0)
+                        packetHandler.onTimer();
+                    packetHandler.sendReceiverReports(rtcpSender);
+                    if (packetHandler.isByeReceived())
+                        byeReceived = true;
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Depacketizer failed", e);
+                error = e;
+                ring.close();
+            }
+        }
+
+        // Depacketizer thread
+        @Override
+        public void onPacket(int channel, @NonNull byte[] data, int offset, int length) {
+            packetHandler.onPacket(channel, data, offset, length);
+        }
+    }
+
+    // Passes RTP packets to depacketizers and the listener
+    private static final class RtpPacketHandler {
+
+        private final @NonNull SdpInfo sdpInfo;
+        private final boolean dropUntilKeyFrame;
+        private final @NonNull RtspClientListener listener;
+        private final @Nullable RtspClientBufferListener bufferListener;
+        private final RtpParser.RtpHeader header = new RtpParser.RtpHeader();
+        private final @NonNull VideoRtpParser videoParser;
+        private final @Nullable AacParser audioParser;
+        private final @Nullable BufferPool audioBufferPool;
+        private final @NonNull VideoNalUnitHandler videoNalUnitHandler;
+        private final @NonNull RtpReorderBuffer videoReorderBuffer;
+        private final @NonNull RtpReorderBuffer audioReorderBuffer;
+        private final @NonNull RtpClock videoClock;
+        private final @NonNull RtpClock audioClock;
+        // Arrival time of the first RTP packet of any track. Tracks clocks are started relative to it.
+        private long sessionEpochMsec = -1;
+        private final @NonNull RtcpReceiver videoRtcp;
+        private final @NonNull RtcpReceiver audioRtcp;
+        // Sender wall clock time (from RTCP SR) which corresponds to session time 0, usec
+        private long ntpEpochUs = -1;
+        private final long rtcpSsrc = new Random().nextInt() & 0xFFFFFFFFL;
+        private final @NonNull String rtcpCname = "rtsp-client-" + Long.toHexString(rtcpSsrc);
+        private final byte[] rtcpBuffer = new byte[RtcpReceiver.MAX_REPORT_SIZE + RtcpReceiver.KEY_FRAME_REQUEST_SIZE];
+        private long rtcpReportSent = -1;
+        // Set from any thread, sent on RTSP thread
+        private final AtomicBoolean keyFrameRequested = new AtomicBoolean(false);
+        private int firSequence = 0;
+
+        private final RtpReorderBuffer.PacketListener videoPacketListener = new RtpReorderBuffer.PacketListener() {
+            @Override
+            public void onRtpPacket(@NonNull byte[] data, int offset, int length) {
+                if (header.parse(data, offset, length))
+                    processVideoPacket(data);
+            }
+
+            @Override
+            public void onRtpPacketLoss(int lostPackets) {
+                videoParser.notifyPacketLoss(lostPackets);
+                // Frame in progress is damaged, never emit it truncated. Its NAL units after the gap
+                // are dropped by the parser, dependent frames too if dropUntilKeyFrame is set.
+                videoNalUnitHandler.dropAccessUnit();
+                // Stream restarted. New timestamps are not related to the old ones.
+                if (lostPackets == 0)
+                    videoClock.reset();
+            }
+        };
+
+        private final RtpReorderBuffer.PacketListener audioPacketListener = new RtpReorderBuffer.PacketListener() {
+            @Override
+            public void onRtpPacket(@NonNull byte[] data, int offset, int length) {
+                if (header.parse(data, offset, length))
+                    processAudioPacket(data);
+            }
+
+            @Override
+            public void onRtpPacketLoss(int lostPackets) {
+                // Frame fragmented over several packets cannot be completed
+                if (audioParser != null)
+                    audioParser.notifyPacketLoss();
+                if (lostPackets == 0)
+                    audioClock.reset();
+            }
+        };
+
+        /**
+         * @param reorderLatency how long to wait for out of order packets, msec
+         */
+        RtpPacketHandler(
+                @NonNull SdpInfo sdpInfo,
+                @NonNull RtspClientListener listener,
+                @Nullable RtspClientBufferListener bufferListener,
+                @Nullable RtspClientAccessUnitListener accessUnitListener,
+                int accessUnitFormat,
+                int reorderLatency,
+                boolean dropUntilKeyFrame) {
+            this.sdpInfo = sdpInfo;
+            this.dropUntilKeyFrame = dropUntilKeyFrame;
+            this.listener = listener;
+            this.bufferListener = bufferListener;
+            audioParser = (sdpInfo.audioTrack != null && sdpInfo.audioTrack.audioCodec == AUDIO_CODEC_AAC ?
+                    createAacParser(sdpInfo.audioTrack) :
+                    null);
+            audioBufferPool = (bufferListener != null ?
+                    new BufferPool(AUDIO_BUFFER_INITIAL_SIZE, AUDIO_BUFFER_MAX_SIZE, MAX_POOLED_BUFFERS, true) :
+                    null);
+            VideoTrack videoTrack = sdpInfo.videoTrack;
+            boolean h265 = (videoTrack != null && videoTrack.videoCodec == VIDEO_CODEC_H265);
+            if (h265) {
+                H265RtpParser h265Parser = new H265RtpParser();
+                h265Parser.setDonlPresent(videoTrack.donlPresent);
+                videoParser = h265Parser;
+            } else {
+                videoParser = new VideoRtpParser();
+            }
+            videoNalUnitHandler = new VideoNalUnitHandler(
+                    listener,
+                    bufferListener,
+                    accessUnitListener,
+                    accessUnitFormat,
+                    h265,
+                    videoTrack != null ? videoTrack.vps : null,
+                    videoTrack != null ? videoTrack.sps : null,
+                    videoTrack != null ? videoTrack.pps : null);
+            videoReorderBuffer = new RtpReorderBuffer(RtpReorderBuffer.DEFAULT_CAPACITY, reorderLatency);
+            audioReorderBuffer = new RtpReorderBuffer(RtpReorderBuffer.DEFAULT_CAPACITY, reorderLatency);
+            videoParser.setDropUntilKeyFrame(dropUntilKeyFrame);
+            videoClock = new RtpClock(videoTrack != null && videoTrack.clockRate > 0 ?
+                    videoTrack.clockRate : RtpClock.DEFAULT_VIDEO_CLOCK_RATE);
+            AudioTrack audioTrack = sdpInfo.audioTrack;
+            // Audio RTP clock usually equals the sample rate (RFC 3551 4.1)
+            int audioClockRate = RtpClock.DEFAULT_VIDEO_CLOCK_RATE;
+            if (audioTrack != null) {
+                if (audioTrack.clockRate > 0)
+                    audioClockRate = audioTrack.clockRate;
+                else if (audioTrack.sampleRateHz > 0)
+                    audioClockRate = audioTrack.sampleRateHz;
+            }
+            audioClock = new RtpClock(audioClockRate);
+            videoRtcp = new RtcpReceiver(videoClock.getClockRate());
+            audioRtcp = new RtcpReceiver(audioClock.getClockRate());
+            // Everything till the first key frame is dropped anyway. Ask for it right after connect.
+            if (dropUntilKeyFrame)
+                keyFrameRequested.set(true);
+        }
+
+        // Presentation time in microseconds since the session epoch
+        private long getTimeUs(@NonNull RtpClock clock, long rtpTimestamp) {
+            if (!clock.isStarted()) {
+                long now = SystemClock.elapsedRealtime();
+                if (sessionEpochMsec < 0)
+                    sessionEpochMsec = now;
+                clock.start(rtpTimestamp, (now - sessionEpochMsec) * 1000);
+            }
+            return clock.toTimeUs(rtpTimestamp);
+        }
+
+        // Called from any thread. Counters are updated on RTSP thread, so values can be slightly outdated.
+        void fillStatistics(@NonNull Statistics statistics) {
+            statistics.lostPackets = videoReorderBuffer.getLostPackets() + audioReorderBuffer.getLostPackets();
+            statistics.reorderedPackets = videoReorderBuffer.getReorderedPackets() + audioReorderBuffer.getReorderedPackets();
+            statistics.latePackets = videoReorderBuffer.getLatePackets() + audioReorderBuffer.getLatePackets();
+            statistics.droppedNalUnits = videoParser.getDroppedNalUnits();
+            statistics.droppedFragments = videoParser.getDroppedFragments();
+            statistics.droppedBytes = videoParser.getDroppedBytes();
+            statistics.videoJitterUs = videoRtcp.getJitterUs();
+            statistics.audioJitterUs = audioRtcp.getJitterUs();
+            statistics.senderReports = videoRtcp.getSenderReports() + audioRtcp.getSenderReports();
+        }
+
+        /**
+         * @param channel 0 - video RTP, 1 - video RTCP, 2 - audio RTP, 3 - audio RTCP
+         */
+        void onPacket(int channel, @NonNull byte[] data, int offset, int length) {
+            // Odd channels are RTCP
+            if ((channel & 1) != 0) {
+                onRtcpPacket(channel, data, offset, length);
+                return;
+            }
+            if (!header.parse(data, offset, length))
+                return;
+//          header.dumpHeader();
+
+            long now = SystemClock.elapsedRealtime();
+            // Video
+            if (sdpInfo.videoTrack != null && header.payloadType == sdpInfo.videoTrack.payloadType) {
+                videoRtcp.onRtpPacket(header.sequenceNumber, header.timeStamp, header.ssrc, now);
+                videoReorderBuffer.push(data, offset, length, header, now, videoPacketListener);
 
             // Audio
             } else if (sdpInfo.audioTrack != null && header.payloadType == sdpInfo.audioTrack.payloadType) {
-                if (audioParser != null) {
-                    byte[] sample = audioParser.processRtpPacketAndGetSample(data, header.payloadSize);
-                    if (sample != null)
-                        listener.onRtspAudioSampleReceived(sample, 0, sample.length, (long) (header.timeStamp * 11.111111));
-                }
+                audioRtcp.onRtpPacket(header.sequenceNumber, header.timeStamp, header.ssrc, now);
+                audioReorderBuffer.push(data, offset, length, header, now, audioPacketListener);
 
             // Unknown
             } else {
@@ -686,6 +1425,334 @@ public class RtspClient {
                     Log.w(TAG, "Invalid RTP payload type " + header.payloadType);
             }
         }
+
+        // Channel 1 - video RTCP, 3 - audio RTCP
+        private void onRtcpPacket(int channel, @NonNull byte[] data, int offset, int length) {
+            boolean video = (channel == 1);
+            RtcpReceiver receiver = video ? videoRtcp : audioRtcp;
+            long senderReports = receiver.getSenderReports();
+            receiver.setPacketArrivalTime(SystemClock.elapsedRealtime());
+            if (!RtcpParser.parse(data, offset, length, receiver))
+                return;
+            if (receiver.getSenderReports() != senderReports)
+                onSenderReport(video ? videoClock : audioClock, receiver);
+        }
+
+        // Sender report maps RTP timestamp to the sender wall clock (NTP), the same for all tracks.
+        // The first report fixes the relation between session time and NTP time. The first report
+        // of every track aligns its clock, later ones slew it, so tracks stay aligned with each other
+        // and do not drift even if the sender RTP clock rate differs from the nominal one.
+        // Timestamps never go backwards, see RtpClock.
+        private void onSenderReport(@NonNull RtpClock clock, @NonNull RtcpReceiver receiver) {
+            long ntpTimestamp = receiver.getLastSrNtpTimestamp();
+            // Some cameras do not have wall clock and send zeros
+            if (ntpTimestamp == 0 || !clock.isStarted())
+                return;
+            long ntpUs = ntpToUs(ntpTimestamp);
+            long rtpTimestamp = receiver.getLastSrRtpTimestamp();
+            if (ntpEpochUs < 0)
+                ntpEpochUs = ntpUs - clock.toTimeUs(rtpTimestamp);
+            clock.rebase(rtpTimestamp, ntpUs - ntpEpochUs);
+        }
+
+        // 32 bits seconds and 32 bits fraction -> usec
+        private static long ntpToUs(long ntpTimestamp) {
+            long seconds = ntpTimestamp >>> 32;
+            long fraction = ntpTimestamp & 0xFFFFFFFFL;
+            return seconds * 1000000L + ((fraction * 1000000L) >>> 32);
+        }
+
+        /**
+         * Called from any thread. Request is sent with the next RTCP packet.
+         */
+        void requestKeyFrame() {
+            keyFrameRequested.set(true);
+        }
+
+        /**
+         * Send RTCP receiver reports for every track if report interval elapsed.
+         * Pending key frame request is sent immediately.
+         */
+        void sendReceiverReports(@NonNull RtcpSender sender) throws IOException {
+            long now = SystemClock.elapsedRealtime();
+            // Video SSRC is needed. Wait for the first packet.
+            if (sdpInfo.videoTrack != null && videoRtcp.hasSourceSsrc() && keyFrameRequested.getAndSet(false)) {
+                // Feedback is sent in compound packet with receiver report (RFC 4585 3.1)
+                int length = videoRtcp.writeReceiverReport(rtcpBuffer, 0, rtcpSsrc, rtcpCname, now);
+                length += videoRtcp.writeKeyFrameRequest(rtcpBuffer, length, rtcpSsrc, firSequence++);
+                if (DEBUG)
+                    Log.d(TAG, "Sending RTCP PLI/FIR");
+                sender.sendRtcp(1, rtcpBuffer, 0, length);
+            }
+            if (rtcpReportSent >= 0 && now - rtcpReportSent < RTCP_REPORT_INTERVAL_MSEC)
+                return;
+            rtcpReportSent = now;
+            if (sdpInfo.videoTrack != null) {
+                int length = videoRtcp.writeReceiverReport(rtcpBuffer, 0, rtcpSsrc, rtcpCname, now);
+                sender.sendRtcp(1, rtcpBuffer, 0, length);
+            }
+            if (sdpInfo.audioTrack != null) {
+                int length = audioRtcp.writeReceiverReport(rtcpBuffer, 0, rtcpSsrc, rtcpCname, now);
+                sender.sendRtcp(3, rtcpBuffer, 0, length);
+            }
+        }
+
+        /**
+         * Server sent at least one RTCP sender report
+         */
+        boolean isRtcpActive() {
+            return videoRtcp.hasSenderReport() || audioRtcp.hasSenderReport();
+        }
+
+        /**
+         * All tracks were ended by the server with RTCP BYE
+         */
+        boolean isByeReceived() {
+            return (sdpInfo.videoTrack != null || sdpInfo.audioTrack != null) &&
+                   (sdpInfo.videoTrack == null || videoRtcp.isByeReceived()) &&
+                   (sdpInfo.audioTrack == null || audioRtcp.isByeReceived());
+        }
+
+        /**
+         * Release reordered packets which waited for missing ones too long.
+         */
+        void onTimer() {
+            long now = SystemClock.elapsedRealtime();
+            videoReorderBuffer.poll(now, videoPacketListener);
+            audioReorderBuffer.poll(now, audioPacketListener);
+        }
+
+        boolean hasPendingPackets() {
+            return videoReorderBuffer.hasPendingPackets() || audioReorderBuffer.hasPendingPackets();
+        }
+
+        private void processVideoPacket(@NonNull byte[] data) {
+            videoNalUnitHandler.timestamp = getTimeUs(videoClock, header.timeStamp);
+            videoNalUnitHandler.rtpTimestamp = header.timeStamp;
+            videoParser.processRtpPacket(data, header.payloadOffset, header.payloadSize, header.timeStamp, videoNalUnitHandler);
+            // Marker bit is set on the last packet of the access unit
+            if (header.marker != 0)
+                videoNalUnitHandler.endAccessUnit();
+        }
+
+        private void processAudioPacket(@NonNull byte[] data) {
+            if (audioParser == null)
+                return;
+            audioParser.processRtpPacket(data, header.payloadOffset, header.payloadSize, header.timeStamp, aacFrameListener);
+        }
+
+        private final AacParser.AacFrameListener aacFrameListener = new AacParser.AacFrameListener() {
+            @Override
+            public void onAacFrameReceived(@NonNull byte[] data, int offset, int length, long rtpTimestamp) {
+                long timestamp = getTimeUs(audioClock, rtpTimestamp);
+                if (audioBufferPool != null) {
+                    PooledBuffer buffer = audioBufferPool.acquire();
+                    if (buffer.append(data, offset, length))
+                        bufferListener.onRtspAudioSampleReceived(buffer, timestamp);
+                    else
+                        buffer.release();
+                } else {
+                    // Frame data is a slice of RTP packet buffer which is reused
+                    byte[] sample = new byte[length];
+                    System.arraycopy(data, offset, sample, 0, length);
+                    listener.onRtspAudioSampleReceived(sample, 0, length, timestamp);
+                }
+            }
+        };
+
+        @NonNull
+        private static AacParser createAacParser(@NonNull AudioTrack audioTrack) {
+            AacParser parser;
+            if (audioTrack.sizeLength >= 0) {
+                parser = new AacParser(
+                        audioTrack.sizeLength,
+                        Math.max(audioTrack.indexLength, 0),
+                        Math.max(audioTrack.indexDeltaLength, 0));
+            } else {
+                parser = new AacParser(audioTrack.mode != null ? audioTrack.mode : "AAC-hbr");
+            }
+            parser.setOptionalFields(
+                    audioTrack.ctsDeltaLength,
+                    audioTrack.dtsDeltaLength,
+                    audioTrack.randomAccessIndication,
+                    audioTrack.streamStateIndication,
+                    audioTrack.auxiliaryDataSizeLength);
+            if (audioTrack.constantDuration > 0)
+                parser.setFrameDuration(audioTrack.constantDuration);
+            return parser;
+        }
+    }
+
+    // Passes NAL units from VideoRtpParser to the listener. Combines parameter sets with key frame.
+    private static final class VideoNalUnitHandler implements VideoRtpParser.NalUnitListener, AccessUnitAssembler.AccessUnitListener {
+
+        private final @NonNull RtspClientListener listener;
+        private final @Nullable RtspClientBufferListener bufferListener;
+        private final @Nullable BufferPool bufferPool;
+        private final @Nullable RtspClientAccessUnitListener accessUnitListener;
+        private final @Nullable AccessUnitAssembler accessUnitAssembler;
+        private final boolean h265;
+        private @Nullable byte[] nalUnitVps;
+        private @Nullable byte[] nalUnitSps;
+        private @Nullable byte[] nalUnitPps;
+        long timestamp;
+        long rtpTimestamp;
+
+        VideoNalUnitHandler(
+                @NonNull RtspClientListener listener,
+                @Nullable RtspClientBufferListener bufferListener,
+                @Nullable RtspClientAccessUnitListener accessUnitListener,
+                int accessUnitFormat,
+                boolean h265,
+                @Nullable byte[] nalUnitVps,
+                @Nullable byte[] nalUnitSps,
+                @Nullable byte[] nalUnitPps) {
+            this.listener = listener;
+            this.bufferListener = bufferListener;
+            this.bufferPool = (bufferListener != null ?
+                    new BufferPool(VIDEO_BUFFER_INITIAL_SIZE, VideoRtpParser.DEFAULT_MAX_NAL_UNIT_SIZE, MAX_POOLED_BUFFERS, true) :
+                    null);
+            this.accessUnitListener = accessUnitListener;
+            this.accessUnitAssembler = (accessUnitListener != null ?
+                    new AccessUnitAssembler(
+                            new BufferPool(VIDEO_BUFFER_INITIAL_SIZE, AccessUnitAssembler.DEFAULT_MAX_ACCESS_UNIT_SIZE, MAX_POOLED_BUFFERS, true),
+                            h265,
+                            accessUnitFormat) :
+                    null);
+            this.h265 = h265;
+            this.nalUnitVps = nalUnitVps;
+            this.nalUnitSps = nalUnitSps;
+            this.nalUnitPps = nalUnitPps;
+        }
+
+        @Override
+        public void onNalUnitReceived(@NonNull byte[] data, int offset, int length) {
+            if (h265)
+                onH265NalUnitReceived(data, offset, length);
+            else
+                onH264NalUnitReceived(data, offset, length);
+        }
+
+        private void onH264NalUnitReceived(@NonNull byte[] data, int offset, int length) {
+            byte type = VideoCodecUtils.getH264NalUnitType(data, offset, length);
+//          Log.i(TAG, "NAL u: " + VideoCodecUtils.getH264NalUnitTypeString(type));
+            switch (type) {
+                case VideoCodecUtils.NAL_SPS:
+                    nalUnitSps = copyOf(data, offset, length);
+                    // Looks like there is NAL_IDR_SLICE as well. Send it now.
+                    if (length > 100)
+                        sendNalUnit(data, offset, length);
+                    break;
+                case VideoCodecUtils.NAL_PPS:
+                    nalUnitPps = copyOf(data, offset, length);
+                    // Looks like there is NAL_IDR_SLICE as well. Send it now.
+                    if (length > 100)
+                        sendNalUnit(data, offset, length);
+                    break;
+                case VideoCodecUtils.NAL_IDR_SLICE:
+                    // Combine IDR with SPS/PPS
+                    if (nalUnitSps != null && nalUnitPps != null) {
+                        sendParameterSets(null, nalUnitSps, nalUnitPps);
+                        // Send it only once
+                        nalUnitSps = null;
+                        nalUnitPps = null;
+                    }
+                default:
+                    sendNalUnit(data, offset, length);
+            }
+        }
+
+        private void onH265NalUnitReceived(@NonNull byte[] data, int offset, int length) {
+            byte type = VideoCodecUtils.getH265NalUnitType(data, offset, length);
+            switch (type) {
+                case VideoCodecUtils.H265_NAL_VPS:
+                    nalUnitVps = copyOf(data, offset, length);
+                    break;
+                case VideoCodecUtils.H265_NAL_SPS:
+                    nalUnitSps = copyOf(data, offset, length);
+                    break;
+                case VideoCodecUtils.H265_NAL_PPS:
+                    nalUnitPps = copyOf(data, offset, length);
+                    break;
+                default:
+                    // Combine IRAP frame with VPS/SPS/PPS
+                    if (VideoCodecUtils.isH265IrapNalUnitType(type) &&
+                        nalUnitVps != null && nalUnitSps != null && nalUnitPps != null) {
+                        sendParameterSets(nalUnitVps, nalUnitSps, nalUnitPps);
+                        // Send it only once
+                        nalUnitVps = null;
+                        nalUnitSps = null;
+                        nalUnitPps = null;
+                    }
+                    sendNalUnit(data, offset, length);
+                    break;
+            }
+        }
+
+        void endAccessUnit() {
+            if (accessUnitAssembler != null)
+                accessUnitAssembler.endAccessUnit(this);
+        }
+
+        void dropAccessUnit() {
+            if (accessUnitAssembler != null)
+                accessUnitAssembler.dropAccessUnit();
+        }
+
+        @Override
+        public void onAccessUnitReceived(@NonNull PooledBuffer accessUnit, long timestamp, boolean keyFrame) {
+            accessUnitListener.onRtspVideoAccessUnitReceived(accessUnit, timestamp, keyFrame);
+        }
+
+        private void sendNalUnit(@NonNull byte[] data, int offset, int length) {
+            if (accessUnitAssembler != null) {
+                accessUnitAssembler.addNalUnit(data, offset, length, rtpTimestamp, timestamp, this);
+            } else if (bufferPool != null) {
+                PooledBuffer buffer = bufferPool.acquire();
+                if (buffer.append(data, offset, length))
+                    bufferListener.onRtspVideoNalUnitReceived(buffer, timestamp);
+                else
+                    buffer.release();
+            } else {
+                // Listener can keep the array. Give it a copy since parser reuses its buffers.
+                byte[] nalUnit = copyOf(data, offset, length);
+                listener.onRtspVideoNalUnitReceived(nalUnit, 0, nalUnit.length, timestamp);
+            }
+        }
+
+        // VPS is null for H.264
+        private void sendParameterSets(@Nullable byte[] vps, @NonNull byte[] sps, @NonNull byte[] pps) {
+            int vpsLength = (vps != null ? vps.length : 0);
+            if (accessUnitAssembler != null) {
+                // Separate NAL units of the key frame access unit
+                if (vps != null)
+                    sendNalUnit(vps, 0, vps.length);
+                sendNalUnit(sps, 0, sps.length);
+                sendNalUnit(pps, 0, pps.length);
+            } else if (bufferPool != null) {
+                PooledBuffer buffer = bufferPool.acquire();
+                if ((vps == null || buffer.append(vps, 0, vps.length)) &&
+                    buffer.append(sps, 0, sps.length) &&
+                    buffer.append(pps, 0, pps.length))
+                    bufferListener.onRtspVideoNalUnitReceived(buffer, timestamp);
+                else
+                    buffer.release();
+            } else {
+                byte[] nalUnitSppPps = new byte[vpsLength + sps.length + pps.length];
+                if (vps != null)
+                    System.arraycopy(vps, 0, nalUnitSppPps, 0, vpsLength);
+                System.arraycopy(sps, 0, nalUnitSppPps, vpsLength, sps.length);
+                System.arraycopy(pps, 0, nalUnitSppPps, vpsLength + sps.length, pps.length);
+                listener.onRtspVideoNalUnitReceived(nalUnitSppPps, 0, nalUnitSppPps.length, timestamp);
+            }
+        }
+
+        @NonNull
+        private static byte[] copyOf(@NonNull byte[] data, int offset, int length) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            return copy;
+        }
     }
 
     private static void sendSimpleCommand(
@@ -697,16 +1764,40 @@ public class RtspClient {
             @Nullable String session,
             @Nullable String authToken)
     throws IOException {
-        outputStream.write((command + " " + request + " RTSP/1.0" + CRLF).getBytes());
+        StringBuilder sb = startRequest(command, request);
+        appendCommonHeaders(sb, cSeq, userAgent, session, authToken);
+        writeRequest(outputStream, sb, true);
+    }
+
+    @NonNull
+    private static StringBuilder startRequest(@NonNull String command, @NonNull String request) {
+        return new StringBuilder(256)
+                .append(command).append(' ').append(request).append(" RTSP/1.0").append(CRLF);
+    }
+
+    private static void appendCommonHeaders(
+            @NonNull StringBuilder sb,
+            int cSeq,
+            @Nullable String userAgent,
+            @Nullable String session,
+            @Nullable String authToken) {
         if (authToken != null)
-            outputStream.write(("Authorization: " + authToken + CRLF).getBytes());
-        outputStream.write(("CSeq: " + cSeq + CRLF).getBytes());
+            sb.append("Authorization: ").append(authToken).append(CRLF);
+        sb.append("CSeq: ").append(cSeq).append(CRLF);
         if (userAgent != null)
-            outputStream.write(("User-Agent: " + userAgent + CRLF).getBytes());
+            sb.append("User-Agent: ").append(userAgent).append(CRLF);
         if (session != null)
-            outputStream.write(("Session: " + session + CRLF).getBytes());
-        outputStream.write(CRLF.getBytes());
-        outputStream.flush();
+            sb.append("Session: ").append(session).append(CRLF);
+    }
+
+    // Whole request goes to the socket with one write, so it is sent in one TCP segment.
+    // Without flush, the request is sent together with the next one (pipelining).
+    private static void writeRequest(@NonNull OutputStream outputStream, @NonNull StringBuilder sb, boolean flush)
+    throws IOException {
+        sb.append(CRLF);
+        outputStream.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (flush)
+            outputStream.flush();
     }
 
     private static void sendOptionsCommand(
@@ -720,6 +1811,23 @@ public class RtspClient {
         sendSimpleCommand("OPTIONS", outputStream, request, cSeq, userAgent, null, authToken);
     }
 
+    // https://www.ietf.org/rfc/rfc2326.txt 10.12 Embedded (Interleaved) Binary Data
+    private static void sendInterleavedFrame(
+            @NonNull OutputStream outputStream,
+            int channel,
+            @NonNull byte[] data,
+            int offset,
+            int length)
+    throws IOException {
+        if (DEBUG) Log.v(TAG, "sendInterleavedFrame(channel=" + channel + ", length=" + length + ")");
+        // Keep-alive is sent from the reader thread, RTCP from the depacketizer one in pipelined mode
+        synchronized (outputStream) {
+            outputStream.write(new byte[] { '$', (byte) channel, (byte) (length >> 8), (byte) length });
+            outputStream.write(data, offset, length);
+            outputStream.flush();
+        }
+    }
+
     private static void sendGetParameterCommand(
             @NonNull OutputStream outputStream,
             @NonNull String request,
@@ -737,18 +1845,14 @@ public class RtspClient {
             @NonNull String request,
             int cSeq,
             @Nullable String userAgent,
-            @Nullable String authToken)
+            @Nullable String authToken,
+            boolean flush)
     throws IOException {
         if (DEBUG) Log.v(TAG, "sendDescribeCommand(request=\"" + request + "\", cSeq=" + cSeq + ")");
-        outputStream.write(("DESCRIBE " + request + " RTSP/1.0" + CRLF).getBytes());
-        outputStream.write(("Accept: application/sdp" + CRLF).getBytes());
-        if (authToken != null)
-            outputStream.write(("Authorization: " + authToken + CRLF).getBytes());
-        outputStream.write(("CSeq: " + cSeq + CRLF).getBytes());
-        if (userAgent != null)
-            outputStream.write(("User-Agent: " + userAgent + CRLF).getBytes());
-        outputStream.write(CRLF.getBytes());
-        outputStream.flush();
+        StringBuilder sb = startRequest("DESCRIBE", request);
+        sb.append("Accept: application/sdp").append(CRLF);
+        appendCommonHeaders(sb, cSeq, userAgent, null, authToken);
+        writeRequest(outputStream, sb, flush);
     }
 
     private static void sendTeardownCommand(
@@ -760,16 +1864,7 @@ public class RtspClient {
             @Nullable String session)
     throws IOException {
         if (DEBUG) Log.v(TAG, "sendTeardownCommand(request=\"" + request + "\", cSeq=" + cSeq + ")");
-        outputStream.write(("TEARDOWN " + request + " RTSP/1.0" + CRLF).getBytes());
-        if (authToken != null)
-            outputStream.write(("Authorization: " + authToken + CRLF).getBytes());
-        outputStream.write(("CSeq: " + cSeq + CRLF).getBytes());
-        if (userAgent != null)
-            outputStream.write(("User-Agent: " + userAgent + CRLF).getBytes());
-        if (session != null)
-            outputStream.write(("Session: " + session + CRLF).getBytes());
-        outputStream.write(CRLF.getBytes());
-        outputStream.flush();
+        sendSimpleCommand("TEARDOWN", outputStream, request, cSeq, userAgent, session, authToken);
     }
 
     private static void sendSetupCommand(
@@ -779,20 +1874,14 @@ public class RtspClient {
             @Nullable String userAgent,
             @Nullable String authToken,
             @Nullable String session,
-            @NonNull String interleaved)
+            @NonNull String transport,
+            boolean flush)
     throws IOException {
         if (DEBUG) Log.v(TAG, "sendSetupCommand(request=\"" + request + "\", cSeq=" + cSeq + ")");
-        outputStream.write(("SETUP " + request + " RTSP/1.0" + CRLF).getBytes());
-        outputStream.write(("Transport: RTP/AVP/TCP;unicast;interleaved=" + interleaved + CRLF).getBytes());
-        if (authToken != null)
-            outputStream.write(("Authorization: " + authToken + CRLF).getBytes());
-        outputStream.write(("CSeq: " + cSeq + CRLF).getBytes());
-        if (userAgent != null)
-            outputStream.write(("User-Agent: " + userAgent + CRLF).getBytes());
-        if (session != null)
-            outputStream.write(("Session: " + session + CRLF).getBytes());
-        outputStream.write(CRLF.getBytes());
-        outputStream.flush();
+        StringBuilder sb = startRequest("SETUP", request);
+        sb.append("Transport: ").append(transport).append(CRLF);
+        appendCommonHeaders(sb, cSeq, userAgent, session, authToken);
+        writeRequest(outputStream, sb, flush);
     }
 
     private static void sendPlayCommand(
@@ -804,16 +1893,10 @@ public class RtspClient {
             @NonNull String session)
     throws IOException {
         if (DEBUG) Log.v(TAG, "sendPlayCommand(request=\"" + request + "\", cSeq=" + cSeq + ")");
-        outputStream.write(("PLAY " + request + " RTSP/1.0" + CRLF).getBytes());
-        outputStream.write(("Range: npt=0.000-" + CRLF).getBytes());
-        if (authToken != null)
-            outputStream.write(("Authorization: " + authToken + CRLF).getBytes());
-        outputStream.write(("CSeq: " + cSeq + CRLF).getBytes());
-        if (userAgent != null)
-            outputStream.write(("User-Agent: " + userAgent + CRLF).getBytes());
-        outputStream.write(("Session: " + session + CRLF).getBytes());
-        outputStream.write(CRLF.getBytes());
-        outputStream.flush();
+        StringBuilder sb = startRequest("PLAY", request);
+        sb.append("Range: npt=0.000-").append(CRLF);
+        appendCommonHeaders(sb, cSeq, userAgent, session, authToken);
+        writeRequest(outputStream, sb, true);
     }
 
     private int readResponseStatusCode(@NonNull InputStream inputStream) throws IOException {
@@ -846,6 +1929,22 @@ public class RtspClient {
         return -1;
     }
 
+    // Read response whose result is not needed, e.g. of a pipelined request
+    private void skipResponse(@NonNull InputStream inputStream) throws IOException {
+        int status = readResponseStatusCode(inputStream);
+        ArrayList<Pair<String, String>> headers = readResponseHeaders(inputStream);
+        dumpHeaders(headers);
+        skipContent(inputStream, headers);
+        if (DEBUG) Log.d(TAG, "Skipped response with status " + status);
+    }
+
+    private static void skipContent(@NonNull InputStream inputStream, @NonNull ArrayList<Pair<String, String>> headers)
+    throws IOException {
+        int contentLength = getHeaderContentLength(headers);
+        if (contentLength > 0)
+            readContentAsText(inputStream, contentLength);
+    }
+
     @NonNull
     private ArrayList<Pair<String, String>> readResponseHeaders(@NonNull InputStream inputStream) throws IOException {
         ArrayList<Pair<String, String>> headers = new ArrayList<>();
@@ -931,6 +2030,7 @@ public class RtspClient {
                                 if (values.length > 1) {
                                     values = TextUtils.split(values[1], "/");
                                     if (values.length > 0) {
+                                        tracks[0].clockRate = getClockRate(values, RtpClock.DEFAULT_VIDEO_CLOCK_RATE);
                                         switch (values[0].toLowerCase()) {
                                             case "h264":
                                                 ((VideoTrack) tracks[0]).videoCodec = VIDEO_CODEC_H264;
@@ -965,6 +2065,8 @@ public class RtspClient {
                                                 break;
                                         }
                                         track.sampleRateHz = Integer.parseInt(values[1]);
+                                        // For AAC and Opus RTP clock rate is the sample rate
+                                        track.clockRate = track.sampleRateHz;
                                         // If no channels specified, use mono, e.g. "a=rtpmap:97 MPEG4-GENERIC/8000"
                                         track.channels = values.length > 2 ? Integer.parseInt(values[2]) : 1;
                                         Log.i(TAG, "Audio: " + getAudioCodecName(track.audioCodec) + ", sample rate: " + track.sampleRateHz + " Hz, channels: " + track.channels);
@@ -1092,37 +2194,75 @@ public class RtspClient {
                     case "sprop-parameter-sets": {
                         String[] paramsSpsPps = TextUtils.split(pair.second, ",");
                         if (paramsSpsPps.length > 1) {
-                            byte[] sps = Base64.decode(paramsSpsPps[0], Base64.NO_WRAP);
-                            byte[] pps = Base64.decode(paramsSpsPps[1], Base64.NO_WRAP);
-                            byte[] nalSps = new byte[sps.length + 4];
-                            byte[] nalPps = new byte[pps.length + 4];
-                            // Add 00 00 00 01 NAL unit header
-                            nalSps[0] = 0;
-                            nalSps[1] = 0;
-                            nalSps[2] = 0;
-                            nalSps[3] = 1;
-                            System.arraycopy(sps, 0, nalSps, 4, sps.length);
-                            nalPps[0] = 0;
-                            nalPps[1] = 0;
-                            nalPps[2] = 0;
-                            nalPps[3] = 1;
-                            System.arraycopy(pps, 0, nalPps, 4, pps.length);
-                            videoTrack.sps = nalSps;
-                            videoTrack.pps = nalPps;
+                            videoTrack.sps = getNalUnitFromSprop(paramsSpsPps[0]);
+                            videoTrack.pps = getNalUnitFromSprop(paramsSpsPps[1]);
                         }
                     }
                     break;
+
+                    // H.265
+                    // a=fmtp:96 sprop-vps=QAEMAf//AWAAAAMAkAAAAwAAAwBdlZgJ;sprop-sps=QgEBAWAAAAMAkAAAAwAAAwBdoAKAgC0WWVmkkyvAQAAAAwBAAAAFAg==;sprop-pps=RAHBcrRiQA==
+                    case "sprop-vps":
+                        videoTrack.vps = getNalUnitFromSprop(pair.second);
+                        break;
+
+                    case "sprop-sps":
+                        videoTrack.sps = getNalUnitFromSprop(pair.second);
+                        break;
+
+                    case "sprop-pps":
+                        videoTrack.pps = getNalUnitFromSprop(pair.second);
+                        break;
+
+                    case "sprop-max-don-diff":
+                        try {
+                            videoTrack.donlPresent = Integer.parseInt(pair.second.trim()) > 0;
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "Failed to parse sprop-max-don-diff \"" + pair.second + "\"");
+                        }
+                        break;
                 }
             }
         }
     }
 
+    // Base64 encoded NAL unit -> NAL unit with 00 00 00 01 start code.
+    // Only the first one is taken if there are several comma separated NAL units.
+    @NonNull
+    private static byte[] getNalUnitFromSprop(@NonNull String sprop) {
+        int i = sprop.indexOf(',');
+        byte[] nalUnit = Base64.decode(i == -1 ? sprop : sprop.substring(0, i), Base64.NO_WRAP);
+        byte[] nalUnitWithStartCode = new byte[nalUnit.length + 4];
+        // Add 00 00 00 01 NAL unit header
+        nalUnitWithStartCode[3] = 1;
+        System.arraycopy(nalUnit, 0, nalUnitWithStartCode, 4, nalUnit.length);
+        return nalUnitWithStartCode;
+    }
+
     @NonNull
     private static byte[] getBytesFromHexString(@NonNull String config) {
         // "1210fff1" -> [12, 10, ff, f1]
         return new BigInteger(config ,16).toByteArray();
     }
 
+    // "H264/90000" -> 90000
+    private static int getClockRate(@NonNull String[] encoding, int defaultClockRate) {
+        if (encoding.length > 1) {
+            int clockRate = getSdpIntParam(encoding[1], -1);
+            if (clockRate > 0)
+                return clockRate;
+        }
+        return defaultClockRate;
+    }
+
+    private static int getSdpIntParam(@NonNull String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     private static void updateAudioTrackFromDescribeParam(@NonNull AudioTrack audioTrack, @NonNull Pair<String, String> param) {
         // a=fmtp:96 streamtype=5; profile-level-id=14; mode=AAC-lbr; config=1388; sizeLength=6; indexLength=2; indexDeltaLength=2; constantDuration=1024; maxDisplacement=5
         // a=fmtp:97 streamtype=5;profile-level-id=1;mode=AAC-hbr;sizelength=13;indexlength=3;indexdeltalength=3;config=1408
@@ -1137,6 +2277,33 @@ public class RtspClient {
                     case "config":
                         audioTrack.config = getBytesFromHexString(pair.second);
                         break;
+                    case "sizelength":
+                        audioTrack.sizeLength = getSdpIntParam(pair.second, -1);
+                        break;
+                    case "indexlength":
+                        audioTrack.indexLength = getSdpIntParam(pair.second, -1);
+                        break;
+                    case "indexdeltalength":
+                        audioTrack.indexDeltaLength = getSdpIntParam(pair.second, -1);
+                        break;
+                    case "ctsdeltalength":
+                        audioTrack.ctsDeltaLength = getSdpIntParam(pair.second, 0);
+                        break;
+                    case "dtsdeltalength":
+                        audioTrack.dtsDeltaLength = getSdpIntParam(pair.second, 0);
+                        break;
+                    case "randomaccessindication":
+                        audioTrack.randomAccessIndication = getSdpIntParam(pair.second, 0) != 0;
+                        break;
+                    case "streamstateindication":
+                        audioTrack.streamStateIndication = getSdpIntParam(pair.second, 0);
+                        break;
+                    case "auxiliarydatasizelength":
+                        audioTrack.auxiliaryDataSizeLength = getSdpIntParam(pair.second, 0);
+                        break;
+                    case "constantduration":
+                        audioTrack.constantDuration = getSdpIntParam(pair.second, -1);
+                        break;
                 }
             }
         }
@@ -1204,30 +2371,17 @@ public class RtspClient {
     }
 
     @Nullable
-    private static Pair<String, String> getHeaderWwwAuthenticateDigestRealmAndNonce(@NonNull ArrayList<Pair<String, String>> headers) {
+    private DigestAuth getHeaderWwwAuthenticateDigest(@NonNull ArrayList<Pair<String, String>> headers) {
+        // Several challenges can be offered, e.g. SHA-256 and MD5
+        ArrayList<String> challenges = new ArrayList<>();
         for (Pair<String, String> head: headers) {
-            String h = head.first.toLowerCase();
             // WWW-Authenticate: Digest realm="AXIS_00408CEF081C", nonce="00054cecY7165349339ae05f7017797d6b0aaad38f6ff45", stale=FALSE
             // WWW-Authenticate: Basic realm="AXIS_00408CEF081C"
             // WWW-Authenticate: Digest realm="Login to 4K049EBPAG1D7E7", nonce="de4ccb15804565dc8a4fa5b115695f4f"
-            if ("www-authenticate".equals(h) && head.second.toLowerCase().startsWith("digest")) {
-                String v = head.second.substring(7).trim();
-                int begin, end;
-
-                begin = v.indexOf("realm=");
-                begin = v.indexOf('"', begin) + 1;
-                end = v.indexOf('"', begin);
-                String digestRealm = v.substring(begin, end);
-
-                begin = v.indexOf("nonce=");
-                begin = v.indexOf('"', begin)+1;
-                end = v.indexOf('"', begin);
-                String digestNonce = v.substring(begin, end);
-
-                return Pair.create(digestRealm, digestNonce);
-            }
+            if ("www-authenticate".equalsIgnoreCase(head.first))
+                challenges.add(head.second);
         }
-        return null;
+        return DigestAuth.fromChallenges(challenges, username, password);
     }
 
     @Nullable
@@ -1257,72 +2411,6 @@ public class RtspClient {
         return "Basic " + new String(Base64.encode(auth.getBytes(StandardCharsets.ISO_8859_1), Base64.NO_WRAP));
     }
 
-    // Digest authentication
-    @Nullable
-    private static String getDigestAuthHeader(
-            @Nullable String username,
-            @Nullable String password,
-            @NonNull String method,
-            @NonNull String digestUri,
-            @NonNull String realm,
-            @NonNull String nonce) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] ha1;
-
-            if (username == null)
-                username = "";
-            if (password == null)
-                password = "";
-
-            // calc A1 digest
-            md.update(username.getBytes(StandardCharsets.ISO_8859_1));
-            md.update((byte) ':');
-            md.update(realm.getBytes(StandardCharsets.ISO_8859_1));
-            md.update((byte) ':');
-            md.update(password.getBytes(StandardCharsets.ISO_8859_1));
-            ha1 = md.digest();
-
-            // calc A2 digest
-            md.reset();
-            md.update(method.getBytes(StandardCharsets.ISO_8859_1));
-            md.update((byte) ':');
-            md.update(digestUri.getBytes(StandardCharsets.ISO_8859_1));
-            byte[] ha2 = md.digest();
-
-            // calc response
-            md.update(getHexStringFromBytes(ha1).getBytes(StandardCharsets.ISO_8859_1));
-            md.update((byte) ':');
-            md.update(nonce.getBytes(StandardCharsets.ISO_8859_1));
-            md.update((byte) ':');
-            // TODO add support for more secure version of digest auth
-            //md.update(nc.getBytes(StandardCharsets.ISO_8859_1));
-            //md.update((byte) ':');
-            //md.update(cnonce.getBytes(StandardCharsets.ISO_8859_1));
-            //md.update((byte) ':');
-            //md.update(qop.getBytes(StandardCharsets.ISO_8859_1));
-            //md.update((byte) ':');
-            md.update(getHexStringFromBytes(ha2).getBytes(StandardCharsets.ISO_8859_1));
-            String response = getHexStringFromBytes(md.digest());
-
-//            log.trace("username=\"{}\", realm=\"{}\", nonce=\"{}\", uri=\"{}\", response=\"{}\"",
-//                    userName, digestRealm, digestNonce, digestUri, response);
-
-            return "Digest username=\"" + username + "\", realm=\"" + realm + "\", nonce=\"" + nonce + "\", uri=\"" + digestUri + "\", response=\"" + response + "\"";
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-
-    @NonNull
-    private static String getHexStringFromBytes(@NonNull byte[] bytes) {
-        StringBuilder buf = new StringBuilder();
-        for (byte b : bytes)
-            buf.append(String.format("%02x", b));
-        return buf.toString();
-    }
-
     @NonNull
     private static String readContentAsText(@NonNull InputStream inputStream, int length) throws IOException {
         if (length <= 0)
@@ -1465,9 +2553,17 @@ public class RtspClient {
         private final @NonNull String uriRtsp;
         private final @NonNull AtomicBoolean exitFlag;
         private final @NonNull RtspClientListener listener;
+        private @Nullable RtspClientBufferListener bufferListener = null;
+        private @Nullable RtspClientAccessUnitListener accessUnitListener = null;
+        private int accessUnitFormat = AccessUnitAssembler.FORMAT_ANNEX_B;
 //      private boolean sendOptionsCommand = true;
         private boolean requestVideo = true;
         private boolean requestAudio = true;
+        private boolean udpTransport = false;
+        private int reorderLatency = DEFAULT_REORDER_LATENCY_MSEC;
+        private boolean dropUntilKeyFrame = false;
+        private boolean pipelinedIngest = false;
+        private boolean fastHandshake = false;
         private boolean debug = false;
         private @Nullable String username = null;
         private @Nullable String password = null;
@@ -1497,6 +2593,29 @@ public class RtspClient {
             return this;
         }
 
+        /**
+         * Receive NAL units and audio samples as pooled direct buffers instead of byte arrays.
+         * See {@link RtspClientBufferListener} for buffer ownership rules.
+         */
+        @NonNull
+        public Builder withBufferListener(@Nullable RtspClientBufferListener bufferListener) {
+            this.bufferListener = bufferListener;
+            return this;
+        }
+
+        /**
+         * Receive video as complete access units, one per frame, instead of NAL units.
+         * Frame boundaries are detected by RTP marker bit and timestamp change.
+         * @param format {@link AccessUnitAssembler#FORMAT_ANNEX_B} (e.g. for MediaMuxer and MediaCodec)
+         *               or {@link AccessUnitAssembler#FORMAT_AVCC} (32-bit length prefixes, e.g. for MP4 writers)
+         */
+        @NonNull
+        public Builder withAccessUnitListener(@Nullable RtspClientAccessUnitListener accessUnitListener, int format) {
+            this.accessUnitListener = accessUnitListener;
+            this.accessUnitFormat = format;
+            return this;
+        }
+
         @NonNull
         public Builder withUserAgent(@Nullable String userAgent) {
             this.userAgent = userAgent;
@@ -1521,6 +2640,64 @@ public class RtspClient {
             return this;
         }
 
+        /**
+         * Request RTP over UDP ("RTP/AVP;unicast;client_port=") instead of TCP interleaved one.
+         * Avoids head-of-line blocking on lossy networks. Falls back to TCP if server does not support UDP.
+         */
+        @NonNull
+        public Builder withUdpTransport(boolean udpTransport) {
+            this.udpTransport = udpTransport;
+            return this;
+        }
+
+        /**
+         * How long to wait for out of order RTP packets before treating missing ones as lost.
+         * Used for UDP transport only since TCP keeps packets in order.
+         * Bigger values tolerate more network jitter at the cost of higher latency.
+         */
+        @NonNull
+        public Builder withReorderLatency(int reorderLatencyMsec) {
+            if (reorderLatencyMsec < 0)
+                throw new IllegalArgumentException("Invalid reorder latency " + reorderLatencyMsec);
+            this.reorderLatency = reorderLatencyMsec;
+            return this;
+        }
+
+        /**
+         * After RTP packet loss drop all video NAL units till the next IDR frame.
+         * Otherwise only the damaged access unit is dropped.
+         */
+        @NonNull
+        public Builder withDropUntilKeyFrame(boolean dropUntilKeyFrame) {
+            this.dropUntilKeyFrame = dropUntilKeyFrame;
+            return this;
+        }
+
+        /**
+         * Depacketize RTP and call listeners on a separate thread, connected to the socket reader
+         * by a preallocated packet ring. High bitrate streams (e.g. 4K60) use two cores instead of one.
+         * Listeners are then called on that thread, not on the thread running {@link #execute()}.
+         * Connection callbacks of {@link RtspClientListener} stay on the {@link #execute()} thread,
+         * and no frame listener is called after {@link RtspClientListener#onRtspDisconnecting()}.
+         */
+        @NonNull
+        public Builder withPipelinedIngest(boolean pipelinedIngest) {
+            this.pipelinedIngest = pipelinedIngest;
+            return this;
+        }
+
+        /**
+         * Connect in fewer round trips. OPTIONS is not sent, credentials are sent with the first
+         * request once the auth scheme of the stream is known, and over TCP interleaved transport
+         * SETUP is sent together with DESCRIBE, PLAY together with the last SETUP.
+         * Falls back to one request at a time for servers failing on pipelined requests.
+         */
+        @NonNull
+        public Builder withFastHandshake(boolean fastHandshake) {
+            this.fastHandshake = fastHandshake;
+            return this;
+        }
+
         @NonNull
         public RtspClient build() {
             return new RtspClient(this);
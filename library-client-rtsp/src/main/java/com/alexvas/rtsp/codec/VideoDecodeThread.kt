@@ -11,7 +11,6 @@ import android.util.Log
 import android.view.Surface
 import com.alexvas.utils.MediaCodecUtils
 import com.alexvas.utils.capabilitiesToString
-import com.google.android.exoplayer2.util.Util
 import java.nio.ByteBuffer
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
@@ -57,8 +56,8 @@ class VideoDecodeThread (
             val widthAlignment = capabilities.widthAlignment
             val heightAlignment = capabilities.heightAlignment
             Pair(
-                Util.ceilDivide(width, widthAlignment) * widthAlignment,
-                Util.ceilDivide(height, heightAlignment) * heightAlignment)
+                (width + widthAlignment - 1) / widthAlignment * widthAlignment,
+                (height + heightAlignment - 1) / heightAlignment * heightAlignment)
         }
     }
 
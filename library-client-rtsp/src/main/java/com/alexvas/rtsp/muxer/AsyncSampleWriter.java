@@ -0,0 +1,351 @@
+package com.alexvas.rtsp.muxer;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.alexvas.utils.PooledBuffer;
+import com.alexvas.utils.VideoCodecUtils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Moves muxer and file I/O off the network thread.
+//
+//   RTSP thread                                     writer thread
+//   writeSample() --> [ bounded lock-free ring ] --> SampleSink.onSample() --> MediaMuxer, files
+//
+// The ring is single-producer single-consumer. Slots are preallocated, producer and consumer
+// only exchange head/tail counters, so nothing is locked or allocated per sample.
+// Several producer threads are fine if they never call writeSample()/closeFile() concurrently,
+// e.g. all calls are made under the same lock.
+//
+// When the ring is full, the overflow policy decides what happens:
+//   BLOCK                 - producer waits for free space (network reads stall, nothing is lost)
+//   DROP_NON_REFERENCE    - non-reference video frames and audio are dropped. If a reference frame
+//                           does not fit, video is dropped till the next key frame.
+//   DROP_UNTIL_KEY_FRAME  - video is dropped till the next key frame which fits, audio is dropped
+public class AsyncSampleWriter {
+
+    private static final String TAG = AsyncSampleWriter.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int OVERFLOW_BLOCK = 0;
+    public static final int OVERFLOW_DROP_NON_REFERENCE = 1;
+    public static final int OVERFLOW_DROP_UNTIL_KEY_FRAME = 2;
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final int TYPE_SAMPLE = 0;
+    private static final int TYPE_CLOSE_FILE = 1;
+    private static final int TYPE_SWITCH_FILE = 2;
+
+    private static final long PRODUCER_WAIT_NSEC = 200000; // 0.2 msec
+
+    public interface SampleSink {
+        /**
+         * Called on the writer thread. Buffer is released after the call, retain it to keep it longer.
+         */
+        void onSample(int track, @NonNull PooledBuffer sample, long timeUs, boolean keyFrame);
+
+        /**
+         * Called on the writer thread after all samples queued before {@link #switchFile()}.
+         * Samples after it go to the next file.
+         */
+        void onSwitchFile();
+
+        /**
+         * Called on the writer thread after all samples queued before {@link #closeFile()}
+         * and when the writer stops.
+         */
+        void onCloseFile();
+    }
+
+    public static class Statistics {
+        public int queueDepth;
+        public int maxQueueDepth;
+        public int capacity;
+        public long writtenSamples;
+        public long droppedSamples;
+        public long producerBlockedMsec;
+    }
+
+    private final @NonNull SampleSink sink;
+    private final int overflowPolicy;
+    private final int mask;
+
+    // Slots
+    private final int[] types;
+    private final int[] tracks;
+    private final PooledBuffer[] buffers;
+    private final long[] timesUs;
+    private final boolean[] keyFrames;
+
+    // Next slot to read, written by consumer only
+    private final AtomicLong head = new AtomicLong(0);
+    // Next slot to write, written by producer only
+    private final AtomicLong tail = new AtomicLong(0);
+
+    private volatile boolean h265 = false;
+    private volatile boolean stopped = false;
+    private volatile boolean consumerWaiting = false;
+    private volatile @Nullable Thread thread;
+
+    // Producer side
+    private boolean droppingUntilKeyFrame = false;
+    private volatile int maxQueueDepth = 0;
+    private volatile long droppedSamples = 0;
+    private volatile long producerBlockedNsec = 0;
+    // Consumer side
+    private volatile long writtenSamples = 0;
+
+    /**
+     * @param capacity ring size, rounded up to a power of two
+     * @param overflowPolicy {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_NON_REFERENCE} or {@link #OVERFLOW_DROP_UNTIL_KEY_FRAME}
+     */
+    public AsyncSampleWriter(@NonNull SampleSink sink, int capacity, int overflowPolicy) {
+        if (capacity <= 0 || capacity > (1 << 20))
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        if (overflowPolicy < OVERFLOW_BLOCK || overflowPolicy > OVERFLOW_DROP_UNTIL_KEY_FRAME)
+            throw new IllegalArgumentException("Invalid overflow policy " + overflowPolicy);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.sink = sink;
+        this.overflowPolicy = overflowPolicy;
+        this.mask = size - 1;
+        types = new int[size];
+        tracks = new int[size];
+        buffers = new PooledBuffer[size];
+        timesUs = new long[size];
+        keyFrames = new boolean[size];
+    }
+
+    /**
+     * Video codec, used to find non-reference frames.
+     */
+    public void setH265(boolean h265) {
+        this.h265 = h265;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        // Published by a producer after the previous stop, not delivered to this session
+        releaseQueued();
+        stopped = false;
+        thread = new Thread(this::run, TAG);
+        thread.start();
+    }
+
+    /**
+     * Write everything queued, close the file and stop the writer thread.
+     * @param timeoutMsec max time to wait for the writer thread
+     */
+    public void stop(long timeoutMsec) {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+        if (t == null)
+            return;
+        stopped = true;
+        LockSupport.unpark(t);
+        try {
+            t.join(timeoutMsec);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (t.isAlive())
+            Log.w(TAG, "Writer thread did not stop in " + timeoutMsec + " msec");
+        else
+            // Producer which passed the stopped check can publish after the writer loop exited
+            releaseQueued();
+    }
+
+    // Writer thread is not running, so the caller acts as the consumer
+    private synchronized void releaseQueued() {
+        if (thread != null)
+            // Restarted meanwhile
+            return;
+        long h = head.get();
+        long t = tail.get();
+        for (long i = h; i < t; i++) {
+            int index = (int) (i & mask);
+            PooledBuffer buffer = buffers[index];
+            buffers[index] = null;
+            if (buffer != null)
+                buffer.release();
+        }
+        head.set(t);
+    }
+
+    /**
+     * Queue a sample. Buffer is retained, caller keeps its own reference.
+     * @param mayDrop false to wait for free space regardless of overflow policy, e.g. for pre-roll
+     * @return false if the sample was dropped
+     */
+    public boolean writeSample(int track, @NonNull PooledBuffer sample, long timeUs, boolean keyFrame, boolean mayDrop) {
+        if (stopped)
+            return dropSample();
+        boolean video = (track == TRACK_VIDEO);
+        if (video && droppingUntilKeyFrame && mayDrop) {
+            if (!keyFrame || isFull()) {
+                droppedSamples++;
+                return false;
+            }
+            droppingUntilKeyFrame = false;
+            Log.i(TAG, "Writer caught up, video resumed from key frame");
+        }
+
+        if (isFull()) {
+            if (!mayDrop || overflowPolicy == OVERFLOW_BLOCK) {
+                waitForSpace();
+                if (isFull())
+                    return dropSample(); // Stopped
+            } else if (!video) {
+                return dropSample();
+            } else if (overflowPolicy == OVERFLOW_DROP_NON_REFERENCE && !keyFrame &&
+                    VideoCodecUtils.isNonReferenceAccessUnit(sample, h265)) {
+                return dropSample();
+            } else {
+                Log.w(TAG, "Writer queue is full. Dropping video till the next key frame.");
+                droppingUntilKeyFrame = true;
+                return dropSample();
+            }
+        }
+
+        long t = tail.get();
+        int index = (int) (t & mask);
+        types[index] = TYPE_SAMPLE;
+        tracks[index] = track;
+        buffers[index] = sample.retain();
+        timesUs[index] = timeUs;
+        keyFrames[index] = keyFrame;
+        publish(t);
+        return true;
+    }
+
+    /**
+     * Close the current file once all queued samples are written. Never dropped.
+     * The next sample starts a new file.
+     */
+    public void closeFile() {
+        queueCommand(TYPE_CLOSE_FILE);
+    }
+
+    /**
+     * Continue with the next file, e.g. at a key frame. Unlike {@link #closeFile()},
+     * the sink can have the next file ready. Never dropped.
+     */
+    public void switchFile() {
+        queueCommand(TYPE_SWITCH_FILE);
+    }
+
+    private void queueCommand(int type) {
+        if (stopped)
+            return;
+        if (isFull())
+            waitForSpace();
+        if (isFull())
+            return; // Stopped
+        // Video after the new file starts from a key frame anyway
+        droppingUntilKeyFrame = false;
+        long t = tail.get();
+        int index = (int) (t & mask);
+        types[index] = type;
+        buffers[index] = null;
+        publish(t);
+    }
+
+    @NonNull
+    public Statistics getStatistics() {
+        Statistics statistics = new Statistics();
+        statistics.queueDepth = (int) (tail.get() - head.get());
+        statistics.maxQueueDepth = maxQueueDepth;
+        statistics.capacity = mask + 1;
+        statistics.writtenSamples = writtenSamples;
+        statistics.droppedSamples = droppedSamples;
+        statistics.producerBlockedMsec = producerBlockedNsec / 1000000;
+        return statistics;
+    }
+
+    private boolean isFull() {
+        return tail.get() - head.get() > mask;
+    }
+
+    private boolean dropSample() {
+        droppedSamples++;
+        return false;
+    }
+
+    private void publish(long t) {
+        // Volatile write makes slot contents visible before the new tail and
+        // is not reordered with the consumerWaiting read below
+        tail.set(t + 1);
+        int depth = (int) (t + 1 - head.get());
+        if (depth > maxQueueDepth)
+            maxQueueDepth = depth;
+        if (consumerWaiting) {
+            Thread consumer = thread;
+            if (consumer != null)
+                LockSupport.unpark(consumer);
+        }
+    }
+
+    private void waitForSpace() {
+        long started = System.nanoTime();
+        while (isFull() && !stopped && thread != null)
+            LockSupport.parkNanos(PRODUCER_WAIT_NSEC);
+        producerBlockedNsec += System.nanoTime() - started;
+    }
+
+    private void run() {
+        if (DEBUG) Log.d(TAG, "Writer thread started");
+        while (true) {
+            long h = head.get();
+            if (h == tail.get()) {
+                if (stopped)
+                    break;
+                consumerWaiting = true;
+                // Re-check after the flag is visible, so a sample published meanwhile is not missed
+                if (h == tail.get() && !stopped)
+                    LockSupport.park(this);
+                consumerWaiting = false;
+                continue;
+            }
+            int index = (int) (h & mask);
+            PooledBuffer buffer = buffers[index];
+            buffers[index] = null;
+            try {
+                if (types[index] == TYPE_CLOSE_FILE) {
+                    sink.onCloseFile();
+                } else if (types[index] == TYPE_SWITCH_FILE) {
+                    sink.onSwitchFile();
+                } else if (buffer != null) {
+                    sink.onSample(tracks[index], buffer, timesUs[index], keyFrames[index]);
+                    writtenSamples++;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to write sample", e);
+            } finally {
+                if (buffer != null)
+                    buffer.release();
+                // Slot can be reused by producer from now on
+                head.lazySet(h + 1);
+            }
+        }
+        try {
+            sink.onCloseFile();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to close file", e);
+        }
+        if (DEBUG) Log.d(TAG, "Writer thread stopped");
+    }
+
+}
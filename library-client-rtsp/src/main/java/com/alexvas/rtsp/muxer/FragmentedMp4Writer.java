@@ -0,0 +1,755 @@
+package com.alexvas.rtsp.muxer;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.alexvas.utils.PooledBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Streaming fragmented MP4 (ISO/IEC 14496-12, CMAF compatible) writer. Alternative to MediaMuxer.
+//
+//  +------+------+------+------+------+------+-----
+//  | ftyp | moov | moof | mdat | moof | mdat | ...
+//  +------+------+------+------+------+------+-----
+//
+// moov has no samples and is written on start(). Samples are kept in memory only till the
+// current fragment is complete (next GOP or max fragment duration) and then written with a
+// single gathering write. Memory usage does not depend on recording length and a crash loses
+// at most the fragment being collected. Sample buffers are retained, not copied.
+//
+// Not thread-safe. All methods should be called from the same thread.
+public class FragmentedMp4Writer implements Closeable {
+
+    private static final String TAG = FragmentedMp4Writer.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final long DEFAULT_MIN_FRAGMENT_DURATION_US = 1000000; // 1 sec
+    public static final long DEFAULT_MAX_FRAGMENT_DURATION_US = 10000000; // 10 sec
+
+    public static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+
+    // Video samples format
+    public static final int FORMAT_ANNEX_B = 0; // 00 00 00 01 start codes, converted on write
+    public static final int FORMAT_AVCC = 1;    // 32-bit length prefixes, written as is
+
+    // ISO/IEC 14496-12 8.8.3.1 sample flags
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;     // sample_depends_on = 2
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000; // sample_depends_on = 1, sample_is_non_sync_sample = 1
+
+    // tfhd
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    // trun
+    private static final int TRUN_DATA_OFFSET_PRESENT = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION_PRESENT = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE_PRESENT = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS_PRESENT = 0x000400;
+
+    private static final int INITIAL_SAMPLES_CAPACITY = 256;
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350 };
+
+    private static final class Track {
+        final int trackId;
+        final boolean video;
+        final int timescale;
+        // Video
+        boolean h265;
+        int format;
+        int width;
+        int height;
+        @Nullable byte[] vps;
+        byte[] sps;
+        byte[] pps;
+        // Audio
+        int sampleRateHz;
+        int channels;
+        byte[] audioSpecificConfig;
+
+        // Samples of the fragment being collected
+        PooledBuffer[] buffers = new PooledBuffer[INITIAL_SAMPLES_CAPACITY];
+        long[] timesUs = new long[INITIAL_SAMPLES_CAPACITY];
+        boolean[] keyFrames = new boolean[INITIAL_SAMPLES_CAPACITY];
+        int[] durations = new int[INITIAL_SAMPLES_CAPACITY];
+        int count = 0;
+        // Samples written to the file so far
+        long decodeTime = 0;
+        int lastDuration;
+        boolean started = false;
+        // Position of trun data_offset field in the moof being built
+        int dataOffsetPosition;
+
+        Track(int trackId, boolean video, int timescale) {
+            this.trackId = trackId;
+            this.video = video;
+            this.timescale = timescale;
+            this.lastDuration = video ? timescale / 30 : 1024;
+        }
+
+        void add(@NonNull PooledBuffer buffer, long timeUs, boolean keyFrame) {
+            if (count == buffers.length) {
+                int capacity = count * 2;
+                buffers = Arrays.copyOf(buffers, capacity);
+                timesUs = Arrays.copyOf(timesUs, capacity);
+                keyFrames = Arrays.copyOf(keyFrames, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+            }
+            buffers[count] = buffer;
+            timesUs[count] = timeUs;
+            keyFrames[count] = keyFrame;
+            count++;
+        }
+    }
+
+    private final @NonNull FileChannel channel;
+    private final Track[] tracks = new Track[2];
+    private int trackCount = 0;
+    private boolean started = false;
+    private long minFragmentDurationUs = DEFAULT_MIN_FRAGMENT_DURATION_US;
+    private long maxFragmentDurationUs = DEFAULT_MAX_FRAGMENT_DURATION_US;
+
+    // Time of the first sample in the file. Decode times are relative to it.
+    private long startTimeUs = -1;
+    // Time of the first sample in the fragment being collected
+    private long fragmentStartUs = -1;
+    private int fragmentSequence = 0;
+
+    private final Mp4BoxBuilder header = new Mp4BoxBuilder(4096);
+    private final Mp4BoxBuilder nalLengths = new Mp4BoxBuilder(1024);
+    private ByteBuffer[] writeBuffers = new ByteBuffer[64];
+    private int[] nalLengthIndexes = new int[64];
+    private int nalLengthSlots = 0;
+    private long bytesWritten = 0;
+
+    /**
+     * @param channel file to write to, should be empty. Closed by {@link #close()}.
+     */
+    public FragmentedMp4Writer(@NonNull FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Fragments start from a video key frame if at least minDurationUs passed since the fragment start.
+     * Fragment is completed unconditionally after maxDurationUs (long GOP or audio only).
+     */
+    public void setFragmentDuration(long minDurationUs, long maxDurationUs) {
+        if (minDurationUs <= 0 || maxDurationUs < minDurationUs)
+            throw new IllegalArgumentException("Invalid fragment duration " + minDurationUs + "-" + maxDurationUs);
+        minFragmentDurationUs = minDurationUs;
+        maxFragmentDurationUs = maxDurationUs;
+    }
+
+    /**
+     * @param vps H.265 only
+     * @param sps SPS with or without start code
+     * @param pps PPS with or without start code
+     * @param format {@link #FORMAT_ANNEX_B} or {@link #FORMAT_AVCC}
+     * @return track index for {@link #writeSampleData}
+     */
+    public int addVideoTrack(
+            boolean h265,
+            int width,
+            int height,
+            @Nullable byte[] vps,
+            @NonNull byte[] sps,
+            @NonNull byte[] pps,
+            int format) {
+        if (h265 && vps == null)
+            throw new IllegalArgumentException("VPS is required for H.265");
+        Track track = addTrack(true, VIDEO_TIMESCALE);
+        track.h265 = h265;
+        track.width = width;
+        track.height = height;
+        track.vps = (vps != null ? stripStartCode(vps) : null);
+        track.sps = stripStartCode(sps);
+        track.pps = stripStartCode(pps);
+        track.format = format;
+        return track.trackId - 1;
+    }
+
+    /**
+     * AAC audio track.
+     * @param audioSpecificConfig ISO/IEC 14496-3 AudioSpecificConfig, e.g. from SDP "config" parameter.
+     *                            If null, AAC LC config is built from sample rate and channels.
+     * @return track index for {@link #writeSampleData}
+     */
+    public int addAudioTrack(int sampleRateHz, int channels, @Nullable byte[] audioSpecificConfig) {
+        Track track = addTrack(false, sampleRateHz);
+        track.sampleRateHz = sampleRateHz;
+        track.channels = channels;
+        track.audioSpecificConfig = (audioSpecificConfig != null ?
+                audioSpecificConfig :
+                getAacLcConfig(sampleRateHz, channels));
+        return track.trackId - 1;
+    }
+
+    @NonNull
+    private Track addTrack(boolean video, int timescale) {
+        if (started)
+            throw new IllegalStateException("Tracks should be added before start()");
+        if (trackCount == tracks.length)
+            throw new IllegalStateException("Max " + tracks.length + " tracks supported");
+        Track track = new Track(trackCount + 1, video, timescale);
+        tracks[trackCount++] = track;
+        return track;
+    }
+
+    /**
+     * Write ftyp and moov boxes.
+     */
+    public void start() throws IOException {
+        if (started)
+            throw new IllegalStateException("Already started");
+        if (trackCount == 0)
+            throw new IllegalStateException("No tracks added");
+        started = true;
+        header.clear();
+        writeFtyp(header);
+        writeMoov(header);
+        writeFully(new ByteBuffer[] { header.asByteBuffer() }, 1);
+    }
+
+    /**
+     * Add a sample to the current fragment. Buffer is retained till the fragment is written,
+     * caller still owns its reference and should release it as usual.
+     * Video samples before the first key frame are dropped.
+     * @param timeUs presentation time, should not decrease within a track
+     */
+    public void writeSampleData(int trackIndex, @NonNull PooledBuffer sample, long timeUs, boolean keyFrame) throws IOException {
+        if (!started)
+            throw new IllegalStateException("Not started");
+        Track track = tracks[trackIndex];
+        if (!track.video)
+            keyFrame = true;
+        if (!track.started) {
+            if (!keyFrame)
+                return;
+            track.started = true;
+            if (startTimeUs < 0)
+                startTimeUs = timeUs;
+            track.decodeTime = toTicks(track, timeUs);
+        }
+
+        if (fragmentStartUs >= 0) {
+            long fragmentDurationUs = timeUs - fragmentStartUs;
+            boolean gopStart = track.video && keyFrame && fragmentDurationUs >= minFragmentDurationUs;
+            boolean audioOnly = !hasVideoTrack() && fragmentDurationUs >= minFragmentDurationUs;
+            if (gopStart || audioOnly || fragmentDurationUs >= maxFragmentDurationUs)
+                // New fragment starts with this sample, e.g. with a key frame
+                writeFragment(track, timeUs);
+        }
+        if (fragmentStartUs < 0)
+            fragmentStartUs = timeUs;
+        track.add(sample.retain(), timeUs, keyFrame);
+    }
+
+    /**
+     * Write all collected samples. Writer cannot be used after that.
+     */
+    public void stop() throws IOException {
+        if (!started)
+            return;
+        try {
+            writeFragment(null, 0);
+        } finally {
+            started = false;
+            releaseSamples();
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stop();
+        } finally {
+            releaseSamples();
+            channel.close();
+        }
+    }
+
+    private boolean hasVideoTrack() {
+        for (int i = 0; i < trackCount; i++) {
+            if (tracks[i].video)
+                return true;
+        }
+        return false;
+    }
+
+    private long toTicks(@NonNull Track track, long timeUs) {
+        return Math.max(0, timeUs - startTimeUs) * track.timescale / 1000000L;
+    }
+
+    // Samples of the fragment, see writeFragment()
+    private static int getFragmentSamples(@NonNull Track track, @Nullable Track cutTrack) {
+        if (cutTrack == null || track == cutTrack)
+            return track.count;
+        return Math.max(0, track.count - 1);
+    }
+
+    // Fragment is cut before a sample of cutTrack at cutTimeUs, which gives duration of the last
+    // collected sample of that track. So all its samples are written and the next fragment starts
+    // with the new one, e.g. a key frame. Last sample of other tracks is kept for the next fragment
+    // since its duration is not known yet. All samples are written if cutTrack is null (last fragment).
+    private void writeFragment(@Nullable Track cutTrack, long cutTimeUs) throws IOException {
+        int totalSamples = 0;
+        for (int i = 0; i < trackCount; i++) {
+            Track track = tracks[i];
+            int samples = getFragmentSamples(track, cutTrack);
+            for (int s = 0; s < samples; s++) {
+                long nextTimeUs;
+                if (s + 1 < track.count)
+                    nextTimeUs = track.timesUs[s + 1];
+                else if (track == cutTrack)
+                    nextTimeUs = cutTimeUs;
+                else
+                    nextTimeUs = -1;
+                int duration;
+                if (nextTimeUs >= 0) {
+                    // Timestamps should not decrease, but clamp anyway to keep decode times valid
+                    duration = (int) Math.max(1, toTicks(track, nextTimeUs) - toTicks(track, track.timesUs[s]));
+                    track.lastDuration = duration;
+                } else {
+                    duration = track.lastDuration;
+                }
+                track.durations[s] = duration;
+            }
+            totalSamples += samples;
+        }
+        if (totalSamples == 0)
+            return;
+
+        // moof
+        header.clear();
+        nalLengths.clear();
+        fragmentSequence++;
+        header.startBox("moof");
+        header.startFullBox("mfhd", 0, 0).writeInt(fragmentSequence).endBox();
+        for (int i = 0; i < trackCount; i++) {
+            Track track = tracks[i];
+            int samples = getFragmentSamples(track, cutTrack);
+            if (samples == 0)
+                continue;
+            header.startBox("traf");
+            header.startFullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).writeInt(track.trackId).endBox();
+            header.startFullBox("tfdt", 1, 0).writeLong(track.decodeTime).endBox();
+            header.startFullBox("trun", 0,
+                    TRUN_DATA_OFFSET_PRESENT | TRUN_SAMPLE_DURATION_PRESENT | TRUN_SAMPLE_SIZE_PRESENT | TRUN_SAMPLE_FLAGS_PRESENT);
+            header.writeInt(samples);
+            track.dataOffsetPosition = header.length();
+            header.writeInt(0); // Patched below
+            for (int s = 0; s < samples; s++) {
+                header.writeInt(track.durations[s]);
+                header.writeInt(track.buffers[s].length());
+                header.writeInt(track.keyFrames[s] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+            header.endBox(); // trun
+            header.endBox(); // traf
+        }
+        header.endBox(); // moof
+        int moofSize = header.length();
+
+        // mdat. Samples of every track are written one after another.
+        long mdatPayloadSize = 0;
+        for (int i = 0; i < trackCount; i++) {
+            Track track = tracks[i];
+            int samples = getFragmentSamples(track, cutTrack);
+            if (samples == 0)
+                continue;
+            header.setInt(track.dataOffsetPosition, moofSize + 8 + mdatPayloadSize);
+            for (int s = 0; s < samples; s++)
+                mdatPayloadSize += track.buffers[s].length();
+        }
+        header.writeInt(8 + mdatPayloadSize);
+        header.writeFourCc("mdat");
+
+        // Gathering write: moof + mdat header, samples
+        int count = 0;
+        ensureWriteBuffers(1);
+        writeBuffers[count++] = header.asByteBuffer();
+        for (int i = 0; i < trackCount; i++) {
+            Track track = tracks[i];
+            int samples = getFragmentSamples(track, cutTrack);
+            for (int s = 0; s < samples; s++)
+                count = addSampleBuffers(track, track.buffers[s], count);
+        }
+        wrapNalLengths();
+        writeFully(writeBuffers, count);
+        Arrays.fill(writeBuffers, 0, count, null);
+        if (DEBUG)
+            Log.d(TAG, "Fragment " + fragmentSequence + " written, " + totalSamples + " samples, " + mdatPayloadSize + " bytes");
+
+        // Release written samples, keep the rest for the next fragment
+        fragmentStartUs = -1;
+        for (int i = 0; i < trackCount; i++) {
+            Track track = tracks[i];
+            int samples = getFragmentSamples(track, cutTrack);
+            for (int s = 0; s < samples; s++) {
+                track.decodeTime += track.durations[s];
+                track.buffers[s].release();
+                track.buffers[s] = null;
+            }
+            int remaining = track.count - samples;
+            if (remaining > 0) {
+                System.arraycopy(track.buffers, samples, track.buffers, 0, remaining);
+                System.arraycopy(track.timesUs, samples, track.timesUs, 0, remaining);
+                System.arraycopy(track.keyFrames, samples, track.keyFrames, 0, remaining);
+                Arrays.fill(track.buffers, remaining, track.count, null);
+                fragmentStartUs = (fragmentStartUs < 0 ? track.timesUs[0] : Math.min(fragmentStartUs, track.timesUs[0]));
+            }
+            track.count = remaining;
+        }
+    }
+
+    // AVCC samples are written as is. Annex B start codes are replaced with NAL unit lengths
+    // by writing length and NAL unit slices, so the shared sample buffer is not modified.
+    // Length slices are filled in by wrapNalLengths() since nalLengths array can still grow.
+    private int addSampleBuffers(@NonNull Track track, @NonNull PooledBuffer sample, int count) {
+        ByteBuffer data = sample.asReadOnlyBuffer().duplicate();
+        if (!track.video || track.format == FORMAT_AVCC) {
+            ensureWriteBuffers(count + 1);
+            writeBuffers[count++] = data;
+            return count;
+        }
+        int length = data.limit();
+        int nalStart = findStartCode(data, 0, length);
+        while (nalStart >= 0) {
+            int payloadStart = nalStart + 4;
+            int next = findStartCode(data, payloadStart, length);
+            int payloadEnd = (next >= 0 ? next : length);
+            ensureWriteBuffers(count + 2);
+            if (nalLengthSlots == nalLengthIndexes.length)
+                nalLengthIndexes = Arrays.copyOf(nalLengthIndexes, nalLengthSlots * 2);
+            nalLengthIndexes[nalLengthSlots++] = count;
+            writeBuffers[count++] = null;
+            nalLengths.writeInt(payloadEnd - payloadStart);
+            ByteBuffer payload = data.duplicate();
+            payload.limit(payloadEnd).position(payloadStart);
+            writeBuffers[count++] = payload;
+            nalStart = next;
+        }
+        return count;
+    }
+
+    private void wrapNalLengths() {
+        ByteBuffer lengths = nalLengths.asByteBuffer();
+        for (int i = 0; i < nalLengthSlots; i++) {
+            ByteBuffer slice = lengths.duplicate();
+            slice.limit(i * 4 + 4).position(i * 4);
+            writeBuffers[nalLengthIndexes[i]] = slice;
+        }
+        nalLengthSlots = 0;
+    }
+
+    // Returns position of 4-byte start code 00 00 00 01 or -1
+    private static int findStartCode(@NonNull ByteBuffer data, int from, int to) {
+        for (int i = from; i + 3 < to; i++) {
+            if (data.get(i + 3) > 1) {
+                i += 3;
+                continue;
+            }
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 0 && data.get(i + 3) == 1)
+                return i;
+        }
+        return -1;
+    }
+
+    private void ensureWriteBuffers(int capacity) {
+        if (capacity > writeBuffers.length)
+            writeBuffers = Arrays.copyOf(writeBuffers, Math.max(capacity, writeBuffers.length * 2));
+    }
+
+    private void writeFully(@NonNull ByteBuffer[] buffers, int count) throws IOException {
+        int index = 0;
+        while (index < count) {
+            bytesWritten += channel.write(buffers, index, count - index);
+            while (index < count && !buffers[index].hasRemaining())
+                index++;
+        }
+    }
+
+    private void releaseSamples() {
+        for (int i = 0; i < trackCount; i++) {
+            Track track = tracks[i];
+            for (int s = 0; s < track.count; s++) {
+                track.buffers[s].release();
+                track.buffers[s] = null;
+            }
+            track.count = 0;
+        }
+    }
+
+    private static void writeFtyp(@NonNull Mp4BoxBuilder b) {
+        b.startBox("ftyp");
+        b.writeFourCc("iso6"); // major brand
+        b.writeInt(0);         // minor version
+        b.writeFourCc("iso6");
+        b.writeFourCc("cmfc");
+        b.writeFourCc("isom");
+        b.writeFourCc("mp41");
+        b.endBox();
+    }
+
+    private void writeMoov(@NonNull Mp4BoxBuilder b) {
+        b.startBox("moov");
+
+        b.startFullBox("mvhd", 0, 0);
+        b.writeInt(0);                // creation_time
+        b.writeInt(0);                // modification_time
+        b.writeInt(MOVIE_TIMESCALE);
+        b.writeInt(0);                // duration, unknown
+        b.writeInt(0x00010000);       // rate 1.0
+        b.writeShort(0x0100);         // volume 1.0
+        b.writeZeros(10);             // reserved
+        b.writeUnityMatrix();
+        b.writeZeros(24);             // pre_defined
+        b.writeInt(trackCount + 1);   // next_track_ID
+        b.endBox();
+
+        for (int i = 0; i < trackCount; i++)
+            writeTrak(b, tracks[i]);
+
+        b.startBox("mvex");
+        for (int i = 0; i < trackCount; i++) {
+            b.startFullBox("trex", 0, 0);
+            b.writeInt(tracks[i].trackId);
+            b.writeInt(1);            // default_sample_description_index
+            b.writeInt(0);            // default_sample_duration
+            b.writeInt(0);            // default_sample_size
+            b.writeInt(0);            // default_sample_flags
+            b.endBox();
+        }
+        b.endBox(); // mvex
+
+        b.endBox(); // moov
+    }
+
+    private static void writeTrak(@NonNull Mp4BoxBuilder b, @NonNull Track track) {
+        b.startBox("trak");
+
+        // Track enabled and in movie
+        b.startFullBox("tkhd", 0, 0x000003);
+        b.writeInt(0);                // creation_time
+        b.writeInt(0);                // modification_time
+        b.writeInt(track.trackId);
+        b.writeInt(0);                // reserved
+        b.writeInt(0);                // duration
+        b.writeZeros(8);              // reserved
+        b.writeShort(0);              // layer
+        b.writeShort(0);              // alternate_group
+        b.writeShort(track.video ? 0 : 0x0100); // volume
+        b.writeShort(0);              // reserved
+        b.writeUnityMatrix();
+        b.writeInt(track.video ? track.width << 16 : 0);
+        b.writeInt(track.video ? track.height << 16 : 0);
+        b.endBox();
+
+        b.startBox("mdia");
+        b.startFullBox("mdhd", 0, 0);
+        b.writeInt(0);                // creation_time
+        b.writeInt(0);                // modification_time
+        b.writeInt(track.timescale);
+        b.writeInt(0);                // duration
+        b.writeShort(0x55C4);         // language "und"
+        b.writeShort(0);              // pre_defined
+        b.endBox();
+
+        b.startFullBox("hdlr", 0, 0);
+        b.writeInt(0);                // pre_defined
+        b.writeFourCc(track.video ? "vide" : "soun");
+        b.writeZeros(12);             // reserved
+        byte[] name = (track.video ? "VideoHandler" : "SoundHandler").getBytes();
+        b.writeBytes(name, 0, name.length).writeByte(0);
+        b.endBox();
+
+        b.startBox("minf");
+        if (track.video) {
+            b.startFullBox("vmhd", 0, 1).writeZeros(8).endBox();
+        } else {
+            b.startFullBox("smhd", 0, 0).writeZeros(4).endBox();
+        }
+        b.startBox("dinf");
+        b.startFullBox("dref", 0, 0).writeInt(1);
+        // Media data is in the same file
+        b.startFullBox("url ", 0, 1).endBox();
+        b.endBox(); // dref
+        b.endBox(); // dinf
+
+        b.startBox("stbl");
+        b.startFullBox("stsd", 0, 0).writeInt(1);
+        if (track.video)
+            writeVisualSampleEntry(b, track);
+        else
+            writeAudioSampleEntry(b, track);
+        b.endBox(); // stsd
+        // Empty sample tables, samples are in fragments
+        b.startFullBox("stts", 0, 0).writeInt(0).endBox();
+        b.startFullBox("stsc", 0, 0).writeInt(0).endBox();
+        b.startFullBox("stsz", 0, 0).writeInt(0).writeInt(0).endBox();
+        b.startFullBox("stco", 0, 0).writeInt(0).endBox();
+        b.endBox(); // stbl
+
+        b.endBox(); // minf
+        b.endBox(); // mdia
+        b.endBox(); // trak
+    }
+
+    private static void writeVisualSampleEntry(@NonNull Mp4BoxBuilder b, @NonNull Track track) {
+        b.startBox(track.h265 ? "hvc1" : "avc1");
+        b.writeZeros(6);              // reserved
+        b.writeShort(1);              // data_reference_index
+        b.writeZeros(16);             // pre_defined, reserved
+        b.writeShort(track.width);
+        b.writeShort(track.height);
+        b.writeInt(0x00480000);       // horizresolution 72 dpi
+        b.writeInt(0x00480000);       // vertresolution 72 dpi
+        b.writeInt(0);                // reserved
+        b.writeShort(1);              // frame_count
+        b.writeZeros(32);             // compressorname
+        b.writeShort(0x0018);         // depth
+        b.writeShort(0xFFFF);         // pre_defined -1
+        if (track.h265)
+            writeHvcC(b, track);
+        else
+            writeAvcC(b, track);
+        b.endBox();
+    }
+
+    // ISO/IEC 14496-15 5.3.3.1 AVCDecoderConfigurationRecord
+    private static void writeAvcC(@NonNull Mp4BoxBuilder b, @NonNull Track track) {
+        byte[] sps = track.sps;
+        byte[] pps = track.pps;
+        b.startBox("avcC");
+        b.writeByte(1);               // configurationVersion
+        b.writeByte(sps.length > 1 ? sps[1] : 0); // AVCProfileIndication
+        b.writeByte(sps.length > 2 ? sps[2] : 0); // profile_compatibility
+        b.writeByte(sps.length > 3 ? sps[3] : 0); // AVCLevelIndication
+        b.writeByte(0xFC | 3);        // lengthSizeMinusOne
+        b.writeByte(0xE0 | 1);        // numOfSequenceParameterSets
+        b.writeShort(sps.length).writeBytes(sps, 0, sps.length);
+        b.writeByte(1);               // numOfPictureParameterSets
+        b.writeShort(pps.length).writeBytes(pps, 0, pps.length);
+        b.endBox();
+    }
+
+    // ISO/IEC 14496-15 8.3.3.1 HEVCDecoderConfigurationRecord
+    // Profile, tier and level are copied from SPS profile_tier_level(). 4:2:0 8-bit is assumed
+    // for chroma format and bit depth fields, decoders take the real values from SPS anyway.
+    private static void writeHvcC(@NonNull Mp4BoxBuilder b, @NonNull Track track) {
+        // NAL header (2), sps_video_parameter_set_id + sps_max_sub_layers_minus1 + temporal_id_nesting (1),
+        // general_profile_space/tier/profile_idc (1), compatibility flags (4), constraint flags (6), level (1)
+        byte[] ptl = unescapeRbsp(track.sps, 2 + 1 + 12);
+        b.startBox("hvcC");
+        b.writeByte(1);               // configurationVersion
+        b.writeBytes(ptl, 3, 12);     // general profile, tier, flags and level
+        b.writeShort(0xF000);         // min_spatial_segmentation_idc
+        b.writeByte(0xFC);            // parallelismType
+        b.writeByte(0xFC | 1);        // chromaFormat 4:2:0
+        b.writeByte(0xF8);            // bitDepthLumaMinus8
+        b.writeByte(0xF8);            // bitDepthChromaMinus8
+        b.writeShort(0);              // avgFrameRate
+        // constantFrameRate 0, numTemporalLayers 1, temporalIdNested 1, lengthSizeMinusOne 3
+        b.writeByte((1 << 3) | (1 << 2) | 3);
+        b.writeByte(3);               // numOfArrays
+        writeHvcCArray(b, 32, track.vps);
+        writeHvcCArray(b, 33, track.sps);
+        writeHvcCArray(b, 34, track.pps);
+        b.endBox();
+    }
+
+    private static void writeHvcCArray(@NonNull Mp4BoxBuilder b, int nalType, @NonNull byte[] nalUnit) {
+        b.writeByte(0x80 | nalType);  // array_completeness 1
+        b.writeShort(1);              // numNalus
+        b.writeShort(nalUnit.length).writeBytes(nalUnit, 0, nalUnit.length);
+    }
+
+    private static void writeAudioSampleEntry(@NonNull Mp4BoxBuilder b, @NonNull Track track) {
+        b.startBox("mp4a");
+        b.writeZeros(6);              // reserved
+        b.writeShort(1);              // data_reference_index
+        b.writeZeros(8);              // reserved
+        b.writeShort(track.channels);
+        b.writeShort(16);             // samplesize
+        b.writeShort(0);              // pre_defined
+        b.writeShort(0);              // reserved
+        b.writeInt(Math.min(track.sampleRateHz, 0xFFFF) << 16);
+        writeEsds(b, track);
+        b.endBox();
+    }
+
+    // ISO/IEC 14496-1 ES_Descriptor with DecoderConfigDescriptor and AudioSpecificConfig
+    private static void writeEsds(@NonNull Mp4BoxBuilder b, @NonNull Track track) {
+        byte[] asc = track.audioSpecificConfig;
+        b.startFullBox("esds", 0, 0);
+        // ES_Descriptor
+        b.writeByte(0x03).writeByte(3 + 2 + 13 + 2 + asc.length + 3);
+        b.writeShort(track.trackId);  // ES_ID
+        b.writeByte(0);               // flags
+        // DecoderConfigDescriptor
+        b.writeByte(0x04).writeByte(13 + 2 + asc.length);
+        b.writeByte(0x40);            // objectTypeIndication, Audio ISO/IEC 14496-3
+        b.writeByte(0x15);            // streamType audio, upStream 0, reserved 1
+        b.writeInt24(0);              // bufferSizeDB
+        b.writeInt(0);                // maxBitrate
+        b.writeInt(0);                // avgBitrate
+        // DecoderSpecificInfo
+        b.writeByte(0x05).writeByte(asc.length);
+        b.writeBytes(asc, 0, asc.length);
+        // SLConfigDescriptor
+        b.writeByte(0x06).writeByte(1).writeByte(0x02);
+        b.endBox();
+    }
+
+    // AAC LC AudioSpecificConfig: audioObjectType (5), samplingFrequencyIndex (4), channelConfiguration (4)
+    @NonNull
+    static byte[] getAacLcConfig(int sampleRateHz, int channels) {
+        int index = 4; // 44100 if unknown
+        for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+            if (AAC_SAMPLE_RATES[i] == sampleRateHz) {
+                index = i;
+                break;
+            }
+        }
+        int config = (2 << 11) | (index << 7) | ((channels & 0x0F) << 3);
+        return new byte[] { (byte) (config >> 8), (byte) config };
+    }
+
+    @NonNull
+    private static byte[] stripStartCode(@NonNull byte[] nalUnit) {
+        int offset = 0;
+        if (nalUnit.length >= 4 && nalUnit[0] == 0 && nalUnit[1] == 0 && nalUnit[2] == 0 && nalUnit[3] == 1)
+            offset = 4;
+        else if (nalUnit.length >= 3 && nalUnit[0] == 0 && nalUnit[1] == 0 && nalUnit[2] == 1)
+            offset = 3;
+        return Arrays.copyOfRange(nalUnit, offset, nalUnit.length);
+    }
+
+    // Remove emulation prevention bytes (00 00 03) from the first "size" bytes of NAL unit
+    @NonNull
+    private static byte[] unescapeRbsp(@NonNull byte[] nalUnit, int size) {
+        byte[] rbsp = new byte[size];
+        int zeros = 0;
+        int out = 0;
+        for (int i = 0; i < nalUnit.length && out < size; i++) {
+            byte b = nalUnit[i];
+            if (zeros == 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = (b == 0 ? zeros + 1 : 0);
+            rbsp[out++] = b;
+        }
+        return rbsp;
+    }
+
+}
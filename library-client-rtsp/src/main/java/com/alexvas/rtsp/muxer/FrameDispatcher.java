@@ -0,0 +1,135 @@
+package com.alexvas.rtsp.muxer;
+
+import androidx.annotation.NonNull;
+
+import com.alexvas.utils.PooledBuffer;
+
+// Delivers every frame to any number of consumers, each on its own thread.
+//
+//                            +--> [ ring ] --> thread --> recorder
+//   RTSP thread dispatch() --+--> [ ring ] --> thread --> RTMP push
+//                            +--> [ ring ] --> thread --> analytics
+//
+// Each consumer has a bounded AsyncSampleWriter ring and its own overflow policy, so a slow
+// consumer only loses its own frames (or, with OVERFLOW_BLOCK, stalls the producer).
+// Frames are shared by reference, nothing is copied or allocated per frame.
+//
+// dispatch() should be called from one thread at a time. subscribe() and unsubscribe()
+// can be called from any thread.
+public class FrameDispatcher {
+
+    public static final int TRACK_VIDEO = AsyncSampleWriter.TRACK_VIDEO;
+    public static final int TRACK_AUDIO = AsyncSampleWriter.TRACK_AUDIO;
+
+    public interface FrameConsumer {
+        /**
+         * Called on the consumer thread. Buffer is released after the call, retain it to keep it longer.
+         */
+        void onFrame(int track, @NonNull PooledBuffer frame, long timeUs, boolean keyFrame);
+    }
+
+    public static final class Subscription {
+        private final @NonNull FrameConsumer consumer;
+        private final @NonNull AsyncSampleWriter writer;
+
+        private Subscription(@NonNull FrameConsumer consumer, int capacity, int overflowPolicy) {
+            this.consumer = consumer;
+            this.writer = new AsyncSampleWriter(new AsyncSampleWriter.SampleSink() {
+                @Override
+                public void onSample(int track, @NonNull PooledBuffer sample, long timeUs, boolean keyFrame) {
+                    consumer.onFrame(track, sample, timeUs, keyFrame);
+                }
+
+                @Override
+                public void onSwitchFile() {
+                }
+
+                @Override
+                public void onCloseFile() {
+                }
+            }, capacity, overflowPolicy);
+        }
+
+        @NonNull
+        public FrameConsumer getConsumer() {
+            return consumer;
+        }
+
+        @NonNull
+        public AsyncSampleWriter.Statistics getStatistics() {
+            return writer.getStatistics();
+        }
+    }
+
+    private static final Subscription[] EMPTY = new Subscription[0];
+
+    // Copy on write, so dispatch() iterates without locks or iterators
+    private volatile Subscription[] subscriptions = EMPTY;
+    private volatile boolean h265 = false;
+
+    /**
+     * @param capacity max number of frames queued for the consumer
+     * @param overflowPolicy e.g. {@link AsyncSampleWriter#OVERFLOW_DROP_UNTIL_KEY_FRAME}
+     */
+    @NonNull
+    public Subscription subscribe(@NonNull FrameConsumer consumer, int capacity, int overflowPolicy) {
+        Subscription subscription = new Subscription(consumer, capacity, overflowPolicy);
+        subscription.writer.setH265(h265);
+        subscription.writer.start();
+        synchronized (this) {
+            Subscription[] current = subscriptions;
+            Subscription[] updated = new Subscription[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+        return subscription;
+    }
+
+    /**
+     * Stop delivering frames. Frames already queued are delivered before the consumer thread stops.
+     * @param timeoutMsec max time to wait for the consumer thread
+     */
+    public void unsubscribe(@NonNull Subscription subscription, long timeoutMsec) {
+        synchronized (this) {
+            Subscription[] current = subscriptions;
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == subscription) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return;
+            Subscription[] updated = new Subscription[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            subscriptions = (updated.length > 0 ? updated : EMPTY);
+        }
+        subscription.writer.stop(timeoutMsec);
+    }
+
+    /**
+     * Video codec, used by DROP_NON_REFERENCE policy.
+     */
+    public void setH265(boolean h265) {
+        this.h265 = h265;
+        for (Subscription subscription : subscriptions)
+            subscription.writer.setH265(h265);
+    }
+
+    public boolean hasSubscriptions() {
+        return subscriptions.length > 0;
+    }
+
+    /**
+     * Queue the frame to all consumers. Caller keeps its own reference.
+     */
+    public void dispatch(int track, @NonNull PooledBuffer frame, long timeUs, boolean keyFrame) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++)
+            current[i].writer.writeSample(track, frame, timeUs, keyFrame, true);
+    }
+
+}
@@ -0,0 +1,268 @@
+package com.alexvas.rtsp.muxer;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.alexvas.utils.BufferPool;
+import com.alexvas.utils.PooledBuffer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+// HTTP Live Streaming (RFC 8216) recorder. Writes MPEG-TS segments cut on key frames
+// and keeps the playlist up to date, so the recording can be played in a browser
+// while it is still being written.
+//
+//   <dir>/<name>.m3u8
+//   <dir>/<name>-00000.ts
+//   <dir>/<name>-00001.ts
+//   ...
+//
+// Live playlist keeps the last few segments and deletes the older ones from disk.
+// Event playlist keeps all segments and gets #EXT-X-ENDLIST on close.
+// Playlist is written to a temporary file and renamed, so HTTP servers never serve a partial one.
+//
+// Not thread-safe. All methods should be called from the same thread.
+public class HlsWriter implements Closeable {
+
+    private static final String TAG = HlsWriter.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int PLAYLIST_TYPE_LIVE = 0;
+    public static final int PLAYLIST_TYPE_EVENT = 1;
+
+    public static final long DEFAULT_TARGET_SEGMENT_DURATION_US = 4000000; // 4 sec
+    public static final long DEFAULT_MAX_SEGMENT_DURATION_US = 8000000;    // 8 sec, 4 sec GOP
+    public static final int DEFAULT_LIVE_SEGMENTS = 6;
+
+    private static final class Segment {
+        final int sequence;
+        final @NonNull String fileName;
+        final long durationUs;
+
+        Segment(int sequence, @NonNull String fileName, long durationUs) {
+            this.sequence = sequence;
+            this.fileName = fileName;
+            this.durationUs = durationUs;
+        }
+    }
+
+    private final @NonNull File outputDir;
+    private final @NonNull String name;
+    private final int playlistType;
+    private final @NonNull TsWriter tsWriter;
+
+    private long targetSegmentDurationUs = DEFAULT_TARGET_SEGMENT_DURATION_US;
+    private long maxSegmentDurationUs = DEFAULT_MAX_SEGMENT_DURATION_US;
+    private int liveSegments = DEFAULT_LIVE_SEGMENTS;
+    // Target duration must not change (RFC 8216 6.2.1). Fixed by the first playlist, 0 till then.
+    private int targetDurationSec = 0;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private int nextSequence = 0;
+
+    private @Nullable FileChannel segmentChannel;
+    private @Nullable String segmentFileName;
+    private long segmentStartUs;
+    private long lastTimeUs;
+    private boolean closed = false;
+
+    /**
+     * @param outputDir directory for the playlist and segments, should exist
+     * @param name playlist and segment file name prefix
+     * @param playlistType {@link #PLAYLIST_TYPE_LIVE} or {@link #PLAYLIST_TYPE_EVENT}
+     * @param bufferPool heap pool for TS packets, max capacity should fit the biggest access unit
+     */
+    public HlsWriter(
+            @NonNull File outputDir,
+            @NonNull String name,
+            int playlistType,
+            @NonNull BufferPool bufferPool) {
+        if (playlistType != PLAYLIST_TYPE_LIVE && playlistType != PLAYLIST_TYPE_EVENT)
+            throw new IllegalArgumentException("Invalid playlist type " + playlistType);
+        this.outputDir = outputDir;
+        this.name = name;
+        this.playlistType = playlistType;
+        this.tsWriter = new TsWriter(bufferPool);
+    }
+
+    /**
+     * Segments are cut on the first key frame after targetDurationUs. If there is no key frame till
+     * maxDurationUs (GOP is too long), segment is cut on any frame. Max duration gives playlist
+     * #EXT-X-TARGETDURATION. Should be called before the first frame.
+     */
+    public void setSegmentDuration(long targetDurationUs, long maxDurationUs) {
+        if (targetDurationUs <= 0 || maxDurationUs < targetDurationUs)
+            throw new IllegalArgumentException("Invalid segment duration " + targetDurationUs + "-" + maxDurationUs);
+        if (targetDurationSec != 0)
+            throw new IllegalStateException("Target duration is already in the playlist");
+        targetSegmentDurationUs = targetDurationUs;
+        maxSegmentDurationUs = maxDurationUs;
+    }
+
+    /**
+     * Number of segments kept in the live playlist and on disk.
+     */
+    public void setLiveSegments(int liveSegments) {
+        this.liveSegments = Math.max(1, liveSegments);
+    }
+
+    /**
+     * @param vps H.265 only
+     */
+    public void setVideoTrack(boolean h265, @Nullable byte[] vps, @Nullable byte[] sps, @Nullable byte[] pps) {
+        tsWriter.setVideoTrack(h265, vps, sps, pps);
+    }
+
+    public void setAudioTrack(int sampleRateHz, int channels, @Nullable byte[] audioSpecificConfig) {
+        tsWriter.setAudioTrack(sampleRateHz, channels, audioSpecificConfig);
+    }
+
+    @NonNull
+    public File getPlaylistFile() {
+        return new File(outputDir, name + ".m3u8");
+    }
+
+    /**
+     * @param accessUnit Annex B access unit. Caller keeps ownership.
+     */
+    public void writeVideo(@NonNull PooledBuffer accessUnit, long timeUs, boolean keyFrame) throws IOException {
+        if (closed)
+            return;
+        if (segmentChannel == null) {
+            // The first segment starts from a key frame
+            if (keyFrame)
+                startSegment(timeUs);
+        } else {
+            long durationUs = timeUs - segmentStartUs;
+            if ((keyFrame && durationUs >= targetSegmentDurationUs) || durationUs >= maxSegmentDurationUs)
+                startSegment(timeUs);
+        }
+        if (segmentChannel == null)
+            return;
+        tsWriter.writeVideo(accessUnit, timeUs, keyFrame);
+        lastTimeUs = Math.max(lastTimeUs, timeUs);
+        tsWriter.flushIfNeeded(segmentChannel);
+    }
+
+    /**
+     * @param sample raw AAC frame. Caller keeps ownership.
+     */
+    public void writeAudio(@NonNull PooledBuffer sample, long timeUs) throws IOException {
+        if (closed)
+            return;
+        if (!tsWriter.hasVideo() && (segmentChannel == null || timeUs - segmentStartUs >= targetSegmentDurationUs))
+            startSegment(timeUs);
+        if (segmentChannel == null)
+            return;
+        tsWriter.writeAudio(sample, timeUs);
+        lastTimeUs = Math.max(lastTimeUs, timeUs);
+        tsWriter.flushIfNeeded(segmentChannel);
+    }
+
+    /**
+     * Complete the last segment and the playlist. Segments are kept on disk.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            // Last frame duration is unknown, assume it ends with the last timestamp
+            finishSegment(lastTimeUs);
+            writePlaylist(true);
+        } finally {
+            tsWriter.release();
+            closeSegmentChannel();
+        }
+    }
+
+    private void startSegment(long timeUs) throws IOException {
+        finishSegment(timeUs);
+        segmentFileName = String.format(Locale.US, "%s-%05d.ts", name, nextSequence);
+        segmentChannel = new FileOutputStream(new File(outputDir, segmentFileName)).getChannel();
+        segmentStartUs = timeUs;
+        lastTimeUs = timeUs;
+        tsWriter.writeTables();
+    }
+
+    private void finishSegment(long endTimeUs) throws IOException {
+        FileChannel channel = segmentChannel;
+        if (channel == null)
+            return;
+        try {
+            tsWriter.flush(channel);
+        } finally {
+            closeSegmentChannel();
+        }
+        long durationUs = Math.max(0, endTimeUs - segmentStartUs);
+        segments.addLast(new Segment(nextSequence, segmentFileName, durationUs));
+        nextSequence++;
+        if (DEBUG)
+            Log.d(TAG, "Segment " + segmentFileName + " completed, " + durationUs / 1000 + " msec");
+
+        if (playlistType == PLAYLIST_TYPE_LIVE) {
+            // Keep removed segments on disk a bit longer for clients still downloading them (RFC 8216 6.2.2)
+            while (segments.size() > liveSegments)
+                segments.removeFirst();
+            deleteSegment(nextSequence - 1 - 2 * liveSegments);
+        }
+        writePlaylist(false);
+    }
+
+    private void closeSegmentChannel() throws IOException {
+        FileChannel channel = segmentChannel;
+        segmentChannel = null;
+        if (channel != null)
+            channel.close();
+    }
+
+    private void deleteSegment(int sequence) {
+        if (sequence < 0)
+            return;
+        File file = new File(outputDir, String.format(Locale.US, "%s-%05d.ts", name, sequence));
+        if (file.exists() && !file.delete())
+            Log.w(TAG, "Failed to delete " + file);
+    }
+
+    private void writePlaylist(boolean ended) throws IOException {
+        if (targetDurationSec == 0)
+            targetDurationSec = toTargetDurationSec(maxSegmentDurationUs);
+        StringBuilder sb = new StringBuilder(256 + segments.size() * 48);
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:3\n");
+        sb.append("#EXT-X-TARGETDURATION:").append(targetDurationSec).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(segments.isEmpty() ? nextSequence : segments.getFirst().sequence).append('\n');
+        if (playlistType == PLAYLIST_TYPE_EVENT)
+            sb.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+        for (Segment segment : segments) {
+            sb.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.durationUs / 1000000.0));
+            sb.append(segment.fileName).append('\n');
+        }
+        if (ended)
+            sb.append("#EXT-X-ENDLIST\n");
+
+        File playlist = getPlaylistFile();
+        File tmp = new File(outputDir, name + ".m3u8.tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (!tmp.renameTo(playlist))
+            throw new IOException("Failed to rename " + tmp + " to " + playlist);
+    }
+
+    private static int toTargetDurationSec(long durationUs) {
+        // Rounded segment duration should not exceed the target duration
+        return (int) Math.max(1, (durationUs + 500000) / 1000000);
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.alexvas.rtsp.muxer;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Growable big-endian buffer for building ISO BMFF boxes (ISO/IEC 14496-12).
+//
+//  +--------------+--------------+--------------------+
+//  | size (32)    | type (4cc)   | payload ...        |
+//  +--------------+--------------+--------------------+
+//
+// Nested boxes are started with startBox() and their size is patched by endBox().
+// The buffer is reused between fragments, so no allocation happens once it has grown.
+final class Mp4BoxBuilder {
+
+    private static final int MAX_DEPTH = 16;
+
+    private byte[] data;
+    private int length = 0;
+    private final int[] boxStarts = new int[MAX_DEPTH];
+    private int depth = 0;
+
+    Mp4BoxBuilder(int initialCapacity) {
+        data = new byte[initialCapacity];
+    }
+
+    void clear() {
+        length = 0;
+        depth = 0;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Wrap valid data without copying. Valid till the next write.
+     */
+    @NonNull
+    ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data, 0, length);
+    }
+
+    @NonNull
+    Mp4BoxBuilder startBox(@NonNull String type) {
+        boxStarts[depth++] = length;
+        writeInt(0); // Patched in endBox()
+        writeFourCc(type);
+        return this;
+    }
+
+    /**
+     * Box with version and flags, ISO/IEC 14496-12 4.2
+     */
+    @NonNull
+    Mp4BoxBuilder startFullBox(@NonNull String type, int version, int flags) {
+        startBox(type);
+        writeInt((version << 24) | (flags & 0xFFFFFF));
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxBuilder endBox() {
+        int start = boxStarts[--depth];
+        setInt(start, length - start);
+        return this;
+    }
+
+    /**
+     * Offset of the box being written from the beginning of the buffer
+     */
+    int getBoxStart() {
+        return boxStarts[depth - 1];
+    }
+
+    @NonNull
+    Mp4BoxBuilder writeByte(int value) {
+        ensureCapacity(1);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxBuilder writeShort(int value) {
+        ensureCapacity(2);
+        data[length++] = (byte) (value >> 8);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxBuilder writeInt24(int value) {
+        ensureCapacity(3);
+        data[length++] = (byte) (value >> 16);
+        data[length++] = (byte) (value >> 8);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxBuilder writeInt(long value) {
+        ensureCapacity(4);
+        data[length++] = (byte) (value >> 24);
+        data[length++] = (byte) (value >> 16);
+        data[length++] = (byte) (value >> 8);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxBuilder writeLong(long value) {
+        writeInt(value >>> 32);
+        writeInt(value);
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxBuilder writeBytes(@NonNull byte[] bytes, int offset, int len) {
+        ensureCapacity(len);
+        System.arraycopy(bytes, offset, data, length, len);
+        length += len;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxBuilder writeZeros(int count) {
+        ensureCapacity(count);
+        Arrays.fill(data, length, length + count, (byte) 0);
+        length += count;
+        return this;
+    }
+
+    @NonNull
+    Mp4BoxBuilder writeFourCc(@NonNull String fourCc) {
+        byte[] bytes = fourCc.getBytes(StandardCharsets.US_ASCII);
+        return writeBytes(bytes, 0, 4);
+    }
+
+    // Unity matrix { 0x00010000,0,0,0,0x00010000,0,0,0,0x40000000 }
+    @NonNull
+    Mp4BoxBuilder writeUnityMatrix() {
+        writeInt(0x00010000); writeInt(0); writeInt(0);
+        writeInt(0); writeInt(0x00010000); writeInt(0);
+        writeInt(0); writeInt(0); writeInt(0x40000000);
+        return this;
+    }
+
+    void setInt(int position, long value) {
+        data[position] = (byte) (value >> 24);
+        data[position + 1] = (byte) (value >> 16);
+        data[position + 2] = (byte) (value >> 8);
+        data[position + 3] = (byte) value;
+    }
+
+    private void ensureCapacity(int num) {
+        if (length + num > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + num));
+    }
+
+}
@@ -0,0 +1,242 @@
+package com.alexvas.rtsp.muxer;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.alexvas.utils.BufferPool;
+import com.alexvas.utils.PooledBuffer;
+
+// Ring buffer of the most recent encoded frames, so a recording can include a few seconds
+// before the moment it was started (pre-roll).
+//
+//   data: +--------------------------------------------------------+
+//         | .. | IDR | P | a | P | a | IDR | P | a | .......... |  |
+//         +--------------------------------------------------------+
+//              ^ head                                  ^ tail
+//
+// Frames are copied into one preallocated array, so memory is bounded by maxBytes and
+// nothing is allocated while streaming. The oldest frames are dropped a whole GOP at
+// a time, so the buffer always starts with a video key frame (any audio frame for audio
+// only streams) and is never longer than maxDurationUs unless a single GOP is longer.
+//
+// Not thread-safe.
+public class PreRollBuffer {
+
+    private static final String TAG = PreRollBuffer.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    private static final int FLAG_VIDEO = 0x01;
+    private static final int FLAG_KEY_FRAME = 0x02;
+    private static final int INITIAL_FRAMES_CAPACITY = 512;
+
+    public interface FrameListener {
+        /**
+         * Buffer is valid only during the call. Retain it to keep it longer.
+         */
+        void onPreRollFrame(int track, @NonNull PooledBuffer frame, long timeUs, boolean keyFrame);
+    }
+
+    private final long maxDurationUs;
+    private final byte[] data;
+    private final @NonNull BufferPool bufferPool;
+
+    // Frame ring
+    private int[] offsets = new int[INITIAL_FRAMES_CAPACITY];
+    private int[] lengths = new int[INITIAL_FRAMES_CAPACITY];
+    private long[] timesUs = new long[INITIAL_FRAMES_CAPACITY];
+    private byte[] flags = new byte[INITIAL_FRAMES_CAPACITY];
+    private int head = 0;
+    private int count = 0;
+    // Next write position in data
+    private int tail = 0;
+    private int bytes = 0;
+    private int gops = 0;
+    private boolean hasVideo = false;
+
+    /**
+     * @param maxDurationUs max pre-roll duration
+     * @param maxBytes memory allocated for frames
+     * @param bufferPool frames are copied to buffers from this pool on drain
+     */
+    public PreRollBuffer(long maxDurationUs, int maxBytes, @NonNull BufferPool bufferPool) {
+        if (maxDurationUs <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Invalid pre-roll size " + maxDurationUs + " usec, " + maxBytes + " bytes");
+        this.maxDurationUs = maxDurationUs;
+        this.data = new byte[maxBytes];
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Copy the frame into the ring. Caller keeps ownership of the buffer.
+     * Frames before the first key frame are dropped.
+     */
+    public void add(int track, @NonNull PooledBuffer frame, long timeUs, boolean keyFrame) {
+        boolean video = (track == TRACK_VIDEO);
+        if (video && !hasVideo) {
+            // Audio collected so far does not start with a video key frame
+            hasVideo = true;
+            clear();
+        }
+        boolean gopStart = isGopStart(video, keyFrame);
+        if (count == 0 && !gopStart)
+            return;
+        int length = frame.length();
+        if (length > data.length) {
+            Log.w(TAG, "Frame " + length + " bytes is bigger than pre-roll buffer. Pre-roll cleared.");
+            clear();
+            return;
+        }
+
+        int offset;
+        while ((offset = allocate(length)) < 0) {
+            dropHeadGop();
+            // The rest of the GOP is useless without its key frame
+            if (count == 0 && !gopStart)
+                return;
+        }
+        frame.copyTo(0, data, offset, length);
+        tail = offset + length;
+        bytes += length;
+
+        if (count == offsets.length)
+            grow();
+        int index = (head + count) % offsets.length;
+        offsets[index] = offset;
+        lengths[index] = length;
+        timesUs[index] = timeUs;
+        flags[index] = (byte) ((video ? FLAG_VIDEO : 0) | (keyFrame ? FLAG_KEY_FRAME : 0));
+        count++;
+        if (gopStart)
+            gops++;
+
+        while (timeUs - timesUs[head] > maxDurationUs && gops > 1)
+            dropHeadGop();
+    }
+
+    /**
+     * Pass all frames to the listener in arrival order and clear the buffer.
+     */
+    public void drainTo(@NonNull FrameListener listener) {
+        if (DEBUG)
+            Log.d(TAG, "Draining " + count + " frames, " + bytes + " bytes, " + getDurationUs() / 1000 + " msec");
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % offsets.length;
+            PooledBuffer buffer = bufferPool.acquire();
+            try {
+                if (!buffer.append(data, offsets[index], lengths[index])) {
+                    Log.e(TAG, "Frame " + lengths[index] + " bytes does not fit pool buffer. Skipping.");
+                    continue;
+                }
+                boolean video = (flags[index] & FLAG_VIDEO) != 0;
+                listener.onPreRollFrame(
+                        video ? TRACK_VIDEO : TRACK_AUDIO,
+                        buffer,
+                        timesUs[index],
+                        (flags[index] & FLAG_KEY_FRAME) != 0);
+            } finally {
+                buffer.release();
+            }
+        }
+        clear();
+    }
+
+    public void clear() {
+        head = 0;
+        count = 0;
+        tail = 0;
+        bytes = 0;
+        gops = 0;
+    }
+
+    public int getFrameCount() {
+        return count;
+    }
+
+    public int getBytes() {
+        return bytes;
+    }
+
+    public long getDurationUs() {
+        if (count == 0)
+            return 0;
+        return timesUs[(head + count - 1) % offsets.length] - timesUs[head];
+    }
+
+    private boolean isGopStart(boolean video, boolean keyFrame) {
+        return video ? keyFrame : !hasVideo;
+    }
+
+    private boolean isGopStart(int index) {
+        boolean video = (flags[index] & FLAG_VIDEO) != 0;
+        return isGopStart(video, (flags[index] & FLAG_KEY_FRAME) != 0);
+    }
+
+    // Frames are kept contiguous. If there is no room till the end of the array, wrap to 0.
+    // Returns offset or -1 if the oldest frames need to be dropped first.
+    private int allocate(int length) {
+        if (count == 0) {
+            tail = 0;
+            return 0;
+        }
+        int headOffset = offsets[head];
+        if (tail > headOffset) {
+            if (data.length - tail >= length)
+                return tail;
+            return headOffset >= length ? 0 : -1;
+        }
+        return headOffset - tail >= length ? tail : -1;
+    }
+
+    // Drop the head frame and everything till the next GOP start
+    private void dropHeadGop() {
+        gops--;
+        do {
+            bytes -= lengths[head];
+            head = (head + 1) % offsets.length;
+            count--;
+        } while (count > 0 && !isGopStart(head));
+        if (count == 0)
+            clear();
+    }
+
+    private void grow() {
+        int capacity = offsets.length * 2;
+        offsets = unwrap(offsets, capacity);
+        lengths = unwrap(lengths, capacity);
+        timesUs = unwrap(timesUs, capacity);
+        flags = unwrap(flags, capacity);
+        head = 0;
+    }
+
+    @NonNull
+    private int[] unwrap(@NonNull int[] ring, int capacity) {
+        int[] array = new int[capacity];
+        int first = Math.min(count, ring.length - head);
+        System.arraycopy(ring, head, array, 0, first);
+        System.arraycopy(ring, 0, array, first, count - first);
+        return array;
+    }
+
+    @NonNull
+    private long[] unwrap(@NonNull long[] ring, int capacity) {
+        long[] array = new long[capacity];
+        int first = Math.min(count, ring.length - head);
+        System.arraycopy(ring, head, array, 0, first);
+        System.arraycopy(ring, 0, array, first, count - first);
+        return array;
+    }
+
+    @NonNull
+    private byte[] unwrap(@NonNull byte[] ring, int capacity) {
+        byte[] array = new byte[capacity];
+        int first = Math.min(count, ring.length - head);
+        System.arraycopy(ring, head, array, 0, first);
+        System.arraycopy(ring, 0, array, first, count - first);
+        return array;
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.alexvas.rtsp.muxer;
+
+import java.util.TimeZone;
+
+// Decides when a recording should continue in a new file. All limits are checked on every
+// video frame, but a new file is always started from a key frame:
+//
+//   time      - every N msec, optionally aligned to wall clock (e.g. 15 min at :00, :15, :30, :45 local time)
+//   size      - once the file reaches N bytes
+//   GOP count - once the file has N GOPs
+//
+// Files are slightly longer than the limit, up to one GOP. If rotation is due, the caller
+// is told once per file, so it can ask the camera for a key frame instead of waiting for
+// the natural one.
+//
+// Checks do not allocate. Not thread-safe, should be called from the thread which queues frames.
+public class RotationPolicy {
+
+    public static final int ACTION_NONE = 0;
+    // Start a new file with this key frame
+    public static final int ACTION_SWITCH = 1;
+    // Rotation is due, but the frame is not a key frame. Reported once per file.
+    public static final int ACTION_WAIT_FOR_KEY_FRAME = 2;
+
+    public static final int REASON_NONE = 0;
+    public static final int REASON_TIME = 1;
+    public static final int REASON_SIZE = 2;
+    public static final int REASON_GOP_COUNT = 3;
+
+    private long intervalMsec = 0;
+    private boolean alignToWallClock = false;
+    private long maxBytes = 0;
+    private int maxGops = 0;
+
+    // Current file
+    private long nextRotationMsec;
+    private long bytes;
+    private int gops;
+    private boolean waitingReported;
+    private int reason = REASON_NONE;
+
+    /**
+     * @param intervalMsec file duration, 0 to disable
+     * @param alignToWallClock cut at multiples of the interval in local time rather than relative to the file start
+     */
+    public RotationPolicy setTimeInterval(long intervalMsec, boolean alignToWallClock) {
+        this.intervalMsec = intervalMsec;
+        this.alignToWallClock = alignToWallClock;
+        return this;
+    }
+
+    /**
+     * @param maxBytes file size, 0 to disable
+     */
+    public RotationPolicy setMaxSize(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param maxGops number of GOPs per file, 0 to disable
+     */
+    public RotationPolicy setMaxGopCount(int maxGops) {
+        this.maxGops = maxGops;
+        return this;
+    }
+
+    public boolean isEnabled() {
+        return intervalMsec > 0 || maxBytes > 0 || maxGops > 0;
+    }
+
+    /**
+     * Called when a new file is started, including files started by the policy.
+     */
+    public void reset(long nowMsec) {
+        bytes = 0;
+        gops = 0;
+        waitingReported = false;
+        nextRotationMsec = getNextRotationTime(nowMsec);
+    }
+
+    /**
+     * Called before a video frame is queued to the current file.
+     * @param nowMsec wall clock, System.currentTimeMillis()
+     * @return {@link #ACTION_NONE}, {@link #ACTION_SWITCH} or {@link #ACTION_WAIT_FOR_KEY_FRAME}
+     */
+    public int check(long nowMsec, boolean keyFrame) {
+        int dueReason = getDueReason(nowMsec);
+        if (dueReason == REASON_NONE)
+            return ACTION_NONE;
+        reason = dueReason;
+        if (keyFrame)
+            return ACTION_SWITCH;
+        if (waitingReported)
+            return ACTION_NONE;
+        waitingReported = true;
+        return ACTION_WAIT_FOR_KEY_FRAME;
+    }
+
+    /**
+     * Called for every video frame queued to the current file.
+     */
+    public void onVideoFrame(boolean keyFrame, int length) {
+        bytes += length;
+        if (keyFrame)
+            gops++;
+    }
+
+    /**
+     * Called for every audio frame queued to the current file.
+     */
+    public void onAudioFrame(int length) {
+        bytes += length;
+    }
+
+    /**
+     * Reason of the last {@link #ACTION_SWITCH} or {@link #ACTION_WAIT_FOR_KEY_FRAME}
+     */
+    public int getReason() {
+        return reason;
+    }
+
+    private int getDueReason(long nowMsec) {
+        if (intervalMsec > 0 && nowMsec >= nextRotationMsec)
+            return REASON_TIME;
+        if (maxBytes > 0 && bytes >= maxBytes)
+            return REASON_SIZE;
+        // This key frame would start one GOP more than allowed
+        if (maxGops > 0 && gops >= maxGops)
+            return REASON_GOP_COUNT;
+        return REASON_NONE;
+    }
+
+    private long getNextRotationTime(long nowMsec) {
+        if (intervalMsec <= 0)
+            return Long.MAX_VALUE;
+        if (!alignToWallClock)
+            return nowMsec + intervalMsec;
+        // Called once per file, so the time zone lookup is not on the per-frame path
+        long offsetMsec = TimeZone.getDefault().getOffset(nowMsec);
+        long local = nowMsec + offsetMsec;
+        return (local / intervalMsec + 1) * intervalMsec - offsetMsec;
+    }
+
+}
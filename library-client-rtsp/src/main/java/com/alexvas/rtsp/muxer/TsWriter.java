@@ -0,0 +1,434 @@
+package com.alexvas.rtsp.muxer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.alexvas.utils.BufferPool;
+import com.alexvas.utils.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// MPEG-2 transport stream (ISO/IEC 13818-1) packetizer for one H.264/H.265 and one AAC stream.
+//
+// Every access unit becomes a PES packet split into 188-byte TS packets:
+//
+//   0                   1                   2                   3
+//   0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+//  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//  | sync (0x47)   |E|S|T|           PID           |TSC|AFC|  CC   |
+//  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//  | [adaptation field: PCR, random access, stuffing] payload ...  |
+//  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// PAT and PMT are written by writeTables(), e.g. at the start of every HLS segment.
+// Video carries PCR. AAC frames are wrapped into ADTS headers.
+//
+// Packets are built in a pooled heap buffer and written to the output in large chunks
+// by flush(). Not thread-safe.
+public class TsWriter {
+
+    public static final int TS_PACKET_SIZE = 188;
+
+    private static final int PID_PAT = 0x0000;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_VIDEO = 0x0100;
+    private static final int PID_AUDIO = 0x0101;
+
+    private static final int STREAM_TYPE_AAC_ADTS = 0x0F;
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_H265 = 0x24;
+
+    private static final int STREAM_ID_VIDEO = 0xE0;
+    private static final int STREAM_ID_AUDIO = 0xC0;
+
+    // PCR goes ahead of PTS, so decoders have time to buffer the frame
+    private static final long PTS_OFFSET = 63000; // 700 msec at 90 kHz
+    private static final int PES_HEADER_SIZE = 14; // With PTS
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final int DEFAULT_FLUSH_THRESHOLD = 64 * 1024;
+
+    private static final byte[] H264_AUD = { 0x00, 0x00, 0x00, 0x01, 0x09, (byte) 0xF0 };
+    private static final byte[] H265_AUD = { 0x00, 0x00, 0x00, 0x01, 0x46, 0x01, 0x50 };
+    private static final byte[] NAL_START_CODE = { 0x00, 0x00, 0x00, 0x01 };
+
+    private static final int[] CRC32_TABLE = new int[256];
+    static {
+        // MPEG-2 CRC32, polynomial 0x04C11DB7, not reflected
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++)
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            CRC32_TABLE[i] = crc;
+        }
+    }
+
+    private final @NonNull BufferPool bufferPool;
+    private @Nullable PooledBuffer output;
+    private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+
+    private boolean hasVideo = false;
+    private boolean h265;
+    private byte[] parameterSets = new byte[0];
+    private boolean hasAudio = false;
+    private int aacProfile;
+    private int aacSampleRateIndex;
+    private int aacChannelConfig;
+
+    private int patContinuityCounter = 0;
+    private int pmtContinuityCounter = 0;
+    private int videoContinuityCounter = 0;
+    private int audioContinuityCounter = 0;
+
+    // PES header + AUD + parameter sets or ADTS header
+    private byte[] prefix = new byte[256];
+    private final byte[] section = new byte[TS_PACKET_SIZE];
+
+    /**
+     * @param bufferPool heap pool for packet buffers, max capacity should fit the biggest access unit
+     */
+    public TsWriter(@NonNull BufferPool bufferPool) {
+        if (bufferPool.isDirect())
+            throw new IllegalArgumentException("Heap buffer pool expected");
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @param vps H.265 only
+     * @param sps SPS with or without start code
+     * @param pps PPS with or without start code
+     */
+    public void setVideoTrack(boolean h265, @Nullable byte[] vps, @Nullable byte[] sps, @Nullable byte[] pps) {
+        hasVideo = true;
+        this.h265 = h265;
+        // Repeated before every key frame, so playback can start from any segment
+        int size = 0;
+        byte[][] nalUnits = { vps, sps, pps };
+        for (byte[] nalUnit : nalUnits) {
+            if (nalUnit != null)
+                size += NAL_START_CODE.length + nalUnit.length - getStartCodeSize(nalUnit);
+        }
+        parameterSets = new byte[size];
+        int offset = 0;
+        for (byte[] nalUnit : nalUnits) {
+            if (nalUnit == null)
+                continue;
+            int startCodeSize = getStartCodeSize(nalUnit);
+            System.arraycopy(NAL_START_CODE, 0, parameterSets, offset, NAL_START_CODE.length);
+            offset += NAL_START_CODE.length;
+            System.arraycopy(nalUnit, startCodeSize, parameterSets, offset, nalUnit.length - startCodeSize);
+            offset += nalUnit.length - startCodeSize;
+        }
+    }
+
+    /**
+     * @param audioSpecificConfig AAC config from SDP. If null, AAC LC is assumed.
+     */
+    public void setAudioTrack(int sampleRateHz, int channels, @Nullable byte[] audioSpecificConfig) {
+        byte[] config = audioSpecificConfig;
+        if (config == null || config.length < 2 || ((config[0] & 0x07) << 1 | (config[1] & 0xFF) >> 7) == 0x0F)
+            config = FragmentedMp4Writer.getAacLcConfig(sampleRateHz, channels);
+        hasAudio = true;
+        // ADTS carries profile as audioObjectType - 1 in 2 bits
+        aacProfile = Math.max(0, Math.min(3, ((config[0] & 0xFF) >> 3) - 1));
+        aacSampleRateIndex = (config[0] & 0x07) << 1 | (config[1] & 0xFF) >> 7;
+        aacChannelConfig = (config[1] >> 3) & 0x0F;
+    }
+
+    public boolean hasVideo() {
+        return hasVideo;
+    }
+
+    /**
+     * Packets are written to the channel once this many bytes are buffered.
+     */
+    public void setFlushThreshold(int flushThreshold) {
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * Write PAT and PMT. Should be called before the first access unit of every segment.
+     */
+    public void writeTables() {
+        PooledBuffer out = getOutput(2 * TS_PACKET_SIZE);
+
+        // PAT, ISO/IEC 13818-1 2.4.4.3
+        int len = 0;
+        section[len++] = 0x00;                  // table_id
+        section[len++] = (byte) 0xB0;           // section_syntax_indicator, section_length patched below
+        section[len++] = 0;
+        section[len++] = 0x00; section[len++] = 0x01; // transport_stream_id
+        section[len++] = (byte) 0xC1;           // version 0, current_next_indicator
+        section[len++] = 0x00;                  // section_number
+        section[len++] = 0x00;                  // last_section_number
+        section[len++] = 0x00; section[len++] = 0x01; // program_number
+        section[len++] = (byte) (0xE0 | (PID_PMT >> 8));
+        section[len++] = (byte) PID_PMT;
+        len = finishSection(len);
+        writeSection(out, PID_PAT, patContinuityCounter, len);
+        patContinuityCounter = (patContinuityCounter + 1) & 0x0F;
+
+        // PMT, ISO/IEC 13818-1 2.4.4.8
+        int pcrPid = hasVideo ? PID_VIDEO : PID_AUDIO;
+        len = 0;
+        section[len++] = 0x02;                  // table_id
+        section[len++] = (byte) 0xB0;
+        section[len++] = 0;
+        section[len++] = 0x00; section[len++] = 0x01; // program_number
+        section[len++] = (byte) 0xC1;
+        section[len++] = 0x00;
+        section[len++] = 0x00;
+        section[len++] = (byte) (0xE0 | (pcrPid >> 8));
+        section[len++] = (byte) pcrPid;
+        section[len++] = (byte) 0xF0; section[len++] = 0x00; // program_info_length
+        if (hasVideo)
+            len = writeStreamInfo(len, h265 ? STREAM_TYPE_H265 : STREAM_TYPE_H264, PID_VIDEO);
+        if (hasAudio)
+            len = writeStreamInfo(len, STREAM_TYPE_AAC_ADTS, PID_AUDIO);
+        len = finishSection(len);
+        writeSection(out, PID_PMT, pmtContinuityCounter, len);
+        pmtContinuityCounter = (pmtContinuityCounter + 1) & 0x0F;
+    }
+
+    /**
+     * @param accessUnit Annex B access unit
+     */
+    public void writeVideo(@NonNull PooledBuffer accessUnit, long timeUs, boolean keyFrame) {
+        byte[] aud = h265 ? H265_AUD : H264_AUD;
+        int prefixSize = PES_HEADER_SIZE + aud.length + (keyFrame ? parameterSets.length : 0);
+        ensurePrefixCapacity(prefixSize);
+        int payloadSize = prefixSize - 6 + accessUnit.length();
+        long pts = toPts(timeUs);
+        // Video PES length can be 0 (unbounded)
+        writePesHeader(STREAM_ID_VIDEO, payloadSize > 0xFFFF ? 0 : payloadSize, pts);
+        int len = PES_HEADER_SIZE;
+        System.arraycopy(aud, 0, prefix, len, aud.length);
+        len += aud.length;
+        if (keyFrame) {
+            System.arraycopy(parameterSets, 0, prefix, len, parameterSets.length);
+            len += parameterSets.length;
+        }
+        videoContinuityCounter = writePes(
+                PID_VIDEO, videoContinuityCounter, prefix, len, accessUnit, toPcr(pts), keyFrame);
+    }
+
+    /**
+     * @param sample raw AAC frame without ADTS header
+     */
+    public void writeAudio(@NonNull PooledBuffer sample, long timeUs) {
+        int frameLength = ADTS_HEADER_SIZE + sample.length();
+        long pts = toPts(timeUs);
+        writePesHeader(STREAM_ID_AUDIO, PES_HEADER_SIZE - 6 + frameLength, pts);
+        // ADTS header, ISO/IEC 13818-7 6.2
+        int len = PES_HEADER_SIZE;
+        prefix[len++] = (byte) 0xFF;
+        prefix[len++] = (byte) 0xF1; // MPEG-4, layer 0, no CRC
+        prefix[len++] = (byte) ((aacProfile << 6) | (aacSampleRateIndex << 2) | (aacChannelConfig >> 2));
+        prefix[len++] = (byte) (((aacChannelConfig & 0x03) << 6) | (frameLength >> 11));
+        prefix[len++] = (byte) (frameLength >> 3);
+        prefix[len++] = (byte) (((frameLength & 0x07) << 5) | 0x1F);
+        prefix[len++] = (byte) 0xFC;
+        // PCR is on the audio PID for audio only streams
+        audioContinuityCounter = writePes(
+                PID_AUDIO, audioContinuityCounter, prefix, len, sample, hasVideo ? -1 : toPcr(pts), true);
+    }
+
+    /**
+     * Write buffered packets if there are at least flush threshold bytes.
+     */
+    public void flushIfNeeded(@NonNull WritableByteChannel channel) throws IOException {
+        if (output != null && output.length() >= flushThreshold)
+            flush(channel);
+    }
+
+    public void flush(@NonNull WritableByteChannel channel) throws IOException {
+        PooledBuffer out = output;
+        if (out == null || out.length() == 0)
+            return;
+        ByteBuffer buffer = ByteBuffer.wrap(out.array(), 0, out.length());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        out.clear();
+    }
+
+    /**
+     * Drop buffered packets and return the buffer to the pool.
+     */
+    public void release() {
+        if (output != null) {
+            output.release();
+            output = null;
+        }
+    }
+
+    private static long toPts(long timeUs) {
+        // 33-bit 90 kHz clock
+        return (Math.max(0, timeUs) * 9 / 100 + PTS_OFFSET) & 0x1FFFFFFFFL;
+    }
+
+    private static long toPcr(long pts) {
+        return (pts - PTS_OFFSET) & 0x1FFFFFFFFL;
+    }
+
+    @NonNull
+    private PooledBuffer getOutput(int bytesToAdd) {
+        if (output == null)
+            output = bufferPool.acquire();
+        if (!output.ensureCapacity(output.length() + bytesToAdd))
+            throw new IllegalStateException("Buffer pool max capacity " + bufferPool.getMaxCapacity() + " is too small");
+        return output;
+    }
+
+    private void ensurePrefixCapacity(int size) {
+        if (prefix.length < size)
+            prefix = new byte[size];
+    }
+
+    // ISO/IEC 13818-1 2.4.3.6 PES packet header with PTS only
+    private void writePesHeader(int streamId, int pesPacketLength, long pts) {
+        prefix[0] = 0x00;
+        prefix[1] = 0x00;
+        prefix[2] = 0x01;
+        prefix[3] = (byte) streamId;
+        prefix[4] = (byte) (pesPacketLength >> 8);
+        prefix[5] = (byte) pesPacketLength;
+        prefix[6] = (byte) 0x80;                // marker bits '10'
+        prefix[7] = (byte) 0x80;                // PTS_DTS_flags '10'
+        prefix[8] = 5;                          // PES_header_data_length
+        prefix[9] = (byte) (0x21 | ((pts >> 29) & 0x0E));
+        prefix[10] = (byte) (pts >> 22);
+        prefix[11] = (byte) (((pts >> 14) & 0xFE) | 0x01);
+        prefix[12] = (byte) (pts >> 7);
+        prefix[13] = (byte) (((pts << 1) & 0xFE) | 0x01);
+    }
+
+    // Split prefix + payload into TS packets. Returns the next continuity counter.
+    private int writePes(
+            int pid,
+            int continuityCounter,
+            @NonNull byte[] prefix,
+            int prefixLength,
+            @NonNull PooledBuffer payload,
+            long pcr,
+            boolean randomAccess) {
+        int total = prefixLength + payload.length();
+        // Upper bound: every packet has at least 184 bytes of payload except the first one
+        PooledBuffer out = getOutput((total / 176 + 2) * TS_PACKET_SIZE);
+        byte[] dst = out.array();
+        int pos = out.length();
+        ByteBuffer source = payload.asReadOnlyBuffer().duplicate();
+
+        int written = 0;
+        boolean first = true;
+        while (written < total) {
+            boolean writePcr = first && pcr >= 0;
+            int adaptationSize = 0;
+            if (first && (writePcr || randomAccess))
+                adaptationSize = 2 + (writePcr ? 6 : 0);
+            int remaining = total - written;
+            int available = TS_PACKET_SIZE - 4 - adaptationSize;
+            // Last packet is padded with adaptation field stuffing
+            if (remaining < available) {
+                adaptationSize += available - remaining;
+                available = remaining;
+            }
+
+            dst[pos++] = 0x47;
+            dst[pos++] = (byte) ((first ? 0x40 : 0x00) | (pid >> 8));
+            dst[pos++] = (byte) pid;
+            dst[pos++] = (byte) ((adaptationSize > 0 ? 0x30 : 0x10) | continuityCounter);
+            continuityCounter = (continuityCounter + 1) & 0x0F;
+
+            if (adaptationSize > 0) {
+                int end = pos + adaptationSize;
+                dst[pos++] = (byte) (adaptationSize - 1); // adaptation_field_length
+                if (adaptationSize > 1) {
+                    int flags = 0;
+                    if (first && randomAccess)
+                        flags |= 0x40; // random_access_indicator
+                    if (writePcr)
+                        flags |= 0x10; // PCR_flag
+                    dst[pos++] = (byte) flags;
+                    if (writePcr) {
+                        long base = pcr & 0x1FFFFFFFFL;
+                        dst[pos++] = (byte) (base >> 25);
+                        dst[pos++] = (byte) (base >> 17);
+                        dst[pos++] = (byte) (base >> 9);
+                        dst[pos++] = (byte) (base >> 1);
+                        dst[pos++] = (byte) (((base & 0x01) << 7) | 0x7E);
+                        dst[pos++] = 0x00;
+                    }
+                    while (pos < end)
+                        dst[pos++] = (byte) 0xFF;
+                }
+            }
+
+            // Payload: prefix first, then the access unit
+            int toCopy = available;
+            if (written < prefixLength) {
+                int fromPrefix = Math.min(toCopy, prefixLength - written);
+                System.arraycopy(prefix, written, dst, pos, fromPrefix);
+                pos += fromPrefix;
+                written += fromPrefix;
+                toCopy -= fromPrefix;
+            }
+            if (toCopy > 0) {
+                source.get(dst, pos, toCopy);
+                pos += toCopy;
+                written += toCopy;
+            }
+            first = false;
+        }
+        out.setLength(pos);
+        return continuityCounter;
+    }
+
+    private int writeStreamInfo(int len, int streamType, int pid) {
+        section[len++] = (byte) streamType;
+        section[len++] = (byte) (0xE0 | (pid >> 8));
+        section[len++] = (byte) pid;
+        section[len++] = (byte) 0xF0; section[len++] = 0x00; // ES_info_length
+        return len;
+    }
+
+    // Patch section_length and append CRC32
+    private int finishSection(int len) {
+        int sectionLength = len - 3 + 4;
+        section[1] = (byte) (0xB0 | (sectionLength >> 8));
+        section[2] = (byte) sectionLength;
+        int crc = 0xFFFFFFFF;
+        for (int i = 0; i < len; i++)
+            crc = (crc << 8) ^ CRC32_TABLE[((crc >>> 24) ^ section[i]) & 0xFF];
+        section[len++] = (byte) (crc >> 24);
+        section[len++] = (byte) (crc >> 16);
+        section[len++] = (byte) (crc >> 8);
+        section[len++] = (byte) crc;
+        return len;
+    }
+
+    private void writeSection(@NonNull PooledBuffer out, int pid, int continuityCounter, int len) {
+        byte[] dst = out.array();
+        int pos = out.length();
+        int end = pos + TS_PACKET_SIZE;
+        dst[pos++] = 0x47;
+        dst[pos++] = (byte) (0x40 | (pid >> 8));
+        dst[pos++] = (byte) pid;
+        dst[pos++] = (byte) (0x10 | continuityCounter);
+        dst[pos++] = 0x00; // pointer_field
+        System.arraycopy(section, 0, dst, pos, len);
+        pos += len;
+        while (pos < end)
+            dst[pos++] = (byte) 0xFF;
+        out.setLength(pos);
+    }
+
+    private static int getStartCodeSize(@NonNull byte[] data) {
+        if (data.length >= 4 && data[0] == 0 && data[1] == 0 && data[2] == 0 && data[3] == 1)
+            return 4;
+        if (data.length >= 3 && data[0] == 0 && data[1] == 0 && data[2] == 1)
+            return 3;
+        return 0;
+    }
+
+}
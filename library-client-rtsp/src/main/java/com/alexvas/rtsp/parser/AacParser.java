@@ -5,8 +5,9 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import com.google.android.exoplayer2.util.ParsableBitArray;
-import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.alexvas.utils.BitReader;
+import com.alexvas.utils.BufferPool;
+import com.alexvas.utils.PooledBuffer;
 
 // https://tools.ietf.org/html/rfc3640
 //          +---------+-----------+-----------+---------------+
@@ -20,9 +21,6 @@ public class AacParser {
     private static final String TAG = AacParser.class.getSimpleName();
     private static final boolean DEBUG = false;
 
-    private final ParsableBitArray headerScratchBits;
-    private final ParsableByteArray headerScratchBytes;
-
     private static final int MODE_LBR = 0;
     private static final int MODE_HBR = 1;
 
@@ -32,155 +30,304 @@ public class AacParser {
     // Number of bits for AAC AU index(-delta), indexed by mode (LBR and HBR)
     private static final int[] NUM_BITS_AU_INDEX = {2, 3};
 
-    // Frame Sizes for AAC AU fragments, indexed by mode (LBR and HBR)
-    private static final int[] FRAME_SIZES = {63, 8191};
+    // Samples per AAC frame
+    public static final int DEFAULT_FRAME_DURATION = 1024;
+
+    private static final int INITIAL_FRAGMENTED_AU_SIZE = 2048;
+    private static final int MAX_FRAGMENTED_AU_SIZE = 64 * 1024;
+    private static final int INITIAL_MAX_AU_HEADERS = 16;
+
+    public interface AacFrameListener {
+        /**
+         * Raw AAC frame (access unit) without ADTS header.
+         * Data is valid only during this call. Copy it if it needs to be kept.
+         * @param rtpTimestamp RTP timestamp of this frame, including its offset inside the packet
+         */
+        void onAacFrameReceived(@NonNull byte[] data, int offset, int length, long rtpTimestamp);
+    }
+
+    // AU header fields sizes in bits, see RFC 3640 4.1 fmtp parameters
+    private final int sizeLength;
+    private final int indexLength;
+    private final int indexDeltaLength;
+    private int ctsDeltaLength = 0;
+    private int dtsDeltaLength = 0;
+    private boolean randomAccessIndication = false;
+    private int streamStateIndication = 0;
+    private int auxiliaryDataSizeLength = 0;
+    private int frameDuration = DEFAULT_FRAME_DURATION;
+
+    private final BitReader bitReader = new BitReader();
+    private int[] auSizes = new int[INITIAL_MAX_AU_HEADERS];
+    private int[] auIndexes = new int[INITIAL_MAX_AU_HEADERS];
+
+    private final BufferPool bufferPool = new BufferPool(INITIAL_FRAGMENTED_AU_SIZE, MAX_FRAGMENTED_AU_SIZE, 1, false);
+    // AU being reassembled from fragments
+    private @Nullable PooledBuffer fragmentedAu;
+    private int fragmentedAuSize;
+    private long fragmentedAuTimestamp;
 
-    private final int _aacMode;
-    private boolean completeFrameIndicator = true;
+    private long droppedFrames = 0;
 
+    private @Nullable byte[] legacySample;
+    private final AacFrameListener legacyListener = (data, offset, length, rtpTimestamp) -> {
+        // Legacy API returns the first frame only
+        if (legacySample == null) {
+            legacySample = new byte[length];
+            System.arraycopy(data, offset, legacySample, 0, length);
+        }
+    };
+
+    /**
+     * @param aacMode "AAC-lbr" or "AAC-hbr". AU header field sizes are taken from RFC 3640 3.3.5/3.3.6.
+     */
     public AacParser(@NonNull String aacMode) {
-        _aacMode = aacMode.equalsIgnoreCase("AAC-lbr") ? MODE_LBR : MODE_HBR;
+        int mode = aacMode.equalsIgnoreCase("AAC-lbr") ? MODE_LBR : MODE_HBR;
+        sizeLength = NUM_BITS_AU_SIZES[mode];
+        indexLength = NUM_BITS_AU_INDEX[mode];
+        indexDeltaLength = NUM_BITS_AU_INDEX[mode];
+    }
+
+    /**
+     * AU header field sizes from SDP "sizelength", "indexlength" and "indexdeltalength" parameters.
+     */
+    public AacParser(int sizeLength, int indexLength, int indexDeltaLength) {
+        if (sizeLength < 0 || sizeLength > 32 || indexLength < 0 || indexLength > 32 ||
+            indexDeltaLength < 0 || indexDeltaLength > 32)
+            throw new IllegalArgumentException("Invalid AU header field size");
+        this.sizeLength = sizeLength;
+        this.indexLength = indexLength;
+        this.indexDeltaLength = indexDeltaLength;
+    }
+
+    /**
+     * Optional AU header fields from SDP "ctsdeltalength", "dtsdeltalength", "randomaccessindication",
+     * "streamstateindication" and "auxiliarydatasizelength" parameters. All of them are 0 by default.
+     */
+    public void setOptionalFields(
+            int ctsDeltaLength,
+            int dtsDeltaLength,
+            boolean randomAccessIndication,
+            int streamStateIndication,
+            int auxiliaryDataSizeLength) {
+        this.ctsDeltaLength = ctsDeltaLength;
+        this.dtsDeltaLength = dtsDeltaLength;
+        this.randomAccessIndication = randomAccessIndication;
+        this.streamStateIndication = streamStateIndication;
+        this.auxiliaryDataSizeLength = auxiliaryDataSizeLength;
+    }
 
-        headerScratchBits = new ParsableBitArray();
-        headerScratchBytes = new ParsableByteArray();
+    /**
+     * RTP timestamp increment between consecutive frames in the same packet,
+     * SDP "constantduration" parameter. 1024 by default.
+     */
+    public void setFrameDuration(int frameDuration) {
+        this.frameDuration = frameDuration;
     }
 
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Legacy API. Returns the first frame in the packet copied to a newly allocated array.
+     */
     @Nullable
     public byte[] processRtpPacketAndGetSample(@NonNull byte[] data, int length) {
-        if (DEBUG)
-            Log.v(TAG, "processRtpPacketAndGetSample(length=" + length + ")");
-        int auHeadersCount = 1;
-        int numBitsAuSize = NUM_BITS_AU_SIZES[_aacMode];
-        int numBitsAuIndex = NUM_BITS_AU_INDEX[_aacMode];
+        return processRtpPacketAndGetSample(data, 0, length);
+    }
 
-        ParsableByteArray packet = new ParsableByteArray(data, length);
+    /**
+     * Legacy API. Returns the first frame in the packet copied to a newly allocated array.
+     */
+    @Nullable
+    public byte[] processRtpPacketAndGetSample(@NonNull byte[] data, int offset, int length) {
+        legacySample = null;
+        processRtpPacket(data, offset, length, 0, legacyListener);
+        byte[] sample = legacySample;
+        legacySample = null;
+        return sample;
+    }
+
+    /**
+     * Called when RTP packets were lost. Frame being reassembled from fragments is dropped.
+     */
+    public void notifyPacketLoss() {
+        dropFragmentedAu();
+    }
+
+    /**
+     * Process RTP payload data[offset, offset + length) and pass every complete AAC frame to the listener.
+     * Frames which are not fragmented are passed as slices of data.
+     */
+    public void processRtpPacket(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            long rtpTimestamp,
+            @NonNull AacFrameListener listener) {
+        if (DEBUG)
+            Log.v(TAG, "processRtpPacket(offset=" + offset + ", length=" + length + ")");
+        int pos = offset;
+        int end = offset + length;
 
 //      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+- .. -+-+-+-+-+-+-+-+-+-+
 //      |AU-headers-length|AU-header|AU-header|      |AU-header|padding|
 //      |                 |   (1)   |   (2)   |      |   (n)   | bits  |
 //      +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+- .. -+-+-+-+-+-+-+-+-+-+
-        int auHeadersLength = packet.readShort();//((data[0] & 0xFF) << 8) | (data[1] & 0xFF);
-        int auHeadersLengthBytes = (auHeadersLength + 7) / 8;
+        int auHeadersCount = 0;
+        if (hasAuHeaders()) {
+            if (length < 2)
+                return;
+            int auHeadersLength = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF); // bits
+            int auHeadersLengthBytes = (auHeadersLength + 7) / 8;
+            pos += 2;
+            if (pos + auHeadersLengthBytes > end) {
+                if (DEBUG)
+                    Log.w(TAG, "Invalid AU headers length " + auHeadersLength);
+                droppedFrames++;
+                return;
+            }
+            auHeadersCount = readAuHeaders(data, pos, auHeadersLength);
+            if (auHeadersCount < 0) {
+                droppedFrames++;
+                return;
+            }
+            pos += auHeadersLengthBytes;
+        }
 
-        headerScratchBytes.reset(auHeadersLengthBytes);
-        packet.readBytes(headerScratchBytes.getData(), 0, auHeadersLengthBytes);
-        headerScratchBits.reset(headerScratchBytes.getData());
+        // Auxiliary section is not used. Skip it.
+        if (auxiliaryDataSizeLength > 0) {
+            bitReader.reset(data, pos, end - pos);
+            if (bitReader.bitsLeft() < auxiliaryDataSizeLength)
+                return;
+            int auxiliaryDataSize = bitReader.readBits(auxiliaryDataSizeLength);
+            pos += (auxiliaryDataSizeLength + auxiliaryDataSize + 7) / 8;
+            if (pos > end)
+                return;
+        }
 
-        int bitsAvailable = auHeadersLength - (numBitsAuSize + numBitsAuIndex);
+        // Constant size frames without AU headers. The whole data section is a single frame.
+        if (auHeadersCount == 0) {
+            if (pos < end)
+                listener.onAacFrameReceived(data, pos, end - pos, rtpTimestamp);
+            return;
+        }
 
-        if (bitsAvailable > 0) {// && (numBitsAuSize + numBitsAuSize) > 0) {
-            auHeadersCount +=  bitsAvailable / (numBitsAuSize + numBitsAuIndex);
+        // Single AU header with AU size bigger than the data section means fragmented frame
+        if (auHeadersCount == 1 && auSizes[0] > end - pos) {
+            processFragment(data, pos, end - pos, auSizes[0], rtpTimestamp, listener);
+            return;
+        }
+        if (fragmentedAu != null) {
+            if (DEBUG)
+                Log.w(TAG, "Last fragment of AU missed");
+            dropFragmentedAu();
         }
 
-        if (auHeadersCount == 1) {
-            int auSize = headerScratchBits.readBits(numBitsAuSize);
-            int auIndex = headerScratchBits.readBits(numBitsAuIndex);
+        for (int i = 0; i < auHeadersCount; i++) {
+            int auSize = auSizes[i];
+            if (pos + auSize > end) {
+                if (DEBUG)
+                    Log.w(TAG, "AU size " + auSize + " exceeds packet size. Dropping " + (auHeadersCount - i) + " frames.");
+                droppedFrames += auHeadersCount - i;
+                return;
+            }
+            long timestamp = (rtpTimestamp + (long) auIndexes[i] * frameDuration) & 0xFFFFFFFFL;
+            listener.onAacFrameReceived(data, pos, auSize, timestamp);
+            pos += auSize;
+        }
+    }
 
-            if (completeFrameIndicator) {
-                if (auIndex == 0) {
-                    if (packet.bytesLeft() == auSize) {
-                        return handleSingleAacFrame(packet);
+    private boolean hasAuHeaders() {
+        return sizeLength > 0 || indexLength > 0 || indexDeltaLength > 0 || ctsDeltaLength > 0 ||
+               dtsDeltaLength > 0 || randomAccessIndication || streamStateIndication > 0;
+    }
 
-                    } else {
-//                        handleFragmentationAacFrame(packet, auSize);
-                    }
+    // Fills auSizes and auIndexes (frame index relative to the first one). Returns AU headers count, -1 on error.
+    private int readAuHeaders(@NonNull byte[] data, int offset, int auHeadersLength) {
+        bitReader.reset(data, offset, (auHeadersLength + 7) / 8);
+        int count = 0;
+        int index = 0;
+        try {
+            while (bitReader.getPosition() < auHeadersLength) {
+                int start = bitReader.getPosition();
+                if (count == auSizes.length) {
+                    auSizes = java.util.Arrays.copyOf(auSizes, count * 2);
+                    auIndexes = java.util.Arrays.copyOf(auIndexes, count * 2);
+                }
+                auSizes[count] = bitReader.readBits(sizeLength);
+                if (count == 0) {
+                    // AU-Index is usually 0. Timestamp of the packet is the timestamp of the first frame.
+                    bitReader.skipBits(indexLength);
+                } else {
+                    index += bitReader.readBits(indexDeltaLength) + 1;
+                }
+                auIndexes[count] = index;
+                if (ctsDeltaLength > 0 && bitReader.readBit())
+                    bitReader.skipBits(ctsDeltaLength);
+                if (dtsDeltaLength > 0 && bitReader.readBit())
+                    bitReader.skipBits(dtsDeltaLength);
+                if (randomAccessIndication)
+                    bitReader.skipBits(1);
+                bitReader.skipBits(streamStateIndication);
+                count++;
+                if (bitReader.getPosition() == start) {
+                    // Zero width AU header, e.g. only "indexlength" is set. Nothing to tell frames apart.
+                    if (DEBUG)
+                        Log.w(TAG, "Empty AU header");
+                    return -1;
                 }
-            } else {
-//                handleFragmentationAacFrame(packet, auSize);
             }
+        } catch (IndexOutOfBoundsException e) {
+            if (DEBUG)
+                Log.w(TAG, "Truncated AU header");
+            return -1;
+        }
+        return count;
+    }
 
-        } else {
-            if (completeFrameIndicator) {
-//                handleMultipleAacFrames(packet, auHeadersLength);
+    // Fragments of the same frame carry the same AU header with full AU size and have the same timestamp
+    private void processFragment(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            int auSize,
+            long rtpTimestamp,
+            @NonNull AacFrameListener listener) {
+        if (fragmentedAu != null && (fragmentedAuSize != auSize || fragmentedAuTimestamp != rtpTimestamp)) {
+            if (DEBUG)
+                Log.w(TAG, "Last fragment of AU missed");
+            dropFragmentedAu();
+        }
+        if (fragmentedAu == null) {
+            fragmentedAu = bufferPool.acquire();
+            fragmentedAuSize = auSize;
+            fragmentedAuTimestamp = rtpTimestamp;
+        }
+        if (fragmentedAu.length() + length > auSize || !fragmentedAu.append(data, offset, length)) {
+            if (DEBUG)
+                Log.w(TAG, "Fragmented AU is bigger than " + auSize + " bytes. Dropping it.");
+            dropFragmentedAu();
+            return;
+        }
+        if (fragmentedAu.length() == auSize) {
+            PooledBuffer au = fragmentedAu;
+            fragmentedAu = null;
+            try {
+                listener.onAacFrameReceived(au.array(), 0, au.length(), rtpTimestamp);
+            } finally {
+                au.release();
             }
         }
-//        byte[] auHeader = new byte[length-2-auHeadersLengthBytes];
-//        System.arraycopy(data,2-auHeadersLengthBytes, auHeader,0, auHeader.length);
-//        if (DEBUG)
-//            Log.d(TAG, "AU headers size: " + auHeadersLengthBytes + ", AU headers: " + auHeadersCount + ", sample length: " + auHeader.length);
-//        return auHeader;
-        return new byte[0];
     }
 
-    private byte[] handleSingleAacFrame(ParsableByteArray packet) {
-        int length = packet.bytesLeft();
-        byte[] data = new byte[length];
-        System.arraycopy(packet.getData(), packet.getPosition(), data,0, data.length);
-        return data;
+    private void dropFragmentedAu() {
+        if (fragmentedAu == null)
+            return;
+        droppedFrames++;
+        fragmentedAu.release();
+        fragmentedAu = null;
     }
 
-//    private static final class AUHeader {
-//        private int size;
-//        private int index;
-//
-//        public AUHeader(int size, int index) {
-//            this.size = size;
-//            this.index = index;
-//        }
-//
-//        public int size() { return size; }
-//
-//        public int index() { return index; }
-//    }
-
-//    /**
-//     * Stores the consecutive fragment AU to reconstruct an AAC-Frame
-//     */
-//    private static final class FragmentedAacFrame {
-//        public byte[] auData;
-//        public int auLength;
-//        public int auSize;
-//
-//        private int sequence;
-//
-//        public FragmentedAacFrame(int frameSize) {
-//            // Initialize data
-//            auData = new byte[frameSize];
-//            sequence = -1;
-//        }
-//
-//        /**
-//         * Resets the buffer, clearing any data that it holds.
-//         */
-//        public void reset() {
-//            auLength = 0;
-//            auSize = 0;
-//            sequence = -1;
-//        }
-//
-//        public void sequence(int sequence) {
-//            this.sequence = sequence;
-//        }
-//
-//        public int sequence() {
-//            return sequence;
-//        }
-//
-//        /**
-//         * Called to add a fragment unit to fragmented AU.
-//         *
-//         * @param fragment Holds the data of fragment unit being passed.
-//         * @param offset The offset of the data in {@code fragment}.
-//         * @param limit The limit (exclusive) of the data in {@code fragment}.
-//         */
-//        public void appendFragment(byte[] fragment, int offset, int limit) {
-//            if (auSize == 0) {
-//                auSize = limit;
-//            } else if (auSize != limit) {
-//                reset();
-//            }
-//
-//            if (auData.length < auLength + limit) {
-//                auData = Arrays.copyOf(auData, (auLength + limit) * 2);
-//            }
-//
-//            System.arraycopy(fragment, offset, auData, auLength, limit);
-//            auLength += limit;
-//        }
-//
-//        public boolean isCompleted() {
-//            return auSize == auLength;
-//        }
-//    }
-
 }
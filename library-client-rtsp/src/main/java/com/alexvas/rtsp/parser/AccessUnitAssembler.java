@@ -0,0 +1,171 @@
+package com.alexvas.rtsp.parser;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.alexvas.utils.BufferPool;
+import com.alexvas.utils.PooledBuffer;
+import com.alexvas.utils.VideoCodecUtils;
+
+// Groups NAL units of one picture into a single access unit (one muxer sample per frame).
+//
+// All NAL units of an access unit share the same RTP timestamp. The last packet of the
+// access unit has the marker bit set (RFC 6184 5.1, RFC 7798 4.1). Access unit ends
+// either on the marker bit or when a NAL unit with a new timestamp arrives, in case
+// the packet with the marker bit was lost.
+//
+// Output formats:
+//   Annex B: 00 00 00 01 <NAL unit> 00 00 00 01 <NAL unit> ...
+//   AVCC:    <32-bit length> <NAL unit> <32-bit length> <NAL unit> ...
+public class AccessUnitAssembler {
+
+    private static final String TAG = AccessUnitAssembler.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int FORMAT_ANNEX_B = 0;
+    public static final int FORMAT_AVCC = 1;
+
+    public static final int DEFAULT_MAX_ACCESS_UNIT_SIZE = 8 * 1024 * 1024; // 8 MB
+
+    private static final byte[] NAL_START_CODE = { 0x00, 0x00, 0x00, 0x01 };
+
+    public interface AccessUnitListener {
+        /**
+         * Ownership of the buffer is passed to the listener. It should call {@link PooledBuffer#release()}.
+         * @param timestamp timestamp of the first NAL unit of the access unit
+         */
+        void onAccessUnitReceived(@NonNull PooledBuffer accessUnit, long timestamp, boolean keyFrame);
+    }
+
+    private final @NonNull BufferPool bufferPool;
+    private final boolean h265;
+    private final int format;
+
+    private @Nullable PooledBuffer accessUnit;
+    private long accessUnitRtpTimestamp;
+    private long accessUnitTimestamp;
+    private boolean accessUnitKeyFrame;
+    private boolean accessUnitOverflow;
+
+    private long accessUnits = 0;
+    private long droppedAccessUnits = 0;
+
+    /**
+     * @param bufferPool pool for access unit buffers, max capacity limits access unit size
+     * @param format {@link #FORMAT_ANNEX_B} or {@link #FORMAT_AVCC}
+     */
+    public AccessUnitAssembler(@NonNull BufferPool bufferPool, boolean h265, int format) {
+        if (format != FORMAT_ANNEX_B && format != FORMAT_AVCC)
+            throw new IllegalArgumentException("Invalid access unit format " + format);
+        this.bufferPool = bufferPool;
+        this.h265 = h265;
+        this.format = format;
+    }
+
+    /**
+     * Add NAL unit with Annex B start code (3 or 4 bytes) to the current access unit.
+     * If RTP timestamp differs from the current access unit one, the current access unit is completed first.
+     * @param rtpTimestamp RTP timestamp of the packet the NAL unit came from
+     * @param timestamp presentation timestamp passed to the listener
+     */
+    public void addNalUnit(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            long rtpTimestamp,
+            long timestamp,
+            @NonNull AccessUnitListener listener) {
+        if (accessUnit != null && rtpTimestamp != accessUnitRtpTimestamp) {
+            if (DEBUG)
+                Log.w(TAG, "RTP timestamp changed without marker bit");
+            endAccessUnit(listener);
+        }
+
+        int startCodeSize = getStartCodeSize(data, offset, length);
+        int nalOffset = offset + startCodeSize;
+        int nalLength = length - startCodeSize;
+        if (nalLength <= 0)
+            return;
+
+        if (accessUnit == null) {
+            accessUnit = bufferPool.acquire();
+            accessUnitRtpTimestamp = rtpTimestamp;
+            accessUnitTimestamp = timestamp;
+            accessUnitKeyFrame = false;
+            accessUnitOverflow = false;
+        }
+        if (accessUnitOverflow)
+            return;
+
+        if (isKeyFrame(data[nalOffset]))
+            accessUnitKeyFrame = true;
+
+        boolean appended;
+        if (format == FORMAT_AVCC) {
+            appended = accessUnit.append((byte) (nalLength >> 24)) &&
+                       accessUnit.append((byte) (nalLength >> 16)) &&
+                       accessUnit.append((byte) (nalLength >> 8)) &&
+                       accessUnit.append((byte) nalLength);
+        } else {
+            appended = accessUnit.append(NAL_START_CODE, 0, NAL_START_CODE.length);
+        }
+        if (!appended || !accessUnit.append(data, nalOffset, nalLength)) {
+            Log.e(TAG, "Access unit is bigger than " + bufferPool.getMaxCapacity() + " bytes. Dropping it.");
+            // Drop the rest of NAL units with the same timestamp as well
+            accessUnitOverflow = true;
+        }
+    }
+
+    /**
+     * Complete the current access unit, e.g. on RTP marker bit, and pass it to the listener.
+     */
+    public void endAccessUnit(@NonNull AccessUnitListener listener) {
+        PooledBuffer buffer = accessUnit;
+        if (buffer == null)
+            return;
+        accessUnit = null;
+        if (accessUnitOverflow || buffer.length() == 0) {
+            buffer.release();
+            droppedAccessUnits++;
+            return;
+        }
+        accessUnits++;
+        listener.onAccessUnitReceived(buffer, accessUnitTimestamp, accessUnitKeyFrame);
+    }
+
+    /**
+     * Drop the current incomplete access unit, e.g. on packet loss.
+     */
+    public void dropAccessUnit() {
+        if (accessUnit == null)
+            return;
+        accessUnit.release();
+        accessUnit = null;
+        droppedAccessUnits++;
+    }
+
+    public long getAccessUnits() {
+        return accessUnits;
+    }
+
+    public long getDroppedAccessUnits() {
+        return droppedAccessUnits;
+    }
+
+    private boolean isKeyFrame(byte nalHeader) {
+        if (h265)
+            return VideoCodecUtils.isH265IrapNalUnitType((byte) ((nalHeader >> 1) & 0x3F));
+        return (nalHeader & 0x1F) == VideoCodecUtils.NAL_IDR_SLICE;
+    }
+
+    private static int getStartCodeSize(@NonNull byte[] data, int offset, int length) {
+        if (length >= 4 && data[offset] == 0 && data[offset + 1] == 0 && data[offset + 2] == 0 && data[offset + 3] == 1)
+            return 4;
+        if (length >= 3 && data[offset] == 0 && data[offset + 1] == 0 && data[offset + 2] == 1)
+            return 3;
+        return 0;
+    }
+
+}
@@ -0,0 +1,230 @@
+package com.alexvas.rtsp.parser;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.alexvas.utils.BufferPool;
+
+// https://tools.ietf.org/html/rfc7798
+//
+// +---------------+---------------+
+// |0|1|2|3|4|5|6|7|0|1|2|3|4|5|6|7|
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |F|   Type    |  LayerId  | TID |
+// +-------------+-----------------+
+public class H265RtpParser extends VideoRtpParser {
+
+    private static final String TAG = H265RtpParser.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private final static int NAL_UNIT_TYPE_AP = 48;
+    private final static int NAL_UNIT_TYPE_FU = 49;
+    private final static int NAL_UNIT_TYPE_PACI = 50;
+
+    // IRAP pictures (BLA_W_LP ... CRA_NUT)
+    private final static int NAL_UNIT_TYPE_IRAP_FIRST = 16;
+    private final static int NAL_UNIT_TYPE_IRAP_LAST = 21;
+    private final static int NAL_UNIT_TYPE_VPS = 32;
+    private final static int NAL_UNIT_TYPE_SPS = 33;
+    private final static int NAL_UNIT_TYPE_PPS = 34;
+
+    private static final int PAYLOAD_HEADER_SIZE = 2;
+    private static final int DONL_SIZE = 2;
+    private static final int DOND_SIZE = 1;
+
+    // DONL/DOND fields are present if sprop-max-don-diff > 0
+    private boolean donlPresent = false;
+
+    public H265RtpParser() {
+        super();
+    }
+
+    public H265RtpParser(int maxNalUnitSize) {
+        super(maxNalUnitSize);
+    }
+
+    public H265RtpParser(@NonNull BufferPool bufferPool) {
+        super(bufferPool);
+    }
+
+    /**
+     * Should be set if SDP has sprop-max-don-diff greater than 0.
+     * Decoding order numbers are skipped, NAL units are passed in transmission order.
+     */
+    public void setDonlPresent(boolean donlPresent) {
+        this.donlPresent = donlPresent;
+    }
+
+    @Override
+    protected void processPayload(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            boolean inPlace,
+            @NonNull NalUnitListener listener) {
+        if (length < PAYLOAD_HEADER_SIZE)
+            return;
+
+        int nalType = getNalUnitType(data, offset);
+        if (nalType != NAL_UNIT_TYPE_FU && isFragmentedNalUnitStarted()) {
+            if (DEBUG)
+                Log.w(TAG, "FU end packet missed");
+            dropFragmentedNalUnit();
+        }
+
+        if (DEBUG)
+            Log.d(TAG, "NAL type: " + nalType);
+        switch (nalType) {
+
+            // Aggregation packet
+            case NAL_UNIT_TYPE_AP:
+                processAggregationPacket(data, offset, length, inPlace, listener);
+                break;
+
+            // Fragmentation unit
+            case NAL_UNIT_TYPE_FU:
+                processFragmentationUnit(data, offset, length, listener);
+                break;
+
+            // PACI packets are not supported
+            case NAL_UNIT_TYPE_PACI:
+                countDroppedNalUnit(length);
+                break;
+
+            // Single NAL unit packet
+            default:
+                if (donlPresent) {
+                    // PayloadHdr, DONL, NAL unit payload
+                    if (length < PAYLOAD_HEADER_SIZE + DONL_SIZE)
+                        break;
+                    if (!inPlace) {
+                        // Caller's data is kept intact, NAL unit is put together in a buffer
+                        int payloadOffset = offset + PAYLOAD_HEADER_SIZE + DONL_SIZE;
+                        emitNalUnit(data, offset, PAYLOAD_HEADER_SIZE, payloadOffset, offset + length - payloadOffset, listener);
+                        break;
+                    }
+                    // Move NAL unit header over DONL to make NAL unit contiguous
+                    data[offset + 3] = data[offset + 1];
+                    data[offset + 2] = data[offset];
+                    offset += DONL_SIZE;
+                    length -= DONL_SIZE;
+                }
+                emitNalUnit(data, offset, length, inPlace, listener);
+                break;
+        }
+    }
+
+    // https://tools.ietf.org/html/rfc7798#section-4.4.2
+    //
+    //  0                   1                   2                   3
+    //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                          RTP Header                           |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |   PayloadHdr (Type=48)        |  (DONL)                       |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |           NALU 1 Size         |          NALU 1 HDR           |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                         NALU 1 Data  . . .                    |
+    // +               +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // . . .           | (DOND)        |  NALU 2 Size                  |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //
+    // Start codes are written over the 4 bytes in front of every NAL unit the same way as for STAP-A.
+    private void processAggregationPacket(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            boolean inPlace,
+            @NonNull NalUnitListener listener) {
+        int pos = offset + PAYLOAD_HEADER_SIZE + (donlPresent ? DONL_SIZE : 0);
+        int end = offset + length;
+        boolean first = true;
+        while (true) {
+            if (!first && donlPresent)
+                pos += DOND_SIZE;
+            if (pos + 2 >= end)
+                return;
+            int nalSize = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            int nalOffset = pos + 2;
+            if (nalSize < PAYLOAD_HEADER_SIZE || nalOffset + nalSize > end) {
+                if (DEBUG)
+                    Log.w(TAG, "Invalid aggregated NAL unit size " + nalSize + ". Dropping the rest of the packet.");
+                countDroppedNalUnit(end - pos);
+                return;
+            }
+            emitNalUnit(data, nalOffset, nalSize, inPlace, listener);
+            pos = nalOffset + nalSize;
+            first = false;
+        }
+    }
+
+    // https://tools.ietf.org/html/rfc7798#section-4.4.3
+    //
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |    PayloadHdr (Type=49)       |   FU header   | DONL (cond)   |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-|
+    //
+    // FU header: S, E, FuType (6 bits). DONL is present in the start fragment only.
+    private void processFragmentationUnit(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            @NonNull NalUnitListener listener) {
+        int headerSize = PAYLOAD_HEADER_SIZE + 1;
+        if (length < headerSize)
+            return;
+        int fuHeader = data[offset + 2] & 0xFF;
+        int nalType = fuHeader & 0x3F;
+        switch (fuHeader & 0xC0) {
+            // NAL Unit start packet
+            case 0x80:
+                if (donlPresent)
+                    headerSize += DONL_SIZE;
+                if (length < headerSize) {
+                    dropFragment(length);
+                    break;
+                }
+                beginFragmentedNalUnit(nalType);
+                // Restore NAL unit header from PayloadHdr with FuType
+                if (appendFragment((byte)((data[offset] & 0x81) | (nalType << 1))) &&
+                    appendFragment(data[offset + 1]))
+                    appendFragment(data, offset + headerSize, length - headerSize);
+                break;
+
+            // NAL Unit middle packet
+            case 0x00:
+                if (checkFragmentContinuity(nalType, length))
+                    appendFragment(data, offset + headerSize, length - headerSize);
+                break;
+
+            // NAL Unit end packet
+            case 0x40:
+                if (checkFragmentContinuity(nalType, length) && appendFragment(data, offset + headerSize, length - headerSize))
+                    endFragmentedNalUnit(listener);
+                break;
+
+            // Both start and end bits set. Invalid per RFC 7798 4.4.3.
+            default:
+                dropFragment(length);
+                break;
+        }
+    }
+
+    @Override
+    protected int getNalUnitType(@NonNull byte[] data, int offset) {
+        return (data[offset] >> 1) & 0x3F;
+    }
+
+    @Override
+    protected boolean isKeyFrame(int nalType) {
+        return nalType >= NAL_UNIT_TYPE_IRAP_FIRST && nalType <= NAL_UNIT_TYPE_IRAP_LAST;
+    }
+
+    @Override
+    protected boolean isParameterSet(int nalType) {
+        return nalType == NAL_UNIT_TYPE_VPS || nalType == NAL_UNIT_TYPE_SPS || nalType == NAL_UNIT_TYPE_PPS;
+    }
+
+}
@@ -0,0 +1,165 @@
+package com.alexvas.rtsp.parser;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// https://www.ietf.org/rfc/rfc2326.txt 10.12 Embedded (Interleaved) Binary Data
+//
+//  +---------+---------+--------------------+------ .. ------+
+//  | '$'     | channel | length (16 bits)   | RTP/RTCP data  |
+//  +---------+---------+--------------------+------ .. ------+
+//
+// Reads big chunks from the RTSP connection into a single buffer and returns interleaved
+// frames as slices of that buffer. No allocation happens per frame.
+public class InterleavedFrameReader {
+
+    private static final String TAG = InterleavedFrameReader.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private static final byte FRAME_MAGIC = 0x24; // '$'
+    private static final int FRAME_HEADER_SIZE = 4;
+    private static final int MAX_FRAME_SIZE = 0xFFFF;
+    // Both RTP and RTCP packets start with version 2
+    private static final int RTP_VERSION_MASK = 0xC0;
+    private static final int RTP_VERSION_2 = 0x80;
+
+    private final @NonNull InputStream inputStream;
+    private final @NonNull byte[] buffer;
+    // Start of not yet parsed data in buffer
+    private int readPos = 0;
+    // End of valid data in buffer
+    private int writePos = 0;
+
+    private int channel = -1;
+    private int frameOffset = 0;
+    private int frameLength = 0;
+    private long skippedBytes = 0;
+
+    public InterleavedFrameReader(@NonNull InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    public InterleavedFrameReader(@NonNull InputStream inputStream, int bufferSize) {
+        if (bufferSize < FRAME_HEADER_SIZE + MAX_FRAME_SIZE)
+            throw new IllegalArgumentException("Buffer size " + bufferSize + " is less than max frame size");
+        this.inputStream = inputStream;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Read next interleaved frame. Any data between frames (e.g. RTSP keep-alive responses)
+     * is skipped.
+     * Frame data is valid till the next call of this method.
+     * @return false if end of stream reached
+     */
+    public boolean readFrame() throws IOException {
+        while (true) {
+            // '$' + channel + length + first byte of RTP/RTCP header
+            if (!fill(FRAME_HEADER_SIZE + 1))
+                return false;
+            if (!isFrameStart(readPos)) {
+                if (!resync())
+                    return false;
+                continue;
+            }
+            int length = ((buffer[readPos + 2] & 0xFF) << 8) | (buffer[readPos + 3] & 0xFF);
+            if (!fill(FRAME_HEADER_SIZE + length))
+                return false;
+            channel = buffer[readPos + 1] & 0xFF;
+            frameOffset = readPos + FRAME_HEADER_SIZE;
+            frameLength = length;
+            readPos += FRAME_HEADER_SIZE + length;
+            if (DEBUG)
+                Log.v(TAG, "Frame channel: " + channel + ", length: " + length);
+            return true;
+        }
+    }
+
+    /**
+     * Interleaved channel of the last read frame. Even channels are usually RTP, odd ones RTCP.
+     */
+    public int getChannel() {
+        return channel;
+    }
+
+    @NonNull
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getFrameOffset() {
+        return frameOffset;
+    }
+
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Number of bytes skipped while searching for frame start since reader creation.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    private boolean isFrameStart(int pos) {
+        return buffer[pos] == FRAME_MAGIC &&
+               (buffer[pos + FRAME_HEADER_SIZE] & RTP_VERSION_MASK) == RTP_VERSION_2;
+    }
+
+    // Scan buffered data for the next '$' followed by RTP/RTCP version 2 byte.
+    // Any interleaved channel is accepted.
+    private boolean resync() throws IOException {
+        int pos = readPos + 1;
+        while (true) {
+            int end = writePos - FRAME_HEADER_SIZE;
+            for (; pos < end; pos++) {
+                if (buffer[pos] == FRAME_MAGIC && isFrameStart(pos)) {
+                    skip(pos - readPos);
+                    return true;
+                }
+            }
+            // Nothing found. Keep the tail which can contain the beginning of the frame.
+            skip(pos - readPos);
+            if (!fill(FRAME_HEADER_SIZE + 1 + 1))
+                return false;
+            pos = readPos;
+        }
+    }
+
+    private void skip(int num) {
+        if (num <= 0)
+            return;
+        if (DEBUG)
+            Log.w(TAG, "Skipped " + num + " bytes while searching for interleaved frame");
+        readPos += num;
+        skippedBytes += num;
+    }
+
+    // Make sure at least "num" bytes are available starting from readPos
+    private boolean fill(int num) throws IOException {
+        if (writePos - readPos >= num)
+            return true;
+        if (buffer.length - readPos < num) {
+            // Move not parsed data to the beginning of the buffer
+            int available = writePos - readPos;
+            System.arraycopy(buffer, readPos, buffer, 0, available);
+            readPos = 0;
+            writePos = available;
+        }
+        while (writePos - readPos < num) {
+            int readBytes = inputStream.read(buffer, writePos, buffer.length - writePos);
+            if (readBytes < 0)
+                return false; // EOF
+            writePos += readBytes;
+        }
+        return true;
+    }
+
+}
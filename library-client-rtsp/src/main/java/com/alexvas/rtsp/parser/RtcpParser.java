@@ -0,0 +1,174 @@
+package com.alexvas.rtsp.parser;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+
+// https://tools.ietf.org/html/rfc3550#section-6
+//
+// Compound RTCP packet is a sequence of RTCP packets, each one starts with the common header:
+//
+//  0                   1                   2                   3
+//  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+// |V=2|P|    RC   |      PT       |             length            |
+// +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+//
+// length is in 32-bit words minus one, including the header.
+public class RtcpParser {
+
+    private static final String TAG = RtcpParser.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public final static int PT_SR = 200;
+    public final static int PT_RR = 201;
+    public final static int PT_SDES = 202;
+    public final static int PT_BYE = 203;
+    public final static int PT_APP = 204;
+    // https://tools.ietf.org/html/rfc4585#section-6.1
+    public final static int PT_RTPFB = 205;
+    public final static int PT_PSFB = 206;
+
+    public final static int SDES_END = 0;
+    public final static int SDES_CNAME = 1;
+
+    private final static int HEADER_SIZE = 4;
+    private final static int SR_SIZE = HEADER_SIZE + 24;
+
+    public interface RtcpListener {
+        /**
+         * @param ntpTimestamp 64-bit NTP timestamp, 32 bits seconds since 1900 and 32 bits fraction
+         */
+        void onRtcpSenderReport(long ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount);
+        void onRtcpSdesCname(long ssrc, @NonNull String cname);
+        void onRtcpBye(long ssrc);
+    }
+
+    /**
+     * Parse compound RTCP packet data[offset, offset + length).
+     * Unknown packet types are skipped.
+     * @return false if data is not a valid RTCP packet
+     */
+    public static boolean parse(@NonNull byte[] data, int offset, int length, @NonNull RtcpListener listener) {
+        int pos = offset;
+        int end = offset + length;
+        if (length < HEADER_SIZE)
+            return false;
+        while (pos + HEADER_SIZE <= end) {
+            int version = (data[pos] & 0xFF) >> 6;
+            if (version != 2) {
+                if (DEBUG)
+                    Log.e(TAG, "Not a RTCP packet (" + version + ")");
+                return false;
+            }
+            int count = data[pos] & 0x1F;
+            int packetType = data[pos + 1] & 0xFF;
+            int packetSize = ((((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF)) + 1) * 4;
+            if (pos + packetSize > end) {
+                if (DEBUG)
+                    Log.w(TAG, "Truncated RTCP packet (type " + packetType + ", size " + packetSize + ")");
+                return false;
+            }
+            if (DEBUG)
+                Log.v(TAG, "RTCP packet type: " + packetType + ", size: " + packetSize);
+            switch (packetType) {
+                case PT_SR:
+                    parseSenderReport(data, pos, packetSize, listener);
+                    break;
+                case PT_SDES:
+                    parseSdes(data, pos, packetSize, count, listener);
+                    break;
+                case PT_BYE:
+                    parseBye(data, pos, packetSize, count, listener);
+                    break;
+                default:
+                    // Receiver reports from the server and other packets are not used
+                    break;
+            }
+            pos += packetSize;
+        }
+        return true;
+    }
+
+    //         0                   1                   2                   3
+    //         0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // header |V=2|P|    RC   |   PT=SR=200   |             length            |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |                         SSRC of sender                        |
+    //        +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+    // sender |              NTP timestamp, most significant word             |
+    // info   +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |             NTP timestamp, least significant word             |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |                         RTP timestamp                         |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |                     sender's packet count                     |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |                      sender's octet count                     |
+    //        +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+    //        |                 report blocks (not used) ...                  |
+    private static void parseSenderReport(@NonNull byte[] data, int offset, int length, @NonNull RtcpListener listener) {
+        if (length < SR_SIZE)
+            return;
+        long ssrc = readUInt32(data, offset + 4);
+        long ntpTimestamp = (readUInt32(data, offset + 8) << 32) | readUInt32(data, offset + 12);
+        long rtpTimestamp = readUInt32(data, offset + 16);
+        long packetCount = readUInt32(data, offset + 20);
+        long octetCount = readUInt32(data, offset + 24);
+        listener.onRtcpSenderReport(ssrc, ntpTimestamp, rtpTimestamp, packetCount, octetCount);
+    }
+
+    // https://tools.ietf.org/html/rfc3550#section-6.5
+    //
+    // Every chunk is SSRC followed by items (type, length, text) and terminated by
+    // one or more null bytes up to the 32-bit boundary.
+    private static void parseSdes(@NonNull byte[] data, int offset, int length, int count, @NonNull RtcpListener listener) {
+        int pos = offset + HEADER_SIZE;
+        int end = offset + length;
+        for (int chunk = 0; chunk < count && pos + 4 <= end; chunk++) {
+            long ssrc = readUInt32(data, pos);
+            pos += 4;
+            while (pos < end) {
+                int itemType = data[pos] & 0xFF;
+                if (itemType == SDES_END) {
+                    // Skip padding till the next chunk
+                    pos = offset + ((pos - offset) / 4 + 1) * 4;
+                    break;
+                }
+                if (pos + 2 > end)
+                    return;
+                int itemLength = data[pos + 1] & 0xFF;
+                if (pos + 2 + itemLength > end)
+                    return;
+                if (itemType == SDES_CNAME)
+                    listener.onRtcpSdesCname(ssrc, new String(data, pos + 2, itemLength, StandardCharsets.UTF_8));
+                pos += 2 + itemLength;
+            }
+        }
+    }
+
+    private static void parseBye(@NonNull byte[] data, int offset, int length, int count, @NonNull RtcpListener listener) {
+        int pos = offset + HEADER_SIZE;
+        int end = offset + length;
+        for (int i = 0; i < count && pos + 4 <= end; i++, pos += 4)
+            listener.onRtcpBye(readUInt32(data, pos));
+    }
+
+    static long readUInt32(@NonNull byte[] data, int offset) {
+        return (((data[offset] & 0xFFL) << 24) |
+                ((data[offset + 1] & 0xFFL) << 16) |
+                ((data[offset + 2] & 0xFFL) << 8) |
+                (data[offset + 3] & 0xFFL));
+    }
+
+    static void writeUInt32(@NonNull byte[] data, int offset, long value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+}
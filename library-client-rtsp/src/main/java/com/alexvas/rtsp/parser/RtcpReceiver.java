@@ -0,0 +1,328 @@
+package com.alexvas.rtsp.parser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+
+// Per-track RTCP receiver state. Collects reception statistics for RTP packets,
+// keeps the last sender report and builds receiver reports.
+// https://tools.ietf.org/html/rfc3550#section-6.4.2
+// https://tools.ietf.org/html/rfc3550#appendix-A.3
+public class RtcpReceiver implements RtcpParser.RtcpListener {
+
+    // Sequence number jumps treated as source restart (RFC 3550 A.1)
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int SEQ_MOD = 1 << 16;
+
+    private static final int RR_HEADER_SIZE = 8;
+    private static final int REPORT_BLOCK_SIZE = 24;
+    public static final int MAX_REPORT_SIZE = RR_HEADER_SIZE + REPORT_BLOCK_SIZE + 8 + 2 + 255 + 1 + 3;
+    private static final int PLI_SIZE = 12;
+    private static final int FIR_SIZE = 20;
+    public static final int KEY_FRAME_REQUEST_SIZE = PLI_SIZE + FIR_SIZE;
+
+    // https://tools.ietf.org/html/rfc4585#section-6.3.1
+    private static final int FMT_PLI = 1;
+    // https://tools.ietf.org/html/rfc5104#section-4.3.1
+    private static final int FMT_FIR = 4;
+
+    private final int clockRate;
+
+    // Reception statistics
+    private boolean seqInitialized = false;
+    private long sourceSsrc;
+    private int maxSeq;
+    private int cycles;
+    private int baseSeq;
+    private long received;
+    private long expectedPrior;
+    private long receivedPrior;
+    private int lastTransit;
+    private boolean hasTransit = false;
+    // Interarrival jitter in timestamp units multiplied by 16 (RFC 3550 A.8)
+    private long jitterQ4;
+
+    // Last sender report
+    private long lastSrNtpTimestamp;
+    private long lastSrRtpTimestamp;
+    private long lastSrArrivalMsec = -1;
+    private long senderReports = 0;
+    // Arrival time of RTCP packet being parsed
+    private long packetArrivalMsec;
+
+    private boolean byeReceived = false;
+    private @Nullable String cname;
+
+    /**
+     * @param clockRate RTP clock rate of the track, needed for jitter calculation
+     */
+    public RtcpReceiver(int clockRate) {
+        this.clockRate = clockRate;
+    }
+
+    /**
+     * Called for every received RTP packet in arrival order.
+     */
+    public void onRtpPacket(int sequenceNumber, long rtpTimestamp, long ssrc, long arrivalMsec) {
+        if (!seqInitialized || ssrc != sourceSsrc) {
+            sourceSsrc = ssrc;
+            initSequence(sequenceNumber);
+        }
+        int delta = (sequenceNumber - maxSeq) & 0xFFFF;
+        if (delta < MAX_DROPOUT) {
+            // In order, with permissible gap
+            if (sequenceNumber < maxSeq)
+                cycles += SEQ_MOD;
+            maxSeq = sequenceNumber;
+        } else if (delta <= SEQ_MOD - MAX_MISORDER) {
+            // Very large jump. Assume the source restarted.
+            initSequence(sequenceNumber);
+        }
+        // Otherwise duplicate or reordered packet
+        received++;
+
+        // https://tools.ietf.org/html/rfc3550#appendix-A.8
+        int arrival = (int) (arrivalMsec * clockRate / 1000);
+        int transit = arrival - (int) rtpTimestamp;
+        if (hasTransit) {
+            int d = Math.abs(transit - lastTransit);
+            jitterQ4 += d - ((jitterQ4 + 8) >> 4);
+        }
+        lastTransit = transit;
+        hasTransit = true;
+    }
+
+    private void initSequence(int sequenceNumber) {
+        seqInitialized = true;
+        baseSeq = sequenceNumber;
+        maxSeq = sequenceNumber;
+        cycles = 0;
+        received = 0;
+        expectedPrior = 0;
+        receivedPrior = 0;
+        hasTransit = false;
+        jitterQ4 = 0;
+    }
+
+    /**
+     * Should be called right before passing RTCP packet to {@link RtcpParser#parse}.
+     */
+    public void setPacketArrivalTime(long arrivalMsec) {
+        packetArrivalMsec = arrivalMsec;
+    }
+
+    @Override
+    public void onRtcpSenderReport(long ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount) {
+        lastSrNtpTimestamp = ntpTimestamp;
+        lastSrRtpTimestamp = rtpTimestamp;
+        lastSrArrivalMsec = packetArrivalMsec;
+        senderReports++;
+    }
+
+    @Override
+    public void onRtcpSdesCname(long ssrc, @NonNull String cname) {
+        this.cname = cname;
+    }
+
+    @Override
+    public void onRtcpBye(long ssrc) {
+        if (!seqInitialized || ssrc == sourceSsrc)
+            byeReceived = true;
+    }
+
+    /**
+     * At least one RTP packet received, so SSRC of the media source is known
+     */
+    public boolean hasSourceSsrc() {
+        return seqInitialized;
+    }
+
+    public long getSourceSsrc() {
+        return sourceSsrc;
+    }
+
+    public boolean hasSenderReport() {
+        return lastSrArrivalMsec >= 0;
+    }
+
+    public long getSenderReports() {
+        return senderReports;
+    }
+
+    public long getLastSrNtpTimestamp() {
+        return lastSrNtpTimestamp;
+    }
+
+    public long getLastSrRtpTimestamp() {
+        return lastSrRtpTimestamp;
+    }
+
+    public boolean isByeReceived() {
+        return byeReceived;
+    }
+
+    @Nullable
+    public String getCname() {
+        return cname;
+    }
+
+    public long getJitterUs() {
+        return (jitterQ4 >> 4) * 1000000L / clockRate;
+    }
+
+    /**
+     * Cumulative number of packets lost, RFC 3550 definition (expected - received).
+     */
+    public long getCumulativeLost() {
+        if (!seqInitialized)
+            return 0;
+        long expected = (long) cycles + maxSeq - baseSeq + 1;
+        return expected - received;
+    }
+
+    // Compound packet: RR with single report block followed by SDES with CNAME.
+    // Every compound RTCP packet must contain CNAME (RFC 3550 6.1).
+    //
+    //         0                   1                   2                   3
+    //         0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // header |V=2|P|    RC   |   PT=RR=201   |             length            |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |                     SSRC of packet sender                     |
+    //        +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+    // report |                           SSRC_1                              |
+    // block  +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        | fraction lost |       cumulative number of packets lost       |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |           extended highest sequence number received           |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |                      interarrival jitter                      |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |                         last SR (LSR)                         |
+    //        +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    //        |                   delay since last SR (DLSR)                  |
+    //        +=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+=+
+    /**
+     * Write compound receiver report to data[offset, offset + MAX_REPORT_SIZE).
+     * If no RTP packets were received yet, RR has no report blocks.
+     * @param ssrc SSRC of this receiver
+     * @param cname CNAME of this receiver, up to 255 bytes in UTF-8
+     * @return report size in bytes
+     */
+    public int writeReceiverReport(@NonNull byte[] data, int offset, long ssrc, @NonNull String cname, long nowMsec) {
+        int pos = offset;
+        int reportCount = seqInitialized ? 1 : 0;
+        int rrSize = RR_HEADER_SIZE + reportCount * REPORT_BLOCK_SIZE;
+        data[pos] = (byte) (0x80 | reportCount);
+        data[pos + 1] = (byte) RtcpParser.PT_RR;
+        data[pos + 2] = 0;
+        data[pos + 3] = (byte) (rrSize / 4 - 1);
+        RtcpParser.writeUInt32(data, pos + 4, ssrc);
+        pos += RR_HEADER_SIZE;
+
+        if (seqInitialized) {
+            long extendedMax = (long) cycles + maxSeq;
+            long expected = extendedMax - baseSeq + 1;
+            long lost = expected - received;
+            // 24-bit signed value
+            lost = Math.max(-0x800000L, Math.min(0x7FFFFFL, lost));
+            long expectedInterval = expected - expectedPrior;
+            long receivedInterval = received - receivedPrior;
+            expectedPrior = expected;
+            receivedPrior = received;
+            long lostInterval = expectedInterval - receivedInterval;
+            int fraction = (expectedInterval == 0 || lostInterval <= 0) ? 0 : (int) ((lostInterval << 8) / expectedInterval);
+            long lsr = 0;
+            long dlsr = 0;
+            if (lastSrArrivalMsec >= 0) {
+                // Middle 32 bits of NTP timestamp and delay in 1/65536 seconds
+                lsr = (lastSrNtpTimestamp >> 16) & 0xFFFFFFFFL;
+                dlsr = (nowMsec - lastSrArrivalMsec) * 65536 / 1000;
+            }
+            RtcpParser.writeUInt32(data, pos, sourceSsrc);
+            RtcpParser.writeUInt32(data, pos + 4, ((long) Math.min(fraction, 255) << 24) | (lost & 0xFFFFFF));
+            RtcpParser.writeUInt32(data, pos + 8, extendedMax & 0xFFFFFFFFL);
+            RtcpParser.writeUInt32(data, pos + 12, (jitterQ4 >> 4) & 0xFFFFFFFFL);
+            RtcpParser.writeUInt32(data, pos + 16, lsr);
+            RtcpParser.writeUInt32(data, pos + 20, dlsr & 0xFFFFFFFFL);
+            pos += REPORT_BLOCK_SIZE;
+        }
+
+        //  0                   1                   2                   3
+        //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+        // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+        // |V=2|P|  SC=1   |  PT=SDES=202  |             length            |
+        // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+        // |                          SSRC/CSRC_1                          |
+        // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+        // |    CNAME=1    |     length    | user and domain name        ...
+        // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+        byte[] cnameBytes = cname.getBytes(StandardCharsets.UTF_8);
+        int cnameLength = Math.min(cnameBytes.length, 255);
+        // Chunk is null terminated and padded to 32 bits
+        int chunkSize = (4 + 2 + cnameLength + 1 + 3) / 4 * 4;
+        int sdesSize = 4 + chunkSize;
+        int sdes = pos;
+        data[sdes] = (byte) 0x81;
+        data[sdes + 1] = (byte) RtcpParser.PT_SDES;
+        data[sdes + 2] = (byte) ((sdesSize / 4 - 1) >> 8);
+        data[sdes + 3] = (byte) (sdesSize / 4 - 1);
+        RtcpParser.writeUInt32(data, sdes + 4, ssrc);
+        data[sdes + 8] = (byte) RtcpParser.SDES_CNAME;
+        data[sdes + 9] = (byte) cnameLength;
+        System.arraycopy(cnameBytes, 0, data, sdes + 10, cnameLength);
+        for (int i = sdes + 10 + cnameLength; i < sdes + sdesSize; i++)
+            data[i] = RtcpParser.SDES_END;
+        pos += sdesSize;
+        return pos - offset;
+    }
+
+    // Picture Loss Indication followed by Full Intra Request. Some servers support only one of them.
+    // Should be appended to a compound packet with receiver report.
+    //
+    //  0                   1                   2                   3
+    //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |V=2|P|   FMT   |   PT=PSFB=206 |          length               |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                  SSRC of packet sender                        |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                  SSRC of media source (0 for FIR)             |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // :            FCI, FIR only: SSRC, Seq nr., Reserved             :
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    /**
+     * Write PLI and FIR for the media source to data[offset, offset + KEY_FRAME_REQUEST_SIZE).
+     * Media source SSRC should be known, see {@link #hasSourceSsrc()}.
+     * @param ssrc SSRC of this receiver
+     * @param firSequence FIR command sequence number, should be incremented for every new request
+     * @return size in bytes
+     */
+    public int writeKeyFrameRequest(@NonNull byte[] data, int offset, long ssrc, int firSequence) {
+        int pos = offset;
+        data[pos] = (byte) (0x80 | FMT_PLI);
+        data[pos + 1] = (byte) RtcpParser.PT_PSFB;
+        data[pos + 2] = 0;
+        data[pos + 3] = (byte) (PLI_SIZE / 4 - 1);
+        RtcpParser.writeUInt32(data, pos + 4, ssrc);
+        RtcpParser.writeUInt32(data, pos + 8, sourceSsrc);
+        pos += PLI_SIZE;
+
+        data[pos] = (byte) (0x80 | FMT_FIR);
+        data[pos + 1] = (byte) RtcpParser.PT_PSFB;
+        data[pos + 2] = 0;
+        data[pos + 3] = (byte) (FIR_SIZE / 4 - 1);
+        RtcpParser.writeUInt32(data, pos + 4, ssrc);
+        RtcpParser.writeUInt32(data, pos + 8, 0);
+        RtcpParser.writeUInt32(data, pos + 12, sourceSsrc);
+        data[pos + 16] = (byte) firSequence;
+        data[pos + 17] = 0;
+        data[pos + 18] = 0;
+        data[pos + 19] = 0;
+        pos += FIR_SIZE;
+        return pos - offset;
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.alexvas.rtsp.parser;
+
+// Per-track media clock which converts 32-bit RTP timestamps to microseconds.
+// https://tools.ietf.org/html/rfc3550#section-5.1
+//
+// RTP timestamps wrap around every 2^32 ticks (~13 hours at 90 kHz, ~27 hours at 44.1 kHz).
+// Every timestamp is extended to 64 bits relative to the previous one, so reordered packets
+// and B-frames with slightly smaller timestamps are handled correctly across the wrap too.
+//
+//   time, usec = startOffsetUs + (extended - extendedStart) * 1000000 / clockRate
+//
+// startOffsetUs is the track start time relative to the session epoch (the first RTP packet
+// of any track), which keeps video and audio tracks roughly aligned with each other.
+//
+// RTCP sender reports align the track to the sender wall clock. The first one may move the
+// clock forward right away, but never behind the newest timestamp already returned. The rest
+// of the error, and drift found by later reports, is slewed in gradually, so timestamps of
+// the newest frames never decrease (MediaMuxer rejects that).
+public class RtpClock {
+
+    public static final int DEFAULT_VIDEO_CLOCK_RATE = 90000;
+
+    // Max correction is 1/20 of the elapsed media time, i.e. 50 ms per second
+    private static final int SLEW_RATE_DIVIDER = 20;
+
+    private final int clockRate;
+    private boolean started = false;
+    private boolean aligned = false;
+    private long lastExtended;
+    private long extendedStart;
+    private long startOffsetUs;
+    // Time returned for lastExtended, i.e. for the newest timestamp
+    private long lastTimeUs = Long.MIN_VALUE;
+    // Part of the sender report error not applied yet
+    private long correctionUs = 0;
+
+    /**
+     * @param clockRate RTP clock rate from SDP "a=rtpmap", e.g. 90000 for video or sample rate for AAC
+     */
+    public RtpClock(int clockRate) {
+        if (clockRate <= 0)
+            throw new IllegalArgumentException("Invalid clock rate " + clockRate);
+        this.clockRate = clockRate;
+    }
+
+    public int getClockRate() {
+        return clockRate;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Anchor the clock. Timestamp rtpTimestamp will be converted to startOffsetUs,
+     * or to the last returned time if that one is bigger (restarted stream).
+     */
+    public void start(long rtpTimestamp, long startOffsetUs) {
+        started = true;
+        lastExtended = rtpTimestamp & 0xFFFFFFFFL;
+        extendedStart = lastExtended;
+        this.startOffsetUs = Math.max(startOffsetUs, lastTimeUs);
+    }
+
+    /**
+     * Align the clock, so rtpTimestamp is converted to timeUs. Used to align the track to the sender
+     * wall clock from RTCP sender reports. The first call moves the clock forward at once, backward
+     * only as far as already returned timestamps allow. Everything else is corrected gradually.
+     * Clock should be started.
+     */
+    public void rebase(long rtpTimestamp, long timeUs) {
+        // Report is not a frame, do not move lastExtended
+        long extended = lastExtended + (int) (rtpTimestamp - lastExtended);
+        long errorUs = timeUs - (startOffsetUs + (extended - extendedStart) * 1000000L / clockRate);
+        if (aligned) {
+            // Drift or sender clock step. Replaces the previous estimate, which was not applied fully.
+            correctionUs = errorUs;
+            return;
+        }
+        aligned = true;
+        long stepUs = errorUs;
+        if (lastTimeUs != Long.MIN_VALUE) {
+            // Newest timestamp should not be converted to a time less than already returned for it
+            long lastUs = startOffsetUs + (lastExtended - extendedStart) * 1000000L / clockRate;
+            stepUs = Math.max(stepUs, lastTimeUs - lastUs);
+        }
+        startOffsetUs += stepUs;
+        correctionUs = errorUs - stepUs;
+    }
+
+    /**
+     * Called on stream restart (e.g. SSRC change). Timestamps of the new stream are not related to the old ones,
+     * so the clock has to be anchored again.
+     */
+    public void reset() {
+        started = false;
+        aligned = false;
+        correctionUs = 0;
+    }
+
+    /**
+     * Extend 32-bit RTP timestamp to 64 bits using the last extended timestamp.
+     * Clock should be started.
+     */
+    public long extend(long rtpTimestamp) {
+        // Signed distance from the last timestamp, correct across the wrap
+        int delta = (int) (rtpTimestamp - lastExtended);
+        long extended = lastExtended + delta;
+        // Keep the max value, so a late packet does not move the reference back
+        if (delta > 0)
+            lastExtended = extended;
+        return extended;
+    }
+
+    /**
+     * Convert 32-bit RTP timestamp to microseconds since the session epoch.
+     * If the clock was not started, it is started with 0 offset.
+     */
+    public long toTimeUs(long rtpTimestamp) {
+        if (!started)
+            start(rtpTimestamp, 0);
+        long previous = lastExtended;
+        long extended = extend(rtpTimestamp);
+        if (extended > previous && correctionUs != 0) {
+            long maxStepUs = (extended - previous) * 1000000L / clockRate / SLEW_RATE_DIVIDER;
+            long stepUs = Math.max(-maxStepUs, Math.min(maxStepUs, correctionUs));
+            startOffsetUs += stepUs;
+            correctionUs -= stepUs;
+        }
+        long timeUs = startOffsetUs + (extended - extendedStart) * 1000000L / clockRate;
+        if (extended == lastExtended) {
+            // Newest frame. Older ones (reordered, B-frames) keep their distance to it.
+            timeUs = Math.max(timeUs, lastTimeUs);
+            lastTimeUs = timeUs;
+        }
+        return timeUs;
+    }
+
+}
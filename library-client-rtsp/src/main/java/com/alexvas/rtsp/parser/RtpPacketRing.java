@@ -0,0 +1,193 @@
+package com.alexvas.rtsp.parser;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Hands RTP/RTCP packets from the socket reader thread to the depacketizer thread.
+//
+//   reader thread                                         depacketizer thread
+//   push() --> [ slots: channel, offset, length ] --> drain() --> depacketizer, listeners
+//                        |
+//   data:  +-----------------------------------------------+
+//          | .. | pkt | pkt | pkt | pkt | .......... |     |
+//          +-----------------------------------------------+
+//               ^ oldest not consumed    ^ next write
+//
+// Single-producer single-consumer. Slots and packet data are preallocated, packets are copied
+// into one contiguous array, nothing is allocated per packet. The consumer takes everything
+// queued in one batch and frees the whole batch at once, so head/tail cache lines bounce
+// once per batch rather than once per packet.
+//
+// When full, the producer waits. For TCP this pushes back on the server, same as a slow
+// single-threaded reader. Latency added by the ring is bounded by its size.
+public class RtpPacketRing {
+
+    public static final int DEFAULT_SLOTS = 4096;
+    public static final int DEFAULT_BYTES = 4 * 1024 * 1024;
+
+    private static final long PRODUCER_WAIT_NSEC = 100000; // 0.1 msec
+
+    public interface PacketConsumer {
+        /**
+         * Packet data is valid only during the call.
+         * @param channel 0 - video RTP, 1 - video RTCP, 2 - audio RTP, 3 - audio RTCP
+         */
+        void onPacket(int channel, @NonNull byte[] data, int offset, int length);
+    }
+
+    private final byte[] data;
+    private final int mask;
+    private final int[] channels;
+    private final int[] offsets;
+    private final int[] lengths;
+
+    // Next slot to read, written by consumer only
+    private final AtomicLong head = new AtomicLong(0);
+    // Next slot to write, written by producer only
+    private final AtomicLong tail = new AtomicLong(0);
+
+    // Producer side
+    private int writePos = 0;
+    private volatile long producerBlockedNsec = 0;
+    private volatile int maxDepth = 0;
+
+    private volatile boolean closed = false;
+    private volatile boolean consumerWaiting = false;
+    private volatile Thread consumer;
+
+    /**
+     * @param slots max number of queued packets, rounded up to a power of two
+     * @param bytes max size of queued packets, should be at least the max packet size
+     */
+    public RtpPacketRing(int slots, int bytes) {
+        if (slots <= 0 || slots > (1 << 20))
+            throw new IllegalArgumentException("Invalid number of slots " + slots);
+        if (bytes < 0xFFFF)
+            throw new IllegalArgumentException("Ring size " + bytes + " is less than max packet size");
+        int size = Integer.highestOneBit(slots);
+        if (size < slots)
+            size <<= 1;
+        mask = size - 1;
+        data = new byte[bytes];
+        channels = new int[size];
+        offsets = new int[size];
+        lengths = new int[size];
+    }
+
+    /**
+     * Producer only. Copy the packet into the ring, waiting for space if needed.
+     * @return false if the ring is closed
+     */
+    public boolean push(int channel, @NonNull byte[] packet, int offset, int length) {
+        if (length <= 0 || length > data.length)
+            return !closed;
+        int pos;
+        long t = tail.get();
+        if ((pos = allocate(t, length)) < 0) {
+            long started = System.nanoTime();
+            do {
+                if (closed)
+                    return false;
+                LockSupport.parkNanos(PRODUCER_WAIT_NSEC);
+            } while ((pos = allocate(t, length)) < 0);
+            producerBlockedNsec += System.nanoTime() - started;
+        }
+        System.arraycopy(packet, offset, data, pos, length);
+        writePos = pos + length;
+        int index = (int) (t & mask);
+        channels[index] = channel;
+        offsets[index] = pos;
+        lengths[index] = length;
+        // Volatile write makes packet data visible before the new tail and
+        // is not reordered with the consumerWaiting read below
+        tail.set(t + 1);
+        int depth = (int) (t + 1 - head.get());
+        if (depth > maxDepth)
+            maxDepth = depth;
+        if (consumerWaiting) {
+            Thread c = consumer;
+            if (c != null)
+                LockSupport.unpark(c);
+        }
+        return !closed;
+    }
+
+    /**
+     * Consumer only. Pass all queued packets to the consumer and free them.
+     * @return number of packets
+     */
+    public int drain(@NonNull PacketConsumer packetConsumer) {
+        long h = head.get();
+        long t = tail.get();
+        for (long i = h; i < t; i++) {
+            int index = (int) (i & mask);
+            packetConsumer.onPacket(channels[index], data, offsets[index], lengths[index]);
+        }
+        if (t != h)
+            // Slots and data can be reused by producer from now on
+            head.lazySet(t);
+        return (int) (t - h);
+    }
+
+    /**
+     * Consumer only. Wait till packets are queued, the timeout expires or the ring is closed.
+     */
+    public void await(long timeoutNsec) {
+        consumer = Thread.currentThread();
+        long h = head.get();
+        if (h != tail.get() || closed)
+            return;
+        consumerWaiting = true;
+        // Re-check after the flag is visible, so a packet pushed meanwhile is not missed
+        if (h == tail.get() && !closed)
+            LockSupport.parkNanos(this, timeoutNsec);
+        consumerWaiting = false;
+    }
+
+    /**
+     * Wake up both sides. Packets pushed after that are dropped.
+     */
+    public void close() {
+        closed = true;
+        Thread c = consumer;
+        if (c != null)
+            LockSupport.unpark(c);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getDepth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getProducerBlockedMsec() {
+        return producerBlockedNsec / 1000000;
+    }
+
+    // Packets are kept contiguous. If there is no room till the end of the array, wrap to 0.
+    // Returns offset or -1 if the ring is full.
+    private int allocate(long t, int length) {
+        long h = head.get();
+        if (t - h > mask)
+            return -1;
+        if (t == h)
+            // Everything consumed
+            return 0;
+        int headOffset = offsets[(int) (h & mask)];
+        if (writePos > headOffset) {
+            if (data.length - writePos >= length)
+                return writePos;
+            return headOffset >= length ? 0 : -1;
+        }
+        return headOffset - writePos >= length ? writePos : -1;
+    }
+
+}
@@ -27,6 +27,7 @@ public class RtpParser {
         public int sequenceNumber;
         public long timeStamp;
         public long ssrc;
+        public int payloadOffset;
         public int payloadSize;
 
         // If RTP header found, return 4 bytes of the header
@@ -72,18 +73,58 @@ public class RtpParser {
                     Log.e(TAG,"Not a RTP packet (" + rtpHeader.version + ")");
                 return null;
             }
+            rtpHeader.parseFixedHeader(header, 0);
+            rtpHeader.payloadOffset = RTP_HEADER_SIZE;
+            rtpHeader.payloadSize = packetSize - RTP_HEADER_SIZE;
+            return rtpHeader;
+        }
 
+        /**
+         * Parse RTP packet stored in data[offset, offset + length) into this header object.
+         * CSRC list, header extension and padding are skipped, so the payload is
+         * data[payloadOffset, payloadOffset + payloadSize).
+         * @return false if data does not contain a valid RTP packet
+         */
+        public boolean parse(@NonNull byte[] data, int offset, int length) {
+            if (length < RTP_HEADER_SIZE)
+                return false;
+            version = (data[offset] & 0xFF) >> 6;
+            if (version != 2) {
+                if (DEBUG)
+                    Log.e(TAG,"Not a RTP packet (" + version + ")");
+                return false;
+            }
+            parseFixedHeader(data, offset);
+
+            int headerSize = RTP_HEADER_SIZE + cc * 4;
+            if (extension != 0) {
+                // 16 bits profile specific + 16 bits length in 32-bit words
+                if (length < headerSize + 4)
+                    return false;
+                int extLength = ((data[offset + headerSize + 2] & 0xFF) << 8) | (data[offset + headerSize + 3] & 0xFF);
+                headerSize += 4 + extLength * 4;
+            }
+            int paddingSize = 0;
+            if (padding != 0)
+                paddingSize = data[offset + length - 1] & 0xFF;
+            if (length < headerSize + paddingSize)
+                return false;
+            payloadOffset = offset + headerSize;
+            payloadSize = length - headerSize - paddingSize;
+            return true;
+        }
+
+        private void parseFixedHeader(@NonNull byte[] data, int offset) {
             // 80 60 40 91 fd ab d4 2a
             // 80 c8 00 06
-            rtpHeader.padding = (header[0] & 0x20) >> 5; // 0b00100100
-            rtpHeader.extension = (header[0] & 0x10) >> 4;
-            rtpHeader.marker = (header[1] & 0x80) >> 7;
-            rtpHeader.payloadType = header[1] & 0x7F;
-            rtpHeader.sequenceNumber = (header[3] & 0xFF) + ((header[2] & 0xFF) << 8);
-            rtpHeader.timeStamp = (header[7] & 0xFF) + ((header[6] & 0xFF) << 8) + ((header[5] & 0xFF) << 16) + ((header[4] & 0xFF) << 24) & 0xffffffffL;
-            rtpHeader.ssrc = (header[7] & 0xFF) + ((header[6] & 0xFF) << 8) + ((header[5] & 0xFF) << 16) + ((header[4] & 0xFF) << 24) & 0xffffffffL;
-            rtpHeader.payloadSize = packetSize - RTP_HEADER_SIZE;
-            return rtpHeader;
+            padding = (data[offset] & 0x20) >> 5; // 0b00100100
+            extension = (data[offset] & 0x10) >> 4;
+            cc = data[offset] & 0x0F;
+            marker = (data[offset + 1] & 0x80) >> 7;
+            payloadType = data[offset + 1] & 0x7F;
+            sequenceNumber = (data[offset + 3] & 0xFF) + ((data[offset + 2] & 0xFF) << 8);
+            timeStamp = (data[offset + 7] & 0xFF) + ((data[offset + 6] & 0xFF) << 8) + ((data[offset + 5] & 0xFF) << 16) + ((data[offset + 4] & 0xFF) << 24) & 0xffffffffL;
+            ssrc = (data[offset + 11] & 0xFF) + ((data[offset + 10] & 0xFF) << 8) + ((data[offset + 9] & 0xFF) << 16) + ((data[offset + 8] & 0xFF) << 24) & 0xffffffffL;
         }
 
         private static int getPacketSize(@NonNull byte[] header) {
@@ -103,6 +144,7 @@ public class RtpParser {
                     + ", seq num: " + sequenceNumber
                     + ", ts: " + timeStamp
                     + ", ssrc: " + ssrc
+                    + ", payload offset: " + payloadOffset
                     + ", payload size: " + payloadSize);
         }
     }
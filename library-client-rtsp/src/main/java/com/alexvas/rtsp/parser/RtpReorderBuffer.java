@@ -0,0 +1,281 @@
+package com.alexvas.rtsp.parser;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+// Per-track jitter buffer which restores RTP packet order using 16-bit sequence numbers.
+// https://tools.ietf.org/html/rfc3550#appendix-A.1
+//
+// Packets arriving in order are passed through without copying. Out of order packets are
+// copied into preallocated slots and released as soon as the gap is filled or the latency
+// window expires. In the latter case missing packets are reported as lost.
+public class RtpReorderBuffer {
+
+    private static final String TAG = RtpReorderBuffer.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    // Sequence number jumps treated as source restart (RFC 3550 A.1)
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+
+    private static final int INITIAL_SLOT_SIZE = 2048;
+    private static final int NO_SEQUENCE = -1;
+
+    public interface PacketListener {
+        /**
+         * RTP packet in sequence number order. Data is valid only during this call.
+         */
+        void onRtpPacket(@NonNull byte[] data, int offset, int length);
+
+        /**
+         * Called before the packet following the gap is passed.
+         * @param lostPackets number of missing packets, 0 if unknown (e.g. stream restarted)
+         */
+        void onRtpPacketLoss(int lostPackets);
+    }
+
+    private final int latencyMsec;
+    private final int mask;
+    private final byte[][] slotData;
+    private final int[] slotLength;
+    private final int[] slotSequence;
+    private final long[] slotArrivalTime;
+    private int bufferedCount = 0;
+
+    // Next sequence number to be passed to the listener
+    private int expectedSequence = NO_SEQUENCE;
+    private long ssrc = -1;
+
+    private long lostPackets = 0;
+    private long reorderedPackets = 0;
+    private long latePackets = 0;
+    private long duplicatePackets = 0;
+
+    /**
+     * @param capacity max number of buffered packets, power of 2
+     * @param latencyMsec how long to wait for a missing packet before reporting it as lost.
+     *                    0 disables reordering, gaps are reported immediately.
+     */
+    public RtpReorderBuffer(int capacity, int latencyMsec) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0 || capacity > 0x8000)
+            throw new IllegalArgumentException("Capacity " + capacity + " is not a power of 2");
+        if (latencyMsec < 0)
+            throw new IllegalArgumentException("Invalid latency " + latencyMsec);
+        this.latencyMsec = latencyMsec;
+        mask = capacity - 1;
+        slotData = new byte[capacity][];
+        slotLength = new int[capacity];
+        slotSequence = new int[capacity];
+        slotArrivalTime = new long[capacity];
+        for (int i = 0; i < capacity; i++)
+            slotSequence[i] = NO_SEQUENCE;
+    }
+
+    /**
+     * @param header already parsed header of the packet data[offset, offset + length)
+     * @param nowMsec monotonic time, e.g. SystemClock.elapsedRealtime()
+     */
+    public void push(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            @NonNull RtpParser.RtpHeader header,
+            long nowMsec,
+            @NonNull PacketListener listener) {
+        // Flushed packets are parsed by the listener into the same header, keep its values
+        int sequence = header.sequenceNumber & 0xFFFF;
+        long packetSsrc = header.ssrc;
+        if (expectedSequence == NO_SEQUENCE || packetSsrc != ssrc) {
+            if (expectedSequence != NO_SEQUENCE) {
+                if (DEBUG)
+                    Log.i(TAG, "SSRC changed " + ssrc + " -> " + packetSsrc);
+                restart(listener);
+            }
+            ssrc = packetSsrc;
+            expectedSequence = sequence;
+        }
+
+        // Signed distance with 16-bit wraparound
+        int diff = (short) (sequence - expectedSequence);
+        if (diff >= MAX_DROPOUT || diff < -MAX_MISORDER) {
+            if (DEBUG)
+                Log.i(TAG, "Sequence jumped " + expectedSequence + " -> " + sequence + ". Source restarted?");
+            restart(listener);
+            expectedSequence = sequence;
+            diff = 0;
+        }
+
+        if (diff < 0) {
+            // Already skipped or passed
+            latePackets++;
+            return;
+        }
+
+        if (diff == 0) {
+            deliver(data, offset, length, listener);
+            drainInOrder(listener);
+            return;
+        }
+
+        if (latencyMsec == 0) {
+            // No reordering. Report gap and pass the packet right away.
+            reportLoss(diff, listener);
+            expectedSequence = sequence;
+            deliver(data, offset, length, listener);
+            return;
+        }
+
+        if (diff > mask) {
+            // Buffer is full. Give up waiting for the oldest missing packets.
+            releaseUpTo((sequence - mask) & 0xFFFF, listener);
+            drainInOrder(listener);
+            if (sequence == expectedSequence) {
+                deliver(data, offset, length, listener);
+                drainInOrder(listener);
+                return;
+            }
+        }
+
+        int slot = sequence & mask;
+        if (slotSequence[slot] == sequence) {
+            duplicatePackets++;
+            return;
+        }
+        byte[] buffer = slotData[slot];
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, INITIAL_SLOT_SIZE)];
+            slotData[slot] = buffer;
+        }
+        System.arraycopy(data, offset, buffer, 0, length);
+        slotLength[slot] = length;
+        slotSequence[slot] = sequence;
+        slotArrivalTime[slot] = nowMsec;
+        bufferedCount++;
+        reorderedPackets++;
+    }
+
+    /**
+     * Release packets which waited for a missing one longer than latency window.
+     * Should be called periodically, at least every {@link #getLatencyMsec()} while
+     * {@link #hasPendingPackets()} returns true.
+     */
+    public void poll(long nowMsec, @NonNull PacketListener listener) {
+        while (bufferedCount > 0) {
+            int slot = findFirstBufferedSlot();
+            if (nowMsec - slotArrivalTime[slot] < latencyMsec)
+                return;
+            releaseUpTo(slotSequence[slot], listener);
+            drainInOrder(listener);
+        }
+    }
+
+    /**
+     * Pass all buffered packets in order and forget current sequence number.
+     */
+    public void flush(@NonNull PacketListener listener) {
+        while (bufferedCount > 0) {
+            releaseUpTo(slotSequence[findFirstBufferedSlot()], listener);
+            drainInOrder(listener);
+        }
+        expectedSequence = NO_SEQUENCE;
+    }
+
+    public boolean hasPendingPackets() {
+        return bufferedCount > 0;
+    }
+
+    public int getLatencyMsec() {
+        return latencyMsec;
+    }
+
+    public long getLostPackets() {
+        return lostPackets;
+    }
+
+    /**
+     * Number of packets which arrived ahead of a missing one and had to be buffered.
+     */
+    public long getReorderedPackets() {
+        return reorderedPackets;
+    }
+
+    /**
+     * Number of packets dropped since they arrived after being reported as lost.
+     */
+    public long getLatePackets() {
+        return latePackets;
+    }
+
+    public long getDuplicatePackets() {
+        return duplicatePackets;
+    }
+
+    private void restart(@NonNull PacketListener listener) {
+        flush(listener);
+        listener.onRtpPacketLoss(0);
+    }
+
+    private void deliver(@NonNull byte[] data, int offset, int length, @NonNull PacketListener listener) {
+        expectedSequence = (expectedSequence + 1) & 0xFFFF;
+        listener.onRtpPacket(data, offset, length);
+    }
+
+    // Pass buffered packets continuing the expected sequence
+    private void drainInOrder(@NonNull PacketListener listener) {
+        while (bufferedCount > 0) {
+            int slot = expectedSequence & mask;
+            if (slotSequence[slot] != expectedSequence)
+                return;
+            releaseSlot(slot, listener);
+        }
+    }
+
+    // Pass buffered packets older than targetSequence, reporting gaps between them as loss
+    private void releaseUpTo(int targetSequence, @NonNull PacketListener listener) {
+        int distance = (targetSequence - expectedSequence) & 0xFFFF;
+        int lost = 0;
+        int scan = Math.min(distance, mask + 1);
+        for (int i = 0; i < scan; i++) {
+            int slot = expectedSequence & mask;
+            if (slotSequence[slot] == expectedSequence) {
+                reportLoss(lost, listener);
+                lost = 0;
+                releaseSlot(slot, listener);
+            } else {
+                lost++;
+                expectedSequence = (expectedSequence + 1) & 0xFFFF;
+            }
+        }
+        reportLoss(lost + distance - scan, listener);
+        expectedSequence = targetSequence;
+    }
+
+    private void releaseSlot(int slot, @NonNull PacketListener listener) {
+        slotSequence[slot] = NO_SEQUENCE;
+        bufferedCount--;
+        deliver(slotData[slot], 0, slotLength[slot], listener);
+    }
+
+    private int findFirstBufferedSlot() {
+        int sequence = expectedSequence;
+        while (true) {
+            int slot = sequence & mask;
+            if (slotSequence[slot] == sequence)
+                return slot;
+            sequence = (sequence + 1) & 0xFFFF;
+        }
+    }
+
+    private void reportLoss(int lost, @NonNull PacketListener listener) {
+        if (lost <= 0)
+            return;
+        if (DEBUG)
+            Log.w(TAG, "Lost " + lost + " RTP packets");
+        lostPackets += lost;
+        listener.onRtpPacketLoss(lost);
+    }
+
+}
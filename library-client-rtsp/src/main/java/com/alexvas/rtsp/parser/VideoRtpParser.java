@@ -5,6 +5,13 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.alexvas.utils.BufferPool;
+import com.alexvas.utils.PooledBuffer;
+
+import java.util.Arrays;
+
+// https://tools.ietf.org/html/rfc6184
+// H.264 depacketizer. Also a base class for other codecs packetized the similar way, see H265RtpParser.
 public class VideoRtpParser {
 
     private static final String TAG = VideoRtpParser.class.getSimpleName();
@@ -17,112 +24,538 @@ public class VideoRtpParser {
     private final static int NAL_UNIT_TYPE_FU_A = 28;
     private final static int NAL_UNIT_TYPE_FU_B = 29;
 
-    private final byte[][] _buffer = new byte[1024][];
-    private byte[] _nalUnit;
-    private boolean _nalEndFlag;
-    private int _bufferLength;
-    private int _packetNum = 0;
+    public static final int DEFAULT_MAX_NAL_UNIT_SIZE = 4 * 1024 * 1024; // 4 MB
+    private static final int INITIAL_NAL_UNIT_SIZE = 64 * 1024;
+
+    private static final byte[] NAL_START_CODE = { 0x00, 0x00, 0x00, 0x01 };
+
+    private final static int NAL_UNIT_TYPE_IDR = 5;
+    private final static int NAL_UNIT_TYPE_SPS = 7;
+    private final static int NAL_UNIT_TYPE_PPS = 8;
+
+    public static final long NO_TIMESTAMP = -1;
+
+    public interface NalUnitListener {
+        /**
+         * NAL unit with 00 00 00 01 start code.
+         * Data is valid only during this call. Copy it if it needs to be kept.
+         */
+        void onNalUnitReceived(@NonNull byte[] data, int offset, int length);
+    }
+
+    private final @NonNull BufferPool bufferPool;
+    // FU-A NAL unit being reassembled
+    private @Nullable PooledBuffer fragmentedNalUnit;
+    private int fragmentedNalUnitType;
+
+    // Drop everything but SPS/PPS after packet loss till the next IDR frame
+    private boolean dropUntilKeyFrame = false;
+    private boolean waitingForKeyFrame = false;
+    // Packet loss reported, next packet starts corrupted access unit
+    private boolean lossPending = false;
+    // RTP timestamp of access unit damaged by packet loss. All its NAL units are dropped.
+    private long corruptedTimestamp = NO_TIMESTAMP;
+
+    private long droppedNalUnits = 0;
+    private long droppedFragments = 0;
+    private long droppedBytes = 0;
+
+    private @Nullable byte[] legacyNalUnit;
+    // Aggregated NAL units are concatenated into single Annex B buffer
+    private final NalUnitListener legacyListener = (data, offset, length) -> {
+        if (legacyNalUnit == null) {
+            legacyNalUnit = new byte[length];
+            System.arraycopy(data, offset, legacyNalUnit, 0, length);
+        } else {
+            byte[] nalUnits = Arrays.copyOf(legacyNalUnit, legacyNalUnit.length + length);
+            System.arraycopy(data, offset, nalUnits, legacyNalUnit.length, length);
+            legacyNalUnit = nalUnits;
+        }
+    };
+
+    public VideoRtpParser() {
+        this(DEFAULT_MAX_NAL_UNIT_SIZE);
+    }
+
+    public VideoRtpParser(int maxNalUnitSize) {
+        this(new BufferPool(Math.min(INITIAL_NAL_UNIT_SIZE, maxNalUnitSize), maxNalUnitSize, 1, false));
+    }
 
+    /**
+     * @param bufferPool heap buffer pool used for FU-A reassembly. Can be shared between parsers.
+     *                   Its max capacity limits NAL unit size.
+     */
+    public VideoRtpParser(@NonNull BufferPool bufferPool) {
+        if (bufferPool.isDirect())
+            throw new IllegalArgumentException("Heap buffer pool expected");
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Legacy API. Returns NAL unit copied to a newly allocated array.
+     */
     @Nullable
     public byte[] processRtpPacketAndGetNalUnit(@NonNull byte[] data, int length) {
+        return processRtpPacketAndGetNalUnit(data, 0, length);
+    }
+
+    /**
+     * Legacy API. Returns NAL unit copied to a newly allocated array.
+     * NAL units of aggregation packet (STAP/MTAP) are returned in the same array, each one prefixed with start code.
+     */
+    @Nullable
+    public byte[] processRtpPacketAndGetNalUnit(@NonNull byte[] data, int offset, int length) {
+        legacyNalUnit = null;
+        processRtpPacket(data, offset, length, NO_TIMESTAMP, false, legacyListener);
+        byte[] nalUnit = legacyNalUnit;
+        legacyNalUnit = null;
+        return nalUnit;
+    }
+
+    /**
+     * Process RTP payload data[offset, offset + length) and pass complete NAL units to the listener.
+     * Up to 4 bytes in front of the payload (RTP header) can be overwritten by start code
+     * to avoid copying single NAL unit packets.
+     */
+    public void processRtpPacket(@NonNull byte[] data, int offset, int length, @NonNull NalUnitListener listener) {
+        processRtpPacket(data, offset, length, NO_TIMESTAMP, true, listener);
+    }
+
+    /**
+     * Same as {@link #processRtpPacket(byte[], int, int, NalUnitListener)}.
+     * RTP timestamp identifies access unit, so the whole access unit damaged by packet loss is dropped
+     * instead of the broken NAL unit only.
+     */
+    public void processRtpPacket(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            long rtpTimestamp,
+            @NonNull NalUnitListener listener) {
+        processRtpPacket(data, offset, length, rtpTimestamp, true, listener);
+    }
+
+    /**
+     * Called when RTP packets were lost before the next packet passed to {@link #processRtpPacket}.
+     * NAL unit being reassembled misses some fragments, so it is dropped.
+     */
+    public void notifyPacketLoss(int lostPackets) {
         if (DEBUG)
-            Log.v(TAG, "processRtpPacketAndGetNalUnit(length=" + length + ")");
+            Log.w(TAG, "Lost " + lostPackets + " RTP packets");
+        dropFragmentedNalUnit();
+        lossPending = true;
+        if (dropUntilKeyFrame && !waitingForKeyFrame) {
+            if (DEBUG)
+                Log.i(TAG, "Dropping NAL units till the next IDR frame");
+            waitingForKeyFrame = true;
+        }
+    }
 
-        int tmpLen;
-        int nalType = data[0] & 0x1F;
-        int packFlag = data[1] & 0xC0;
+    /**
+     * After packet loss drop all NAL units except SPS and PPS till the next IDR frame.
+     * Avoids decoder error cascades and writing visually corrupted frames to the disk
+     * at the cost of longer video freeze.
+     */
+    public void setDropUntilKeyFrame(boolean dropUntilKeyFrame) {
+        this.dropUntilKeyFrame = dropUntilKeyFrame;
+        if (!dropUntilKeyFrame)
+            waitingForKeyFrame = false;
+    }
+
+    /**
+     * Number of NAL units dropped due to packet loss, including incomplete FU-A ones.
+     */
+    public long getDroppedNalUnits() {
+        return droppedNalUnits;
+    }
+
+    /**
+     * Number of FU-A fragments dropped since their NAL unit start was missed.
+     */
+    public long getDroppedFragments() {
+        return droppedFragments;
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Drop NAL unit being reassembled and return its buffer to the pool.
+     */
+    public void reset() {
+        if (fragmentedNalUnit != null) {
+            fragmentedNalUnit.release();
+            fragmentedNalUnit = null;
+        }
+    }
+
+    private void processRtpPacket(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            long rtpTimestamp,
+            boolean inPlace,
+            @NonNull NalUnitListener listener) {
+        if (DEBUG)
+            Log.v(TAG, "processRtpPacket(offset=" + offset + ", length=" + length + ")");
+        if (lossPending) {
+            // Lost packets could belong to the access unit this packet belongs to
+            lossPending = false;
+            corruptedTimestamp = rtpTimestamp;
+        } else if (corruptedTimestamp != NO_TIMESTAMP && corruptedTimestamp != rtpTimestamp) {
+            corruptedTimestamp = NO_TIMESTAMP;
+        }
+        if (length < 1)
+            return;
+
+        // forbidden_zero_bit set means bit errors or syntax violation. Same bit for H.264 and H.265.
+        if ((data[offset] & 0x80) != 0) {
+            if (DEBUG)
+                Log.w(TAG, "NAL unit with forbidden_zero_bit set. Dropping it.");
+            dropFragmentedNalUnit();
+            countDroppedNalUnit(length);
+            return;
+        }
+
+        processPayload(data, offset, length, inPlace, listener);
+    }
+
+    /**
+     * Depacketize RTP payload data[offset, offset + length). Called for non-empty payloads only.
+     * @param inPlace whether 4 bytes in front of NAL units can be overwritten with start code
+     */
+    protected void processPayload(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            boolean inPlace,
+            @NonNull NalUnitListener listener) {
+        int nalType = data[offset] & 0x1F;
+        if (nalType != NAL_UNIT_TYPE_FU_A && nalType != NAL_UNIT_TYPE_FU_B && fragmentedNalUnit != null) {
+            // FU-A end packet missed
+            if (DEBUG)
+                Log.w(TAG, "FU-A end packet missed");
+            dropFragmentedNalUnit();
+        }
 
         if (DEBUG)
-            Log.d(TAG, "NAL type: " + nalType + ", pack flag: " + packFlag);
+            Log.d(TAG, "NAL type: " + nalType);
         switch (nalType) {
 
             //Single-timeaggregation packet
             case NAL_UNIT_TYPE_STAP_A:
+                processAggregationPacket(data, offset, length, 1, 0, inPlace, listener);
                 break;
 
             //Single-timeaggregation packet
             case NAL_UNIT_TYPE_STAP_B:
+                // 16 bits DON
+                processAggregationPacket(data, offset, length, 3, 0, inPlace, listener);
                 break;
 
             //Multi-time aggregationpacket
             case NAL_UNIT_TYPE_MTAP16:
+                // 16 bits DONB, each NAL unit has 8 bits DOND and 16 bits TS offset
+                processAggregationPacket(data, offset, length, 3, 3, inPlace, listener);
                 break;
 
             //Multi-time aggregationpacket
             case NAL_UNIT_TYPE_MTAP24:
+                // 16 bits DONB, each NAL unit has 8 bits DOND and 24 bits TS offset
+                processAggregationPacket(data, offset, length, 3, 4, inPlace, listener);
                 break;
 
             //Fragmentationunit
             case NAL_UNIT_TYPE_FU_A:
-                switch (packFlag) {
-                    //NAL Unit start packet
-                    case 0x80:
-                        _nalEndFlag = false;
-                        _packetNum = 1;
-                        _bufferLength = length - 1 ;
-                        _buffer[1] = new byte[_bufferLength];
-                        _buffer[1][0] = (byte)((data[0] & 0xE0) | (data[1] & 0x1F));
-                        System.arraycopy(data,2, _buffer[1],1,length - 2);
-                        break;
-                    //NAL Unit middle packet
-                    case 0x00:
-                        _nalEndFlag = false;
-                        _packetNum++;
-                        _bufferLength += length - 2;
-                        _buffer[_packetNum] = new byte[length - 2];
-                        System.arraycopy(data,2, _buffer[_packetNum],0,length - 2);
-                        break;
-                    //NAL Unit end packet
-                    case 0x40:
-                        _nalEndFlag = true;
-                        _nalUnit = new byte[_bufferLength + length + 2];
-                        _nalUnit[0] = 0x00;
-                        _nalUnit[1] = 0x00;
-                        _nalUnit[2] = 0x00;
-                        _nalUnit[3] = 0x01;
-                        tmpLen = 4;
-                        System.arraycopy(_buffer[1], 0, _nalUnit, tmpLen, _buffer[1].length);
-                        tmpLen += _buffer[1].length;
-                        for(int i = 2; i < _packetNum +1; ++i) {
-                            System.arraycopy(_buffer[i],0, _nalUnit, tmpLen, _buffer[i].length);
-                            tmpLen += _buffer[i].length;
-                        }
-                        System.arraycopy(data,2, _nalUnit, tmpLen,length-2);
-                        break;
-                }
+                if (length < 2)
+                    break;
+                processFragmentationUnit(data, offset, length, 2, listener);
                 break;
 
             //Fragmentationunit
             case NAL_UNIT_TYPE_FU_B:
+                // Same as FU-A with 16 bits DON. Used for the first fragment only, others are FU-A.
+                if (length < 4)
+                    break;
+                processFragmentationUnit(data, offset, length, 4, listener);
                 break;
 
             //Single NAL unit per packet
             default:
                 if (DEBUG)
                     Log.d(TAG,"Single NAL");
-                _nalUnit = new byte[4 + length];
-                _nalUnit[0] = 0x00;
-                _nalUnit[1] = 0x00;
-                _nalUnit[2] = 0x00;
-                _nalUnit[3] = 0x01;
-                System.arraycopy(data,0, _nalUnit,4, length);
-                _nalEndFlag = true;
+                emitNalUnit(data, offset, length, inPlace, listener);
                 break;
         }
-        if (_nalEndFlag) {
-//            int type = VideoCodecUtils.getH264NalUnitType(_nalUnit, 0, _nalUnit.length);
-//            switch (type) {
-//                case VideoCodecUtils.NAL_SPS
-//            }
-//            if (DEBUG)
-//                Log.i(TAG, "NAL unit: " + VideoCodecUtils.getH264NalUnitTypeString(type) + " (" + _nalUnit.length + " bytes)");
-//            ArrayList<VideoCodecUtils.NalUnit> nals = new ArrayList<>();
-//            int numNals = VideoCodecUtils.getH264NalUnits(_nalUnit, 0, _nalUnit.length - 1, nals);
-//            Log.i(TAG, "numNals: " + numNals);
-            return _nalUnit;
+    }
+
+    // https://tools.ietf.org/html/rfc6184#section-5.7
+    //
+    //  0                   1                   2                   3
+    //  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                          RTP Header                           |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |STAP-A NAL HDR |         NALU 1 Size           | NALU 1 HDR    |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                         NALU 1 Data                           |
+    // :                                                               :
+    // +               +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |               | NALU 2 Size                   | NALU 2 HDR    |
+    // +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+    // |                         NALU 2 Data                           |
+    // :                                                               :
+    //
+    // Start code of every NAL unit is written over the 4 bytes in front of it (size field and the tail
+    // of the previous, already passed NAL unit), so aggregated NAL units are passed without copying.
+    // NAL units are passed in transmission order, DON based reordering of interleaved mode is not done.
+    private void processAggregationPacket(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            int headerSize,
+            int unitHeaderSize,
+            boolean inPlace,
+            @NonNull NalUnitListener listener) {
+        int pos = offset + headerSize;
+        int end = offset + length;
+        while (pos + 2 + unitHeaderSize < end) {
+            int nalSize = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            int nalOffset = pos + 2 + unitHeaderSize;
+            // MTAP size includes DOND and TS offset
+            nalSize -= unitHeaderSize;
+            if (nalSize <= 0 || nalOffset + nalSize > end) {
+                if (DEBUG)
+                    Log.w(TAG, "Invalid aggregated NAL unit size " + nalSize + ". Dropping the rest of the packet.");
+                countDroppedNalUnit(end - pos);
+                return;
+            }
+            emitNalUnit(data, nalOffset, nalSize, inPlace, listener);
+            pos = nalOffset + nalSize;
+        }
+    }
+
+    /**
+     * Pass complete NAL unit data[offset, offset + length) prefixed with start code to the listener.
+     */
+    protected final void emitNalUnit(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            boolean inPlace,
+            @NonNull NalUnitListener listener) {
+        if (length < 1 || !shouldPassNalUnit(getNalUnitType(data, offset), length))
+            return;
+        if (inPlace && offset >= NAL_START_CODE.length) {
+            // Overwrite 4 bytes in front of NAL unit (e.g. the end of RTP header) with start code
+            int start = offset - NAL_START_CODE.length;
+            System.arraycopy(NAL_START_CODE, 0, data, start, NAL_START_CODE.length);
+            listener.onNalUnitReceived(data, start, length + NAL_START_CODE.length);
         } else {
-            return null;
+            PooledBuffer nalUnit = bufferPool.acquire();
+            try {
+                if (nalUnit.append(NAL_START_CODE, 0, NAL_START_CODE.length) &&
+                    nalUnit.append(data, offset, length))
+                    listener.onNalUnitReceived(nalUnit.array(), 0, nalUnit.length());
+            } finally {
+                nalUnit.release();
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #emitNalUnit(byte[], int, int, boolean, NalUnitListener)} for NAL unit which header
+     * data[headerOffset, headerOffset + headerLength) is separated from its payload, e.g. by H.265 DONL.
+     * Data is not modified.
+     */
+    protected final void emitNalUnit(
+            @NonNull byte[] data,
+            int headerOffset,
+            int headerLength,
+            int payloadOffset,
+            int payloadLength,
+            @NonNull NalUnitListener listener) {
+        int length = headerLength + payloadLength;
+        if (headerLength < 1 || !shouldPassNalUnit(getNalUnitType(data, headerOffset), length))
+            return;
+        PooledBuffer nalUnit = bufferPool.acquire();
+        try {
+            if (nalUnit.append(NAL_START_CODE, 0, NAL_START_CODE.length) &&
+                nalUnit.append(data, headerOffset, headerLength) &&
+                nalUnit.append(data, payloadOffset, payloadLength))
+                listener.onNalUnitReceived(nalUnit.array(), 0, nalUnit.length());
+        } finally {
+            nalUnit.release();
+        }
+    }
+
+    // headerSize is 2 for FU-A (FU indicator + FU header) and 4 for FU-B (+ DON)
+    private void processFragmentationUnit(
+            @NonNull byte[] data,
+            int offset,
+            int length,
+            int headerSize,
+            @NonNull NalUnitListener listener) {
+        int packFlag = data[offset + 1] & 0xC0;
+        switch (packFlag) {
+            //NAL Unit start packet
+            case 0x80: {
+                int nalType = data[offset + 1] & 0x1F;
+                beginFragmentedNalUnit(nalType);
+                if (appendFragment((byte)((data[offset] & 0xE0) | nalType)))
+                    appendFragment(data, offset + headerSize, length - headerSize);
+                break;
+            }
+
+            //NAL Unit middle packet
+            case 0x00:
+                if (checkFragmentContinuity(data[offset + 1] & 0x1F, length))
+                    appendFragment(data, offset + 2, length - 2);
+                break;
+
+            //NAL Unit end packet
+            case 0x40:
+                if (checkFragmentContinuity(data[offset + 1] & 0x1F, length) && appendFragment(data, offset + 2, length - 2))
+                    endFragmentedNalUnit(listener);
+                break;
+
+            //Both start and end bits set. Invalid per RFC 6184 5.8.
+            default:
+                dropFragment(length);
+                break;
+        }
+    }
+
+    /**
+     * Start reassembly of a new fragmented NAL unit. NAL unit header should be appended by the caller.
+     */
+    protected final void beginFragmentedNalUnit(int nalType) {
+        if (fragmentedNalUnit != null) {
+            if (DEBUG)
+                Log.w(TAG, "FU end packet missed");
+            dropFragmentedNalUnit();
+        }
+        fragmentedNalUnit = bufferPool.acquire();
+        fragmentedNalUnitType = nalType;
+        fragmentedNalUnit.append(NAL_START_CODE, 0, NAL_START_CODE.length);
+    }
+
+    /**
+     * Pass reassembled NAL unit to the listener.
+     */
+    protected final void endFragmentedNalUnit(@NonNull NalUnitListener listener) {
+        PooledBuffer nalUnit = fragmentedNalUnit;
+        if (nalUnit == null)
+            return;
+        fragmentedNalUnit = null;
+        try {
+            if (shouldPassNalUnit(fragmentedNalUnitType, nalUnit.length()))
+                listener.onNalUnitReceived(nalUnit.array(), 0, nalUnit.length());
+        } finally {
+            nalUnit.release();
+        }
+    }
+
+    /**
+     * Drop invalid fragment together with NAL unit being reassembled.
+     */
+    protected final void dropFragment(int length) {
+        dropFragmentedNalUnit();
+        droppedFragments++;
+        droppedBytes += length;
+    }
+
+    protected final boolean isFragmentedNalUnitStarted() {
+        return fragmentedNalUnit != null;
+    }
+
+    /**
+     * Middle and end fragments should continue NAL unit started by the start fragment.
+     * Otherwise the fragment is dropped.
+     */
+    protected final boolean checkFragmentContinuity(int nalType, int length) {
+        if (fragmentedNalUnit != null && nalType == fragmentedNalUnitType)
+            return true;
+        if (DEBUG)
+            Log.w(TAG, fragmentedNalUnit == null ?
+                    "FU-A start packet missed. Dropping fragment." :
+                    "FU-A NAL unit type changed. Dropping fragment.");
+        dropFragment(length);
+        return false;
+    }
+
+    protected final boolean appendFragment(byte b) {
+        if (fragmentedNalUnit == null)
+            return false;
+        if (!fragmentedNalUnit.append(b)) {
+            dropFragmentedNalUnit();
+            return false;
+        }
+        return true;
+    }
+
+    protected final boolean appendFragment(@NonNull byte[] data, int offset, int length) {
+        if (fragmentedNalUnit == null)
+            return false;
+        if (!fragmentedNalUnit.append(data, offset, length)) {
+            Log.w(TAG, "NAL unit is bigger than " + bufferPool.getMaxCapacity() + " bytes. Dropping it.");
+            dropFragmentedNalUnit();
+            return false;
+        }
+        return true;
+    }
+
+    // Incomplete NAL unit cannot be decoded. Count it as dropped.
+    protected final void dropFragmentedNalUnit() {
+        if (fragmentedNalUnit == null)
+            return;
+        if (DEBUG)
+            Log.w(TAG, "Dropping incomplete FU-A NAL unit (" + fragmentedNalUnit.length() + " bytes)");
+        droppedNalUnits++;
+        droppedBytes += fragmentedNalUnit.length();
+        reset();
+    }
+
+    protected final void countDroppedNalUnit(int length) {
+        droppedNalUnits++;
+        droppedBytes += length;
+    }
+
+    /**
+     * @param data NAL unit without start code
+     */
+    protected int getNalUnitType(@NonNull byte[] data, int offset) {
+        return data[offset] & 0x1F;
+    }
+
+    /**
+     * Whether decoding can be started from NAL unit of this type
+     */
+    protected boolean isKeyFrame(int nalType) {
+        return nalType == NAL_UNIT_TYPE_IDR;
+    }
+
+    protected boolean isParameterSet(int nalType) {
+        return nalType == NAL_UNIT_TYPE_SPS || nalType == NAL_UNIT_TYPE_PPS;
+    }
+
+    // Filter complete NAL units belonging to corrupted access unit or following packet loss
+    private boolean shouldPassNalUnit(int nalType, int length) {
+        if (corruptedTimestamp == NO_TIMESTAMP && !waitingForKeyFrame)
+            return true;
+        if (waitingForKeyFrame && isKeyFrame(nalType)) {
+            if (DEBUG)
+                Log.i(TAG, "Key frame received. Resuming.");
+            waitingForKeyFrame = false;
+            corruptedTimestamp = NO_TIMESTAMP;
+            return true;
         }
+        // Parameter sets are needed to decode the next key frame
+        if (isParameterSet(nalType))
+            return true;
+        countDroppedNalUnit(length);
+        return false;
     }
 
 }
@@ -0,0 +1,77 @@
+package com.alexvas.utils;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Reads big-endian bit fields from a byte array slice without copying.
+ * Can be reused for different slices via {@link #reset(byte[], int, int)}.
+ */
+public final class BitReader {
+
+    private @NonNull byte[] data = new byte[0];
+    private int offset;
+    private int limitBits;
+    private int positionBits;
+
+    public BitReader() {
+    }
+
+    public BitReader(@NonNull byte[] data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    public void reset(@NonNull byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length)
+            throw new IndexOutOfBoundsException("Invalid slice " + offset + "+" + length + " of " + data.length);
+        this.data = data;
+        this.offset = offset;
+        this.limitBits = length * 8;
+        this.positionBits = 0;
+    }
+
+    /**
+     * Read up to 32 bits as unsigned value.
+     */
+    public int readBits(int numBits) {
+        if (numBits == 0)
+            return 0;
+        if (numBits < 0 || numBits > 32)
+            throw new IllegalArgumentException("Cannot read " + numBits + " bits");
+        if (numBits > bitsLeft())
+            throw new IndexOutOfBoundsException("Not enough data to read " + numBits + " bits");
+        int value = 0;
+        int remaining = numBits;
+        while (remaining > 0) {
+            int b = data[offset + (positionBits >> 3)] & 0xFF;
+            int bitOffset = positionBits & 7;
+            int bitsInByte = Math.min(8 - bitOffset, remaining);
+            int shift = 8 - bitOffset - bitsInByte;
+            value = (value << bitsInByte) | ((b >> shift) & ((1 << bitsInByte) - 1));
+            remaining -= bitsInByte;
+            positionBits += bitsInByte;
+        }
+        return value;
+    }
+
+    public boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    public void skipBits(int numBits) {
+        if (numBits < 0 || numBits > bitsLeft())
+            throw new IndexOutOfBoundsException("Cannot skip " + numBits + " bits");
+        positionBits += numBits;
+    }
+
+    /**
+     * Position in bits from the slice start.
+     */
+    public int getPosition() {
+        return positionBits;
+    }
+
+    public int bitsLeft() {
+        return limitBits - positionBits;
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.alexvas.utils;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Pool of growable byte buffers. Buffers are recycled on {@link PooledBuffer#release()},
+ * so steady-state streaming does not allocate any memory.
+ * Thread-safe. Buffers can be acquired and released on different threads.
+ */
+public class BufferPool {
+
+    private static final String TAG = BufferPool.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private final int initialCapacity;
+    private final int maxCapacity;
+    private final boolean direct;
+    private final PooledBuffer[] pooled;
+    private int pooledCount = 0;
+
+    /**
+     * @param initialCapacity initial size of newly created buffers
+     * @param maxCapacity buffer cannot grow bigger than this value
+     * @param maxPooledBuffers max number of free buffers kept for reuse
+     * @param direct allocate direct (off-heap) buffers
+     */
+    public BufferPool(int initialCapacity, int maxCapacity, int maxPooledBuffers, boolean direct) {
+        if (initialCapacity <= 0 || maxCapacity < initialCapacity)
+            throw new IllegalArgumentException("Invalid buffer capacity " + initialCapacity + "-" + maxCapacity);
+        this.initialCapacity = initialCapacity;
+        this.maxCapacity = maxCapacity;
+        this.direct = direct;
+        this.pooled = new PooledBuffer[maxPooledBuffers];
+    }
+
+    /**
+     * Get an empty buffer with reference count 1. Call {@link PooledBuffer#release()} to return it back.
+     */
+    @NonNull
+    public PooledBuffer acquire() {
+        PooledBuffer buffer = null;
+        synchronized (pooled) {
+            if (pooledCount > 0) {
+                buffer = pooled[--pooledCount];
+                pooled[pooledCount] = null;
+            }
+        }
+        if (buffer == null) {
+            if (DEBUG) Log.v(TAG, "Allocating new " + (direct ? "direct " : "") + "buffer (" + initialCapacity + " bytes)");
+            buffer = new PooledBuffer(this, initialCapacity, maxCapacity, direct);
+        }
+        buffer.onAcquired();
+        return buffer;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    /**
+     * Number of free buffers ready for reuse.
+     */
+    public int getPooledCount() {
+        synchronized (pooled) {
+            return pooledCount;
+        }
+    }
+
+    void recycle(@NonNull PooledBuffer buffer) {
+        synchronized (pooled) {
+            if (pooledCount < pooled.length) {
+                pooled[pooledCount++] = buffer;
+                return;
+            }
+        }
+        // Pool is full. Let GC collect the buffer.
+        if (DEBUG) Log.v(TAG, "Pool is full, dropping buffer");
+    }
+
+}
@@ -1,9 +1,10 @@
 package com.alexvas.utils
 
+import android.media.MediaCodecInfo
+import android.media.MediaCodecList
+import android.os.Build
 import android.util.Log
 import android.util.Range
-import com.google.android.exoplayer2.mediacodec.MediaCodecInfo
-import com.google.android.exoplayer2.mediacodec.MediaCodecUtil
 import java.lang.Exception
 
 object MediaCodecUtils {
@@ -18,7 +19,13 @@ object MediaCodecUtils {
         val list = decoderInfosMap[mimeType]
         return if (list.isNullOrEmpty()) {
             val decoderInfos = try {
-                MediaCodecUtil.getDecoderInfos(mimeType, false, false)
+                val codecInfos = MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos
+                codecInfos.filter { codec ->
+                    !codec.isEncoder &&
+                    !(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && codec.isAlias) &&
+                    codec.supportedTypes.any { it.equals(mimeType, ignoreCase = true) } &&
+                    !isSecureOnly(codec, mimeType)
+                }
             } catch (e: Exception) {
                 Log.e(TAG, "Failed to initialize '$mimeType' decoders list (${e.message})", e)
                 ArrayList()
@@ -30,6 +37,42 @@ object MediaCodecUtils {
         }
     }
 
+    // Secure decoders (e.g. "OMX.qcom.video.decoder.avc.secure") cannot be configured with a regular Surface
+    private fun isSecureOnly(codec: MediaCodecInfo, mimeType: String): Boolean {
+        if (codec.name.endsWith(".secure", ignoreCase = true))
+            return true
+        val type = codec.supportedTypes.firstOrNull { it.equals(mimeType, ignoreCase = true) } ?: return false
+        return try {
+            codec.getCapabilitiesForType(type)
+                .isFeatureRequired(MediaCodecInfo.CodecCapabilities.FEATURE_SecurePlayback)
+        } catch (e: IllegalArgumentException) {
+            Log.w(TAG, "Failed to get '$type' capabilities of ${codec.name} (${e.message})")
+            false
+        }
+    }
+
+    private fun isSoftwareOnly(codec: MediaCodecInfo): Boolean {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return codec.isSoftwareOnly
+        // Same heuristics as Android framework uses for codecs without "attribute" info
+        val name = codec.name.lowercase()
+        if (name.startsWith("arc."))
+            return false
+        return name.startsWith("omx.google.") ||
+               name.startsWith("omx.ffmpeg.") ||
+               (name.startsWith("omx.sec.") && name.contains(".sw.")) ||
+               name == "omx.qcom.video.decoder.hevcswvdec" ||
+               name.startsWith("c2.android.") ||
+               name.startsWith("c2.google.") ||
+               (!name.startsWith("omx.") && !name.startsWith("c2."))
+    }
+
+    private fun isHardwareAccelerated(codec: MediaCodecInfo): Boolean {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return codec.isHardwareAccelerated
+        return !isSoftwareOnly(codec)
+    }
+
     /**
      * Get software decoders list. Usually used as fallback.
      */
@@ -38,7 +81,7 @@ object MediaCodecUtils {
         val decoderInfos = getDecoderInfos(mimeType)
         val list = ArrayList<MediaCodecInfo>()
         for (codec in decoderInfos) {
-            if (codec.softwareOnly)
+            if (isSoftwareOnly(codec))
                 list.add(codec)
         }
         return list
@@ -52,7 +95,7 @@ object MediaCodecUtils {
         val decoderInfos = getDecoderInfos(mimeType)
         val list = ArrayList<MediaCodecInfo>()
         for (codec in decoderInfos) {
-            if (codec.hardwareAccelerated)
+            if (isHardwareAccelerated(codec))
                 list.add(codec)
         }
         return list
@@ -0,0 +1,196 @@
+package com.alexvas.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted growable byte buffer obtained from {@link BufferPool}.
+ * Whoever receives a buffer owns one reference and must call {@link #release()} when done.
+ * Call {@link #retain()} before handing the buffer to one more owner.
+ * Writing is not thread-safe and should be done by a single owner before the buffer is shared.
+ */
+public final class PooledBuffer {
+
+    private final @Nullable BufferPool pool;
+    private final int maxCapacity;
+    private final boolean direct;
+    private final AtomicInteger refCount = new AtomicInteger(0);
+
+    // Heap buffers
+    private @Nullable byte[] array;
+    // Direct buffers
+    private @Nullable ByteBuffer directBuffer;
+    private @Nullable ByteBuffer readOnlyView;
+    private int length = 0;
+
+    PooledBuffer(@Nullable BufferPool pool, int initialCapacity, int maxCapacity, boolean direct) {
+        this.pool = pool;
+        this.maxCapacity = maxCapacity;
+        this.direct = direct;
+        if (direct)
+            directBuffer = ByteBuffer.allocateDirect(initialCapacity);
+        else
+            array = new byte[initialCapacity];
+    }
+
+    void onAcquired() {
+        length = 0;
+        refCount.set(1);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int capacity() {
+        return direct ? directBuffer.capacity() : array.length;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public boolean hasArray() {
+        return !direct;
+    }
+
+    /**
+     * Backing array of heap buffer. Valid data is array()[0, length()).
+     * Note that the array can change after buffer grows.
+     */
+    @NonNull
+    public byte[] array() {
+        if (direct)
+            throw new UnsupportedOperationException("Direct buffer has no array");
+        return array;
+    }
+
+    public byte get(int index) {
+        return direct ? directBuffer.get(index) : array[index];
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    /**
+     * Truncate valid data to the specified length.
+     */
+    public void setLength(int length) {
+        if (length < 0 || length > capacity())
+            throw new IndexOutOfBoundsException("Invalid length " + length);
+        this.length = length;
+    }
+
+    /**
+     * @return false if buffer cannot grow to fit the data
+     */
+    public boolean append(byte b) {
+        if (!ensureCapacity(length + 1))
+            return false;
+        if (direct)
+            directBuffer.put(length, b);
+        else
+            array[length] = b;
+        length++;
+        return true;
+    }
+
+    /**
+     * @return false if buffer cannot grow to fit the data
+     */
+    public boolean append(@NonNull byte[] src, int offset, int len) {
+        if (!ensureCapacity(length + len))
+            return false;
+        if (direct) {
+            directBuffer.position(length);
+            directBuffer.put(src, offset, len);
+        } else {
+            System.arraycopy(src, offset, array, length, len);
+        }
+        length += len;
+        return true;
+    }
+
+    /**
+     * Copy valid data [srcOffset, srcOffset + len) to dst.
+     */
+    public void copyTo(int srcOffset, @NonNull byte[] dst, int dstOffset, int len) {
+        if (direct) {
+            ByteBuffer dup = directBuffer.duplicate();
+            dup.position(srcOffset);
+            dup.get(dst, dstOffset, len);
+        } else {
+            System.arraycopy(array, srcOffset, dst, dstOffset, len);
+        }
+    }
+
+    @NonNull
+    public byte[] toByteArray() {
+        byte[] data = new byte[length];
+        copyTo(0, data, 0, length);
+        return data;
+    }
+
+    /**
+     * Read-only view of valid data [0, length()).
+     * Direct buffers can be passed to MediaMuxer and MediaCodec without copying.
+     * The view object is cached, use duplicate() if position/limit need to be changed
+     * concurrently by several owners.
+     */
+    @NonNull
+    public ByteBuffer asReadOnlyBuffer() {
+        if (readOnlyView == null)
+            readOnlyView = direct ? directBuffer.asReadOnlyBuffer() : ByteBuffer.wrap(array).asReadOnlyBuffer();
+        readOnlyView.limit(length);
+        readOnlyView.position(0);
+        return readOnlyView;
+    }
+
+    public boolean ensureCapacity(int capacity) {
+        int current = capacity();
+        if (capacity <= current)
+            return true;
+        if (capacity > maxCapacity)
+            return false;
+        int newCapacity = Math.min(maxCapacity, Math.max(capacity, current * 2));
+        if (direct) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(newCapacity);
+            ByteBuffer dup = directBuffer.duplicate();
+            dup.position(0);
+            dup.limit(length);
+            buffer.put(dup);
+            directBuffer = buffer;
+        } else {
+            array = Arrays.copyOf(array, newCapacity);
+        }
+        readOnlyView = null;
+        return true;
+    }
+
+    @NonNull
+    public PooledBuffer retain() {
+        if (refCount.getAndIncrement() <= 0)
+            throw new IllegalStateException("Buffer already released");
+        return this;
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            if (pool != null)
+                pool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("Buffer released too many times");
+        }
+    }
+
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+}
@@ -101,6 +101,93 @@ public final class VideoCodecUtils {
         }
     }
 
+    public static byte getH265NalUnitType(@Nullable byte[] data, int offset, int length) {
+        if (data == null || length <= NAL_PREFIX1.length)
+            return (byte)-1;
+
+        int nalUnitTypeOctetOffset = -1;
+        if (data[offset + NAL_PREFIX2.length - 1] == 1)
+            nalUnitTypeOctetOffset = offset + NAL_PREFIX2.length - 1;
+        else if (data[offset + NAL_PREFIX1.length - 1] == 1)
+            nalUnitTypeOctetOffset = offset + NAL_PREFIX1.length - 1;
+
+        if (nalUnitTypeOctetOffset != -1) {
+            byte nalUnitTypeOctet = data[nalUnitTypeOctetOffset + 1];
+            return (byte) ((nalUnitTypeOctet >> 1) & 0x3f);
+        } else {
+            return (byte)-1;
+        }
+    }
+
+    /**
+     * IRAP (BLA, IDR or CRA) picture. Decoding can be started from it.
+     */
+    public static boolean isH265IrapNalUnitType(byte nalUnitType) {
+        return nalUnitType >= H265_NAL_BLA_W_LP && nalUnitType <= H265_NAL_CRA_NUT;
+    }
+
+    /**
+     * Picture no other picture refers to, so it can be dropped without breaking decoding.
+     * H.264: nal_ref_idc of the first slice is 0. H.265: sub-layer non-reference picture.
+     * @param accessUnit Annex B access unit
+     */
+    public static boolean isNonReferenceAccessUnit(@NonNull PooledBuffer accessUnit, boolean h265) {
+        int length = accessUnit.length();
+        for (int i = 0; i + 3 < length; i++) {
+            if (accessUnit.get(i) != 0 || accessUnit.get(i + 1) != 0 || accessUnit.get(i + 2) != 1)
+                continue;
+            byte header = accessUnit.get(i + 3);
+            if (h265) {
+                int type = (header >> 1) & 0x3F;
+                // VCL NAL units are 0..31, even types below 16 are non-reference (RSV_VCL_N10..14 included)
+                if (type < 32)
+                    return type < 16 && (type & 0x01) == 0;
+            } else {
+                int type = header & 0x1F;
+                if (type >= NAL_SLICE && type <= NAL_IDR_SLICE)
+                    return (header & 0x60) == 0;
+            }
+            i += 3;
+        }
+        return false;
+    }
+
+    /**
+     * Copy of the first NAL unit of the given type, e.g. in-band SPS of a key frame.
+     * @param accessUnit Annex B access unit
+     * @param nalUnitType e.g. {@link #NAL_SPS} or {@link #H265_NAL_VPS}
+     * @return NAL unit with 00 00 00 01 start code like the ones from SDP, null if not found
+     */
+    @Nullable
+    public static byte[] getNalUnit(@NonNull PooledBuffer accessUnit, boolean h265, int nalUnitType) {
+        int length = accessUnit.length();
+        for (int i = 0; i + 3 < length; i++) {
+            if (accessUnit.get(i) != 0 || accessUnit.get(i + 1) != 0 || accessUnit.get(i + 2) != 1)
+                continue;
+            int start = i + 3;
+            byte header = accessUnit.get(start);
+            int type = (h265 ? (header >> 1) & 0x3F : header & 0x1F);
+            if (type != nalUnitType) {
+                i += 3;
+                continue;
+            }
+            int end = start + 1;
+            while (end + 2 < length &&
+                   (accessUnit.get(end) != 0 || accessUnit.get(end + 1) != 0 || accessUnit.get(end + 2) != 1))
+                end++;
+            if (end + 2 >= length)
+                end = length;
+            // Zero byte of the next 4 bytes start code and trailing zeros
+            while (end > start && accessUnit.get(end - 1) == 0)
+                end--;
+            byte[] nalUnit = new byte[4 + end - start];
+            nalUnit[3] = 1;
+            accessUnit.copyTo(start, nalUnit, 4, end - start);
+            return nalUnit;
+        }
+        return null;
+    }
+
     /**
      * Search for 00 00 01 or 00 00 00 01 in byte stream.
      * @return offset to the start of NAL unit if found, otherwise -1
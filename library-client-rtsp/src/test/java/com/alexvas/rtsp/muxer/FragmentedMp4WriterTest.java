@@ -0,0 +1,267 @@
+package com.alexvas.rtsp.muxer;
+
+import com.alexvas.utils.BufferPool;
+import com.alexvas.utils.PooledBuffer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int VIDEO_TRACK_ID = 1;
+
+    private static final long FRAME_DURATION_US = 40000;    // 25 fps
+    private static final long AAC_FRAME_DURATION_US = 64000; // 1024 samples at 16 kHz
+    private static final int GOP_SIZE = 25;
+
+    // H.264 Baseline 3.0 SPS and PPS
+    private static final byte[] SPS = { 0x67, 0x42, 0x00, 0x1E, (byte) 0xAB, 0x40, 0x50, 0x1E, (byte) 0xC8 };
+    private static final byte[] PPS = { 0x68, (byte) 0xCE, 0x3C, (byte) 0x80 };
+
+    private final BufferPool bufferPool = new BufferPool(256, 4096, 8, false);
+
+    private static final class Box {
+        final String type;
+        final int offset;  // Box start in the file
+        final int size;
+
+        Box(String type, int offset, int size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        int payload() {
+            return offset + 8;
+        }
+    }
+
+    private static final class Sample {
+        final int duration;
+        final int size;
+        final int flags;
+
+        Sample(int duration, int size, int flags) {
+            this.duration = duration;
+            this.size = size;
+            this.flags = flags;
+        }
+    }
+
+    @Test
+    public void boxBuilder_patchesNestedSizes() {
+        Mp4BoxBuilder b = new Mp4BoxBuilder(4);
+        b.startBox("moof");
+        b.startFullBox("mfhd", 0, 0).writeInt(7).endBox();
+        b.startBox("traf").writeLong(0x0102030405060708L).endBox();
+        b.endBox();
+        ByteBuffer data = b.asByteBuffer();
+
+        assertEquals(8 + 16 + 16, b.length());
+        List<Box> boxes = readBoxes(data, 0, b.length());
+        assertEquals(1, boxes.size());
+        assertEquals("moof", boxes.get(0).type);
+        assertEquals(b.length(), boxes.get(0).size);
+
+        List<Box> children = readBoxes(data, boxes.get(0).payload(), b.length());
+        assertEquals(2, children.size());
+        assertEquals("mfhd", children.get(0).type);
+        assertEquals(16, children.get(0).size);
+        assertEquals(7, data.getInt(children.get(0).payload() + 4));
+        assertEquals("traf", children.get(1).type);
+        assertEquals(0x0102030405060708L, data.getLong(children.get(1).payload()));
+    }
+
+    @Test
+    public void writer_writesInitSegmentAndFragments() throws IOException {
+        ByteBuffer data = record(3 * GOP_SIZE);
+        List<Box> boxes = readBoxes(data, 0, data.limit());
+
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        assertTrue((boxes.size() - 2) % 2 == 0);
+        for (int i = 2; i < boxes.size(); i += 2) {
+            assertEquals("moof", boxes.get(i).type);
+            assertEquals("mdat", boxes.get(i + 1).type);
+        }
+
+        Box moov = boxes.get(1);
+        List<Box> moovChildren = readBoxes(data, moov.payload(), moov.offset + moov.size);
+        assertEquals("mvhd", moovChildren.get(0).type);
+        assertNotNull(findBox(moovChildren, "mvex"));
+        int traks = 0;
+        for (Box box : moovChildren) {
+            if (box.type.equals("trak"))
+                traks++;
+        }
+        assertEquals(2, traks);
+    }
+
+    @Test
+    public void writer_fragmentsStartWithKeyFrame() throws IOException {
+        int frames = 4 * GOP_SIZE + 7;
+        ByteBuffer data = record(frames);
+        List<Box> boxes = readBoxes(data, 0, data.limit());
+
+        int videoSamples = 0;
+        int fragments = 0;
+        long nextDecodeTime = 0;
+        for (int i = 2; i < boxes.size(); i += 2) {
+            Box moof = boxes.get(i);
+            Box mdat = boxes.get(i + 1);
+            Box traf = findTraf(data, moof, VIDEO_TRACK_ID);
+            assertNotNull("Fragment without video", traf);
+            fragments++;
+
+            List<Box> trafChildren = readBoxes(data, traf.payload(), traf.offset + traf.size);
+            Box tfdt = findBox(trafChildren, "tfdt");
+            assertNotNull(tfdt);
+            assertEquals(nextDecodeTime, data.getLong(tfdt.payload() + 4));
+
+            Box trun = findBox(trafChildren, "trun");
+            assertNotNull(trun);
+            List<Sample> samples = readTrun(data, trun);
+            assertEquals("First sample of fragment " + fragments + " is not a key frame",
+                    SAMPLE_FLAGS_SYNC, samples.get(0).flags);
+            for (int s = 1; s < samples.size(); s++)
+                assertNotEquals(SAMPLE_FLAGS_SYNC, samples.get(s).flags);
+
+            // Video samples are written first, right after the mdat header
+            int dataOffset = data.getInt(trun.payload() + 8);
+            assertEquals(mdat.payload(), moof.offset + dataOffset);
+            int size = 0;
+            for (Sample sample : samples) {
+                size += sample.size;
+                nextDecodeTime += sample.duration;
+            }
+            assertTrue(size <= mdat.size - 8);
+            videoSamples += samples.size();
+        }
+        assertEquals(frames, videoSamples);
+        assertEquals((frames + GOP_SIZE - 1) / GOP_SIZE, fragments);
+        assertEquals(frames * FRAME_DURATION_US * FragmentedMp4Writer.VIDEO_TIMESCALE / 1000000L, nextDecodeTime);
+    }
+
+    @Test
+    public void writer_releasesSamples() throws IOException {
+        File file = File.createTempFile("fmp4", ".mp4");
+        List<PooledBuffer> samples = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(raf.getChannel());
+            int track = writer.addVideoTrack(false, 640, 480, null, SPS, PPS, FragmentedMp4Writer.FORMAT_AVCC);
+            writer.start();
+            for (int i = 0; i < 2 * GOP_SIZE; i++) {
+                PooledBuffer sample = newVideoSample(i);
+                writer.writeSampleData(track, sample, i * FRAME_DURATION_US, i % GOP_SIZE == 0);
+                samples.add(sample);
+            }
+            writer.close();
+        } finally {
+            assertTrue(file.delete());
+        }
+        for (PooledBuffer sample : samples) {
+            assertEquals(1, sample.getRefCount());
+            sample.release();
+        }
+    }
+
+    // Records 25 fps video with 1 sec GOP and AAC audio. Returns the file content.
+    private ByteBuffer record(int frames) throws IOException {
+        File file = File.createTempFile("fmp4", ".mp4");
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                FragmentedMp4Writer writer = new FragmentedMp4Writer(raf.getChannel());
+                writer.setFragmentDuration(500000, 10000000);
+                int videoTrack = writer.addVideoTrack(false, 640, 480, null, SPS, PPS, FragmentedMp4Writer.FORMAT_AVCC);
+                int audioTrack = writer.addAudioTrack(16000, 1, null);
+                writer.start();
+                long audioTimeUs = 0;
+                for (int i = 0; i < frames; i++) {
+                    long timeUs = i * FRAME_DURATION_US;
+                    for (; audioTimeUs <= timeUs; audioTimeUs += AAC_FRAME_DURATION_US) {
+                        PooledBuffer sample = bufferPool.acquire();
+                        sample.append(new byte[] { 0x21, 0x10, 0x04 }, 0, 3);
+                        writer.writeSampleData(audioTrack, sample, audioTimeUs, true);
+                        sample.release();
+                    }
+                    PooledBuffer sample = newVideoSample(i);
+                    writer.writeSampleData(videoTrack, sample, timeUs, i % GOP_SIZE == 0);
+                    sample.release();
+                }
+                writer.close();
+            }
+            return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    // AVCC sample with a single NAL unit, IDR every GOP_SIZE frames
+    private PooledBuffer newVideoSample(int frame) {
+        boolean keyFrame = frame % GOP_SIZE == 0;
+        int nalSize = keyFrame ? 100 : 20 + frame % 7;
+        byte[] nal = new byte[4 + nalSize];
+        ByteBuffer.wrap(nal).putInt(nalSize).put((byte) (keyFrame ? 0x65 : 0x41));
+        PooledBuffer sample = bufferPool.acquire();
+        assertTrue(sample.append(nal, 0, nal.length));
+        return sample;
+    }
+
+    private static List<Box> readBoxes(ByteBuffer data, int offset, int end) {
+        List<Box> boxes = new ArrayList<>();
+        while (offset < end) {
+            int size = data.getInt(offset);
+            byte[] type = new byte[4];
+            for (int i = 0; i < 4; i++)
+                type[i] = data.get(offset + 4 + i);
+            assertTrue("Invalid box size " + size, size >= 8 && offset + size <= end);
+            boxes.add(new Box(new String(type, StandardCharsets.US_ASCII), offset, size));
+            offset += size;
+        }
+        assertEquals(end, offset);
+        return boxes;
+    }
+
+    private static Box findBox(List<Box> boxes, String type) {
+        for (Box box : boxes) {
+            if (box.type.equals(type))
+                return box;
+        }
+        return null;
+    }
+
+    private static Box findTraf(ByteBuffer data, Box moof, int trackId) {
+        for (Box box : readBoxes(data, moof.payload(), moof.offset + moof.size)) {
+            if (!box.type.equals("traf"))
+                continue;
+            Box tfhd = findBox(readBoxes(data, box.payload(), box.offset + box.size), "tfhd");
+            assertNotNull(tfhd);
+            if (data.getInt(tfhd.payload() + 4) == trackId)
+                return box;
+        }
+        return null;
+    }
+
+    // Duration, size and flags present, see FragmentedMp4Writer.writeFragment()
+    private static List<Sample> readTrun(ByteBuffer data, Box trun) {
+        int count = data.getInt(trun.payload() + 4);
+        assertEquals(8 + 12 + count * 12, trun.size);
+        List<Sample> samples = new ArrayList<>();
+        int pos = trun.payload() + 12;
+        for (int i = 0; i < count; i++, pos += 12)
+            samples.add(new Sample(data.getInt(pos), data.getInt(pos + 4), data.getInt(pos + 8)));
+        return samples;
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.alexvas.rtsp.parser;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RtpClockTest {
+
+    private static final int AUDIO_CLOCK_RATE = 16000;
+    private static final int AAC_FRAME_TICKS = 1024; // 64 ms
+
+    @Test
+    public void rebase_firstReportMovesClockForward() {
+        RtpClock clock = new RtpClock(RtpClock.DEFAULT_VIDEO_CLOCK_RATE);
+        assertEquals(0, clock.toTimeUs(1000));
+        assertEquals(1000000, clock.toTimeUs(1000 + 90000));
+        clock.rebase(1000 + 90000, 1500000);
+        assertEquals(1540000, clock.toTimeUs(1000 + 90000 + 3600));
+    }
+
+    @Test
+    public void rebase_firstReportNeverMovesClockBack() {
+        RtpClock clock = new RtpClock(AUDIO_CLOCK_RATE);
+        clock.start(0, 1000000);
+        long rtpTimestamp = 0;
+        long lastTimeUs = 0;
+        for (int i = 0; i < 5; i++, rtpTimestamp += AAC_FRAME_TICKS)
+            lastTimeUs = clock.toTimeUs(rtpTimestamp);
+
+        // Sender wall clock is 136 ms behind the arrival based anchor
+        long targetUs = clock.toTimeUs(rtpTimestamp - AAC_FRAME_TICKS) - 136000;
+        clock.rebase(rtpTimestamp - AAC_FRAME_TICKS, targetUs);
+        for (int i = 0; i < 100; i++, rtpTimestamp += AAC_FRAME_TICKS) {
+            long timeUs = clock.toTimeUs(rtpTimestamp);
+            assertTrue("Time went back " + lastTimeUs + " -> " + timeUs, timeUs > lastTimeUs);
+            lastTimeUs = timeUs;
+        }
+
+        // Error is slewed in completely after 136 ms / 5% = 2.7 sec
+        long expectedUs = targetUs + (rtpTimestamp - 4 * AAC_FRAME_TICKS) * 1000000L / AUDIO_CLOCK_RATE;
+        assertEquals(expectedUs, clock.toTimeUs(rtpTimestamp));
+    }
+
+    @Test
+    public void rebase_laterReportsAreSlewed() {
+        RtpClock clock = new RtpClock(RtpClock.DEFAULT_VIDEO_CLOCK_RATE);
+        clock.start(0, 0);
+        clock.rebase(0, 0);
+        assertEquals(40000, clock.toTimeUs(3600));
+
+        // Sender clock stepped 100 ms forward
+        clock.rebase(3600, 140000);
+        long lastTimeUs = 40000;
+        for (long rtpTimestamp = 7200; rtpTimestamp <= 90000 * 3; rtpTimestamp += 3600) {
+            long timeUs = clock.toTimeUs(rtpTimestamp);
+            long deltaUs = timeUs - lastTimeUs;
+            assertTrue("Step " + deltaUs, deltaUs >= 40000 && deltaUs <= 42000);
+            lastTimeUs = timeUs;
+        }
+        assertEquals(3000000 + 100000, lastTimeUs);
+    }
+
+    @Test
+    public void toTimeUs_continuesAcross32BitWrap() {
+        RtpClock clock = new RtpClock(RtpClock.DEFAULT_VIDEO_CLOCK_RATE);
+        long start = 0xFFFFFFFFL - 3600;
+        assertEquals(0, clock.toTimeUs(start));
+        assertEquals(40000, clock.toTimeUs((start + 3600) & 0xFFFFFFFFL));
+        assertEquals(80000, clock.toTimeUs((start + 2 * 3600) & 0xFFFFFFFFL));
+        // Reordered packet from before the wrap
+        assertEquals(40000, clock.toTimeUs(0xFFFFFFFFL));
+        assertEquals(120000, clock.toTimeUs((start + 3 * 3600) & 0xFFFFFFFFL));
+    }
+
+    @Test
+    public void toTimeUs_handlesSeveralWraps() {
+        RtpClock clock = new RtpClock(AUDIO_CLOCK_RATE);
+        clock.start(0x80000000L, 0);
+        long rtpTimestamp = 0x80000000L;
+        // 3 wraps at 16 kHz, ~3 days, in steps below 2^31 ticks
+        for (int i = 0; i < 12; i++) {
+            rtpTimestamp += 0x40000000L;
+            clock.toTimeUs(rtpTimestamp & 0xFFFFFFFFL);
+        }
+        assertEquals(3L * 0x100000000L * 1000000L / AUDIO_CLOCK_RATE, clock.toTimeUs(rtpTimestamp & 0xFFFFFFFFL));
+    }
+
+    @Test
+    public void toTimeUs_olderFramesAreNotClamped() {
+        RtpClock clock = new RtpClock(RtpClock.DEFAULT_VIDEO_CLOCK_RATE);
+        clock.start(0, 0);
+        assertEquals(120000, clock.toTimeUs(3 * 3600));
+        // B-frame
+        assertEquals(40000, clock.toTimeUs(3600));
+        assertEquals(160000, clock.toTimeUs(4 * 3600));
+    }
+
+    @Test
+    public void start_afterResetDoesNotMoveClockBack() {
+        RtpClock clock = new RtpClock(RtpClock.DEFAULT_VIDEO_CLOCK_RATE);
+        clock.start(0, 0);
+        clock.rebase(0, 5000000);
+        assertEquals(5040000, clock.toTimeUs(3600));
+        clock.reset();
+        clock.start(123456, 1000000);
+        assertEquals(5040000, clock.toTimeUs(123456));
+        assertEquals(5080000, clock.toTimeUs(123456 + 3600));
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.alexvas.rtsp.parser;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RtpReorderBufferTest {
+
+    private static final long SSRC_1 = 0x11111111L;
+    private static final long SSRC_2 = 0x22222222L;
+    private static final int LATENCY_MSEC = 100;
+
+    // Events in the order the listener got them: "<sequence>" for packets, "loss <n>" for gaps.
+    // Packets are parsed into the shared header, the same way RtspClient does.
+    private final RtpParser.RtpHeader header = new RtpParser.RtpHeader();
+    private final List<String> events = new ArrayList<>();
+    private final RtpReorderBuffer.PacketListener listener = new RtpReorderBuffer.PacketListener() {
+        @Override
+        public void onRtpPacket(@NonNull byte[] data, int offset, int length) {
+            assertTrue(header.parse(data, offset, length));
+            events.add(String.valueOf(header.sequenceNumber));
+        }
+
+        @Override
+        public void onRtpPacketLoss(int lostPackets) {
+            events.add("loss " + lostPackets);
+        }
+    };
+
+    @Test
+    public void inOrder_passesThroughSequenceWrap() {
+        RtpReorderBuffer buffer = new RtpReorderBuffer(8, LATENCY_MSEC);
+        push(buffer, 65534, SSRC_1, 0);
+        push(buffer, 65535, SSRC_1, 0);
+        push(buffer, 0, SSRC_1, 0);
+        push(buffer, 1, SSRC_1, 0);
+        assertEvents("65534", "65535", "0", "1");
+        assertEquals(0, buffer.getLostPackets());
+        assertFalse(buffer.hasPendingPackets());
+    }
+
+    @Test
+    public void reordered_restoresOrderAcrossSequenceWrap() {
+        RtpReorderBuffer buffer = new RtpReorderBuffer(8, LATENCY_MSEC);
+        push(buffer, 65535, SSRC_1, 0);
+        push(buffer, 1, SSRC_1, 0);
+        push(buffer, 0, SSRC_1, 0);
+        assertEvents("65535", "0", "1");
+        assertEquals(1, buffer.getReorderedPackets());
+        assertEquals(0, buffer.getLostPackets());
+    }
+
+    @Test
+    public void poll_reportsLossAfterLatency() {
+        RtpReorderBuffer buffer = new RtpReorderBuffer(8, LATENCY_MSEC);
+        push(buffer, 1, SSRC_1, 0);
+        push(buffer, 3, SSRC_1, 10);
+        buffer.poll(10 + LATENCY_MSEC - 1, listener);
+        assertEvents("1");
+        buffer.poll(10 + LATENCY_MSEC, listener);
+        assertEvents("1", "loss 1", "3");
+
+        // Too late, already reported as lost
+        push(buffer, 2, SSRC_1, 200);
+        assertEvents("1", "loss 1", "3");
+        assertEquals(1, buffer.getLatePackets());
+    }
+
+    @Test
+    public void bufferFull_releasesOldestPackets() {
+        RtpReorderBuffer buffer = new RtpReorderBuffer(8, LATENCY_MSEC);
+        push(buffer, 65530, SSRC_1, 0);
+        // 65531 is lost, the following ones wrap and do not fit the buffer
+        for (int i = 65532; i < 65532 + 7; i++)
+            push(buffer, i & 0xFFFF, SSRC_1, 0);
+        assertEvents("65530");
+        push(buffer, 3, SSRC_1, 0);
+        assertEvents("65530", "loss 1", "65532", "65533", "65534", "65535", "0", "1", "2", "3");
+        assertEquals(1, buffer.getLostPackets());
+        assertFalse(buffer.hasPendingPackets());
+
+        push(buffer, 4, SSRC_1, 0);
+        assertEquals("4", events.get(events.size() - 1));
+    }
+
+    @Test
+    public void ssrcChange_restartsOnNewSource() {
+        RtpReorderBuffer buffer = new RtpReorderBuffer(8, LATENCY_MSEC);
+        push(buffer, 100, SSRC_1, 0);
+        push(buffer, 102, SSRC_1, 0);
+        // Buffered packet of the old source is flushed into the shared header first
+        push(buffer, 5000, SSRC_2, 0);
+        push(buffer, 5001, SSRC_2, 0);
+        assertEvents("100", "loss 1", "102", "loss 0", "5000", "5001");
+        assertEquals(0, buffer.getLatePackets());
+    }
+
+    @Test
+    public void sequenceJump_restartsStream() {
+        RtpReorderBuffer buffer = new RtpReorderBuffer(8, LATENCY_MSEC);
+        push(buffer, 10, SSRC_1, 0);
+        push(buffer, 10 + 5000, SSRC_1, 0);
+        push(buffer, 10 + 5001, SSRC_1, 0);
+        assertEvents("10", "loss 0", "5010", "5011");
+    }
+
+    @Test
+    public void zeroLatency_reportsGapsImmediately() {
+        RtpReorderBuffer buffer = new RtpReorderBuffer(8, 0);
+        push(buffer, 65535, SSRC_1, 0);
+        push(buffer, 2, SSRC_1, 0);
+        push(buffer, 1, SSRC_1, 0);
+        assertEvents("65535", "loss 2", "2");
+        assertEquals(1, buffer.getLatePackets());
+    }
+
+    private void push(@NonNull RtpReorderBuffer buffer, int sequence, long ssrc, long nowMsec) {
+        byte[] packet = new byte[12 + 4];
+        packet[0] = (byte) 0x80;
+        packet[1] = 96;
+        packet[2] = (byte) (sequence >> 8);
+        packet[3] = (byte) sequence;
+        packet[8] = (byte) (ssrc >> 24);
+        packet[9] = (byte) (ssrc >> 16);
+        packet[10] = (byte) (ssrc >> 8);
+        packet[11] = (byte) ssrc;
+        assertTrue(header.parse(packet, 0, packet.length));
+        buffer.push(packet, 0, packet.length, header, nowMsec, listener);
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), events);
+    }
+
+}